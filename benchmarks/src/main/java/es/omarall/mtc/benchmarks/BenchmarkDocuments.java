@@ -0,0 +1,70 @@
+package es.omarall.mtc.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+/**
+ * Pre-encoded BSON documents shaped like the events published to a capped
+ * collection: an _id, a type, a partition key, a timestamp, an embedded
+ * document and a payload filling the document up to the size wanted.
+ */
+public final class BenchmarkDocuments {
+
+	public static final String TYPE_FIELD = "type";
+	public static final String KEY_FIELD = "key";
+
+	private static final int TYPES = 8;
+	private static final int KEYS = 64;
+
+	private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+	private BenchmarkDocuments() {
+	}
+
+	/**
+	 * @return count documents, encoded, of about documentSize bytes each.
+	 */
+	public static byte[][] encode(int count, int documentSize) {
+
+		DocumentCodec codec = new DocumentCodec();
+		byte[][] encoded = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			Document doc = new Document("_id", new ObjectId())
+					.append(TYPE_FIELD, "type-" + (i % TYPES))
+					.append(KEY_FIELD, "key-" + (i % KEYS))
+					.append("ts", new Date())
+					.append("source", new Document("host", "host-" + (i % 4)).append("seq", (long) i));
+
+			int size = new RawBsonDocument(doc, codec).getByteBuffer().remaining();
+			char[] payload = new char[Math.max(0, documentSize - size - 16)];
+			Arrays.fill(payload, 'x');
+			doc.append("payload", new String(payload));
+
+			ByteBuffer buffer = new RawBsonDocument(doc, codec).getByteBuffer().asNIO();
+			encoded[i] = new byte[buffer.remaining()];
+			buffer.get(encoded[i]);
+		}
+		return encoded;
+	}
+
+	/**
+	 * Decodes a document as the driver does when reading a reply.
+	 */
+	public static <T> T decode(byte[] bytes, Decoder<T> decoder) {
+		BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(bytes));
+		try {
+			return decoder.decode(reader, DECODER_CONTEXT);
+		} finally {
+			reader.close();
+		}
+	}
+}
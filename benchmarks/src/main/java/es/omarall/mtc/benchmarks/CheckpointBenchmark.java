@@ -0,0 +1,103 @@
+package es.omarall.mtc.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.PersistentTrackingManager;
+import es.omarall.mtc.checkpoint.InMemoryCheckpointStore;
+import es.omarall.mtc.checkpoint.JournalCheckpointStore;
+
+/**
+ * Cost, on the tailing thread, of tracking each processed document with
+ * {@link PersistentTrackingManager}, writing right away or behind, to each
+ * checkpoint store. Mongo store writes go to an in-memory database taking
+ * updateLatencyMicros per write. Journal store writes go to a temporary file.
+ * 
+ * Scores are documents per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckpointBenchmark {
+
+	public static final int DOCUMENTS = 1024;
+
+	@Param({ "false", "true" })
+	public boolean writeBehind;
+
+	@Param({ "0", "200" })
+	public long updateLatencyMicros;
+
+	@Param({ "mongo", "memory", "journal" })
+	public String checkpointStore;
+
+	private ObjectId[] ids;
+	private PersistentTrackingManager tracker;
+	private File journal;
+	private JournalCheckpointStore journalStore;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+
+		ids = new ObjectId[DOCUMENTS];
+		for (int i = 0; i < DOCUMENTS; i++)
+			ids[i] = new ObjectId();
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+		trackingConfiguration.setConsumerId("benchmark");
+		trackingConfiguration.setWriteBehind(writeBehind);
+		if (checkpointStore.equals("memory")) {
+			trackingConfiguration.setCheckpointStore(new InMemoryCheckpointStore());
+		} else if (checkpointStore.equals("journal")) {
+			journal = File.createTempFile("mtc-checkpoints", ".journal");
+			journal.delete();
+			journalStore = new JournalCheckpointStore(journal);
+			trackingConfiguration.setCheckpointStore(journalStore);
+		}
+
+		MTCConfiguration configuration = new MTCConfiguration();
+		configuration.setMongoDatabase(InMemoryDatabase.create(updateLatencyMicros).getMongoDatabase());
+		configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+
+		tracker = new PersistentTrackingManager(configuration);
+		tracker.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		tracker.close();
+		if (journalStore != null) {
+			journalStore.close();
+			journal.delete();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCUMENTS)
+	public void track() {
+		for (ObjectId id : ids)
+			tracker.trackEventId(id);
+	}
+}
@@ -0,0 +1,173 @@
+package es.omarall.mtc.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoCursor;
+
+import es.omarall.mtc.dispatch.BatchingDocumentDispatcher;
+import es.omarall.mtc.dispatch.DefaultDocumentAdapter;
+import es.omarall.mtc.dispatch.DirectDocumentDispatcher;
+import es.omarall.mtc.dispatch.DocumentAdapter;
+import es.omarall.mtc.dispatch.DocumentDispatcher;
+import es.omarall.mtc.dispatch.DocumentRingBuffer;
+import es.omarall.mtc.dispatch.PartitionedDocumentDispatcher;
+import es.omarall.mtc.dispatch.PipelinedDocumentDispatcher;
+import es.omarall.mtc.dispatch.RawDocumentAdapter;
+import es.omarall.mtc.wait.WaitStrategyType;
+
+/**
+ * Tailing hot path, as TailingTask iterates a cursor: fetch and decode each
+ * document, dispatch it and flush once the cursor runs dry. Handlers read one
+ * field. Asynchronous dispatchers are waited for to complete every document.
+ * 
+ * Scores are documents per second. Run with -prof gc for allocations per
+ * document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	public static final int DOCUMENTS = 1024;
+
+	public enum DispatchMode {
+		DIRECT, BATCHING, PIPELINED, PARTITIONED;
+	}
+
+	public enum Decoding {
+		DOCUMENT, RAW;
+	}
+
+	@Param({ "DIRECT", "BATCHING", "PIPELINED", "PARTITIONED" })
+	public DispatchMode mode;
+
+	@Param({ "DOCUMENT", "RAW" })
+	public Decoding decoding;
+
+	@Param({ "256", "1024", "8192" })
+	public int documentSize;
+
+	/** For pipelined and partitioned modes. Override with -p waitStrategy=... */
+	@Param({ "BLOCKING" })
+	public WaitStrategyType waitStrategy;
+
+	/** Written by handlers so reads are not optimized away. */
+	private volatile Object sink;
+
+	private Tail<?> tailing;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		byte[][] documents = BenchmarkDocuments.encode(DOCUMENTS, documentSize);
+		if (decoding == Decoding.RAW)
+			tailing = new Tail<RawBsonDocument>(documents, new RawBsonDocumentCodec(), RawDocumentAdapter.INSTANCE);
+		else
+			tailing = new Tail<Document>(documents, new DocumentCodec(), DefaultDocumentAdapter.INSTANCE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		tailing.dispatcher.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCUMENTS)
+	public ObjectId tail() {
+		return tailing.run();
+	}
+
+	/**
+	 * A dispatcher for the mode benchmarked, fed from an in-memory cursor.
+	 */
+	private final class Tail<T> {
+
+		private final byte[][] documents;
+		private final Decoder<T> decoder;
+		private final DocumentDispatcher<T> dispatcher;
+		private final DocumentRingBuffer<T> ringBuffer;
+
+		Tail(byte[][] documents, Decoder<T> decoder, final DocumentAdapter<T> adapter) {
+
+			this.documents = documents;
+			this.decoder = decoder;
+
+			Consumer<T> handler = new Consumer<T>() {
+				@Override
+				public void accept(T doc) {
+					sink = adapter.getValue(doc, BenchmarkDocuments.TYPE_FIELD);
+				}
+			};
+
+			switch (mode) {
+			case BATCHING:
+				this.dispatcher = new BatchingDocumentDispatcher<T>(new Consumer<List<T>>() {
+					@Override
+					public void accept(List<T> docs) {
+						for (T doc : docs)
+							sink = adapter.getValue(doc, BenchmarkDocuments.TYPE_FIELD);
+					}
+				}, adapter, 100, 100L);
+				this.ringBuffer = null;
+				break;
+			case PIPELINED:
+				PipelinedDocumentDispatcher<T> pipelined = new PipelinedDocumentDispatcher<T>(handler, adapter,
+						DOCUMENTS, 1, waitStrategy);
+				this.dispatcher = pipelined;
+				this.ringBuffer = pipelined.getRingBuffer();
+				break;
+			case PARTITIONED:
+				PartitionedDocumentDispatcher<T> partitioned = new PartitionedDocumentDispatcher<T>(handler,
+						adapter, BenchmarkDocuments.KEY_FIELD, 4, DOCUMENTS, waitStrategy);
+				this.dispatcher = partitioned;
+				this.ringBuffer = partitioned.getRingBuffer();
+				break;
+			default:
+				this.dispatcher = new DirectDocumentDispatcher<T>(handler, adapter);
+				this.ringBuffer = null;
+			}
+		}
+
+		ObjectId run() {
+
+			MongoCursor<T> cursor = new InMemoryCursor<T>(documents, decoder);
+			T next;
+			while ((next = cursor.tryNext()) != null)
+				dispatcher.dispatch(next);
+			dispatcher.flush();
+			cursor.close();
+
+			// Every document is completed before the next invocation
+			if (ringBuffer != null) {
+				while (ringBuffer.size() > 0)
+					Thread.yield();
+			}
+			return dispatcher.getLastCompletedId();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package es.omarall.mtc.benchmarks;
+
+import java.util.NoSuchElementException;
+
+import org.bson.codecs.Decoder;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+
+/**
+ * {@link MongoCursor} stand-in over pre-encoded documents. Documents are
+ * decoded as they are fetched, as the driver does. Once every document was
+ * fetched, tryNext() returns null as a tailable cursor with no data would.
+ */
+public class InMemoryCursor<T> implements MongoCursor<T> {
+
+	private final byte[][] documents;
+	private final Decoder<T> decoder;
+	private int position;
+	private boolean closed;
+
+	public InMemoryCursor(byte[][] documents, Decoder<T> decoder) {
+		this.documents = documents;
+		this.decoder = decoder;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed)
+			throw new IllegalStateException("Cursor has been closed");
+		return position < documents.length;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return BenchmarkDocuments.decode(documents[position++], decoder);
+	}
+
+	@Override
+	public T tryNext() {
+		return hasNext() ? next() : null;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	@Override
+	public ServerCursor getServerCursor() {
+		return null;
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		return null;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,83 @@
+package es.omarall.mtc.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * {@link MongoDatabase} stand-in answering what
+ * {@link es.omarall.mtc.PersistentTrackingManager} needs: index listing and
+ * creation, updates and finds on the tracker collection. Updates take
+ * updateLatencyMicros, to stand for the round trip, and are counted.
+ */
+public class InMemoryDatabase implements InvocationHandler {
+
+	private static final byte[][] NO_DOCUMENTS = new byte[0][];
+
+	private final long updateLatencyNanos;
+	private final AtomicLong updates = new AtomicLong();
+
+	private InMemoryDatabase(long updateLatencyMicros) {
+		this.updateLatencyNanos = TimeUnit.MICROSECONDS.toNanos(updateLatencyMicros);
+	}
+
+	public static InMemoryDatabase create(long updateLatencyMicros) {
+		return new InMemoryDatabase(updateLatencyMicros);
+	}
+
+	public MongoDatabase getMongoDatabase() {
+		return proxy(MongoDatabase.class);
+	}
+
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+		String name = method.getName();
+		if (name.equals("getCollection") || name.startsWith("with"))
+			return proxy(MongoCollection.class);
+		if (name.equals("listIndexes"))
+			return proxy(ListIndexesIterable.class);
+		if (name.equals("find"))
+			return proxy(FindIterable.class);
+		if (name.equals("iterator"))
+			return new InMemoryCursor<Document>(NO_DOCUMENTS, new DocumentCodec());
+		if (name.equals("first"))
+			return null;
+		if (name.equals("createIndex"))
+			return "index";
+		if (name.equals("updateOne")) {
+			if (updateLatencyNanos > 0)
+				LockSupport.parkNanos(updateLatencyNanos);
+			updates.incrementAndGet();
+			return UpdateResult.acknowledged(1L, 1L, null);
+		}
+		if (name.equals("toString"))
+			return "InMemoryDatabase";
+		if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		if (name.equals("equals"))
+			return proxy == args[0];
+		throw new UnsupportedOperationException(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type) {
+		return (T) Proxy.newProxyInstance(InMemoryDatabase.class.getClassLoader(), new Class<?>[] { type }, this);
+	}
+}
@@ -0,0 +1,61 @@
+package es.omarall.mtc.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Records latencies into a preallocated array, so recording does not allocate.
+ * Samples beyond the capacity are counted but dropped.
+ */
+public class LatencyRecorder {
+
+	private final long[] samples;
+	private int count;
+	private long dropped;
+
+	public LatencyRecorder(int capacity) {
+		this.samples = new long[capacity];
+	}
+
+	public synchronized void record(long latencyNanos) {
+		if (count < samples.length)
+			samples[count++] = latencyNanos;
+		else
+			dropped++;
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the latencies recorded by every recorder, sorted.
+	 */
+	public static long[] merge(Iterable<LatencyRecorder> recorders) {
+		int total = 0;
+		for (LatencyRecorder recorder : recorders)
+			total += recorder.count;
+		long[] merged = new long[total];
+		int offset = 0;
+		for (LatencyRecorder recorder : recorders) {
+			System.arraycopy(recorder.samples, 0, merged, offset, recorder.count);
+			offset += recorder.count;
+		}
+		Arrays.sort(merged);
+		return merged;
+	}
+
+	/**
+	 * @return the value at the given percentile, 0 to 100, of sorted values.
+	 *         0 if none.
+	 */
+	public static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
@@ -0,0 +1,286 @@
+package es.omarall.mtc.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.DocumentHandler;
+import es.omarall.mtc.PersistentTrackingManager;
+import es.omarall.mtc.TailingTask;
+
+/**
+ * End to end load test: producers insert into a capped collection at a fixed
+ * rate while TailingTask consumers tail it. Each document embeds the
+ * System.nanoTime() of its insert, producers and consumers sharing the JVM, so
+ * insert to handle latency is measured with nanosecond resolution.
+ * 
+ * Runs against a mongod given by --uri, or forks one from the --mongod binary
+ * on a temporary dbpath. The result is printed as a single JSON line, and
+ * also written to --output if given, so runs can be diffed.
+ * 
+ * Options, as --name=value: uri, mongod, port, database, collection,
+ * cappedSize, producers, rate (documents per second, all producers), duration
+ * (seconds), warmup (seconds), consumers, documentSize, tracking, writeBehind,
+ * pipelined, output.
+ */
+public class LoadHarness {
+
+	private static final String NANOS_FIELD = "nanos";
+
+	private final Map<String, String> options;
+
+	private final AtomicBoolean producing = new AtomicBoolean(true);
+	private final AtomicBoolean measuring = new AtomicBoolean(false);
+	private final AtomicLong inserted = new AtomicLong();
+	private final AtomicLong handled = new AtomicLong();
+
+	public LoadHarness(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (!arg.startsWith("--") || separator < 0)
+				throw new IllegalArgumentException("Options are expected as --name=value: " + arg);
+			options.put(arg.substring(2, separator), arg.substring(separator + 1));
+		}
+		new LoadHarness(options).run();
+	}
+
+	public void run() throws Exception {
+
+		Process mongod = null;
+		String uri = option("uri", "mongodb://localhost:27017");
+		if (options.containsKey("mongod")) {
+			int port = Integer.parseInt(option("port", "27777"));
+			mongod = forkMongod(options.get("mongod"), port);
+			uri = "mongodb://localhost:" + port;
+		}
+
+		MongoClient client = new MongoClient(new MongoClientURI(uri,
+				MongoClientOptions.builder().serverSelectionTimeout(30000)));
+		try {
+			Document result = runLoad(client);
+			String json = result.toJson();
+			System.out.println(json);
+			if (options.containsKey("output")) {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(options.get("output"), true), "UTF-8");
+				try {
+					writer.write(json);
+					writer.write('\n');
+				} finally {
+					writer.close();
+				}
+			}
+		} finally {
+			client.close();
+			if (mongod != null) {
+				mongod.destroy();
+				mongod.waitFor(10, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	private Document runLoad(MongoClient client) throws Exception {
+
+		String database = option("database", "mtc-load");
+		String collection = option("collection", "events");
+		int producers = Integer.parseInt(option("producers", "1"));
+		int rate = Integer.parseInt(option("rate", "10000"));
+		int duration = Integer.parseInt(option("duration", "30"));
+		int warmup = Integer.parseInt(option("warmup", "5"));
+		int consumers = Integer.parseInt(option("consumers", "1"));
+		int documentSize = Integer.parseInt(option("documentSize", "512"));
+		boolean tracking = Boolean.parseBoolean(option("tracking", "true"));
+		boolean writeBehind = Boolean.parseBoolean(option("writeBehind", "false"));
+		boolean pipelined = Boolean.parseBoolean(option("pipelined", "false"));
+
+		// Fresh capped collection and tracking state
+		MongoDatabase mongoDatabase = client.getDatabase(database);
+		mongoDatabase.drop();
+		mongoDatabase.createCollection(collection, new CreateCollectionOptions().capped(true)
+				.sizeInBytes(Long.parseLong(option("cappedSize", String.valueOf(512L * 1024 * 1024)))));
+		final MongoCollection<Document> capped = mongoDatabase.getCollection(collection);
+		// A first document, so cursors are not dead from the start
+		capped.insertOne(new Document(NANOS_FIELD, System.nanoTime()));
+
+		// CONSUMERS
+		List<TailingTask> tasks = new ArrayList<TailingTask>();
+		List<LatencyRecorder> recorders = new ArrayList<LatencyRecorder>();
+		List<Thread> threads = new ArrayList<Thread>();
+		int capacity = (int) Math.min(Integer.MAX_VALUE - 8, (long) rate * duration * 2);
+		for (int i = 0; i < consumers; i++) {
+
+			MTCConfiguration configuration = new MTCConfiguration();
+			configuration.setMongoClient(client);
+			configuration.setDatabase(database);
+			configuration.setCollection(collection);
+			configuration.setPipelined(pipelined);
+			if (tracking) {
+				MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+				trackingConfiguration.setConsumerId("load-consumer-" + i);
+				trackingConfiguration.setWriteBehind(writeBehind);
+				configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+			}
+
+			final LatencyRecorder recorder = new LatencyRecorder(capacity);
+			TailingTask task = new TailingTask(configuration);
+			task.setDocumentHandler(new DocumentHandler() {
+				@Override
+				public void handleDocument(Document doc) {
+					long latency = System.nanoTime() - doc.getLong(NANOS_FIELD);
+					if (measuring.get()) {
+						recorder.record(latency);
+						handled.incrementAndGet();
+					}
+				}
+			});
+			task.start();
+			tasks.add(task);
+			recorders.add(recorder);
+
+			Thread thread = new Thread(task, "mtc-load-consumer-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+
+		// PRODUCERS
+		char[] payload = new char[Math.max(0, documentSize - 64)];
+		Arrays.fill(payload, 'x');
+		final String payloadString = new String(payload);
+		final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * producers / rate;
+		for (int i = 0; i < producers; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long next = System.nanoTime();
+					while (producing.get()) {
+						long wait = next - System.nanoTime();
+						if (wait > 0)
+							LockSupport.parkNanos(wait);
+						capped.insertOne(new Document(NANOS_FIELD, System.nanoTime()).append("payload", payloadString));
+						if (measuring.get())
+							inserted.incrementAndGet();
+						next += intervalNanos;
+					}
+				}
+			}, "mtc-load-producer-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		TimeUnit.SECONDS.sleep(warmup);
+		measuring.set(true);
+		long startNanos = System.nanoTime();
+		TimeUnit.SECONDS.sleep(duration);
+		producing.set(false);
+		long producedNanos = System.nanoTime() - startNanos;
+
+		// Let consumers catch up
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (handled.get() < inserted.get() * consumers && System.nanoTime() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+		long consumedNanos = System.nanoTime() - startNanos;
+		measuring.set(false);
+
+		// One more document wakes up consumers awaiting data
+		for (TailingTask task : tasks)
+			task.stop();
+		capped.insertOne(new Document(NANOS_FIELD, System.nanoTime()));
+		for (Thread thread : threads)
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+
+		return report(tasks, recorders, producedNanos, consumedNanos, producers, rate, consumers, documentSize,
+				tracking, writeBehind, pipelined);
+	}
+
+	private Document report(List<TailingTask> tasks, List<LatencyRecorder> recorders, long producedNanos,
+			long consumedNanos, int producers, int rate, int consumers, int documentSize, boolean tracking,
+			boolean writeBehind, boolean pipelined) {
+
+		long[] latencies = LatencyRecorder.merge(recorders);
+		long dropped = 0;
+		for (LatencyRecorder recorder : recorders)
+			dropped += recorder.getDropped();
+
+		long checkpointWrites = 0;
+		long cursorsBuilt = 0;
+		long cursorsEmpty = 0;
+		long cursorsLost = 0;
+		for (TailingTask task : tasks) {
+			PersistentTrackingManager tracker = task.getPersistentTrackingManager();
+			if (tracker != null)
+				checkpointWrites += tracker.getCheckpointWrites();
+			cursorsBuilt += task.getCursorsBuilt();
+			cursorsEmpty += task.getCursorsEmpty();
+			cursorsLost += task.getCursorsLost();
+		}
+
+		double producedSeconds = producedNanos / 1e9;
+		double consumedSeconds = consumedNanos / 1e9;
+		return new Document("producers", producers).append("targetRate", rate).append("consumers", consumers)
+				.append("documentSize", documentSize).append("tracking", tracking).append("writeBehind", writeBehind)
+				.append("pipelined", pipelined)
+				.append("inserted", inserted.get())
+				.append("handled", handled.get())
+				.append("insertRate", inserted.get() / producedSeconds)
+				.append("handleRate", handled.get() / consumedSeconds)
+				.append("latencyMicros", new Document("p50", micros(LatencyRecorder.percentile(latencies, 50)))
+						.append("p99", micros(LatencyRecorder.percentile(latencies, 99)))
+						.append("p999", micros(LatencyRecorder.percentile(latencies, 99.9)))
+						.append("max", micros(latencies.length == 0 ? 0 : latencies[latencies.length - 1]))
+						.append("samples", latencies.length).append("dropped", dropped))
+				.append("checkpointWrites", checkpointWrites)
+				.append("cursorsBuilt", cursorsBuilt)
+				.append("cursorsEmpty", cursorsEmpty)
+				.append("cursorsLost", cursorsLost);
+	}
+
+	private static double micros(long nanos) {
+		return nanos / 1e3;
+	}
+
+	/**
+	 * Forks a mongod on a temporary dbpath, logging to mongod.log in it.
+	 */
+	static Process forkMongod(String binary, int port) throws IOException {
+
+		File dbPath = Files.createTempDirectory("mtc-load").toFile();
+		ProcessBuilder builder = new ProcessBuilder(binary, "--dbpath", dbPath.getAbsolutePath(), "--port",
+				String.valueOf(port), "--bind_ip", "127.0.0.1", "--quiet");
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(dbPath, "mongod.log"));
+		return builder.start();
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+}
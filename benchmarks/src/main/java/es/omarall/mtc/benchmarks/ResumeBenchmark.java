@@ -0,0 +1,193 @@
+package es.omarall.mtc.benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.DocumentHandler;
+import es.omarall.mtc.TailingTask;
+import es.omarall.mtc.checkpoint.InMemoryCheckpointStore;
+
+/**
+ * Resume time against collection size: for each size, a capped collection is
+ * filled and a TailingTask resumes after a document near the tail, scanning
+ * and seeking. Resume time is the time to build the cursor and fetch the first
+ * document.
+ * 
+ * Runs against a mongod given by --uri, or forks one from the --mongod binary,
+ * as {@link LoadHarness} does. A JSON line is printed per size, and also
+ * written to --output if given.
+ * 
+ * Options, as --name=value: uri, mongod, port, database, sizes (comma
+ * separated document counts), documentSize, resumes (per size and strategy),
+ * output.
+ */
+public class ResumeBenchmark {
+
+	private static final int INSERT_BATCH = 1000;
+	private static final int FROM_TAIL = 10;
+
+	private final Map<String, String> options;
+
+	public ResumeBenchmark(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (!arg.startsWith("--") || separator < 0)
+				throw new IllegalArgumentException("Options are expected as --name=value: " + arg);
+			options.put(arg.substring(2, separator), arg.substring(separator + 1));
+		}
+		new ResumeBenchmark(options).run();
+	}
+
+	public void run() throws Exception {
+
+		Process mongod = null;
+		String uri = option("uri", "mongodb://localhost:27017");
+		if (options.containsKey("mongod")) {
+			int port = Integer.parseInt(option("port", "27777"));
+			mongod = LoadHarness.forkMongod(options.get("mongod"), port);
+			uri = "mongodb://localhost:" + port;
+		}
+
+		MongoClient client = new MongoClient(new MongoClientURI(uri,
+				MongoClientOptions.builder().serverSelectionTimeout(30000)));
+		Writer writer = null;
+		try {
+			if (options.containsKey("output"))
+				writer = new OutputStreamWriter(new FileOutputStream(options.get("output"), true), "UTF-8");
+			for (String size : option("sizes", "10000,100000,1000000").split(",")) {
+				String json = runSize(client, Integer.parseInt(size.trim())).toJson();
+				System.out.println(json);
+				if (writer != null) {
+					writer.write(json);
+					writer.write('\n');
+					writer.flush();
+				}
+			}
+		} finally {
+			if (writer != null)
+				writer.close();
+			client.close();
+			if (mongod != null) {
+				mongod.destroy();
+				mongod.waitFor(10, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	private Document runSize(MongoClient client, int size) {
+
+		String database = option("database", "mtc-resume");
+		String collection = "events";
+		int documentSize = Integer.parseInt(option("documentSize", "512"));
+		int resumes = Integer.parseInt(option("resumes", "5"));
+
+		// Fresh capped collection, large enough not to overwrite
+		MongoDatabase mongoDatabase = client.getDatabase(database);
+		mongoDatabase.drop();
+		mongoDatabase.createCollection(collection,
+				new CreateCollectionOptions().capped(true).sizeInBytes(2L * size * (documentSize + 64)));
+		MongoCollection<Document> capped = mongoDatabase.getCollection(collection);
+
+		char[] payload = new char[Math.max(0, documentSize - 64)];
+		Arrays.fill(payload, 'x');
+		String payloadString = new String(payload);
+		int seconds = (int) (System.currentTimeMillis() / 1000);
+		ObjectId resumeId = null;
+		List<Document> batch = new ArrayList<Document>(INSERT_BATCH);
+		for (int i = 0; i < size; i++) {
+			ObjectId id = new ObjectId();
+			if (i == size - FROM_TAIL)
+				resumeId = id;
+			batch.add(new Document("_id", id)
+					.append(MTCConfiguration.RESUME_SEEK_FIELD, new BsonTimestamp(seconds, i))
+					.append("payload", payloadString));
+			if (batch.size() == INSERT_BATCH || i == size - 1) {
+				capped.insertMany(batch);
+				batch.clear();
+			}
+		}
+
+		Document result = new Document("documents", size).append("documentSize", documentSize);
+		for (boolean seek : new boolean[] { false, true }) {
+			long[] nanos = new long[resumes];
+			for (int i = 0; i < resumes; i++)
+				nanos[i] = resume(client, database, collection, resumeId, seek);
+			Arrays.sort(nanos);
+			result.append(seek ? "seekMillis" : "scanMillis", new Document("median", nanos[resumes / 2] / 1e6)
+					.append("min", nanos[0] / 1e6).append("max", nanos[resumes - 1] / 1e6));
+		}
+		return result;
+	}
+
+	/**
+	 * @return nanoseconds to build a cursor resuming after resumeId and fetch
+	 *         the first document.
+	 */
+	private long resume(MongoClient client, String database, String collection, ObjectId resumeId,
+			boolean seek) {
+
+		InMemoryCheckpointStore store = new InMemoryCheckpointStore();
+		store.save("resume", resumeId);
+		MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+		trackingConfiguration.setConsumerId("resume");
+		trackingConfiguration.setCheckpointStore(store);
+
+		MTCConfiguration configuration = new MTCConfiguration();
+		configuration.setMongoClient(client);
+		configuration.setDatabase(database);
+		configuration.setCollection(collection);
+		configuration.setResumeSeek(seek);
+		configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+
+		TailingTask task = new TailingTask(configuration);
+		task.setDocumentHandler(new DocumentHandler() {
+			@Override
+			public void handleDocument(Document doc) {
+			}
+		});
+		task.start();
+
+		long startNanos = System.nanoTime();
+		MongoCursor<Document> cursor = task.buildCursor();
+		try {
+			if (!cursor.hasNext())
+				throw new IllegalStateException("Nothing after " + resumeId);
+			cursor.next();
+			return System.nanoTime() - startNanos;
+		} finally {
+			cursor.close();
+			task.stop();
+		}
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+}
@@ -1,20 +1,47 @@
 package es.omarall.configuration;
 
+import java.io.File;
+
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
 import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoDatabase;
 
 import es.omarall.mtc.exceptions.InvalidMTCConfiguration;
+import es.omarall.mtc.metrics.MetricsRegistry;
+import es.omarall.mtc.wait.WaitStrategy;
+import es.omarall.mtc.wait.WaitStrategyType;
 
 /**
  * Contains all the data needed for exchange interaction.
  */
-public class MTCConfiguration {
+public class MTCConfiguration implements Cloneable {
+
+	public static final int DEFAULT_BATCH_MAX_SIZE = 100;
+	public static final long DEFAULT_BATCH_MAX_LINGER = 100L;
+	public static final int DEFAULT_RING_BUFFER_SIZE = 1024;
+	public static final int DEFAULT_MIN_CURSOR_BATCH_SIZE = 16;
+	public static final int DEFAULT_MAX_CURSOR_BATCH_SIZE = 4096;
+	public static final int DEFAULT_CATCH_UP_BATCH_SIZE = 4096;
+	public static final String RESUME_SEEK_FIELD = "ts";
+	public static final int DEFAULT_SLOW_LANES = 4;
+	public static final long DEFAULT_REPLICATION_LAG_CHECK_INTERVAL = 1000L;
+	public static final long DEFAULT_STOP_TIMEOUT = 10000L;
 
 	/**
 	 * A database connection with internal pooling.
 	 */
 	private MongoClient mongoClient;
 
+	/**
+	 * Eventually, a non blocking connection, used by the reactive tailing task
+	 * to fetch documents. Tracking and collection checks keep on using
+	 * mongoClient.
+	 */
+	private com.mongodb.async.client.MongoClient asyncMongoClient;
+
 	/**
 	 * Holds the name provided for the database containing the collection that
 	 * this component is bound to. Eventually, there will be a collection for
@@ -38,11 +65,216 @@ public class MTCConfiguration {
 	 */
 	private MTCPersistentTrackingConfiguration persistentTrackingConfiguration;
 
+	/**
+	 * Eventually, retry configuration. If null, documents whose handling
+	 * failed are logged and skipped.
+	 */
+	private MTCRetryConfiguration retryConfiguration;
+
 	/**
 	 * MongoDatabase instance associated to collection named as database.
 	 */
 	private MongoDatabase mongoDatabase;
 
+	/**
+	 * Eventually, codecs used to decode the documents fetched. If null, the
+	 * MongoClient ones are used. When tailing raw documents it must provide a
+	 * codec for RawBsonDocument.
+	 */
+	private CodecRegistry codecRegistry;
+
+	/**
+	 * Eventually, a query filter evaluated by the server, so only matching
+	 * documents are fetched. It is combined with the resume predicate when
+	 * tailing from the last tracked id.
+	 */
+	private Bson filter;
+
+	/**
+	 * Eventually, the fields to be fetched. _id can not be excluded: it is
+	 * needed for tracking. Neither should a partitionKey or a routeKey.
+	 */
+	private Bson projection;
+
+	/**
+	 * If enabled, resuming after a document does not scan the collection from
+	 * the oldest document: the server seeks, with oplogReplay, to the resume
+	 * document RESUME_SEEK_FIELD value. Documents are to carry that field, a
+	 * BSON timestamp increasing with insertion order, and the collection an
+	 * _id index. Cursors fall back to scanning if the resume document is gone
+	 * or has no such field.
+	 */
+	private boolean resumeSeek = false;
+
+	/**
+	 * Number of documents the tailable cursor fetches per getMore. 0 means the
+	 * driver default.
+	 */
+	private int cursorBatchSize = 0;
+
+	/**
+	 * Max time, in milliseconds, the server waits for new documents on a
+	 * getMore. 0 means the server default.
+	 */
+	private long cursorMaxAwaitTime = 0L;
+
+	/**
+	 * If enabled, the cursor batch size grows, up to maxCursorBatchSize, while
+	 * the consumer is behind and shrinks, down to minCursorBatchSize, once it
+	 * reaches the tail. The cursor is rebuilt, from the last fetched document,
+	 * on each change.
+	 */
+	private boolean adaptiveCursorBatchSize = false;
+
+	/**
+	 * How the tailing thread waits before building a new cursor, when the
+	 * collection had no data or the cursor was lost. Attempts count the
+	 * consecutive cursors built without fetching a document. If null, it parks
+	 * from 1 millisecond doubling up to the tracking cursorRegenerationDelay,
+	 * or up to a second if tracking is disabled.
+	 */
+	private WaitStrategy cursorIdleStrategy;
+
+	private int minCursorBatchSize = DEFAULT_MIN_CURSOR_BATCH_SIZE;
+
+	private int maxCursorBatchSize = DEFAULT_MAX_CURSOR_BATCH_SIZE;
+
+	/**
+	 * Read preference of the tailable cursors, as secondary, nearest or with
+	 * tag sets. If null, the one of the client. Collection checks run on the
+	 * primary.
+	 */
+	private ReadPreference tailReadPreference;
+
+	/**
+	 * If positive, milliseconds of replication lag a tailed member may have, as
+	 * reported by replSetGetStatus. A cursor landing on a member further behind
+	 * is rebuilt, on the primary once every other try landed on a lagging
+	 * member too, and a cursor whose member falls further behind is rebuilt
+	 * after the last fetched document. Needs the clusterMonitor role.
+	 */
+	private long maxReplicationLag = 0L;
+
+	/**
+	 * Milliseconds replication lag measures are reused for.
+	 */
+	private long replicationLagCheckInterval = DEFAULT_REPLICATION_LAG_CHECK_INTERVAL;
+
+	/**
+	 * If enabled, before building a cursor the oldest document in the
+	 * collection is compared with the one to resume after, to detect
+	 * documents overwritten before being fetched.
+	 */
+	private boolean overrunDetection = false;
+
+	/**
+	 * If positive, before building a tailable cursor the documents after the
+	 * one to resume after are counted. Being catchUpThreshold or more behind,
+	 * they are read first with a non tailable cursor, in batches of
+	 * catchUpBatchSize. Tailing goes on once the consumer is near the tail.
+	 */
+	private long catchUpThreshold = 0L;
+
+	private int catchUpBatchSize = DEFAULT_CATCH_UP_BATCH_SIZE;
+
+	/**
+	 * If positive, and documents are handled one at a time on the tailing
+	 * thread, catching up hands them over a ring buffer to this many handler
+	 * threads. Documents are then not handled in order while catching up.
+	 */
+	private int catchUpHandlerThreads = 0;
+
+	/**
+	 * If positive, the ids of the last duplicateSuppressionSize handled
+	 * documents are kept, and documents fetched again, as after a restart from
+	 * a checkpoint behind the last handled document, are dropped before
+	 * reaching the handler. Kept in duplicateSuppressionFile, required then,
+	 * loaded back on start: the ids handled after the last checkpoint are
+	 * nowhere else, so a cache kept in memory would be empty exactly when
+	 * documents are fetched again. One file per consumer.
+	 */
+	private int duplicateSuppressionSize = 0;
+
+	private File duplicateSuppressionFile;
+
+	/**
+	 * Eventually, registry the tailing task metrics are registered in while
+	 * running, to be exported. If null, metrics are not exported.
+	 */
+	private MetricsRegistry metricsRegistry;
+
+	/**
+	 * Max number of documents handed at once to a BatchDocumentHandler.
+	 */
+	private int batchMaxSize = DEFAULT_BATCH_MAX_SIZE;
+
+	/**
+	 * Max time, in milliseconds, the first document in a batch waits for the
+	 * batch to be handed to a BatchDocumentHandler.
+	 */
+	private long batchMaxLinger = DEFAULT_BATCH_MAX_LINGER;
+
+	/**
+	 * If enabled, the tailing thread only fetches documents. They are handed
+	 * through a ring buffer to handler threads that run the DocumentHandler.
+	 */
+	private boolean pipelined = false;
+
+	/**
+	 * Number of slots, a power of two, in the ring buffer between the tailing
+	 * thread and the handler threads. When full, fetching waits.
+	 */
+	private int ringBufferSize = DEFAULT_RING_BUFFER_SIZE;
+
+	/**
+	 * Number of threads running the DocumentHandler in pipelined mode. With
+	 * more than one, documents are not handled in order.
+	 */
+	private int handlerThreads = 1;
+
+	/**
+	 * How the tailing and handler threads wait on a full or empty ring buffer.
+	 */
+	private WaitStrategyType waitStrategy = WaitStrategyType.BLOCKING;
+
+	/**
+	 * If set, documents are spread over partitionLanes threads by the hash of
+	 * this field value. Documents sharing a value are handled in order. The
+	 * ring buffer size bounds the documents in flight.
+	 */
+	private String partitionKey;
+
+	/**
+	 * Number of lanes, each one a thread, in partitioned mode.
+	 */
+	private int partitionLanes = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * If set, documents are routed by the string value of this field to the
+	 * handlers added to the task with addRoute, each one on its own threads.
+	 * Documents matching no route go to the task document handler, on
+	 * handlerThreads threads, or are skipped if none. The ring buffer size
+	 * bounds the documents in flight.
+	 */
+	private String routeKey;
+
+	/**
+	 * If positive, milliseconds a document is waited for when handled one at a
+	 * time. A document taking longer is left running on a slow lane and the
+	 * tail moves on. At most slowLanes documents are left running at once.
+	 * The tracking id never goes past a document still running.
+	 */
+	private long handlerTimeBudget = 0L;
+
+	private int slowLanes = DEFAULT_SLOW_LANES;
+
+	/**
+	 * Milliseconds services running tailing tasks, as a fan out tail, wait on
+	 * stop for documents in flight to be handled and the final checkpoint
+	 * written. Documents still in flight then are fetched again on start.
+	 */
+	private long stopTimeout = DEFAULT_STOP_TIMEOUT;
+
 	public MongoClient getMongoClient() {
 		return mongoClient;
 	}
@@ -51,6 +283,14 @@ public class MTCConfiguration {
 		this.mongoClient = mongoClient;
 	}
 
+	public com.mongodb.async.client.MongoClient getAsyncMongoClient() {
+		return asyncMongoClient;
+	}
+
+	public void setAsyncMongoClient(com.mongodb.async.client.MongoClient asyncMongoClient) {
+		this.asyncMongoClient = asyncMongoClient;
+	}
+
 	public String getDatabase() {
 		return database;
 	}
@@ -78,6 +318,166 @@ public class MTCConfiguration {
 		this.mongoDatabase = mongoDatabase;
 	}
 
+	public CodecRegistry getCodecRegistry() {
+		return codecRegistry;
+	}
+
+	public void setCodecRegistry(CodecRegistry codecRegistry) {
+		this.codecRegistry = codecRegistry;
+	}
+
+	public Bson getFilter() {
+		return filter;
+	}
+
+	public void setFilter(Bson filter) {
+		this.filter = filter;
+	}
+
+	public Bson getProjection() {
+		return projection;
+	}
+
+	public void setProjection(Bson projection) {
+		this.projection = projection;
+	}
+
+	public boolean isResumeSeek() {
+		return resumeSeek;
+	}
+
+	public void setResumeSeek(boolean resumeSeek) {
+		this.resumeSeek = resumeSeek;
+	}
+
+	public int getCursorBatchSize() {
+		return cursorBatchSize;
+	}
+
+	public void setCursorBatchSize(int cursorBatchSize) {
+		this.cursorBatchSize = cursorBatchSize;
+	}
+
+	public long getCursorMaxAwaitTime() {
+		return cursorMaxAwaitTime;
+	}
+
+	public void setCursorMaxAwaitTime(long cursorMaxAwaitTime) {
+		this.cursorMaxAwaitTime = cursorMaxAwaitTime;
+	}
+
+	public boolean isAdaptiveCursorBatchSize() {
+		return adaptiveCursorBatchSize;
+	}
+
+	public void setAdaptiveCursorBatchSize(boolean adaptiveCursorBatchSize) {
+		this.adaptiveCursorBatchSize = adaptiveCursorBatchSize;
+	}
+
+	public WaitStrategy getCursorIdleStrategy() {
+		return cursorIdleStrategy;
+	}
+
+	public void setCursorIdleStrategy(WaitStrategy cursorIdleStrategy) {
+		this.cursorIdleStrategy = cursorIdleStrategy;
+	}
+
+	public int getMinCursorBatchSize() {
+		return minCursorBatchSize;
+	}
+
+	public void setMinCursorBatchSize(int minCursorBatchSize) {
+		this.minCursorBatchSize = minCursorBatchSize;
+	}
+
+	public int getMaxCursorBatchSize() {
+		return maxCursorBatchSize;
+	}
+
+	public void setMaxCursorBatchSize(int maxCursorBatchSize) {
+		this.maxCursorBatchSize = maxCursorBatchSize;
+	}
+
+	public ReadPreference getTailReadPreference() {
+		return tailReadPreference;
+	}
+
+	public void setTailReadPreference(ReadPreference tailReadPreference) {
+		this.tailReadPreference = tailReadPreference;
+	}
+
+	public long getMaxReplicationLag() {
+		return maxReplicationLag;
+	}
+
+	public void setMaxReplicationLag(long maxReplicationLag) {
+		this.maxReplicationLag = maxReplicationLag;
+	}
+
+	public long getReplicationLagCheckInterval() {
+		return replicationLagCheckInterval;
+	}
+
+	public void setReplicationLagCheckInterval(long replicationLagCheckInterval) {
+		this.replicationLagCheckInterval = replicationLagCheckInterval;
+	}
+
+	public boolean isOverrunDetection() {
+		return overrunDetection;
+	}
+
+	public void setOverrunDetection(boolean overrunDetection) {
+		this.overrunDetection = overrunDetection;
+	}
+
+	public long getCatchUpThreshold() {
+		return catchUpThreshold;
+	}
+
+	public void setCatchUpThreshold(long catchUpThreshold) {
+		this.catchUpThreshold = catchUpThreshold;
+	}
+
+	public int getCatchUpBatchSize() {
+		return catchUpBatchSize;
+	}
+
+	public void setCatchUpBatchSize(int catchUpBatchSize) {
+		this.catchUpBatchSize = catchUpBatchSize;
+	}
+
+	public int getCatchUpHandlerThreads() {
+		return catchUpHandlerThreads;
+	}
+
+	public void setCatchUpHandlerThreads(int catchUpHandlerThreads) {
+		this.catchUpHandlerThreads = catchUpHandlerThreads;
+	}
+
+	public int getDuplicateSuppressionSize() {
+		return duplicateSuppressionSize;
+	}
+
+	public void setDuplicateSuppressionSize(int duplicateSuppressionSize) {
+		this.duplicateSuppressionSize = duplicateSuppressionSize;
+	}
+
+	public File getDuplicateSuppressionFile() {
+		return duplicateSuppressionFile;
+	}
+
+	public void setDuplicateSuppressionFile(File duplicateSuppressionFile) {
+		this.duplicateSuppressionFile = duplicateSuppressionFile;
+	}
+
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
+
+	public void setMetricsRegistry(MetricsRegistry metricsRegistry) {
+		this.metricsRegistry = metricsRegistry;
+	}
+
 	public MTCPersistentTrackingConfiguration getPersistentTrackingConfiguration() {
 		return persistentTrackingConfiguration;
 	}
@@ -86,6 +486,118 @@ public class MTCConfiguration {
 		this.persistentTrackingConfiguration = persistentTrackingConfiguration;
 	}
 
+	public MTCRetryConfiguration getRetryConfiguration() {
+		return retryConfiguration;
+	}
+
+	public void setRetryConfiguration(MTCRetryConfiguration retryConfiguration) {
+		this.retryConfiguration = retryConfiguration;
+	}
+
+	public int getBatchMaxSize() {
+		return batchMaxSize;
+	}
+
+	public void setBatchMaxSize(int batchMaxSize) {
+		this.batchMaxSize = batchMaxSize;
+	}
+
+	public long getBatchMaxLinger() {
+		return batchMaxLinger;
+	}
+
+	public void setBatchMaxLinger(long batchMaxLinger) {
+		this.batchMaxLinger = batchMaxLinger;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	public int getRingBufferSize() {
+		return ringBufferSize;
+	}
+
+	public void setRingBufferSize(int ringBufferSize) {
+		this.ringBufferSize = ringBufferSize;
+	}
+
+	public int getHandlerThreads() {
+		return handlerThreads;
+	}
+
+	public void setHandlerThreads(int handlerThreads) {
+		this.handlerThreads = handlerThreads;
+	}
+
+	public WaitStrategyType getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public void setWaitStrategy(WaitStrategyType waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	public String getPartitionKey() {
+		return partitionKey;
+	}
+
+	public void setPartitionKey(String partitionKey) {
+		this.partitionKey = partitionKey;
+	}
+
+	public int getPartitionLanes() {
+		return partitionLanes;
+	}
+
+	public void setPartitionLanes(int partitionLanes) {
+		this.partitionLanes = partitionLanes;
+	}
+
+	public String getRouteKey() {
+		return routeKey;
+	}
+
+	public void setRouteKey(String routeKey) {
+		this.routeKey = routeKey;
+	}
+
+	public long getHandlerTimeBudget() {
+		return handlerTimeBudget;
+	}
+
+	public void setHandlerTimeBudget(long handlerTimeBudget) {
+		this.handlerTimeBudget = handlerTimeBudget;
+	}
+
+	public int getSlowLanes() {
+		return slowLanes;
+	}
+
+	public void setSlowLanes(int slowLanes) {
+		this.slowLanes = slowLanes;
+	}
+
+	public long getStopTimeout() {
+		return stopTimeout;
+	}
+
+	public void setStopTimeout(long stopTimeout) {
+		this.stopTimeout = stopTimeout;
+	}
+
+	public boolean isPartitioned() {
+		return partitionKey != null && !partitionKey.isEmpty();
+	}
+
+	public boolean isRouted() {
+		return routeKey != null && !routeKey.isEmpty();
+	}
+
 	public boolean isPersistentTrackingEnable() {
 		return (persistentTrackingConfiguration != null
 				&& (!persistentTrackingConfiguration.getConsumerId().isEmpty()));
@@ -98,11 +610,101 @@ public class MTCConfiguration {
 			String m = "Invalid MTCConfiguration. Please check your URI. Remember you need MongoClient instance, and if persistent tracking configuration enable you need to specify a nonempty consumer task id";
 			throw new InvalidMTCConfiguration(m);
 		}
+		if (persistentTrackingConfiguration != null && persistentTrackingConfiguration.isWriteBehind()
+				&& (persistentTrackingConfiguration.getCheckpointMaxDocuments() <= 0
+						|| persistentTrackingConfiguration.getCheckpointInterval() <= 0)) {
+			String m = "Invalid MTCConfiguration. Write behind checkpointing needs positive checkpoint max documents and interval";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (retryConfiguration != null && (retryConfiguration.getSpillFile() == null
+				|| retryConfiguration.getInitialDelay() <= 0
+				|| retryConfiguration.getMaxDelay() < retryConfiguration.getInitialDelay()
+				|| retryConfiguration.getMaxAttempts() <= 0 || retryConfiguration.getRetryThreads() <= 0)) {
+			String m = "Invalid MTCConfiguration. Retries need a spill file, a positive initial delay not above the max delay, and positive max attempts and retry threads";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (cursorBatchSize < 0 || cursorMaxAwaitTime < 0 || (adaptiveCursorBatchSize
+				&& (minCursorBatchSize <= 0 || maxCursorBatchSize < minCursorBatchSize))) {
+			String m = "Invalid MTCConfiguration. Cursor batch size and max await time can not be negative, and adaptive batch size needs 0 < min <= max";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (maxReplicationLag < 0 || (maxReplicationLag > 0 && replicationLagCheckInterval <= 0)) {
+			String m = "Invalid MTCConfiguration. Max replication lag can not be negative, and needs a positive check interval";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (catchUpThreshold < 0 || catchUpBatchSize <= 0 || catchUpHandlerThreads < 0
+				|| (catchUpHandlerThreads > 0 && (ringBufferSize <= 0 || Integer.bitCount(ringBufferSize) != 1
+						|| waitStrategy == null))) {
+			String m = "Invalid MTCConfiguration. Catch up needs a not negative threshold, a positive batch size, and with handler threads a power of two ring buffer size and a wait strategy";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (batchMaxSize <= 0 || batchMaxLinger < 0) {
+			String m = "Invalid MTCConfiguration. Batch max size must be positive and batch max linger can not be negative";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if ((pipelined || isPartitioned() || isRouted()) && (ringBufferSize <= 0 || Integer.bitCount(ringBufferSize) != 1 || handlerThreads <= 0
+				|| waitStrategy == null)) {
+			String m = "Invalid MTCConfiguration. Pipelined, partitioned and routed modes need a power of two ring buffer size, at least one handler thread and a wait strategy";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (isPartitioned() && (pipelined || partitionLanes <= 0)) {
+			String m = "Invalid MTCConfiguration. Partitioned mode needs at least one lane and excludes pipelined mode";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (isRouted() && (pipelined || isPartitioned())) {
+			String m = "Invalid MTCConfiguration. Routed mode excludes pipelined and partitioned modes";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (handlerTimeBudget < 0
+				|| (handlerTimeBudget > 0 && (slowLanes <= 0 || pipelined || isPartitioned() || isRouted()))) {
+			String m = "Invalid MTCConfiguration. A handler time budget can not be negative, needs at least one slow lane and excludes pipelined, partitioned and routed modes";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (stopTimeout <= 0) {
+			String m = "Invalid MTCConfiguration. Stop timeout must be positive";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (duplicateSuppressionSize < 0 || (duplicateSuppressionFile != null && duplicateSuppressionSize == 0)) {
+			String m = "Invalid MTCConfiguration. Duplicate suppression needs a positive size, also if kept in a file";
+			throw new InvalidMTCConfiguration(m);
+		}
+		if (duplicateSuppressionSize > 0 && duplicateSuppressionFile == null) {
+			String m = "Invalid MTCConfiguration. Duplicate suppression needs a file, for the ids to survive restarts";
+			throw new InvalidMTCConfiguration(m);
+		}
+	}
+
+	/**
+	 * @return a shallow copy: nested configurations, clients and codec
+	 *         registries are shared.
+	 */
+	public MTCConfiguration copy() {
+		try {
+			return (MTCConfiguration) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	@Override
 	public String toString() {
-		return "MTCConfiguration [database=" + database + ", collection=" + collection
-				+ ", persistentTrackingConfiguration=" + persistentTrackingConfiguration + "]";
+		return "MTCConfiguration [database=" + database + ", collection=" + collection + ", filter=" + filter
+				+ ", projection=" + projection + ", resumeSeek=" + resumeSeek + ", cursorBatchSize=" + cursorBatchSize + ", cursorMaxAwaitTime="
+				+ cursorMaxAwaitTime + ", cursorIdleStrategy=" + cursorIdleStrategy + ", adaptiveCursorBatchSize="
+				+ adaptiveCursorBatchSize + ", minCursorBatchSize="
+				+ minCursorBatchSize + ", maxCursorBatchSize=" + maxCursorBatchSize + ", tailReadPreference="
+				+ tailReadPreference + ", maxReplicationLag=" + maxReplicationLag
+				+ ", replicationLagCheckInterval=" + replicationLagCheckInterval
+				+ ", overrunDetection=" + overrunDetection + ", catchUpThreshold=" + catchUpThreshold
+				+ ", catchUpBatchSize=" + catchUpBatchSize + ", catchUpHandlerThreads=" + catchUpHandlerThreads
+				+ ", duplicateSuppressionSize=" + duplicateSuppressionSize + ", duplicateSuppressionFile="
+				+ duplicateSuppressionFile
+				+ ", persistentTrackingConfiguration=" + persistentTrackingConfiguration + ", retryConfiguration="
+				+ retryConfiguration + ", batchMaxSize="
+				+ batchMaxSize + ", batchMaxLinger=" + batchMaxLinger + ", pipelined=" + pipelined + ", ringBufferSize="
+				+ ringBufferSize + ", handlerThreads=" + handlerThreads + ", waitStrategy=" + waitStrategy
+				+ ", partitionKey=" + partitionKey + ", partitionLanes=" + partitionLanes + ", routeKey=" + routeKey
+				+ ", handlerTimeBudget="
+				+ handlerTimeBudget + ", slowLanes=" + slowLanes + ", stopTimeout=" + stopTimeout + "]";
 	}
 }
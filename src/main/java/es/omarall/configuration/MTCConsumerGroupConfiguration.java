@@ -0,0 +1,102 @@
+package es.omarall.configuration;
+
+import java.util.UUID;
+
+import es.omarall.mtc.exceptions.InvalidMTCConfiguration;
+
+/**
+ * Contains all the information related to consumer groups: instances sharing
+ * the consumer id of their persistent tracking configuration split the
+ * collection into partitions, each one owned by a single instance at a time.
+ */
+public class MTCConsumerGroupConfiguration {
+
+	public static final int DEFAULT_PARTITIONS = 16;
+	public static final long DEFAULT_LEASE_DURATION = 10000L;
+	public static final long DEFAULT_RENEW_INTERVAL = 3000L;
+
+	/**
+	 * Field holding a not negative integer, usually a hash of a key stamped by
+	 * producers. A document belongs to partition partitionField % partitions,
+	 * evaluated by the server. It is the only required parameter.
+	 */
+	private String partitionField;
+
+	/**
+	 * Number of partitions. To be the same for every member of the group, and
+	 * not changed while the group has checkpoints.
+	 */
+	private int partitions = DEFAULT_PARTITIONS;
+
+	/**
+	 * Identifies this member in the group. Unique per running instance.
+	 */
+	private String memberId = UUID.randomUUID().toString();
+
+	/**
+	 * Milliseconds a partition lease, and a member heartbeat, lasts if not
+	 * renewed.
+	 */
+	private long leaseDuration = DEFAULT_LEASE_DURATION;
+
+	/**
+	 * Milliseconds between lease renewals and rebalances. Well below
+	 * leaseDuration, as clock skew between members eats into the difference.
+	 */
+	private long renewInterval = DEFAULT_RENEW_INTERVAL;
+
+	public String getPartitionField() {
+		return partitionField;
+	}
+
+	public void setPartitionField(String partitionField) {
+		this.partitionField = partitionField;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	public String getMemberId() {
+		return memberId;
+	}
+
+	public void setMemberId(String memberId) {
+		this.memberId = memberId;
+	}
+
+	public long getLeaseDuration() {
+		return leaseDuration;
+	}
+
+	public void setLeaseDuration(long leaseDuration) {
+		this.leaseDuration = leaseDuration;
+	}
+
+	public long getRenewInterval() {
+		return renewInterval;
+	}
+
+	public void setRenewInterval(long renewInterval) {
+		this.renewInterval = renewInterval;
+	}
+
+	public void isValid() {
+		if (partitionField == null || partitionField.isEmpty() || partitions <= 0 || memberId == null
+				|| memberId.isEmpty() || renewInterval <= 0 || leaseDuration <= renewInterval) {
+			String m = "Invalid MTCConsumerGroupConfiguration. A partition field, positive partitions, a member id and a lease duration above the renew interval are needed";
+			throw new InvalidMTCConfiguration(m);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MTCConsumerGroupConfiguration [partitionField=" + partitionField + ", partitions=" + partitions
+				+ ", memberId=" + memberId + ", leaseDuration=" + leaseDuration + ", renewInterval="
+				+ renewInterval + "]";
+	}
+}
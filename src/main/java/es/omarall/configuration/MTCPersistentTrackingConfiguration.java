@@ -1,16 +1,25 @@
 package es.omarall.configuration;
 
+import com.mongodb.WriteConcern;
+
+import es.omarall.mtc.checkpoint.CheckpointStore;
+
 /**
  * Contains all the information related to enable a working persistent tracking
  * system, being able to allow a consumer task to remember the last event it
  * processed.
  */
-public class MTCPersistentTrackingConfiguration {
+public class MTCPersistentTrackingConfiguration implements Cloneable {
 
 	public static final String TRACKER_COLLECTION_NAME = "tracker";
 	public static final String LAST_TRACK_ID_FIELD = "last-tracked-id";
 	public static final String CONSUMER_ID_FIELD = "consumer-task-id";
+	public static final String LEASE_OWNER_FIELD = "lease-owner";
+	public static final String LEASE_EXPIRES_FIELD = "lease-expires";
+	public static final String LEASE_EPOCH_FIELD = "lease-epoch";
 	public static final long DEFAULT_CURSOR_REGENERATION_DELAY = 1000;
+	public static final int DEFAULT_CHECKPOINT_MAX_DOCUMENTS = 1000;
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000;
 
 	/**
 	 * Consumer task identifier. It is the only required parameter in order to
@@ -20,6 +29,30 @@ public class MTCPersistentTrackingConfiguration {
 
 	private long cursorRegenerationDelay = 1000L;
 
+	/**
+	 * If enabled, tracked ids are not written on the tailing thread: a
+	 * background writer coalesces them and persists the latest one every
+	 * checkpointMaxDocuments tracked documents or every checkpointInterval
+	 * milliseconds, whichever comes first. A final write is forced on stop.
+	 */
+	private boolean writeBehind = false;
+
+	private int checkpointMaxDocuments = DEFAULT_CHECKPOINT_MAX_DOCUMENTS;
+
+	private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+	/**
+	 * Write concern for the tracker collection writes. If null, the database
+	 * one is used.
+	 */
+	private WriteConcern checkpointWriteConcern;
+
+	/**
+	 * Where checkpoints are kept. If null, the tracker collection of the
+	 * database, written with checkpointWriteConcern.
+	 */
+	private CheckpointStore checkpointStore;
+
 	public String getConsumerId() {
 		return consumerId;
 	}
@@ -36,9 +69,63 @@ public class MTCPersistentTrackingConfiguration {
 		this.cursorRegenerationDelay = cursorRegenerationDelay;
 	}
 
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	public int getCheckpointMaxDocuments() {
+		return checkpointMaxDocuments;
+	}
+
+	public void setCheckpointMaxDocuments(int checkpointMaxDocuments) {
+		this.checkpointMaxDocuments = checkpointMaxDocuments;
+	}
+
+	public long getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public WriteConcern getCheckpointWriteConcern() {
+		return checkpointWriteConcern;
+	}
+
+	public void setCheckpointWriteConcern(WriteConcern checkpointWriteConcern) {
+		this.checkpointWriteConcern = checkpointWriteConcern;
+	}
+
+	public CheckpointStore getCheckpointStore() {
+		return checkpointStore;
+	}
+
+	public void setCheckpointStore(CheckpointStore checkpointStore) {
+		this.checkpointStore = checkpointStore;
+	}
+
+	/**
+	 * @return a shallow copy: the checkpoint store is shared.
+	 */
+	public MTCPersistentTrackingConfiguration copy() {
+		try {
+			return (MTCPersistentTrackingConfiguration) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	@Override
 	public String toString() {
 		return "MTCPersistentTrackingConfiguration [consumerId=" + consumerId
-				+ ", cursorRegenerationDelay=" + cursorRegenerationDelay + "]";
+				+ ", cursorRegenerationDelay=" + cursorRegenerationDelay + ", writeBehind=" + writeBehind
+				+ ", checkpointMaxDocuments=" + checkpointMaxDocuments + ", checkpointInterval="
+				+ checkpointInterval + ", checkpointWriteConcern=" + checkpointWriteConcern
+				+ ", checkpointStore=" + checkpointStore + "]";
 	}
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package es.omarall.configuration;
+
+import java.io.File;
+
+/**
+ * Contains all the information related to retrying documents whose handling
+ * failed. Failed documents are appended to a local spill file and retried
+ * later, on other threads, so the tail keeps moving and nothing is lost across
+ * restarts.
+ */
+public class MTCRetryConfiguration implements Cloneable {
+
+	public static final long DEFAULT_INITIAL_DELAY = 100L;
+	public static final long DEFAULT_MAX_DELAY = 60000L;
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+	public static final int DEFAULT_RETRY_THREADS = 1;
+
+	/**
+	 * Append only file failed documents are kept in until retried. It is the
+	 * only required parameter in order to enable retries. One file per consumer.
+	 */
+	private File spillFile;
+
+	/**
+	 * Milliseconds before the first retry, doubling on each retry up to
+	 * maxDelay.
+	 */
+	private long initialDelay = DEFAULT_INITIAL_DELAY;
+
+	private long maxDelay = DEFAULT_MAX_DELAY;
+
+	/**
+	 * Retries before a document is given up as a dead letter. Dead letters
+	 * are kept in the spill file, to be replayed.
+	 */
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	private int retryThreads = DEFAULT_RETRY_THREADS;
+
+	public File getSpillFile() {
+		return spillFile;
+	}
+
+	public void setSpillFile(File spillFile) {
+		this.spillFile = spillFile;
+	}
+
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	public void setInitialDelay(long initialDelay) {
+		this.initialDelay = initialDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public void setMaxDelay(long maxDelay) {
+		this.maxDelay = maxDelay;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public int getRetryThreads() {
+		return retryThreads;
+	}
+
+	public void setRetryThreads(int retryThreads) {
+		this.retryThreads = retryThreads;
+	}
+
+	/**
+	 * @return a copy, to be changed without changing this one.
+	 */
+	public MTCRetryConfiguration copy() {
+		try {
+			return (MTCRetryConfiguration) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MTCRetryConfiguration [spillFile=" + spillFile + ", initialDelay=" + initialDelay + ", maxDelay="
+				+ maxDelay + ", maxAttempts=" + maxAttempts + ", retryThreads=" + retryThreads + "]";
+	}
+}
@@ -0,0 +1,87 @@
+package es.omarall.configuration;
+
+import java.util.UUID;
+
+import es.omarall.mtc.exceptions.InvalidMTCConfiguration;
+
+/**
+ * Contains all the information related to hot standby: instances sharing the
+ * consumer id of their persistent tracking configuration hold a lease, the one
+ * owning it tailing while the others keep a task ready to take over.
+ */
+public class MTCStandbyConfiguration {
+
+	public static final long DEFAULT_LEASE_DURATION = 1000L;
+	public static final long DEFAULT_RENEW_INTERVAL = 250L;
+	public static final long DEFAULT_WARM_INTERVAL = 1000L;
+
+	/**
+	 * Identifies this instance. Unique per running instance.
+	 */
+	private String memberId = UUID.randomUUID().toString();
+
+	/**
+	 * Milliseconds the active lease lasts if not renewed: the bound on
+	 * detecting the active instance died.
+	 */
+	private long leaseDuration = DEFAULT_LEASE_DURATION;
+
+	/**
+	 * Milliseconds between lease renewals by the active instance, and lease
+	 * checks by the standby ones.
+	 */
+	private long renewInterval = DEFAULT_RENEW_INTERVAL;
+
+	/**
+	 * Milliseconds between standby cursor rebuilds after the latest
+	 * checkpoint. The documents handled since the last rebuild are fetched
+	 * again, and skipped, on taking over.
+	 */
+	private long warmInterval = DEFAULT_WARM_INTERVAL;
+
+	public String getMemberId() {
+		return memberId;
+	}
+
+	public void setMemberId(String memberId) {
+		this.memberId = memberId;
+	}
+
+	public long getLeaseDuration() {
+		return leaseDuration;
+	}
+
+	public void setLeaseDuration(long leaseDuration) {
+		this.leaseDuration = leaseDuration;
+	}
+
+	public long getRenewInterval() {
+		return renewInterval;
+	}
+
+	public void setRenewInterval(long renewInterval) {
+		this.renewInterval = renewInterval;
+	}
+
+	public long getWarmInterval() {
+		return warmInterval;
+	}
+
+	public void setWarmInterval(long warmInterval) {
+		this.warmInterval = warmInterval;
+	}
+
+	public void isValid() {
+		if (memberId == null || memberId.isEmpty() || renewInterval <= 0 || leaseDuration <= renewInterval
+				|| warmInterval <= 0) {
+			String m = "Invalid MTCStandbyConfiguration. A member id, a lease duration above the renew interval and a positive warm interval are needed";
+			throw new InvalidMTCConfiguration(m);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MTCStandbyConfiguration [memberId=" + memberId + ", leaseDuration=" + leaseDuration
+				+ ", renewInterval=" + renewInterval + ", warmInterval=" + warmInterval + "]";
+	}
+}
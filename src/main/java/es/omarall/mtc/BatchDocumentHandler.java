@@ -0,0 +1,13 @@
+package es.omarall.mtc;
+
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * It is a processor for groups of documents fetched from a capped collection
+ * with a tailable cursor. Documents are handed over in natural order.
+ */
+public interface BatchDocumentHandler {
+	public void handleBatch(List<Document> docs);
+}
@@ -0,0 +1,23 @@
+package es.omarall.mtc;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Notified when the capped collection overwrote documents a tailing task was
+ * yet to fetch: the oldest document in the collection is newer than the one
+ * the task resumes after.
+ */
+public interface OverrunListener {
+
+	/**
+	 * @param resumeId
+	 *            id of the last document fetched or tracked.
+	 * @param oldestId
+	 *            id of the oldest document in the collection.
+	 * @param estimatedLostDocuments
+	 *            documents estimated to be lost, from the insert rate over the
+	 *            collection time span. 0 if nothing might be lost but the
+	 *            resume document itself.
+	 */
+	public void onOverrun(ObjectId resumeId, ObjectId oldestId, long estimatedLostDocuments);
+}
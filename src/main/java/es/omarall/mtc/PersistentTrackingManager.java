@@ -1,34 +1,74 @@
 package es.omarall.mtc;
 
-import org.bson.Document;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
-import com.mongodb.client.model.IndexOptions;
-import com.mongodb.client.model.UpdateOptions;
-
 import es.omarall.configuration.MTCConfiguration;
 import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.checkpoint.CheckpointStore;
+import es.omarall.mtc.checkpoint.MongoCheckpointStore;
 
 /**
- * In charg of tracking database which holds the information needed to be able
- * to start consuming again from an specified document. This instance persists
- * the id of the last tracked event for a given consumer and fetches the last
- * tracked event id from the db.
+ * In charg of the checkpoint store which holds the information needed to be
+ * able to start consuming again from an specified document. This instance
+ * persists the id of the last tracked event for a given consumer and fetches
+ * the last tracked event id from the store.
+ * 
+ * The store is the configured {@link CheckpointStore}, by default a
+ * {@link MongoCheckpointStore} on the tracker collection of the database.
  * 
- * Tracker database has {_id | consumer-task-id | last-tracked_id} and has a
- * single field index {consumer-task-id: 1}
+ * With write behind enabled, tracked ids are coalesced and a background writer
+ * persists the latest one every N tracked documents or every T milliseconds.
  */
 public class PersistentTrackingManager {
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(PersistentTrackingManager.class);
 
-	private final MTCConfiguration configuration;
-	private MongoCollection<Document> trackerCollection;
+	private final String consumerId;
+	private final CheckpointStore checkpointStore;
+
+	/*
+	 * WRITE BEHIND
+	 */
+	private final boolean writeBehind;
+	private final int checkpointMaxDocuments;
+	private final long checkpointInterval;
+	private final AtomicReference<ObjectId> pendingId = new AtomicReference<ObjectId>();
+	private final AtomicInteger trackedSinceWrite = new AtomicInteger();
+	private final AtomicBoolean writeScheduled = new AtomicBoolean();
+	private volatile ScheduledExecutorService writer;
+
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			writeScheduled.set(false);
+			try {
+				flush();
+			} catch (Exception e) {
+				LOG.error("+ MONGOESB - Tracking state could not be persisted. Will retry", e);
+			}
+		}
+	};
+
+	/*
+	 * COUNTERS
+	 */
+	private final AtomicLong checkpointWrites = new AtomicLong();
+	private final AtomicLong checkpointWritesSaved = new AtomicLong();
+	private final AtomicLong totalWriteLatencyNanos = new AtomicLong();
+	private volatile long maxWriteLatencyNanos;
 
 	public PersistentTrackingManager(MTCConfiguration configuration) {
 
@@ -36,60 +76,23 @@ public class PersistentTrackingManager {
 			throw new IllegalArgumentException(
 					"Inconsistence: We expected a MongoESBConfiguration instance, with persistent configuration enabled");
 
-		this.configuration = configuration;
-		this.trackerCollection = configuration
-				.getMongoDatabase()
-				.getCollection(
-						MTCPersistentTrackingConfiguration.TRACKER_COLLECTION_NAME);
-
-		// Check if it has an INDEX on the field
-		// MongoESBPersistentTrackingConfiguration.CONSUMER_ID_FIELD
-		MongoCursor<Document> indexesCursor = this.trackerCollection
-				.listIndexes().iterator();
-		boolean indexExist = false;
-		while (indexesCursor.hasNext()) {
-			Document index = indexesCursor.next();
-			Document key = (Document) index.get("key");
-			if (key.containsKey(MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD)) {
-				indexExist = true;
-				break;
-			}
-			// LOG.debug("Index: {}", index);
-		}
-
-		if (!indexExist) {
-
-			// Option 1: BUILD INDEX
-			IndexOptions indexOptions = new IndexOptions().unique(true);
-			Document index = new Document(
-					MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD, 1);
-			this.trackerCollection.createIndex(index, indexOptions);
-			LOG.info("+ MONGOESB - Index built: {}",
-					MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD);
-
-			// Option 2. STOP and NOTIFY
-			// String m = String
-			// .format("Collection: %s should have an index on %s field",
-			// MongoESBPersistentTrackingConfiguration.TAILTRACKING_COLLECTION_NAME,
-			// MongoESBPersistentTrackingConfiguration.CONSUMER_ID_FIELD);
-			// LOG.error(m);
-			// throw new MTCException(m);
-		}
-
+		MTCPersistentTrackingConfiguration trackingConfiguration = configuration
+				.getPersistentTrackingConfiguration();
+		this.consumerId = trackingConfiguration.getConsumerId();
+		this.checkpointStore = trackingConfiguration.getCheckpointStore() != null
+				? trackingConfiguration.getCheckpointStore()
+				: new MongoCheckpointStore(configuration.getMongoDatabase(),
+						trackingConfiguration.getCheckpointWriteConcern());
+		this.writeBehind = trackingConfiguration.isWriteBehind();
+		this.checkpointMaxDocuments = trackingConfiguration.getCheckpointMaxDocuments();
+		this.checkpointInterval = trackingConfiguration.getCheckpointInterval();
 	}
 
 	/**
-	 * Insert the _id for a event processed by a consumerId in the persistent
-	 * tracking collection
+	 * Saves the _id for a event processed by a consumerId in the checkpoint
+	 * store. Store failures are thrown as they are, see
+	 * {@link CheckpointStore#save(String, ObjectId)}.
 	 * 
-	 * @throws com.mongodb.MongoWriteException
-	 *             if the write failed due some other failure specific to the
-	 *             update command
-	 * @throws com.mongodb.MongoWriteConcernException
-	 *             if the write failed due being unable to fulfil the write
-	 *             concern
-	 * @throws com.mongodb.MongoException
-	 *             if the write failed due some other failure
 	 * @throws java.lang.IllegalArgumentException
 	 *             if a null argument was passed to the method
 	 * @param processedEventId
@@ -102,55 +105,160 @@ public class PersistentTrackingManager {
 			throw new IllegalArgumentException(m);
 		}
 
-		// san index on (CONSUMER-ID)is needed
-		Document filter = new Document(
-				MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD,
-				configuration.getPersistentTrackingConfiguration()
-						.getConsumerId());
+		long startNanos = System.nanoTime();
+		checkpointStore.save(consumerId, processedEventId);
+		long latencyNanos = System.nanoTime() - startNanos;
 
-		Document update = new Document("$set", new Document(
-				MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD,
-				processedEventId));
-
-		// Throws RTE: MongoException, MongoWriteException,
-		// MongoWriteConcernException
-
-		trackerCollection.updateOne(filter, update,
-				new UpdateOptions().upsert(true));
+		checkpointWrites.incrementAndGet();
+		totalWriteLatencyNanos.addAndGet(latencyNanos);
+		if (latencyNanos > maxWriteLatencyNanos)
+			maxWriteLatencyNanos = latencyNanos;
 
 		LOG.debug("\n+ MongoESB - Last Event ID persisted: {}.\n",
 				processedEventId);
 	}
 
 	/**
-	 * get the last processed event id associated with the bound consumer task
-	 * id.
-	 * 
-	 * @return null - no tracking information available for current consumer id.
-	 * @return last processed event id for the bound consumer id.
+	 * Starts the background writer, if write behind is enabled.
+	 */
+	public synchronized void start() {
+
+		if (!writeBehind || writer != null)
+			return;
+
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mtc-checkpoint-writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		writer.scheduleWithFixedDelay(writeTask, checkpointInterval,
+				checkpointInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tracks the id of a processed event. With write behind disabled it is
+	 * persisted right away. Otherwise it replaces any id pending to be written,
+	 * and a write is scheduled once checkpointMaxDocuments ids were tracked.
 	 * 
+	 * @param processedEventId
 	 */
-	public synchronized ObjectId fetchLastTrackedEventId() {
+	public void trackEventId(final ObjectId processedEventId) {
 
-		// Needs an index on (CONSUMER-ID)
-		// Filter by consumer-id
-		Document filter = new Document(
-				MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD,
-				configuration.getPersistentTrackingConfiguration()
-						.getConsumerId());
+		ScheduledExecutorService writer = this.writer;
+		if (writer == null) {
+			persistLastTrackedEventId(processedEventId);
+			return;
+		}
 
-		// We get the last track record for this given consumer
-		Document lastRecordByConsumer = trackerCollection.find(filter).first();
+		if (processedEventId == null) {
+			String m = "A not null eventId was expected. This show some type of inconsistence in the application?";
+			LOG.error(m);
+			throw new IllegalArgumentException(m);
+		}
 
-		if (lastRecordByConsumer != null) {
+		if (pendingId.getAndSet(processedEventId) != null) {
+			// The pending one will never be written
+			checkpointWritesSaved.incrementAndGet();
+		}
 
-			return lastRecordByConsumer
-					.getObjectId(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD);
+		if (trackedSinceWrite.incrementAndGet() >= checkpointMaxDocuments
+				&& writeScheduled.compareAndSet(false, true)) {
+			try {
+				writer.execute(writeTask);
+			} catch (RejectedExecutionException e) {
+				// Closing: the final write is forced by close()
+			}
 		}
+	}
 
-		// none event id persisted for the cosumer id bound to this instance
+	/**
+	 * Persists the pending id, if any, on the calling thread. Synchronized so
+	 * an older id is never written after a newer one.
+	 */
+	public synchronized void flush() {
+
+		ObjectId id = pendingId.getAndSet(null);
+		if (id == null)
+			return;
+
+		trackedSinceWrite.set(0);
+		try {
+			persistLastTrackedEventId(id);
+		} catch (RuntimeException e) {
+			// Keep it pending unless a newer one arrived
+			pendingId.compareAndSet(null, id);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops the background writer, if any, and forces a final write of the
+	 * pending id, flushing the store.
+	 */
+	public void close() {
+
+		ScheduledExecutorService writer;
+		synchronized (this) {
+			writer = this.writer;
+			this.writer = null;
+		}
+
+		if (writer != null) {
+			writer.shutdown();
+			try {
+				writer.awaitTermination(checkpointInterval, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				LOG.error("Thread was interrupted", e);
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+		checkpointStore.flush();
+	}
 
-		return null;
+	/**
+	 * @return number of writes to the checkpoint store.
+	 */
+	public long getCheckpointWrites() {
+		return checkpointWrites.get();
 	}
 
+	/**
+	 * @return number of tracked ids that were replaced by a newer one before
+	 *         being written, each one a write saved.
+	 */
+	public long getCheckpointWritesSaved() {
+		return checkpointWritesSaved.get();
+	}
+
+	public long getTotalWriteLatencyNanos() {
+		return totalWriteLatencyNanos.get();
+	}
+
+	public long getMaxWriteLatencyNanos() {
+		return maxWriteLatencyNanos;
+	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * get the last processed event id associated with the bound consumer task
+	 * id.
+	 * 
+	 * @return null - no tracking information available for current consumer id.
+	 * @return last processed event id for the bound consumer id.
+	 * 
+	 */
+	public synchronized ObjectId fetchLastTrackedEventId() {
+		return checkpointStore.load(consumerId);
+	}
+
+	public CheckpointStore getCheckpointStore() {
+		return checkpointStore;
+	}
 }
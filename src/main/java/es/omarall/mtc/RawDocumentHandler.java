@@ -0,0 +1,14 @@
+package es.omarall.mtc;
+
+import org.bson.RawBsonDocument;
+
+/**
+ * It is a document processor from a capped collection with a tailable cursor
+ * that gets the documents not decoded, as raw BSON bytes. Fields can be read
+ * without decoding the whole document with
+ * {@link es.omarall.mtc.bson.BsonFieldExtractor}, and the bytes can be
+ * forwarded as they are through {@link RawBsonDocument#getByteBuffer()}.
+ */
+public interface RawDocumentHandler {
+	public void handleDocument(RawBsonDocument doc);
+}
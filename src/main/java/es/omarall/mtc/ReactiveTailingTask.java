@@ -0,0 +1,513 @@
+package es.omarall.mtc;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.CursorType;
+import com.mongodb.MongoSocketException;
+import com.mongodb.ReadPreference;
+import com.mongodb.async.AsyncBatchCursor;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.FindIterable;
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.exceptions.CappedCollectionRequiredException;
+import es.omarall.mtc.exceptions.InvalidMTCConfiguration;
+import es.omarall.mtc.exceptions.MTCException;
+import es.omarall.mtc.exceptions.NotStartedException;
+
+/**
+ * Non blocking alternative to {@link TailingTask}. The tail is a
+ * {@link Publisher} of documents fetched with the async driver, so no thread
+ * waits for data. A getMore is only issued while the subscriber has demand.
+ *
+ * A single subscriber is allowed at a time: once it cancels, or the stream
+ * completes or fails, another one can subscribe, resuming after the last
+ * document delivered. A document is tracked once onNext returns for it, and
+ * the tail resumes from the last tracked id as {@link TailingTask} does. With
+ * write behind disabled tracking writes are done on the driver threads, so
+ * write behind is recommended.
+ *
+ * stop() completes the subscriber.
+ */
+public class ReactiveTailingTask implements Publisher<Document>, Service {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReactiveTailingTask.class);
+
+	/**
+	 * Delays cursor regeneration, shared by every reactive tailing task.
+	 */
+	private static final ScheduledExecutorService SCHEDULER = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "mtc-reactive-scheduler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private static final Subscription EMPTY_SUBSCRIPTION = new Subscription() {
+		@Override
+		public void request(long n) {
+		}
+
+		@Override
+		public void cancel() {
+		}
+	};
+
+	private final MTCConfiguration configuration;
+	private final MongoCollection<Document> cappedCollection;
+	private final AtomicReference<TailSubscription> subscription = new AtomicReference<TailSubscription>();
+	private volatile ServiceStatus status = ServiceStatus.STOPPED;
+
+	private PersistentTrackingManager tracker;
+	private long cursorRegenerationDelay = MTCPersistentTrackingConfiguration.DEFAULT_CURSOR_REGENERATION_DELAY;
+	private volatile ObjectId lastTrackedId;
+
+	public ReactiveTailingTask(MTCConfiguration configuration) {
+
+		// Check configuration is VALID
+		configuration.isValid();
+		if (configuration.getAsyncMongoClient() == null)
+			throw new InvalidMTCConfiguration(
+					"Invalid MTCConfiguration. Reactive tailing needs an async MongoClient instance");
+		LOG.debug("MTCConfiguration: VALID\n{}", configuration.toString());
+
+		this.configuration = configuration;
+
+		String collectionName = configuration.getCollection();
+		MongoCollection<Document> collection = configuration.getAsyncMongoClient()
+				.getDatabase(configuration.getDatabase()).getCollection(collectionName);
+		if (configuration.getCodecRegistry() != null) {
+			collection = collection.withCodecRegistry(configuration.getCodecRegistry());
+		}
+		this.cappedCollection = collection;
+
+		// Check cappedCollection is a capped collection... Once, at
+		// construction, so blocking is fine
+		final Document collStatsCommand = new Document("collStats", collectionName);
+		Boolean isCapped = configuration.getMongoDatabase().runCommand(collStatsCommand, ReadPreference.primary())
+				.getBoolean("capped");
+		if (!isCapped) {
+			throw new CappedCollectionRequiredException(
+					"Tailable cursors are only compatible with capped collections, and collection " + collectionName
+							+ " is not capped.");
+		}
+
+		TailingTask.checkProjection(configuration, cappedCollection.getCodecRegistry());
+
+		if (configuration.isPersistentTrackingEnable()) {
+			LOG.debug("Persistent tracking is ENABLED");
+			tracker = new PersistentTrackingManager(configuration);
+			if (configuration.getPersistentTrackingConfiguration().getCursorRegenerationDelay() > 0) {
+				cursorRegenerationDelay = configuration.getPersistentTrackingConfiguration()
+						.getCursorRegenerationDelay();
+			}
+		}
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super Document> subscriber) {
+
+		if (subscriber == null)
+			throw new NullPointerException("A not null subscriber was expected");
+
+		if (!getStatus().equals(ServiceStatus.STARTED)) {
+			subscriber.onSubscribe(EMPTY_SUBSCRIPTION);
+			subscriber.onError(new NotStartedException(
+					"Trying to subscribe to a non started task. Please call start() method before subscribing"));
+			return;
+		}
+
+		TailSubscription tailSubscription = new TailSubscription(subscriber);
+		if (!subscription.compareAndSet(null, tailSubscription)) {
+			subscriber.onSubscribe(EMPTY_SUBSCRIPTION);
+			subscriber.onError(new IllegalStateException("A reactive tailing task allows a single subscriber"));
+			return;
+		}
+		subscriber.onSubscribe(tailSubscription);
+	}
+
+	@Override
+	public void start() {
+
+		// fetch lastTrackedId if persistent tracking enabled
+		if (tracker != null) {
+			lastTrackedId = tracker.fetchLastTrackedEventId();
+			tracker.start();
+		}
+
+		// mark as started
+		status = ServiceStatus.STARTED;
+	}
+
+	@Override
+	public void stop() {
+
+		status = ServiceStatus.STOPPED;
+
+		TailSubscription tailSubscription = subscription.get();
+		if (tailSubscription != null) {
+			// Tracking state is persisted once delivery stops
+			tailSubscription.complete();
+		} else if (tracker != null) {
+			tracker.close();
+		}
+	}
+
+	@Override
+	public ServiceStatus getStatus() {
+		return status;
+	}
+
+	public MTCConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * Signals to the subscriber are serialized by a drain loop: whichever
+	 * thread, the subscriber's or a driver's, finds the loop idle runs it.
+	 */
+	private final class TailSubscription implements Subscription {
+
+		private final Subscriber<? super Document> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final Queue<Document> buffer = new ConcurrentLinkedQueue<Document>();
+		private final AtomicInteger wip = new AtomicInteger();
+
+		/** A cursor is being opened or a getMore is in progress. */
+		private final AtomicBoolean fetching = new AtomicBoolean();
+
+		private volatile AsyncBatchCursor<Document> cursor;
+		private volatile ObjectId lastFetchedId;
+		private volatile boolean cancelled;
+		private volatile boolean done;
+		private volatile Throwable error;
+
+		/** Written by the drain loop only. */
+		private ObjectId lastDeliveredId;
+		private boolean terminated;
+
+		private final SingleResultCallback<List<Document>> onBatch = new SingleResultCallback<List<Document>>() {
+			@Override
+			public void onResult(List<Document> docs, Throwable t) {
+
+				if (t != null) {
+					onCursorLost(t);
+					return;
+				}
+
+				if (docs == null) {
+					// The cursor is dead: it was built on an empty collection
+					LOG.debug("Cursor returned no data");
+					closeCursor();
+					scheduleFetch();
+					return;
+				}
+
+				if (!docs.isEmpty()) {
+					buffer.addAll(docs);
+					lastFetchedId = docs.get(docs.size() - 1).getObjectId("_id");
+				}
+				fetching.set(false);
+				drain();
+			}
+		};
+
+		TailSubscription(Subscriber<? super Document> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+
+			if (n <= 0) {
+				error = new IllegalArgumentException("A positive number of documents was expected: " + n);
+				drain();
+				return;
+			}
+
+			long current;
+			long next;
+			do {
+				current = requested.get();
+				if (current == Long.MAX_VALUE)
+					break;
+				next = current + n;
+				if (next < 0)
+					next = Long.MAX_VALUE;
+			} while (!requested.compareAndSet(current, next));
+
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		void complete() {
+			done = true;
+			drain();
+		}
+
+		private void fail(Throwable t) {
+			error = t;
+			drain();
+		}
+
+		private void drain() {
+
+			if (wip.getAndIncrement() != 0)
+				return;
+
+			int missed = 1;
+			while (true) {
+
+				if (terminate())
+					return;
+
+				long demand = requested.get();
+				long emitted = 0;
+				Document doc;
+				while (emitted != demand && !cancelled && (doc = buffer.poll()) != null) {
+					try {
+						subscriber.onNext(doc);
+					} catch (Throwable t) {
+						LOG.error("Subscriber raised an exception. Subscription cancelled", t);
+						cancelled = true;
+						break;
+					}
+					lastDeliveredId = doc.getObjectId("_id");
+					emitted++;
+
+					// Write behind tracking is cheap: track as we go
+					if (tracker != null && tracker.isWriteBehind())
+						checkpoint();
+				}
+
+				if (emitted != 0 && demand != Long.MAX_VALUE)
+					requested.addAndGet(-emitted);
+
+				if (terminate())
+					return;
+
+				if (buffer.isEmpty()) {
+					// It is likely we come from a burst of delivering ...
+					checkpoint();
+					if (requested.get() > 0)
+						fetch();
+				}
+
+				missed = wip.addAndGet(-missed);
+				if (missed == 0)
+					return;
+			}
+		}
+
+		/**
+		 * Releases the cursor and persists the tracking state once cancelled,
+		 * completed or failed, then lets a new subscriber in. The tracker is
+		 * closed only if the task was stopped. Once terminated, later drains
+		 * do nothing, so no more signals are sent.
+		 *
+		 * @return true if terminated.
+		 */
+		private boolean terminate() {
+
+			if (terminated)
+				return true;
+			if (!cancelled && !done && error == null)
+				return false;
+			terminated = true;
+
+			closeCursor();
+			checkpoint();
+			if (tracker != null) {
+				try {
+					if (getStatus().equals(ServiceStatus.STOPPED))
+						tracker.close();
+					else
+						tracker.flush();
+				} catch (Exception e) {
+					LOG.error("Last tracking state could not be persisted", e);
+				}
+			}
+			subscription.compareAndSet(this, null);
+
+			if (!cancelled) {
+				cancelled = true;
+				if (error != null)
+					subscriber.onError(error);
+				else
+					subscriber.onComplete();
+			}
+			LOG.info("+ MONGOESB - STOP REACTIVE TAILING TASK");
+			return true;
+		}
+
+		/**
+		 * Moves the id a next subscriber resumes after to the last document
+		 * delivered, tracking it if tracking is enabled. Nothing is tracked if
+		 * it did not move.
+		 */
+		private void checkpoint() {
+
+			ObjectId id = lastDeliveredId;
+			if (id == null || id.equals(lastTrackedId))
+				return;
+			if (tracker != null) {
+				try {
+					tracker.trackEventId(id);
+				} catch (Exception e) {
+					LOG.error("Tracking state could not be persisted", e);
+					return;
+				}
+			}
+			lastTrackedId = id;
+		}
+
+		/**
+		 * Issues a getMore, opening a cursor first if needed, unless one is in
+		 * progress.
+		 */
+		private void fetch() {
+
+			if (!fetching.compareAndSet(false, true))
+				return;
+
+			AsyncBatchCursor<Document> current = cursor;
+			if (current != null) {
+				current.next(onBatch);
+				return;
+			}
+
+			// Documents fetched are not fetched again
+			final ObjectId resumeId = lastFetchedId != null ? lastFetchedId : lastTrackedId;
+			if (!configuration.isResumeSeek() || resumeId == null) {
+				openCursor(resumeId, null);
+				return;
+			}
+
+			// Seek value first, see TailingTask
+			cappedCollection.find(Filters.eq("_id", resumeId), BsonDocument.class)
+					.projection(Projections.include(MTCConfiguration.RESUME_SEEK_FIELD))
+					.first(new SingleResultCallback<BsonDocument>() {
+						@Override
+						public void onResult(BsonDocument result, Throwable t) {
+							if (t != null) {
+								onCursorLost(t);
+								return;
+							}
+							BsonValue seekValue = result != null ? result.get(MTCConfiguration.RESUME_SEEK_FIELD)
+									: null;
+							if (seekValue == null)
+								LOG.debug("Resume document {} gone or with no {} field. Scanning", resumeId,
+										MTCConfiguration.RESUME_SEEK_FIELD);
+							openCursor(resumeId, seekValue);
+						}
+					});
+		}
+
+		/**
+		 * Opens a cursor after the resume id, seeking to the seek value if
+		 * not null.
+		 */
+		private void openCursor(ObjectId resumeId, BsonValue seekValue) {
+
+			FindIterable<Document> documents = seekValue == null
+					? cappedCollection.find(TailingTask.buildQuery(configuration.getFilter(), resumeId))
+					: cappedCollection.find(TailingTask.buildQuery(configuration.getFilter(), resumeId, seekValue))
+							.oplogReplay(true);
+			if (configuration.getProjection() != null)
+				documents = documents.projection(configuration.getProjection());
+			if (configuration.getCursorBatchSize() > 0)
+				documents = documents.batchSize(configuration.getCursorBatchSize());
+			if (configuration.getCursorMaxAwaitTime() > 0)
+				documents = documents.maxAwaitTime(configuration.getCursorMaxAwaitTime(), TimeUnit.MILLISECONDS);
+
+			documents.sort(new Document("$natural", 1)).cursorType(CursorType.TailableAwait)
+					.batchCursor(new SingleResultCallback<AsyncBatchCursor<Document>>() {
+						@Override
+						public void onResult(AsyncBatchCursor<Document> result, Throwable t) {
+							if (t != null) {
+								onCursorLost(t);
+								return;
+							}
+							cursor = result;
+							if (cancelled) {
+								closeCursor();
+								return;
+							}
+							result.next(onBatch);
+						}
+					});
+		}
+
+		private void onCursorLost(Throwable t) {
+
+			closeCursor();
+
+			if (t instanceof MongoSocketException) {
+				MongoSocketException e = (MongoSocketException) t;
+				LOG.error("\n\nMONGOESB - NETWORK problems: Server Address: {}", e.getServerAddress().toString(), e);
+
+				// Not recoverable. Do not regenerate the cursor
+				fail(new MTCException(String.format("Network Problemns detected. Server address: %s",
+						e.getServerAddress().toString()), e));
+				return;
+			}
+
+			// Recoverable: Do regenerate the cursor
+			LOG.info("Cursor was lost. Regenerating it in {} ms", cursorRegenerationDelay, t);
+			scheduleFetch();
+		}
+
+		/**
+		 * A new cursor is opened after the regeneration delay, if there is
+		 * demand.
+		 */
+		private void scheduleFetch() {
+			SCHEDULER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					fetching.set(false);
+					drain();
+				}
+			}, cursorRegenerationDelay, TimeUnit.MILLISECONDS);
+		}
+
+		private void closeCursor() {
+			AsyncBatchCursor<Document> current = cursor;
+			cursor = null;
+			if (current != null)
+				current.close();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package es.omarall.mtc;
+
+import org.bson.types.ObjectId;
+
+/**
+ * What a stop with a deadline achieved, see
+ * {@link TailingTask#stop(long, java.util.concurrent.TimeUnit)}.
+ */
+public class StopReport {
+
+	private final boolean stopped;
+	private final long documentsDrained;
+	private final ObjectId lastCheckpointId;
+	private final long elapsedMillis;
+
+	public StopReport(boolean stopped, long documentsDrained, ObjectId lastCheckpointId, long elapsedMillis) {
+		this.stopped = stopped;
+		this.documentsDrained = documentsDrained;
+		this.lastCheckpointId = lastCheckpointId;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return true if the tailing thread was done, documents in flight handled
+	 *         and the final checkpoint written, before the deadline. false if
+	 *         documents were still in flight: they are handed off to the next
+	 *         start, the checkpoint being before them.
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * @return documents handled from the stop request to the return.
+	 */
+	public long getDocumentsDrained() {
+		return documentsDrained;
+	}
+
+	/**
+	 * @return id of the last document checkpointed, null if none or tracking
+	 *         is disabled.
+	 */
+	public ObjectId getLastCheckpointId() {
+		return lastCheckpointId;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "StopReport [stopped=" + stopped + ", documentsDrained=" + documentsDrained + ", lastCheckpointId="
+				+ lastCheckpointId + ", elapsedMillis=" + elapsedMillis + "]";
+	}
+}
@@ -0,0 +1,330 @@
+package es.omarall.mtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.mtc.exceptions.MTCExecutionException;
+
+/**
+ * Runs many tails, each one a collection bound to a handler, on a shared and
+ * bounded pool of threads.
+ *
+ * Tails run in slices, see {@link TailingTask#runSlice(int)}. A tail that
+ * filled its slice goes back to the end of the executor queue right away, so
+ * busy tails take turns. A tail that ran out of data is polled again after
+ * idlePollInterval milliseconds, its cursor kept. An empty or lost cursor is
+ * rebuilt as by a task on its own thread, overruns and catch up included,
+ * the idle backoff sparing queries while it runs.
+ *
+ * On start every tail is validated and started in parallel. A tail failing to
+ * start, or failing while running, is marked as FAILED without affecting the
+ * others.
+ */
+public class TailingManager implements Service {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TailingManager.class);
+
+	public static final int DEFAULT_SLICE_DOCUMENTS = 100;
+	public static final long DEFAULT_IDLE_POLL_INTERVAL = 100L;
+
+	public static enum TailStatus {
+		REGISTERED, STARTING, RUNNING, FAILED, STOPPED;
+	}
+
+	/**
+	 * A collection bound to a handler, and its current status.
+	 */
+	public static final class Tail {
+
+		private final MTCConfiguration configuration;
+		private final DocumentHandler documentHandler;
+		private final BatchDocumentHandler batchDocumentHandler;
+		private final RawDocumentHandler rawDocumentHandler;
+
+		private volatile TailingTask task;
+		private volatile boolean slicing;
+		private volatile TailStatus status = TailStatus.REGISTERED;
+		private volatile Throwable failure;
+		private final AtomicLong documentsDispatched = new AtomicLong();
+
+		private Tail(MTCConfiguration configuration, DocumentHandler documentHandler,
+				BatchDocumentHandler batchDocumentHandler, RawDocumentHandler rawDocumentHandler) {
+			this.configuration = configuration;
+			this.documentHandler = documentHandler;
+			this.batchDocumentHandler = batchDocumentHandler;
+			this.rawDocumentHandler = rawDocumentHandler;
+		}
+
+		/**
+		 * Validates the configuration, checking the collection is capped, and
+		 * starts the task.
+		 */
+		private void start() {
+			status = TailStatus.STARTING;
+			TailingTask task = new TailingTask(configuration);
+			task.setDocumentHandler(documentHandler);
+			task.setBatchDocumentHandler(batchDocumentHandler);
+			task.setRawDocumentHandler(rawDocumentHandler);
+			task.start();
+			this.task = task;
+			status = TailStatus.RUNNING;
+		}
+
+		private void fail(Throwable t) {
+			failure = t;
+			status = TailStatus.FAILED;
+		}
+
+		public String getName() {
+			return configuration.getDatabase() + "." + configuration.getCollection();
+		}
+
+		public MTCConfiguration getConfiguration() {
+			return configuration;
+		}
+
+		public TailStatus getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return the reason the tail failed, if FAILED.
+		 */
+		public Throwable getFailure() {
+			return failure;
+		}
+
+		public long getDocumentsDispatched() {
+			return documentsDispatched.get();
+		}
+
+		@Override
+		public String toString() {
+			return "Tail [name=" + getName() + ", status=" + status + ", documentsDispatched="
+					+ documentsDispatched + ", failure=" + failure + "]";
+		}
+	}
+
+	private final int threads;
+	private int sliceDocuments = DEFAULT_SLICE_DOCUMENTS;
+	private long idlePollInterval = DEFAULT_IDLE_POLL_INTERVAL;
+
+	private final List<Tail> tails = new CopyOnWriteArrayList<Tail>();
+	private volatile ScheduledExecutorService executor;
+	private volatile ServiceStatus status = ServiceStatus.STOPPED;
+
+	/**
+	 * @param threads
+	 *            number of threads shared by every tail.
+	 */
+	public TailingManager(int threads) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("At least one thread was expected");
+		this.threads = threads;
+	}
+
+	public Tail register(MTCConfiguration configuration, DocumentHandler documentHandler) {
+		return add(new Tail(configuration, documentHandler, null, null));
+	}
+
+	public Tail registerBatch(MTCConfiguration configuration, BatchDocumentHandler batchDocumentHandler) {
+		return add(new Tail(configuration, null, batchDocumentHandler, null));
+	}
+
+	public Tail registerRaw(MTCConfiguration configuration, RawDocumentHandler rawDocumentHandler) {
+		return add(new Tail(configuration, null, null, rawDocumentHandler));
+	}
+
+	private synchronized Tail add(Tail tail) {
+		if (status.equals(ServiceStatus.STARTED))
+			throw new MTCExecutionException("Tails can not be registered while the manager is started");
+		tails.add(tail);
+		return tail;
+	}
+
+	/**
+	 * Starts every registered tail in parallel, on the shared threads, and
+	 * waits for all of them to be started or failed.
+	 */
+	@Override
+	public synchronized void start() {
+
+		if (status.equals(ServiceStatus.STARTED))
+			return;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mtc-tail-" + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		status = ServiceStatus.STARTED;
+
+		final CountDownLatch started = new CountDownLatch(tails.size());
+		for (final Tail tail : tails) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						tail.start();
+					} catch (Exception e) {
+						LOG.error("+ MONGOESB - Tail {} could not be started", tail.getName(), e);
+						tail.fail(e);
+					} finally {
+						started.countDown();
+					}
+				}
+			});
+		}
+
+		try {
+			started.await();
+		} catch (InterruptedException e) {
+			LOG.error("Thread was interrupted", e);
+			Thread.currentThread().interrupt();
+		}
+
+		for (Tail tail : tails) {
+			if (tail.getStatus().equals(TailStatus.RUNNING))
+				schedule(tail, 0L);
+		}
+	}
+
+	/**
+	 * Stops every tail. Slices running are waited for, up to the longest
+	 * stopTimeout of the tail configurations, then documents in flight are
+	 * completed and the tracking state persisted. A tail whose slice is still
+	 * running then is left as it is: its documents in flight are fetched
+	 * again on start, the checkpoint being before them.
+	 */
+	@Override
+	public synchronized void stop() {
+
+		if (!status.equals(ServiceStatus.STARTED))
+			return;
+		status = ServiceStatus.STOPPED;
+
+		long stopTimeout = 0L;
+		for (Tail tail : tails) {
+			stopTimeout = Math.max(stopTimeout, tail.configuration.getStopTimeout());
+			if (tail.task != null)
+				tail.task.stop();
+		}
+
+		// Slices pending run as no-ops
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(stopTimeout, TimeUnit.MILLISECONDS))
+				LOG.warn("+ MONGOESB - Slices still running after {} ms. Their tails are left as they are",
+						stopTimeout);
+		} catch (InterruptedException e) {
+			LOG.error("Thread was interrupted", e);
+			Thread.currentThread().interrupt();
+		}
+
+		for (Tail tail : tails) {
+			if (tail.task != null && tail.slicing) {
+				LOG.warn("+ MONGOESB - Tail {} did not stop in time", tail.getName());
+				tail.task = null;
+			} else if (tail.task != null) {
+				try {
+					tail.task.closeSlices();
+				} catch (Exception e) {
+					LOG.error("+ MONGOESB - Tail {} could not be closed", tail.getName(), e);
+				}
+				tail.task = null;
+			}
+			if (!tail.getStatus().equals(TailStatus.FAILED))
+				tail.status = TailStatus.STOPPED;
+		}
+	}
+
+	private void schedule(final Tail tail, long delay) {
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					runSlice(tail);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Stopping
+		}
+	}
+
+	private void runSlice(Tail tail) {
+
+		// Flagged first, so stop sees the slice once past the status check
+		tail.slicing = true;
+		try {
+			if (!status.equals(ServiceStatus.STARTED))
+				return;
+			int dispatched = tail.task.runSlice(sliceDocuments);
+			tail.documentsDispatched.addAndGet(dispatched);
+			schedule(tail, dispatched < sliceDocuments ? idlePollInterval : 0L);
+		} catch (Exception e) {
+			if (!status.equals(ServiceStatus.STARTED))
+				return;
+			LOG.error("+ MONGOESB - Tail {} failed", tail.getName(), e);
+			tail.fail(e);
+		} finally {
+			tail.slicing = false;
+		}
+	}
+
+	/**
+	 * @return every registered tail, with its status.
+	 */
+	public List<Tail> getTails() {
+		return Collections.unmodifiableList(new ArrayList<Tail>(tails));
+	}
+
+	@Override
+	public ServiceStatus getStatus() {
+		return status;
+	}
+
+	public int getSliceDocuments() {
+		return sliceDocuments;
+	}
+
+	/**
+	 * Max number of documents a tail dispatches before leaving its thread to
+	 * another tail.
+	 */
+	public void setSliceDocuments(int sliceDocuments) {
+		if (sliceDocuments <= 0)
+			throw new IllegalArgumentException("A positive number of documents was expected");
+		this.sliceDocuments = sliceDocuments;
+	}
+
+	public long getIdlePollInterval() {
+		return idlePollInterval;
+	}
+
+	/**
+	 * Milliseconds a tail that ran out of data waits before polling again.
+	 */
+	public void setIdlePollInterval(long idlePollInterval) {
+		if (idlePollInterval < 0)
+			throw new IllegalArgumentException("A not negative interval was expected");
+		this.idlePollInterval = idlePollInterval;
+	}
+}
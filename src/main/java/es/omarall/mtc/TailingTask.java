@@ -18,9 +18,22 @@
 
 package es.omarall.mtc;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,18 +42,40 @@ import com.mongodb.CursorType;
 import com.mongodb.MongoQueryException;
 import com.mongodb.MongoSocketException;
 import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 
 import es.omarall.configuration.MTCConfiguration;
 import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.cursor.AdaptiveBatchSize;
+import es.omarall.mtc.cursor.ReplicationLag;
+import es.omarall.mtc.dispatch.BatchingDocumentDispatcher;
+import es.omarall.mtc.dispatch.BudgetedDocumentDispatcher;
+import es.omarall.mtc.dispatch.DefaultDocumentAdapter;
+import es.omarall.mtc.dispatch.DirectDocumentDispatcher;
+import es.omarall.mtc.dispatch.DocumentAdapter;
+import es.omarall.mtc.dispatch.DocumentDispatcher;
+import es.omarall.mtc.dispatch.PartitionedDocumentDispatcher;
+import es.omarall.mtc.dispatch.PipelinedDocumentDispatcher;
+import es.omarall.mtc.dispatch.RawDocumentAdapter;
+import es.omarall.mtc.dispatch.RecentIdCache;
+import es.omarall.mtc.dispatch.RoutedDocumentDispatcher;
+import es.omarall.mtc.dispatch.RoutedDocumentDispatcher.Route;
 import es.omarall.mtc.exceptions.CappedCollectionRequiredException;
 import es.omarall.mtc.exceptions.DocumentHandlerRequiredException;
+import es.omarall.mtc.exceptions.InvalidMTCConfiguration;
 import es.omarall.mtc.exceptions.MTCException;
 import es.omarall.mtc.exceptions.MTCExecutionException;
 import es.omarall.mtc.exceptions.NotStartedException;
+import es.omarall.mtc.metrics.TailingMetrics;
+import es.omarall.mtc.retry.RetryScheduler;
+import es.omarall.mtc.wait.ParkingWaitStrategy;
+import es.omarall.mtc.wait.WaitStrategy;
 
 /**
  * Task responsible for fetching the documents from the (capped) collection.
@@ -49,9 +84,39 @@ public class TailingTask implements Runnable, Service {
 
 	private static final Logger LOG = LoggerFactory.getLogger(TailingTask.class);
 
+	private static final long DEFAULT_MIN_CURSOR_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * Cursors built on lagging members before falling back to the primary.
+	 */
+	private static final int MAX_MEMBER_ATTEMPTS = 3;
+
 	private DocumentHandler documentHandler;
+	private BatchDocumentHandler batchDocumentHandler;
+	private RawDocumentHandler rawDocumentHandler;
+	private OverrunListener overrunListener;
+
+	/**
+	 * Handlers by route key value, if documents are routed.
+	 */
+	private final Map<String, Route> routes = new LinkedHashMap<String, Route>();
+
+	/**
+	 * Dispatcher for the handler set, and class documents are decoded to for
+	 * that handler.
+	 */
+	private DocumentDispatcher<Object> dispatcher;
+	private DocumentAdapter<Object> documentAdapter;
+
+	/**
+	 * Handler a catch up pipeline hands documents to, if documents are handled
+	 * one at a time on the tailing thread and catch up handler threads are
+	 * configured.
+	 */
+	private Consumer<Object> catchUpHandler;
+	private Class<?> documentClass = Document.class;
 	private MTCConfiguration configuration;
-	private ServiceStatus status = ServiceStatus.STOPPED;
+	private volatile ServiceStatus status = ServiceStatus.STOPPED;
 
 	/**
 	 * Collection storing documents being published by systems interacting.
@@ -61,16 +126,108 @@ public class TailingTask implements Runnable, Service {
 	// compression(capped, size is fixed)
 	private MongoCollection<Document> cappedCollection;
 
+	/**
+	 * The capped collection with the tail read preference, if any: cursors
+	 * read from it.
+	 */
+	private MongoCollection<Document> tailCollection;
+
 	/*
 	 * PERSISTENT TRACKER.
 	 * 
-	 * If proper persistent tracking configuration is set -> tracker != null &&
-	 * cursorRegenerationDelay != 0
+	 * If proper persistent tracking configuration is set -> tracker != null
 	 */
 
 	private PersistentTrackingManager tracker;
+	private volatile ObjectId lastTrackedId = null;
+
+	/*
+	 * CURSOR REBUILDS.
+	 * 
+	 * Before building a new cursor, after an empty or lost one, the tailing
+	 * thread waits with the idle strategy. idleAttempts counts the cursors
+	 * built since the last document fetched.
+	 */
+	private WaitStrategy cursorIdleStrategy;
+	private int idleAttempts;
 	private long cursorRegenerationDelay;
-	private ObjectId lastTrackedId = null;
+
+	/*
+	 * METRICS. Always kept, exported if a metrics registry is configured.
+	 */
+	private final TailingMetrics metrics = new TailingMetrics();
+
+	/*
+	 * DUPLICATE SUPPRESSION. If enabled, recentIds != null. Ids are checked on
+	 * the tailing thread, and added once handled.
+	 */
+	private RecentIdCache recentIds;
+
+	/*
+	 * RETRIES. If enabled, retryScheduler != null. Documents whose handling
+	 * failed are spilled and retried later, instead of being skipped.
+	 */
+	private RetryScheduler retryScheduler;
+
+	/*
+	 * ROUTED MODE. If enabled, routedDispatcher != null, also while catching
+	 * up. Retries are handled on the threads of their route.
+	 */
+	private RoutedDocumentDispatcher routedDispatcher;
+
+	/*
+	 * ADAPTIVE CURSOR BATCH SIZE.
+	 * 
+	 * If enabled, batchSizeTuner != null. The cursor is given up and rebuilt
+	 * after the last fetched document on each batch size change.
+	 */
+	private AdaptiveBatchSize batchSizeTuner;
+	private ObjectId lastFetchedId;
+	private ObjectId rebuildAfterId;
+
+	/*
+	 * REPLICATION LAG. If a max lag is configured, replicationLag != null.
+	 * cursorMember is the member the current cursor reads from.
+	 */
+	private ReplicationLag replicationLag;
+	private ServerAddress cursorMember;
+
+	/*
+	 * HOT STANDBY. A cursor built ahead by warmUp(), iterated first once run.
+	 * Documents up to the checkpoint read when run starts are skipped: the
+	 * consumer taken over from handled them.
+	 */
+	private MongoCursor<?> warmCursor;
+	private ObjectId skipUntilId;
+
+	/*
+	 * STOP. The thread running the task, the cursor it reads from, and a latch
+	 * released once run returns, for stop to close the cursor and wait. The
+	 * latch is built on start, so a stop before the thread runs waits for it.
+	 */
+	private volatile Thread runner;
+	private volatile MongoCursor<?> activeCursor;
+	private volatile CountDownLatch finished;
+
+	/*
+	 * CATCH UP. Every CATCH_UP_CHECK_INTERVAL documents a catch up pass checks
+	 * whether to stop.
+	 * 
+	 * Overruns are looked for, and catch up passes run, only once the task is
+	 * started and after a cursor lost its position: checkBehind. A cursor
+	 * dying idle resumes where it was. Each position overrun is reported
+	 * once: overrunReportedId.
+	 */
+	private static final int CATCH_UP_CHECK_INTERVAL = 1024;
+	private boolean checkBehind;
+	private ObjectId overrunReportedId;
+
+	/**
+	 * Cursor kept between slices by {@link #runSlice(int)}, and when the next
+	 * one may be built after an empty or lost one.
+	 */
+	private MongoCursor<?> sliceCursor;
+	private long sliceCursorDueAt;
 
 	public TailingTask(MTCConfiguration configuration) {
 
@@ -83,6 +240,9 @@ public class TailingTask implements Runnable, Service {
 		MongoDatabase mongoDatabase = configuration.getMongoDatabase();
 		String collectionName = configuration.getCollection();
 		cappedCollection = mongoDatabase.getCollection(collectionName);
+		if (configuration.getCodecRegistry() != null) {
+			cappedCollection = cappedCollection.withCodecRegistry(configuration.getCodecRegistry());
+		}
 
 		// Check cappedCollection is a capped collection...
 		final Document collStatsCommand = new Document("collStats", collectionName);
@@ -96,17 +256,41 @@ public class TailingTask implements Runnable, Service {
 		// Is Capped.
 		LOG.debug("Collection {} is CAPPED as expected", collectionName);
 
-		// Persistent TRACKING ENABLED? If enabled tracker != null &&
-		// cursorRegenerationDelay != 0
+		checkProjection(configuration, cappedCollection.getCodecRegistry());
+		metrics.setCollection(cappedCollection);
+
+		tailCollection = cappedCollection;
+		if (configuration.getTailReadPreference() != null)
+			tailCollection = cappedCollection.withReadPreference(configuration.getTailReadPreference());
+		if (configuration.getMaxReplicationLag() > 0) {
+			replicationLag = new ReplicationLag(configuration.getMongoClient(), configuration.getMaxReplicationLag(),
+					configuration.getReplicationLagCheckInterval());
+		}
+
+		if (configuration.isAdaptiveCursorBatchSize()) {
+			batchSizeTuner = new AdaptiveBatchSize(configuration.getMinCursorBatchSize(),
+					configuration.getMaxCursorBatchSize(), configuration.getCursorBatchSize());
+		}
+
+		// Persistent TRACKING ENABLED? If enabled tracker != null
+		long cursorRegenerationDelay = MTCPersistentTrackingConfiguration.DEFAULT_CURSOR_REGENERATION_DELAY;
 		if (configuration.isPersistentTrackingEnable()) {
 			LOG.debug("Persistent tracking is ENABLED");
 			tracker = new PersistentTrackingManager(configuration);
-			cursorRegenerationDelay = getConfiguration().getPersistentTrackingConfiguration()
-					.getCursorRegenerationDelay();
-			if (cursorRegenerationDelay == 0) {
-				cursorRegenerationDelay = MTCPersistentTrackingConfiguration.DEFAULT_CURSOR_REGENERATION_DELAY;
+			metrics.setTracker(tracker);
+			if (configuration.getPersistentTrackingConfiguration().getCursorRegenerationDelay() > 0) {
+				cursorRegenerationDelay = configuration.getPersistentTrackingConfiguration()
+						.getCursorRegenerationDelay();
 			}
 		}
+
+		this.cursorRegenerationDelay = cursorRegenerationDelay;
+		cursorIdleStrategy = configuration.getCursorIdleStrategy();
+		if (cursorIdleStrategy == null) {
+			long maxParkNanos = TimeUnit.MILLISECONDS.toNanos(cursorRegenerationDelay);
+			cursorIdleStrategy = new ParkingWaitStrategy(Math.min(DEFAULT_MIN_CURSOR_IDLE_NANOS, maxParkNanos),
+					maxParkNanos);
+		}
 	}
 
 	/**
@@ -116,20 +300,144 @@ public class TailingTask implements Runnable, Service {
 	 * @return
 	 */
 	public MongoCursor<Document> buildCursor() {
+		return buildCursor(Document.class);
+	}
 
-		if (lastTrackedId == null) {
-			return cappedCollection.find().sort(new Document("$natural", 1)).cursorType(CursorType.TailableAwait)
-					.iterator();
-		} else {
+	/**
+	 * Builds a tailable & awaitdata cursor decoding documents to the given
+	 * class.
+	 * 
+	 * @return
+	 */
+	public <T> MongoCursor<T> buildCursor(Class<T> documentClass) {
+		return buildCursor(documentClass, CursorType.TailableAwait);
+	}
+
+	/**
+	 * With a max replication lag, a cursor landing on a lagging member is
+	 * closed before reading from it and built again, letting the driver pick
+	 * another member. Once MAX_MEMBER_ATTEMPTS cursors landed on lagging
+	 * members, the cursor is built on the primary.
+	 */
+	private <T> MongoCursor<T> buildCursor(Class<T> documentClass, CursorType cursorType) {
+
+		ObjectId resumeId = resumeId();
+		rebuildAfterId = null;
+		for (int attempt = 1;; attempt++) {
+			MongoCollection<Document> collection = replicationLag != null && attempt > MAX_MEMBER_ATTEMPTS
+					? cappedCollection.withReadPreference(ReadPreference.primary()) : tailCollection;
+			MongoCursor<T> cursor = buildCursor(collection, resumeId, documentClass, cursorType);
+			cursorMember = cursor.getServerAddress();
+			if (replicationLag == null || collection != tailCollection || !replicationLag.isLagging(cursorMember)) {
+				if (replicationLag != null)
+					metrics.replicationLag(replicationLag.getLag(cursorMember));
+				return cursor;
+			}
+			LOG.info("+ MONGOESB - Member {} is {} ms behind. Building the cursor again", cursorMember,
+					replicationLag.getLag(cursorMember));
+			metrics.laggingMemberLeft();
+			cursor.close();
+		}
+	}
+
+	private <T> MongoCursor<T> buildCursor(MongoCollection<Document> collection, ObjectId resumeId,
+			Class<T> documentClass, CursorType cursorType) {
+
+		FindIterable<T> documents = find(collection, resumeId, documentClass);
+		if (configuration.getProjection() != null)
+			documents = documents.projection(configuration.getProjection());
+
+		int batchSize = batchSizeTuner != null ? batchSizeTuner.getBatchSize() : configuration.getCursorBatchSize();
+		if (batchSize > 0)
+			documents = documents.batchSize(batchSize);
+		if (configuration.getCursorMaxAwaitTime() > 0)
+			documents = documents.maxAwaitTime(configuration.getCursorMaxAwaitTime(), TimeUnit.MILLISECONDS);
+
+		return documents.sort(new Document("$natural", 1)).cursorType(cursorType).iterator();
+	}
+
+	/**
+	 * Documents after the resume id, if any, matching the configured filter.
+	 * With resume seek enabled the server seeks to the resume document rather
+	 * than scanning from the oldest one.
+	 */
+	private <T> FindIterable<T> find(MongoCollection<Document> collection, ObjectId resumeId,
+			Class<T> documentClass) {
+
+		BsonValue seekValue = configuration.isResumeSeek() ? seekValue(resumeId) : null;
+		if (seekValue == null)
+			return collection.find(buildQuery(configuration.getFilter(), resumeId), documentClass);
+		return collection.find(buildQuery(configuration.getFilter(), resumeId, seekValue), documentClass)
+				.oplogReplay(true);
+	}
+
+	/**
+	 * Reads the seek field of the resume document, an _id index lookup.
+	 * 
+	 * @return null, to scan, if there is no resume document or it has no seek
+	 *         field.
+	 */
+	private BsonValue seekValue(ObjectId resumeId) {
+
+		if (resumeId == null)
+			return null;
+		BsonDocument resumeDocument = cappedCollection.find(Filters.eq("_id", resumeId), BsonDocument.class)
+				.projection(Projections.include(MTCConfiguration.RESUME_SEEK_FIELD)).first();
+		BsonValue seekValue = resumeDocument != null ? resumeDocument.get(MTCConfiguration.RESUME_SEEK_FIELD) : null;
+		if (seekValue == null)
+			LOG.debug("Resume document {} gone or with no {} field. Scanning", resumeId,
+					MTCConfiguration.RESUME_SEEK_FIELD);
+		metrics.resumeSeek(seekValue == null);
+		return seekValue;
+	}
+
+	/**
+	 * @return id of the document the next cursor starts after, null to start
+	 *         from the oldest one.
+	 */
+	private ObjectId resumeId() {
+		return rebuildAfterId != null ? rebuildAfterId : lastTrackedId;
+	}
+
+	/**
+	 * @return the filter, if any, combined with the resume predicate if there
+	 *         is an id to resume after.
+	 */
+	static Bson buildQuery(Bson filter, ObjectId resumeId) {
+
+		if (resumeId == null)
+			return filter != null ? filter : new Document();
+
+		// we know we processed the document with "_id": resumeId
+		// We are interested in the first document with id greater than
+		// resumeId
+		Bson resume = Filters.gt("_id", resumeId);
+		return filter != null ? Filters.and(resume, filter) : resume;
+	}
+
+	/**
+	 * @return the query of {@link #buildQuery(Bson, ObjectId)}, with a
+	 *         predicate on the seek field for oplogReplay to seek to the resume
+	 *         document.
+	 */
+	static Bson buildQuery(Bson filter, ObjectId resumeId, BsonValue seekValue) {
+		return Filters.and(Filters.gte(MTCConfiguration.RESUME_SEEK_FIELD, seekValue), buildQuery(filter, resumeId));
+	}
 
-			// we know we processed the document with "_id": lastTrackedId
-			// We are interested in the first document with id greater than
-			// lastTrackedId
-			return cappedCollection
+	/**
+	 * Tracking reads the _id of every document handled, so the projection can
+	 * not exclude it.
+	 */
+	static void checkProjection(MTCConfiguration configuration, CodecRegistry codecRegistry) {
 
-					.find(Filters.gt("_id", lastTrackedId))
+		if (configuration.getProjection() == null)
+			return;
 
-					.sort(new Document("$natural", 1)).cursorType(CursorType.TailableAwait).iterator();
+		BsonDocument projection = configuration.getProjection().toBsonDocument(BsonDocument.class, codecRegistry);
+		BsonValue id = projection.get("_id");
+		if (id != null && ((id.isNumber() && id.asNumber().intValue() == 0)
+				|| (id.isBoolean() && !id.asBoolean().getValue()))) {
+			throw new InvalidMTCConfiguration("Invalid MTCConfiguration. The projection can not exclude _id");
 		}
 	}
 
@@ -144,6 +452,8 @@ public class TailingTask implements Runnable, Service {
 	@Override
 	public void run() {
 
+		CountDownLatch finished = this.finished;
+		runner = Thread.currentThread();
 		try {
 
 			// Check start was called
@@ -158,25 +468,57 @@ public class TailingTask implements Runnable, Service {
 
 				// hasNext throws IllegalStateException when cursor is closed
 				// (not by documentHandler)
-				MongoCursor<Document> cursor = buildCursor();
+				// Behind the tail? Overwritten documents are reported, and a
+				// long way behind documents are read in bulk first. Checked on
+				// run and once a cursor lost its position, not taking over
+				// with a warm cursor
+				MongoCursor<?> cursor;
+				if (warmCursor != null) {
+					cursor = takeOverWarmCursor();
+					checkBehind = false;
+				} else {
+					if (checkBehind) {
+						checkBehind = false;
+						if (configuration.isOverrunDetection())
+							detectOverrun();
+						if (configuration.getCatchUpThreshold() > 0)
+							catchUp();
+					}
+
+					cursor = buildCursor(documentClass);
+					metrics.cursorBuilt();
+				}
+				activate(cursor);
 				// "Await" for data
 				if (cursor != null) {
 					if (cursor.hasNext()) {
 
 						// throws ChangedStateToNotStarted
-						iterateCursor(cursor);
+						if (!iterateCursor(cursor)) {
 
-						// Cursor was LOST
+							// Cursor was LOST
+							metrics.cursorLost();
 
-						// wait to regenerate another cursor if configured so
-						applyDelayToGenerateCursor();
+							// wait to regenerate another cursor
+							idleBeforeNextCursor();
+						}
 					} else {
 
-						// hasNext returned with no data
+						// hasNext returned with no data: the cursor is dead
 						LOG.debug("Cursor returned no data");
+						metrics.cursorEmpty();
+						if (batchSizeTuner != null)
+							batchSizeTuner.onEmptyFetch();
 						cursor.close();
+
+						// wait to regenerate another cursor
+						idleBeforeNextCursor();
 					}
 				}
+
+				// Check whether to keep execution
+				if (getStatus().equals(ServiceStatus.STOPPED))
+					throw new NotStartedException("Tailing task changed its state to not started");
 			} // while(keepRunning) block
 
 		} catch (IllegalStateException e) {
@@ -191,32 +533,381 @@ public class TailingTask implements Runnable, Service {
 			// Consumer changed its state
 			LOG.info("+ MONGOESB: Consumer changed its state");
 		} finally {
+			activeCursor = null;
+			closeWarmCursor();
+			closeDispatcher();
+			runner = null;
+			if (finished != null)
+				finished.countDown();
 			LOG.info("+ MONGOESB - STOP TAILING TASK");
 		}
 
 	} // run
 
+	/**
+	 * OVERRUN DETECTION: documents after the one to resume after were
+	 * overwritten if the oldest document in the collection is newer. Reported
+	 * once per resume document, with the documents lost estimated, see
+	 * {@link #estimateLostDocuments(ObjectId, ObjectId, ObjectId, long)}.
+	 */
+	private void detectOverrun() {
+
+		ObjectId resumeId = resumeId();
+		if (resumeId == null || resumeId.equals(overrunReportedId))
+			return;
+
+		Document oldest = cappedCollection.find().sort(new Document("$natural", 1))
+				.projection(new Document("_id", 1)).first();
+		if (oldest == null || !(oldest.get("_id") instanceof ObjectId))
+			return;
+		ObjectId oldestId = oldest.getObjectId("_id");
+		if (oldestId.compareTo(resumeId) <= 0)
+			return;
+
+		Document newest = cappedCollection.find().sort(new Document("$natural", -1))
+				.projection(new Document("_id", 1)).first();
+		long estimatedLostDocuments = 0L;
+		if (newest != null && newest.get("_id") instanceof ObjectId)
+			estimatedLostDocuments = estimateLostDocuments(resumeId, oldestId, newest.getObjectId("_id"),
+					cappedCollection.count());
+
+		LOG.warn("+ MONGOESB - Capped collection {} OVERRUN: resuming after {}, oldest document is {}. About {} documents lost",
+				configuration.getCollection(), resumeId, oldestId, estimatedLostDocuments);
+		overrunReportedId = resumeId;
+		metrics.overrun(estimatedLostDocuments);
+		if (overrunListener != null) {
+			try {
+				overrunListener.onOverrun(resumeId, oldestId, estimatedLostDocuments);
+			} catch (RuntimeException e) {
+				LOG.error("Overrun listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Lost documents are estimated from ObjectId timestamps: the documents in
+	 * the collection over the time span they cover, times the time span
+	 * between the resume document and the oldest one.
+	 * 
+	 * @return 0 if the ids do not span a second, so the rate is unknown.
+	 */
+	static long estimateLostDocuments(ObjectId resumeId, ObjectId oldestId, ObjectId newestId, long documents) {
+		long spanSeconds = newestId.getTimestamp() - oldestId.getTimestamp();
+		long lostSeconds = oldestId.getTimestamp() - resumeId.getTimestamp();
+		if (spanSeconds <= 0 || lostSeconds <= 0)
+			return 0L;
+		return documents * lostSeconds / spanSeconds;
+	}
+
+	/**
+	 * CATCH UP: being catchUpThreshold documents or more behind the tail,
+	 * documents are read with a non tailable cursor in large batches, and
+	 * handed over to the catch up handler threads if configured so. Once read,
+	 * the next tailable cursor starts after the last one.
+	 * 
+	 * @throws NotStartedException
+	 *             to signal state changed to a non started state
+	 */
+	private void catchUp() {
+
+		ObjectId resumeId = resumeId();
+		long behind = cappedCollection.count(buildQuery(configuration.getFilter(), resumeId));
+		if (behind < configuration.getCatchUpThreshold())
+			return;
+
+		LOG.info("+ MONGOESB - {} documents behind the tail of {}. Catching up", behind,
+				configuration.getCollection());
+		metrics.catchUp();
+
+		DocumentDispatcher<Object> tailDispatcher = dispatcher;
+		if (catchUpHandler != null) {
+			dispatcher = new PipelinedDocumentDispatcher<Object>(catchUpHandler, documentAdapter,
+					configuration.getRingBufferSize(), configuration.getCatchUpHandlerThreads(),
+					configuration.getWaitStrategy());
+		}
+
+		FindIterable<?> documents = find(tailCollection, resumeId, documentClass);
+		if (configuration.getProjection() != null)
+			documents = documents.projection(configuration.getProjection());
+		MongoCursor<?> cursor = activate(documents.sort(new Document("$natural", 1))
+				.batchSize(configuration.getCatchUpBatchSize()).iterator());
+
+		int fetched = 0;
+		try {
+			while (cursor.hasNext()) {
+
+				Object next = cursor.next();
+				dispatch(next);
+				lastFetchedId = documentAdapter.getId(next);
+				rebuildAfterId = lastFetchedId;
+				idleAttempts = 0;
+
+				if (++fetched % CATCH_UP_CHECK_INTERVAL == 0) {
+					persistLastCompletedId();
+					if (getStatus().equals(ServiceStatus.STOPPED))
+						throw new NotStartedException("Tailing task changed its state to not started");
+				}
+			}
+		} catch (MongoQueryException e) {
+			// Overrun while catching up. Recoverable: the next cursor starts
+			// after the last fetched document
+			LOG.info("Catch up cursor {} has been closed.", e);
+			metrics.queryExceptionRecovered();
+			checkBehind = true;
+		} finally {
+			cursor.close();
+			if (dispatcher != tailDispatcher) {
+				dispatcher.close();
+				persistLastCompletedId();
+				dispatcher = tailDispatcher;
+			} else {
+				dispatcher.flush();
+				persistLastCompletedId();
+			}
+		}
+		LOG.info("+ MONGOESB - Caught up {} documents of {}", fetched, configuration.getCollection());
+	}
+
+	/**
+	 * Documents in flight are completed before the last tracking state is
+	 * persisted.
+	 */
+	private void closeDispatcher() {
+
+		if (dispatcher != null) {
+			dispatcher.close();
+			if (retryScheduler != null)
+				retryScheduler.close(configuration.getStopTimeout());
+			try {
+				persistLastCompletedId();
+				if (tracker != null)
+					tracker.close();
+			} catch (Exception e) {
+				LOG.error("Last tracking state could not be persisted", e);
+			}
+		}
+		if (recentIds != null)
+			recentIds.close();
+		if (configuration.getMetricsRegistry() != null)
+			configuration.getMetricsRegistry().unregister(getMetricsName(), metrics);
+	}
+
+	/**
+	 * SLICED TAILING: an alternative to {@link #run()} for tasks sharing
+	 * threads. Each call dispatches up to maxDocuments documents and returns,
+	 * keeping the cursor for the next call. The cursor is tailable but does not
+	 * await data, so a call never waits for documents.
+	 * 
+	 * Cursors are built as by {@link #run()}: overruns looked for and a catch
+	 * up pass run on start and after a cursor lost its position, a catch up
+	 * pass not being bounded by maxDocuments. After an empty or lost cursor,
+	 * calls build no cursor, nor query, for 1, 2, 4... milliseconds up to the
+	 * cursor regeneration delay: the backoff of the default idle strategy,
+	 * the shared thread not parked. A configured cursorIdleStrategy is not
+	 * used.
+	 * 
+	 * @return number of documents dispatched. Less than maxDocuments if the
+	 *         cursor ran out of data.
+	 * @throws MTCException
+	 *             on network problems. Not recoverable.
+	 */
+	int runSlice(int maxDocuments) {
+
+		if (!getStatus().equals(ServiceStatus.STARTED))
+			throw new NotStartedException("Trying to RUN a non started task");
+
+		if (sliceCursor == null) {
+			if (System.currentTimeMillis() < sliceCursorDueAt)
+				return 0;
+			if (checkBehind) {
+				checkBehind = false;
+				if (configuration.isOverrunDetection())
+					detectOverrun();
+				if (configuration.getCatchUpThreshold() > 0)
+					catchUp();
+			}
+			sliceCursor = buildCursor(documentClass, CursorType.Tailable);
+			metrics.cursorBuilt();
+		}
+
+		int dispatched = 0;
+		try {
+
+			while (dispatched < maxDocuments) {
+
+				Object next = sliceCursor.tryNext();
+				if (next == null) {
+
+					dispatcher.flush();
+					persistLastCompletedId();
+
+					if (batchSizeTuner != null)
+						batchSizeTuner.onEmptyFetch();
+
+					// A cursor built on an empty collection is dead
+					if (sliceCursor.getServerCursor() == null) {
+						metrics.cursorEmpty();
+						deferSliceCursor();
+					} else if (batchSizeTuner != null && batchSizeTuner.isChanged()) {
+						closeSliceCursor();
+					}
+					break;
+				}
+
+				dispatched++;
+				if (dispatchFetched(next)) {
+					closeSliceCursor();
+					break;
+				}
+			}
+
+		} catch (MongoSocketException e) {
+			LOG.error("\n\nMONGOESB - NETWORK problems: Server Address: {}", e.getServerAddress().toString(), e);
+			closeSliceCursor();
+
+			// Not recoverable. Do not regenerate the cursor
+			throw new MTCException(
+					String.format("Network Problemns detected. Server address: %s", e.getServerAddress().toString()));
+		} catch (MongoQueryException e) {
+			// Recoverable: a later slice regenerates the cursor, checking
+			// whether its position was overwritten
+			LOG.info("Cursor {} has been closed.", e);
+			metrics.queryExceptionRecovered();
+			metrics.cursorLost();
+			checkBehind = true;
+			deferSliceCursor();
+		} catch (IllegalStateException e) {
+			// Recoverable: a later slice regenerates the cursor
+			LOG.info("Cursor being iterated was closed", e);
+			metrics.cursorLost();
+			deferSliceCursor();
+		}
+		return dispatched;
+	}
+
+	/**
+	 * Closes the slice cursor, the next one being built after the backoff.
+	 */
+	private void deferSliceCursor() {
+		closeSliceCursor();
+		sliceCursorDueAt = System.currentTimeMillis()
+				+ Math.min(cursorRegenerationDelay, 1L << Math.min(idleAttempts, 30));
+		if (idleAttempts < Integer.MAX_VALUE)
+			idleAttempts++;
+	}
+
+	/**
+	 * Sets the id of the document the first cursor starts after, with
+	 * persistent tracking disabled, as for a tail shared by subscribers with
+	 * checkpoints of their own. Later cursors start after the last document
+	 * completed, as with tracking. To be called on a task started and not
+	 * running.
+	 */
+	public void resumeAfter(ObjectId id) {
+		lastTrackedId = id;
+	}
+
+	/**
+	 * Standby: reloads the checkpoint and builds a tailable cursor after it,
+	 * kept to be iterated first once started and run, so taking over pays
+	 * neither the task construction nor the resume query. To be called
+	 * periodically, each call replacing the previous cursor, on a task not
+	 * started: no dispatcher, retry scheduler or duplicate suppression cache
+	 * exists until start(), so a standby neither handles nor retries
+	 * documents.
+	 */
+	public void warmUp() {
+
+		if (getStatus().equals(ServiceStatus.STARTED))
+			throw new MTCExecutionException("Trying to WARM UP a started task. Warm up before calling start() method.");
+
+		if (tracker != null)
+			lastTrackedId = tracker.fetchLastTrackedEventId();
+		closeWarmCursor();
+		documentClass = configuration.isRouted() || rawDocumentHandler != null ? RawBsonDocument.class
+				: Document.class;
+		warmCursor = buildCursor(documentClass);
+		metrics.cursorBuilt();
+	}
+
+	/**
+	 * Reloads the checkpoint, which went on moving while warm, and hands the
+	 * warm cursor over, documents up to the checkpoint to be skipped.
+	 */
+	private MongoCursor<?> takeOverWarmCursor() {
+
+		if (tracker != null) {
+			lastTrackedId = tracker.fetchLastTrackedEventId();
+			skipUntilId = lastTrackedId;
+		}
+		MongoCursor<?> cursor = warmCursor;
+		warmCursor = null;
+		return cursor;
+	}
+
+	private void closeWarmCursor() {
+		if (warmCursor != null) {
+			warmCursor.close();
+			warmCursor = null;
+		}
+	}
+
+	/**
+	 * Releases a task not running, as a standby that never took over: the
+	 * warm cursor, then as {@link #closeSlices()}.
+	 */
+	public void close() {
+		closeWarmCursor();
+		closeSlices();
+	}
+
+	/**
+	 * Ends sliced tailing: closes the cursor, completes documents in flight
+	 * and persists the last tracking state. Not to be called while a slice
+	 * runs.
+	 */
+	void closeSlices() {
+		closeSliceCursor();
+		closeDispatcher();
+	}
+
+	/**
+	 * The next slice builds a cursor starting after the last fetched document.
+	 */
+	private void closeSliceCursor() {
+		if (sliceCursor != null) {
+			rebuildAfterId = lastFetchedId;
+			try {
+				dispatcher.flush();
+			} catch (Exception e) {
+				LOG.error("Pending documents could not be dispatched", e);
+			}
+			persistLastCompletedId();
+			sliceCursor.close();
+			sliceCursor = null;
+		}
+	}
+
 	/**
 	 * Cursor LOGIC. A built cursor can be iterated until lost or until the
 	 * state is changed to a no started state.
 	 * 
+	 * @return true if the cursor was given up to change its batch size or
+	 *         member, so a new one is to be built right away.
 	 * @throws NotStartedException
 	 *             to signal state changed to a non started state
 	 */
-	private void iterateCursor(final MongoCursor<Document> cursor) {
+	private boolean iterateCursor(final MongoCursor<?> cursor) {
 
 		if (cursor == null)
-			return;
-
-		// stores the id of the last document fetched by THIS cursor...
-		ObjectId lastProcessedId = null;
+			return false;
 
 		try {
 
 			while (true) {
 
 				// Is there a new document to be processed?
-				Document next = cursor.tryNext();
+				Object next = cursor.tryNext();
 
 				if (next == null) {
 
@@ -225,11 +916,16 @@ public class TailingTask implements Runnable, Service {
 					// This is a chance to persist last processed
 					// id...go for it
 
-					if (tracker != null && lastProcessedId != null) {
+					dispatcher.flush();
+					persistLastCompletedId();
 
-						tracker.persistLastTrackedEventId(lastProcessedId);
-						lastTrackedId = lastProcessedId;
+					if (batchSizeTuner != null) {
+						batchSizeTuner.onEmptyFetch();
+						if (batchSizeTuner.isChanged())
+							return rebuildAfterLastFetched();
 					}
+					if (isMemberLagging())
+						return rebuildAfterLastFetched();
 
 					// Wait for a new document to be processed
 					if (!cursor.hasNext()) {
@@ -241,14 +937,8 @@ public class TailingTask implements Runnable, Service {
 				} else {
 
 					// There is a document to be processed
-					try {
-
-						documentHandler.handleDocument(next);
-						lastProcessedId = next.getObjectId("_id");
-					} catch (Exception e) {
-						LOG.error("DocumentHandler raised an exception", e);
-						// Notifiy but keep going
-					}
+					if (dispatchFetched(next))
+						return true;
 				}
 
 				// Check whether to keep execution
@@ -266,23 +956,31 @@ public class TailingTask implements Runnable, Service {
 		} catch (MongoQueryException e) {
 			// MongoCursorNotFoundException
 			// The cursor was closed
-			// Recoverable: Do regenerate the cursor
+			// Recoverable: Do regenerate the cursor, checking whether its
+			// position was overwritten
 			LOG.info("Cursor {} has been closed.", e);
+			metrics.queryExceptionRecovered();
+			checkBehind = true;
+			return false;
 		} catch (IllegalStateException e) {
 			// .hasNext(): Cursor was closed by other THREAD (documentHandler
 			// cleaningup)?)
 			// Recoverable. Do regenerate the cursor.
 			LOG.info("Cursor being iterated was closed", e);
+			return false;
 		} catch (NotStartedException e) {
 			// Not recoverable: Do not regenerate the cursor.
 			throw e;
 		} finally {
 
-			// persist tracking state
-			if (tracker != null && lastProcessedId != null) {
-				tracker.persistLastTrackedEventId(lastProcessedId);
-				lastTrackedId = lastProcessedId;
+			// Documents already fetched are handed over before persisting
+			// tracking state
+			try {
+				dispatcher.flush();
+			} catch (Exception e) {
+				LOG.error("Pending documents could not be dispatched", e);
 			}
+			persistLastCompletedId();
 
 			// Cleanup resources.
 			if (cursor != null)
@@ -291,59 +989,545 @@ public class TailingTask implements Runnable, Service {
 	}
 
 	/**
-	 * When a cursor was closed a delay can be set to wait for another cursor
-	 * construction
+	 * Dispatches a fetched document.
+	 * 
+	 * @return true if the cursor is to be given up to change its batch size or
+	 *         member.
 	 */
-	private void applyDelayToGenerateCursor() {
+	private boolean dispatchFetched(Object next) {
 
-		if (cursorRegenerationDelay != 0) {
-			try {
+		dispatch(next);
+		lastFetchedId = documentAdapter.getId(next);
+		idleAttempts = 0;
 
-				TimeUnit.MILLISECONDS.sleep(cursorRegenerationDelay);
-			} catch (InterruptedException e) {
-				LOG.error("Thread was interrupted", e);
-				Thread.currentThread().interrupt();
+		if (batchSizeTuner != null) {
+			batchSizeTuner.onDocument();
+			if (batchSizeTuner.isChanged())
+				return rebuildAfterLastFetched();
+		}
+		if (isMemberLagging())
+			return rebuildAfterLastFetched();
+
+		// Write behind tracking is cheap: track as we go
+		if (tracker != null && tracker.isWriteBehind())
+			persistLastCompletedId();
+		return false;
+	}
+
+	/**
+	 * Hands the document over to the dispatcher, unless already handled.
+	 */
+	private void dispatch(Object next) {
+
+		if (skipUntilId != null) {
+			if (documentAdapter.getId(next).compareTo(skipUntilId) <= 0) {
+				LOG.debug("Document {} handled before taking over. Dropped", documentAdapter.getId(next));
+				metrics.duplicateSuppressed();
+				return;
 			}
+			skipUntilId = null;
 		}
+
+		if (recentIds != null && recentIds.contains(documentAdapter.getId(next))) {
+			LOG.debug("Document {} already handled. Dropped", documentAdapter.getId(next));
+			metrics.duplicateSuppressed();
+			return;
+		}
+		dispatcher.dispatch(next);
+	}
+
+	/**
+	 * The next cursor starts after the last fetched document, so documents in
+	 * flight are not fetched again.
+	 * 
+	 * @return true
+	 */
+	private boolean rebuildAfterLastFetched() {
+		rebuildAfterId = lastFetchedId;
+		LOG.debug("Rebuilding cursor after {}", lastFetchedId);
+		return true;
+	}
+
+	/**
+	 * @return true if the member the cursor reads from fell further behind
+	 *         than the max replication lag, so the cursor is to be given up.
+	 *         Checked once per replication lag check interval at most.
+	 */
+	private boolean isMemberLagging() {
+
+		if (replicationLag == null)
+			return false;
+		long lag = replicationLag.getLag(cursorMember);
+		metrics.replicationLag(lag);
+		if (!replicationLag.isLagging(cursorMember))
+			return false;
+
+		LOG.warn("+ MONGOESB - Member {} fell {} ms behind. Leaving it", cursorMember, lag);
+		metrics.laggingMemberLeft();
+		return true;
+	}
+
+	/**
+	 * Moves the id the next cursor starts after to the last document the
+	 * dispatcher completed, tracking it if tracking is enabled. Nothing moves
+	 * if it did not move forward: the tailing dispatcher lags behind after a
+	 * catch up pass.
+	 */
+	private void persistLastCompletedId() {
+
+		ObjectId lastCompletedId = dispatcher.getLastCompletedId();
+		if (lastCompletedId != null && (lastTrackedId == null || lastCompletedId.compareTo(lastTrackedId) > 0)) {
+			if (tracker != null)
+				tracker.trackEventId(lastCompletedId);
+			lastTrackedId = lastCompletedId;
+		}
+	}
+
+	/**
+	 * Makes the cursor the one stop closes. Closed right away if stop was
+	 * called meanwhile, so the next read fails rather than awaiting data.
+	 */
+	private <T> MongoCursor<T> activate(MongoCursor<T> cursor) {
+		activeCursor = cursor;
+		if (cursor != null && getStatus().equals(ServiceStatus.STOPPED))
+			cursor.close();
+		return cursor;
+	}
+
+	/**
+	 * Waits, with the cursor idle strategy, before building a new cursor after
+	 * an empty or lost one. Not once stopped.
+	 */
+	private void idleBeforeNextCursor() {
+		if (getStatus().equals(ServiceStatus.STOPPED))
+			return;
+		cursorIdleStrategy.idle(idleAttempts);
+		if (idleAttempts < Integer.MAX_VALUE)
+			idleAttempts++;
 	}
 
 	public DocumentHandler getDocumentHandler() {
 		return documentHandler;
 	}
 
+	public BatchDocumentHandler getBatchDocumentHandler() {
+		return batchDocumentHandler;
+	}
+
+	public RawDocumentHandler getRawDocumentHandler() {
+		return rawDocumentHandler;
+	}
+
 	public MTCConfiguration getConfiguration() {
 		return configuration;
 	}
 
+	/**
+	 * @return the tracking manager, null if persistent tracking is disabled.
+	 */
+	public PersistentTrackingManager getPersistentTrackingManager() {
+		return tracker;
+	}
+
 	public ServiceStatus getStatus() {
 		return status;
 	}
 
+	/**
+	 * @return number of cursors built.
+	 */
+	public long getCursorsBuilt() {
+		return metrics.getCursorsBuilt();
+	}
+
+	/**
+	 * @return number of cursors built on a collection with no data to fetch.
+	 */
+	public long getCursorsEmpty() {
+		return metrics.getCursorsEmpty();
+	}
+
+	/**
+	 * @return number of cursors lost while being iterated.
+	 */
+	public long getCursorsLost() {
+		return metrics.getCursorsLost();
+	}
+
+	public TailingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return name the metrics are registered with: database.collection, and
+	 *         .consumerId if tracking is enabled.
+	 */
+	public String getMetricsName() {
+		String name = configuration.getDatabase() + "." + configuration.getCollection();
+		if (configuration.isPersistentTrackingEnable())
+			name += "." + configuration.getPersistentTrackingConfiguration().getConsumerId();
+		return name;
+	}
+
 	@Override
 	public void start() {
 
 		// Prestart logic:
 
 		// 1. Check a document handler is set
-		if (documentHandler == null)
-			throw new DocumentHandlerRequiredException("A documentHandler is REQUIRED in order to consume documents");
+		if (documentHandler == null && batchDocumentHandler == null && rawDocumentHandler == null
+				&& routes.isEmpty())
+			throw new DocumentHandlerRequiredException(
+					"A documentHandler, batchDocumentHandler, rawDocumentHandler or route is REQUIRED in order to consume documents");
 
 		// 2. fetch lastTrackedId if persistent tracking enabled
 		MTCConfiguration configuration = getConfiguration();
 		if (configuration.isPersistentTrackingEnable()) {
 			lastTrackedId = tracker.fetchLastTrackedEventId();
+			tracker.start();
 		}
 
-		// mark as started
+		// 3. build the dispatcher for the handler set, loading the ids of
+		// the last handled documents if duplicates are suppressed
+		buildDispatcher();
+		if (configuration.getDuplicateSuppressionSize() > 0)
+			recentIds = new RecentIdCache(configuration.getDuplicateSuppressionSize(),
+					configuration.getDuplicateSuppressionFile());
+
+		// 4. retry documents pending in the spill file, if retries enabled
+		if (configuration.getRetryConfiguration() != null) {
+			retryScheduler = new RetryScheduler(configuration.getRetryConfiguration(),
+					new Consumer<RawBsonDocument>() {
+						@Override
+						public void accept(RawBsonDocument raw) {
+							retry(raw);
+						}
+					});
+			retryScheduler.start();
+			metrics.setRetryScheduler(retryScheduler);
+		}
+
+		// 5. export metrics if configured so
+		if (configuration.getMetricsRegistry() != null)
+			configuration.getMetricsRegistry().register(getMetricsName(), metrics);
+
+		// mark as started, cursors to check whether behind
+		checkBehind = true;
+		finished = new CountDownLatch(1);
 		status = ServiceStatus.STARTED;
 	}
 
+	/**
+	 * A raw document handler takes precedence over a batch document handler,
+	 * which takes precedence over a document handler. Pipelined, partitioned
+	 * and routed modes handle one document at a time.
+	 */
+	@SuppressWarnings("unchecked")
+	private void buildDispatcher() {
+
+		DocumentDispatcher<?> documentDispatcher;
+		if (configuration.isRouted()) {
+			documentClass = RawBsonDocument.class;
+			documentDispatcher = buildRoutedDispatcher();
+		} else if (!routes.isEmpty()) {
+			throw new InvalidMTCConfiguration("Routes were added but no routeKey is configured");
+		} else if (rawDocumentHandler != null) {
+			documentClass = RawBsonDocument.class;
+			documentDispatcher = buildDispatcher(new Consumer<RawBsonDocument>() {
+				@Override
+				public void accept(RawBsonDocument doc) {
+					rawDocumentHandler.handleDocument(doc);
+				}
+			}, RawDocumentAdapter.INSTANCE);
+		} else if (batchDocumentHandler != null && !configuration.isPipelined()
+				&& !configuration.isPartitioned()) {
+			if (configuration.getHandlerTimeBudget() > 0)
+				throw new InvalidMTCConfiguration("A handler time budget requires a documentHandler or a rawDocumentHandler");
+			documentClass = Document.class;
+			documentDispatcher = new BatchingDocumentDispatcher<Document>(new Consumer<List<Document>>() {
+				@Override
+				public void accept(List<Document> docs) {
+					long startNanos = System.nanoTime();
+					try {
+						batchDocumentHandler.handleBatch(docs);
+					} catch (RuntimeException e) {
+						metrics.handlerFailed();
+						if (retryScheduler == null)
+							throw e;
+						LOG.warn("+ MONGOESB - BatchDocumentHandler raised an exception. Batch of {} documents to be retried",
+								docs.size(), e);
+						for (Document doc : docs)
+							retryScheduler.failed(toRaw(doc));
+						return;
+					}
+					metrics.handled(docs.size(), System.nanoTime() - startNanos,
+							DefaultDocumentAdapter.INSTANCE.getId(docs.get(docs.size() - 1)));
+					if (recentIds != null) {
+						for (Document doc : docs)
+							recentIds.add(DefaultDocumentAdapter.INSTANCE.getId(doc));
+					}
+				}
+			}, DefaultDocumentAdapter.INSTANCE, configuration.getBatchMaxSize(), configuration.getBatchMaxLinger());
+		} else if (documentHandler != null) {
+			documentClass = Document.class;
+			documentDispatcher = buildDispatcher(new Consumer<Document>() {
+				@Override
+				public void accept(Document doc) {
+					documentHandler.handleDocument(doc);
+				}
+			}, DefaultDocumentAdapter.INSTANCE);
+		} else {
+			throw new InvalidMTCConfiguration(
+					"Pipelined and partitioned modes require a documentHandler or a rawDocumentHandler");
+		}
+		dispatcher = (DocumentDispatcher<Object>) documentDispatcher;
+		documentAdapter = (DocumentAdapter<Object>) (DocumentAdapter<?>) (documentClass == RawBsonDocument.class
+				? RawDocumentAdapter.INSTANCE : DefaultDocumentAdapter.INSTANCE);
+	}
+
+	/**
+	 * Every route handler is measured. Documents matching no route go to the
+	 * raw document handler or the document handler, if any.
+	 */
+	private RoutedDocumentDispatcher buildRoutedDispatcher() {
+
+		Map<String, Route> measuredRoutes = new LinkedHashMap<String, Route>();
+		for (Map.Entry<String, Route> entry : routes.entrySet()) {
+			Route route = entry.getValue();
+			measuredRoutes.put(entry.getKey(),
+					new Route(measure(route.getHandler(), RawDocumentAdapter.INSTANCE), route.getThreads()));
+		}
+
+		Route defaultRoute = null;
+		Consumer<RawBsonDocument> defaultHandler = defaultRouteHandler();
+		if (defaultHandler != null)
+			defaultRoute = new Route(measure(defaultHandler, RawDocumentAdapter.INSTANCE),
+					configuration.getHandlerThreads());
+		else if (batchDocumentHandler != null)
+			throw new InvalidMTCConfiguration("Routed mode requires a documentHandler or a rawDocumentHandler");
+
+		RoutedDocumentDispatcher routedDispatcher = new RoutedDocumentDispatcher(configuration.getRouteKey(),
+				measuredRoutes, defaultRoute, configuration.getRingBufferSize(), configuration.getWaitStrategy());
+		metrics.setRoutedDispatcher(routedDispatcher);
+		this.routedDispatcher = routedDispatcher;
+		return routedDispatcher;
+	}
+
+	/**
+	 * @return handler for the documents matching no route, null if none.
+	 */
+	private Consumer<RawBsonDocument> defaultRouteHandler() {
+		if (rawDocumentHandler != null)
+			return raw(rawDocumentHandler);
+		if (documentHandler != null)
+			return decoding(documentHandler);
+		return null;
+	}
+
+	private static Consumer<RawBsonDocument> raw(final RawDocumentHandler handler) {
+		return new Consumer<RawBsonDocument>() {
+			@Override
+			public void accept(RawBsonDocument doc) {
+				handler.handleDocument(doc);
+			}
+		};
+	}
+
+	/**
+	 * Raw documents are decoded on the thread running the handler.
+	 */
+	private Consumer<RawBsonDocument> decoding(final DocumentHandler handler) {
+		return new Consumer<RawBsonDocument>() {
+			@Override
+			public void accept(RawBsonDocument doc) {
+				handler.handleDocument(doc.decode(cappedCollection.getCodecRegistry().get(Document.class)));
+			}
+		};
+	}
+
+	/**
+	 * Dispatcher handling one document at a time, for the configured mode.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> DocumentDispatcher<T> buildDispatcher(Consumer<T> documentHandler, DocumentAdapter<T> adapter) {
+
+		Consumer<T> handler = measure(documentHandler, adapter);
+
+		if (configuration.isPartitioned()) {
+			return new PartitionedDocumentDispatcher<T>(handler, adapter, configuration.getPartitionKey(),
+					configuration.getPartitionLanes(), configuration.getRingBufferSize(),
+					configuration.getWaitStrategy());
+		} else if (configuration.isPipelined()) {
+			return new PipelinedDocumentDispatcher<T>(handler, adapter, configuration.getRingBufferSize(),
+					configuration.getHandlerThreads(), configuration.getWaitStrategy());
+		}
+		if (configuration.getCatchUpHandlerThreads() > 0)
+			catchUpHandler = (Consumer<Object>) handler;
+		if (configuration.getHandlerTimeBudget() > 0) {
+			BudgetedDocumentDispatcher<T> budgetedDispatcher = new BudgetedDocumentDispatcher<T>(handler, adapter,
+					configuration.getHandlerTimeBudget(), configuration.getSlowLanes(), configuration.getStopTimeout());
+			metrics.setBudgetedDispatcher(budgetedDispatcher);
+			return budgetedDispatcher;
+		}
+		return new DirectDocumentDispatcher<T>(handler, adapter);
+	}
+
+	/**
+	 * Times the handler calls into the task metrics, and records the documents
+	 * handled if duplicates are suppressed.
+	 */
+	private <T> Consumer<T> measure(final Consumer<T> handler, final DocumentAdapter<T> adapter) {
+		return new Consumer<T>() {
+			@Override
+			public void accept(T doc) {
+				long startNanos = System.nanoTime();
+				try {
+					handler.accept(doc);
+				} catch (RuntimeException e) {
+					metrics.handlerFailed();
+					if (retryScheduler == null)
+						throw e;
+					LOG.warn("+ MONGOESB - DocumentHandler raised an exception. Document {} to be retried",
+							adapter.getId(doc), e);
+					retryScheduler.failed(toRaw(doc));
+					return;
+				}
+				ObjectId id = adapter.getId(doc);
+				metrics.handled(1, System.nanoTime() - startNanos, id);
+				if (recentIds != null)
+					recentIds.add(id);
+			}
+		};
+	}
+
+	/**
+	 * Documents are spilled as BSON bytes, whatever they were decoded to.
+	 */
+	private RawBsonDocument toRaw(Object doc) {
+		if (doc instanceof RawBsonDocument)
+			return (RawBsonDocument) doc;
+		return new RawBsonDocument((Document) doc, cappedCollection.getCodecRegistry().get(Document.class));
+	}
+
+	/**
+	 * Handles a document being retried with the handler set, decoding it if
+	 * needed, on the threads of its route if routed. Throws if it fails again.
+	 */
+	private void retry(RawBsonDocument raw) {
+
+		if (routedDispatcher != null) {
+			routedDispatcher.retry(raw);
+		} else if (rawDocumentHandler != null) {
+			rawDocumentHandler.handleDocument(raw);
+		} else {
+			Codec<Document> codec = cappedCollection.getCodecRegistry().get(Document.class);
+			Document doc = raw.decode(codec);
+			if (batchDocumentHandler != null && !configuration.isPipelined() && !configuration.isPartitioned())
+				batchDocumentHandler.handleBatch(Collections.singletonList(doc));
+			else
+				documentHandler.handleDocument(doc);
+		}
+		if (recentIds != null)
+			recentIds.add(RawDocumentAdapter.INSTANCE.getId(raw));
+	}
+
 	@Override
 	public void stop() {
 		status = ServiceStatus.STOPPED;
+
+		// A tailing thread awaiting data on the cursor notices once it is
+		// closed, and one idle before building the next cursor once unparked
+		MongoCursor<?> cursor = activeCursor;
+		if (cursor != null) {
+			try {
+				cursor.close();
+			} catch (Exception e) {
+				LOG.debug("Cursor could not be closed on stop", e);
+			}
+		}
+		Thread runner = this.runner;
+		if (runner != null)
+			LockSupport.unpark(runner);
+
+		// Pending tracking state is left to the tailing thread, which forces
+		// a final write once the documents in flight are completed: a slow
+		// store does not hold the caller
+	}
+
+	/**
+	 * Stops, as {@link #stop()}, and waits up to the timeout for the tailing
+	 * thread to be done: documents in flight handled, dispatcher closed and
+	 * final checkpoint written. Returns by the deadline either way. Documents
+	 * still in flight then are handed off to the next start, the checkpoint
+	 * never going past them.
+	 */
+	public StopReport stop(long timeout, TimeUnit unit) {
+
+		long startMillis = System.currentTimeMillis();
+		long handledAtStop = metrics.getDocumentsHandled();
+		stop();
+
+		boolean stopped = true;
+		CountDownLatch finished = this.finished;
+		if (finished != null) {
+			try {
+				stopped = finished.await(timeout, unit);
+			} catch (InterruptedException e) {
+				LOG.error("Thread was interrupted", e);
+				Thread.currentThread().interrupt();
+				stopped = finished.getCount() == 0;
+			}
+		}
+
+		StopReport report = new StopReport(stopped, metrics.getDocumentsHandled() - handledAtStop, lastTrackedId,
+				System.currentTimeMillis() - startMillis);
+		if (stopped)
+			LOG.info("+ MONGOESB - Tailing task stopped: {}", report);
+		else
+			LOG.warn("+ MONGOESB - Tailing task did not stop in time. Documents in flight handed off: {}", report);
+		return report;
+	}
+
+	/**
+	 * Notified on overruns, if overrun detection is enabled.
+	 */
+	public void setOverrunListener(OverrunListener overrunListener) {
+		this.overrunListener = overrunListener;
+	}
+
+	/**
+	 * Routes the documents whose routeKey field has the given value to a
+	 * handler, run by its own threads. With one thread, the documents of the
+	 * route are handled in order. To be added before the task is started.
+	 */
+	public void addRoute(String value, DocumentHandler handler, int threads) {
+		routes.put(value, new Route(handler == null ? null : decoding(handler), threads));
+	}
+
+	/**
+	 * As {@link #addRoute(String, DocumentHandler, int)}, the documents not
+	 * being decoded.
+	 */
+	public void addRawRoute(String value, RawDocumentHandler handler, int threads) {
+		routes.put(value, new Route(handler == null ? null : raw(handler), threads));
 	}
 
 	public void setDocumentHandler(DocumentHandler documentHandler) {
 		this.documentHandler = documentHandler;
 	}
+
+	/**
+	 * A batch document handler takes precedence over a document handler.
+	 */
+	public void setBatchDocumentHandler(BatchDocumentHandler batchDocumentHandler) {
+		this.batchDocumentHandler = batchDocumentHandler;
+	}
+
+	/**
+	 * Documents are not decoded: the handler gets the raw BSON bytes. A raw
+	 * document handler takes precedence over any other handler.
+	 */
+	public void setRawDocumentHandler(RawDocumentHandler rawDocumentHandler) {
+		this.rawDocumentHandler = rawDocumentHandler;
+	}
 }
@@ -0,0 +1,304 @@
+package es.omarall.mtc.bson;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+/**
+ * Reads a field, given by a dotted path, straight from the bytes of a
+ * {@link RawBsonDocument}. The path is compiled once. Reading walks the BSON
+ * elements comparing names byte by byte and skips the values that do not match,
+ * so no map is built and nothing is decoded but the value read. Each read
+ * still allocates a small view over the document bytes, the ByteBuffer and
+ * ByteBufNIO {@link RawBsonDocument#getByteBuffer()} wraps them in: the
+ * document gives no other access to its bytes, and a shared extractor keeps
+ * no buffer of its own.
+ * 
+ * Instances are immutable and can be shared between threads.
+ */
+public final class BsonFieldExtractor {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String path;
+	private final byte[][] segments;
+
+	private BsonFieldExtractor(String path) {
+		this.path = path;
+		String[] names = path.split("\\.");
+		this.segments = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].isEmpty())
+				throw new IllegalArgumentException("Invalid field path: " + path);
+			this.segments[i] = names[i].getBytes(UTF8);
+		}
+	}
+
+	/**
+	 * @param path
+	 *            field name, or dotted path to a field in embedded documents.
+	 */
+	public static BsonFieldExtractor compile(String path) {
+		if (path == null || path.isEmpty())
+			throw new IllegalArgumentException("A not empty field path was expected");
+		return new BsonFieldExtractor(path);
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the BSON type of the field, or null if missing.
+	 */
+	public BsonType getType(RawBsonDocument doc) {
+		ByteBuf buf = buffer(doc);
+		int offset = seek(buf);
+		return offset < 0 ? null : BsonType.findByValue(buf.get(offset));
+	}
+
+	/**
+	 * @return the field value, or null if missing. Embedded documents are
+	 *         returned as {@link RawBsonDocument}.
+	 */
+	public BsonValue extract(RawBsonDocument doc) {
+
+		ByteBuf buf = buffer(doc);
+		int offset = seek(buf);
+		if (offset < 0)
+			return null;
+
+		BsonType type = BsonType.findByValue(buf.get(offset));
+		if (type == null)
+			return slowExtract(doc);
+		int value = valueOffset(buf, offset);
+		switch (type) {
+		case DOUBLE:
+			return new BsonDouble(buf.getDouble(value));
+		case STRING:
+			return new BsonString(readString(buf, value));
+		case OBJECT_ID:
+			return new BsonObjectId(readObjectId(buf, value));
+		case BOOLEAN:
+			return BsonBoolean.valueOf(buf.get(value) != 0);
+		case DATE_TIME:
+			return new BsonDateTime(buf.getLong(value));
+		case NULL:
+			return BsonNull.VALUE;
+		case INT32:
+			return new BsonInt32(buf.getInt(value));
+		case INT64:
+			return new BsonInt64(buf.getLong(value));
+		case DOCUMENT:
+			byte[] bytes = new byte[buf.getInt(value)];
+			buf.get(value, bytes);
+			return new RawBsonDocument(bytes);
+		default:
+			// Rare types: let the driver decode them
+			return slowExtract(doc);
+		}
+	}
+
+	/**
+	 * @return the field value if it is a string, null otherwise.
+	 */
+	public String extractString(RawBsonDocument doc) {
+		ByteBuf buf = buffer(doc);
+		int offset = seek(buf);
+		if (offset < 0 || buf.get(offset) != BsonType.STRING.getValue())
+			return null;
+		return readString(buf, valueOffset(buf, offset));
+	}
+
+	/**
+	 * @return the field value if it is an ObjectId, null otherwise.
+	 */
+	public ObjectId extractObjectId(RawBsonDocument doc) {
+		ByteBuf buf = buffer(doc);
+		int offset = seek(buf);
+		if (offset < 0 || buf.get(offset) != BsonType.OBJECT_ID.getValue())
+			return null;
+		return readObjectId(buf, valueOffset(buf, offset));
+	}
+
+	/**
+	 * @return the field value if it is a 32 or 64 bit integer, null otherwise.
+	 */
+	public Long extractLong(RawBsonDocument doc) {
+		ByteBuf buf = buffer(doc);
+		int offset = seek(buf);
+		if (offset < 0)
+			return null;
+		byte type = buf.get(offset);
+		if (type == BsonType.INT32.getValue())
+			return Long.valueOf(buf.getInt(valueOffset(buf, offset)));
+		if (type == BsonType.INT64.getValue())
+			return buf.getLong(valueOffset(buf, offset));
+		return null;
+	}
+
+	/**
+	 * @return the field value if it is a date, null otherwise.
+	 */
+	public Long extractDateTime(RawBsonDocument doc) {
+		ByteBuf buf = buffer(doc);
+		int offset = seek(buf);
+		if (offset < 0 || buf.get(offset) != BsonType.DATE_TIME.getValue())
+			return null;
+		return buf.getLong(valueOffset(buf, offset));
+	}
+
+	private static ByteBuf buffer(RawBsonDocument doc) {
+		return doc.getByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return offset of the type byte of the element at path, or -1 if missing.
+	 */
+	private int seek(ByteBuf buf) {
+
+		int documentStart = buf.position();
+		for (int i = 0; i < segments.length; i++) {
+
+			int documentEnd = documentStart + buf.getInt(documentStart) - 1;
+			int offset = documentStart + 4;
+			int found = -1;
+
+			while (offset < documentEnd) {
+				byte type = buf.get(offset);
+				if (type == 0)
+					break;
+				if (nameEquals(buf, offset + 1, segments[i])) {
+					found = offset;
+					break;
+				}
+				offset = skipValue(buf, type, valueOffset(buf, offset));
+			}
+
+			if (found < 0)
+				return -1;
+			if (i == segments.length - 1)
+				return found;
+			if (buf.get(found) != BsonType.DOCUMENT.getValue())
+				return -1;
+			documentStart = valueOffset(buf, found);
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the cstring at offset equals name.
+	 */
+	private static boolean nameEquals(ByteBuf buf, int offset, byte[] name) {
+		for (int j = 0; j < name.length; j++) {
+			if (buf.get(offset + j) != name[j])
+				return false;
+		}
+		return buf.get(offset + name.length) == 0;
+	}
+
+	/**
+	 * @return offset of the value of the element whose type byte is at offset.
+	 */
+	private static int valueOffset(ByteBuf buf, int offset) {
+		int i = offset + 1;
+		while (buf.get(i) != 0)
+			i++;
+		return i + 1;
+	}
+
+	/**
+	 * @return offset of the element after a value of the given type.
+	 */
+	private static int skipValue(ByteBuf buf, byte type, int value) {
+		BsonType bsonType = BsonType.findByValue(type);
+		if (bsonType == null)
+			throw new IllegalStateException("Unsupported BSON type: " + type);
+		switch (bsonType) {
+		case DOUBLE:
+		case DATE_TIME:
+		case TIMESTAMP:
+		case INT64:
+			return value + 8;
+		case STRING:
+		case JAVASCRIPT:
+		case SYMBOL:
+			return value + 4 + buf.getInt(value);
+		case DOCUMENT:
+		case ARRAY:
+		case JAVASCRIPT_WITH_SCOPE:
+			return value + buf.getInt(value);
+		case BINARY:
+			return value + 5 + buf.getInt(value);
+		case OBJECT_ID:
+			return value + 12;
+		case BOOLEAN:
+			return value + 1;
+		case INT32:
+			return value + 4;
+		case REGULAR_EXPRESSION:
+			return skipCString(buf, skipCString(buf, value));
+		case DB_POINTER:
+			return value + 4 + buf.getInt(value) + 12;
+		default:
+			// UNDEFINED, NULL, MIN_KEY, MAX_KEY
+			return value;
+		}
+	}
+
+	private static int skipCString(ByteBuf buf, int offset) {
+		while (buf.get(offset) != 0)
+			offset++;
+		return offset + 1;
+	}
+
+	private static String readString(ByteBuf buf, int value) {
+		int length = buf.getInt(value) - 1;
+		byte[] array = buf.array();
+		if (array != null)
+			return new String(array, buf.asNIO().arrayOffset() + value + 4, length, UTF8);
+		byte[] bytes = new byte[length];
+		buf.get(value + 4, bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static ObjectId readObjectId(ByteBuf buf, int value) {
+		byte[] bytes = new byte[12];
+		buf.get(value, bytes);
+		return new ObjectId(bytes);
+	}
+
+	/**
+	 * Decodes the value through the driver, one path segment at a time.
+	 */
+	private BsonValue slowExtract(RawBsonDocument doc) {
+		BsonValue value = doc;
+		for (byte[] segment : segments) {
+			if (!(value instanceof BsonDocument))
+				return null;
+			value = ((BsonDocument) value).get(new String(segment, UTF8));
+			if (value == null)
+				return null;
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "BsonFieldExtractor [path=" + path + "]";
+	}
+}
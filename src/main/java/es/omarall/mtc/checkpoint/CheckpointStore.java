@@ -0,0 +1,27 @@
+package es.omarall.mtc.checkpoint;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Where the id of the last document a consumer processed is kept, so it can
+ * resume after it. Implementations are to be thread safe: a store can be shared
+ * by many consumers, each one identified by its consumer id.
+ */
+public interface CheckpointStore {
+
+	/**
+	 * @return the last id saved for the consumer, null if none.
+	 */
+	public ObjectId load(String consumerId);
+
+	/**
+	 * Saves the last id processed by the consumer, replacing the previous one.
+	 */
+	public void save(String consumerId, ObjectId id);
+
+	/**
+	 * Forces ids saved to durable storage, for stores batching that work.
+	 * Called once a consumer stops.
+	 */
+	public void flush();
+}
@@ -0,0 +1,29 @@
+package es.omarall.mtc.checkpoint;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Keeps checkpoints in memory only: they are lost with the process. Meant for
+ * tests, or consumers always starting from the oldest document.
+ */
+public class InMemoryCheckpointStore implements CheckpointStore {
+
+	private final ConcurrentMap<String, ObjectId> checkpoints = new ConcurrentHashMap<String, ObjectId>();
+
+	@Override
+	public ObjectId load(String consumerId) {
+		return checkpoints.get(consumerId);
+	}
+
+	@Override
+	public void save(String consumerId, ObjectId id) {
+		checkpoints.put(consumerId, id);
+	}
+
+	@Override
+	public void flush() {
+	}
+}
@@ -0,0 +1,284 @@
+package es.omarall.mtc.checkpoint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.mtc.exceptions.MTCException;
+
+/**
+ * Keeps checkpoints in a local journal file, memory mapped, so a save is a
+ * write to memory and no network round trip is needed to save or to resume.
+ *
+ * The file holds a slot per consumer. Each slot keeps two records, written in
+ * turns, with a sequence number and a checksum: a record torn by a crash fails
+ * its checksum and the other one, the previous checkpoint, is loaded.
+ *
+ * Saved checkpoints survive the process dying right away. They survive the
+ * host dying once forced to disk: with forceInterval 0 on every save,
+ * otherwise by a background thread every forceInterval milliseconds, and on
+ * {@link #flush()} and {@link #close()}.
+ */
+public class JournalCheckpointStore implements CheckpointStore, Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(JournalCheckpointStore.class);
+
+	public static final int DEFAULT_SLOTS = 64;
+	public static final long DEFAULT_FORCE_INTERVAL = 100L;
+
+	/*
+	 * LAYOUT. Header: magic | version | slots. Slot: consumer id length |
+	 * consumer id | record | record. Record: sequence | id | checksum.
+	 */
+	private static final int MAGIC = 0x4D54434A; // MTCJ
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int SLOT_SIZE = 128;
+	private static final int MAX_CONSUMER_ID_LENGTH = 62;
+	private static final int RECORD_OFFSET = 64;
+	private static final int ID_LENGTH = 12;
+	private static final int RECORD_SIZE = 8 + ID_LENGTH + 4;
+
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer buffer;
+	private final int slots;
+	private final long forceInterval;
+
+	/**
+	 * Slot and last sequence number of each consumer in the file.
+	 */
+	private final Map<String, Integer> slotByConsumer = new HashMap<String, Integer>();
+	private final Map<String, Long> sequenceByConsumer = new HashMap<String, Long>();
+	private int usedSlots;
+
+	private final byte[] idBytes = new byte[ID_LENGTH];
+	private final CRC32 crc = new CRC32();
+
+	private volatile boolean dirty;
+	private final ScheduledExecutorService forcer;
+
+	public JournalCheckpointStore(File file) {
+		this(file, DEFAULT_SLOTS, DEFAULT_FORCE_INTERVAL);
+	}
+
+	/**
+	 * Opens the journal file, creating it with room for the given number of
+	 * consumers if it does not exist.
+	 *
+	 * @param forceInterval
+	 *            milliseconds between forcing saves to disk. 0 to force every
+	 *            save.
+	 * @throws MTCException
+	 *             if the file can not be opened or is not a journal.
+	 */
+	public JournalCheckpointStore(File file, int slots, long forceInterval) {
+
+		if (slots <= 0 || forceInterval < 0)
+			throw new IllegalArgumentException("Positive slots and a not negative force interval were expected");
+
+		this.file = file;
+		this.forceInterval = forceInterval;
+		try {
+			boolean exists = file.exists() && file.length() > 0;
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			if (exists) {
+				if (randomAccessFile.length() < HEADER_SIZE)
+					throw new MTCException("Not a checkpoint journal: " + file);
+				slots = (int) ((randomAccessFile.length() - HEADER_SIZE) / SLOT_SIZE);
+			}
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) slots * SLOT_SIZE);
+		} catch (IOException e) {
+			throw new MTCException("Checkpoint journal could not be opened: " + file, e);
+		}
+		this.slots = slots;
+
+		if (buffer.getInt(0) == 0) {
+			buffer.putInt(4, VERSION);
+			buffer.putInt(8, slots);
+			buffer.putInt(0, MAGIC);
+			buffer.force();
+		} else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			close();
+			throw new MTCException("Not a checkpoint journal: " + file);
+		}
+		readSlots();
+		LOG.info("+ MONGOESB - Checkpoint journal {} opened: {} of {} slots used", file, usedSlots, slots);
+
+		if (forceInterval > 0) {
+			forcer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "mtc-journal-force");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			forcer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					if (dirty)
+						flush();
+				}
+			}, forceInterval, forceInterval, TimeUnit.MILLISECONDS);
+		} else {
+			forcer = null;
+		}
+	}
+
+	private void readSlots() {
+
+		for (int slot = 0; slot < slots; slot++) {
+			int offset = slotOffset(slot);
+			int length = buffer.getShort(offset);
+			if (length <= 0)
+				break;
+			byte[] name = new byte[length];
+			for (int i = 0; i < length; i++)
+				name[i] = buffer.get(offset + 2 + i);
+			String consumerId = new String(name, StandardCharsets.UTF_8);
+			slotByConsumer.put(consumerId, slot);
+			sequenceByConsumer.put(consumerId, Math.max(0L,
+					Math.max(readSequence(recordOffset(slot, 0)), readSequence(recordOffset(slot, 1)))));
+			usedSlots++;
+		}
+	}
+
+	@Override
+	public synchronized ObjectId load(String consumerId) {
+
+		Integer slot = slotByConsumer.get(consumerId);
+		if (slot == null)
+			return null;
+
+		int first = recordOffset(slot, 0);
+		int second = recordOffset(slot, 1);
+		int latest = readSequence(first) >= readSequence(second) ? first : second;
+		if (readSequence(latest) <= 0)
+			return null;
+		for (int i = 0; i < ID_LENGTH; i++)
+			idBytes[i] = buffer.get(latest + 8 + i);
+		return new ObjectId(idBytes);
+	}
+
+	/**
+	 * @throws MTCException
+	 *             if there is no free slot for a new consumer.
+	 */
+	@Override
+	public synchronized void save(String consumerId, ObjectId id) {
+
+		Integer slot = slotByConsumer.get(consumerId);
+		if (slot == null)
+			slot = allocate(consumerId);
+
+		long sequence = sequenceByConsumer.get(consumerId) + 1;
+		int offset = recordOffset(slot, (int) (sequence & 1));
+
+		// Invalidate the record before overwriting it
+		buffer.putLong(offset, 0L);
+		byte[] bytes = id.toByteArray();
+		for (int i = 0; i < ID_LENGTH; i++)
+			buffer.put(offset + 8 + i, bytes[i]);
+		buffer.putInt(offset + 8 + ID_LENGTH, checksum(sequence, bytes));
+		buffer.putLong(offset, sequence);
+		sequenceByConsumer.put(consumerId, sequence);
+
+		if (forceInterval == 0)
+			buffer.force();
+		else
+			dirty = true;
+	}
+
+	private int allocate(String consumerId) {
+
+		byte[] name = consumerId.getBytes(StandardCharsets.UTF_8);
+		if (name.length > MAX_CONSUMER_ID_LENGTH)
+			throw new MTCException("Consumer id too long for the checkpoint journal: " + consumerId);
+		if (usedSlots == slots)
+			throw new MTCException("No free slot in checkpoint journal " + file + " for consumer " + consumerId);
+
+		int slot = usedSlots++;
+		int offset = slotOffset(slot);
+		for (int i = 0; i < name.length; i++)
+			buffer.put(offset + 2 + i, name[i]);
+		buffer.putShort(offset, (short) name.length);
+		buffer.force();
+
+		slotByConsumer.put(consumerId, slot);
+		sequenceByConsumer.put(consumerId, 0L);
+		return slot;
+	}
+
+	/**
+	 * @return the record sequence number, -1 if torn.
+	 */
+	private long readSequence(int offset) {
+
+		long sequence = buffer.getLong(offset);
+		if (sequence <= 0)
+			return -1L;
+		byte[] bytes = new byte[ID_LENGTH];
+		for (int i = 0; i < ID_LENGTH; i++)
+			bytes[i] = buffer.get(offset + 8 + i);
+		return buffer.getInt(offset + 8 + ID_LENGTH) == checksum(sequence, bytes) ? sequence : -1L;
+	}
+
+	private int checksum(long sequence, byte[] id) {
+		crc.reset();
+		for (int i = 0; i < 8; i++)
+			crc.update((int) (sequence >>> (8 * i)));
+		crc.update(id, 0, ID_LENGTH);
+		return (int) crc.getValue();
+	}
+
+	private int slotOffset(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+	private int recordOffset(int slot, int record) {
+		return slotOffset(slot) + RECORD_OFFSET + record * RECORD_SIZE;
+	}
+
+	/**
+	 * Forces saved checkpoints to disk. Synchronized as the background force
+	 * thread and close() call it concurrently.
+	 */
+	@Override
+	public synchronized void flush() {
+		dirty = false;
+		buffer.force();
+	}
+
+	/**
+	 * Forces saved checkpoints to disk and closes the file.
+	 */
+	@Override
+	public synchronized void close() {
+
+		if (forcer != null)
+			forcer.shutdown();
+		flush();
+		try {
+			randomAccessFile.close();
+		} catch (IOException e) {
+			LOG.error("Checkpoint journal could not be closed", e);
+		}
+	}
+}
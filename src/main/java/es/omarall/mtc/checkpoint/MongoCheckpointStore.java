@@ -0,0 +1,82 @@
+package es.omarall.mtc.checkpoint;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOptions;
+
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+
+/**
+ * Keeps checkpoints in the tracker collection of a database, one document per
+ * consumer: {_id | consumer-task-id | last-tracked-id}, with a unique index on
+ * {consumer-task-id: 1}.
+ */
+public class MongoCheckpointStore implements CheckpointStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MongoCheckpointStore.class);
+
+	private final MongoCollection<Document> trackerCollection;
+
+	/**
+	 * @param writeConcern
+	 *            for the tracker collection writes. If null, the database one
+	 *            is used.
+	 */
+	public MongoCheckpointStore(MongoDatabase database, WriteConcern writeConcern) {
+
+		MongoCollection<Document> trackerCollection = database
+				.getCollection(MTCPersistentTrackingConfiguration.TRACKER_COLLECTION_NAME);
+		if (writeConcern != null)
+			trackerCollection = trackerCollection.withWriteConcern(writeConcern);
+		this.trackerCollection = trackerCollection;
+
+		// Building an index that already exists is a no-op: a single round
+		// trip, not listing the indexes first
+		trackerCollection.createIndex(new Document(MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD, 1),
+				new IndexOptions().unique(true));
+		LOG.debug("+ MONGOESB - Index ensured: {}", MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD);
+	}
+
+	@Override
+	public ObjectId load(String consumerId) {
+
+		Document lastRecordByConsumer = trackerCollection
+				.find(new Document(MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD, consumerId)).first();
+		if (lastRecordByConsumer == null)
+			return null;
+		return lastRecordByConsumer.getObjectId(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD);
+	}
+
+	/**
+	 * @throws com.mongodb.MongoWriteException
+	 *             if the write failed due some other failure specific to the
+	 *             update command
+	 * @throws com.mongodb.MongoWriteConcernException
+	 *             if the write failed due being unable to fulfil the write
+	 *             concern
+	 * @throws com.mongodb.MongoException
+	 *             if the write failed due some other failure
+	 */
+	@Override
+	public void save(String consumerId, ObjectId id) {
+
+		Document filter = new Document(MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD, consumerId);
+		Document update = new Document("$set",
+				new Document(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD, id));
+		trackerCollection.updateOne(filter, update, new UpdateOptions().upsert(true));
+	}
+
+	/**
+	 * Writes are acknowledged as the write concern says: nothing to force.
+	 */
+	@Override
+	public void flush() {
+	}
+}
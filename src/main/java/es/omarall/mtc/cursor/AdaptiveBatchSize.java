@@ -0,0 +1,69 @@
+package es.omarall.mtc.cursor;
+
+/**
+ * Adapts the getMore batch size of a tailable cursor to how far behind the
+ * consumer is, from the documents observed between empty fetches.
+ * 
+ * A run of documents fetched without the cursor running dry is evidence the
+ * consumer is behind: once a run reaches twice the current batch size, the
+ * batch size doubles, up to a max. A run ending with less than a quarter of
+ * the current batch size means the consumer is at the tail: the batch size
+ * halves, down to a min.
+ * 
+ * Used by the tailing thread only.
+ */
+public class AdaptiveBatchSize {
+
+	private final int minBatchSize;
+	private final int maxBatchSize;
+
+	private int batchSize;
+	private int run;
+	private boolean changed;
+
+	public AdaptiveBatchSize(int minBatchSize, int maxBatchSize, int initialBatchSize) {
+		if (minBatchSize <= 0 || maxBatchSize < minBatchSize)
+			throw new IllegalArgumentException("0 < minBatchSize <= maxBatchSize expected");
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, initialBatchSize));
+	}
+
+	/**
+	 * A document was fetched.
+	 */
+	public void onDocument() {
+		if (++run >= 2 * batchSize && batchSize < maxBatchSize) {
+			batchSize = Math.min(maxBatchSize, batchSize * 2);
+			run = 0;
+			changed = true;
+		}
+	}
+
+	/**
+	 * The cursor ran out of data.
+	 */
+	public void onEmptyFetch() {
+		if (run < batchSize / 4 && batchSize > minBatchSize) {
+			batchSize = Math.max(minBatchSize, batchSize / 2);
+			changed = true;
+		}
+		run = 0;
+	}
+
+	/**
+	 * @return true if the batch size changed since the last call to
+	 *         {@link #getBatchSize()}.
+	 */
+	public boolean isChanged() {
+		return changed;
+	}
+
+	/**
+	 * @return batch size for the next cursor.
+	 */
+	public int getBatchSize() {
+		changed = false;
+		return batchSize;
+	}
+}
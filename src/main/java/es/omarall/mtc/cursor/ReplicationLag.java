@@ -0,0 +1,123 @@
+package es.omarall.mtc.cursor;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Replication lag of the replica set members, from the optimes reported by
+ * replSetGetStatus: how far, in milliseconds, each member is behind the
+ * primary, or behind the most recent member if there is no primary.
+ *
+ * Measures are reused for checkInterval milliseconds. If the command is not
+ * available, not a replica set or not authorized, lag is not checked.
+ *
+ * Used by the tailing thread only.
+ */
+public class ReplicationLag {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReplicationLag.class);
+
+	private static final int PRIMARY = 1;
+	private static final int SECONDARY = 2;
+
+	private final MongoDatabase adminDatabase;
+	private final long maxLag;
+	private final long checkInterval;
+
+	/**
+	 * Lag by member name, host:port as in the replica set configuration. Only
+	 * healthy primary and secondary members.
+	 */
+	private Map<String, Long> lags = Collections.emptyMap();
+	private long checkedAt;
+	private boolean available = true;
+
+	public ReplicationLag(MongoClient mongoClient, long maxLag, long checkInterval) {
+		if (maxLag <= 0 || checkInterval <= 0)
+			throw new IllegalArgumentException("Positive maxLag and checkInterval expected");
+		this.adminDatabase = mongoClient.getDatabase("admin");
+		this.maxLag = maxLag;
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * @return true if the member is further behind than maxLag, or not a
+	 *         healthy primary or secondary. false if lag is not checked.
+	 */
+	public boolean isLagging(ServerAddress member) {
+		long lag = getLag(member);
+		return lag < 0 ? available : lag > maxLag;
+	}
+
+	/**
+	 * @return milliseconds the member is behind, -1 if unknown.
+	 */
+	public long getLag(ServerAddress member) {
+		check();
+		Long lag = member != null ? lags.get(member.toString()) : null;
+		return lag != null ? lag : -1L;
+	}
+
+	private void check() {
+
+		long now = System.currentTimeMillis();
+		if (!available || now - checkedAt < checkInterval)
+			return;
+		checkedAt = now;
+
+		Document status;
+		try {
+			status = adminDatabase.runCommand(new Document("replSetGetStatus", 1));
+		} catch (MongoCommandException e) {
+			LOG.warn("+ MONGOESB - Replication lag can not be measured, it is not checked: {}", e.getErrorMessage());
+			available = false;
+			lags = Collections.emptyMap();
+			return;
+		}
+		lags = lags(status);
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, Long> lags(Document status) {
+
+		List<Document> members = (List<Document>) status.get("members");
+		if (members == null)
+			return Collections.emptyMap();
+
+		long reference = 0L;
+		for (Document member : members) {
+			Date optime = member.getDate("optimeDate");
+			if (optime == null)
+				continue;
+			if (member.getInteger("state", 0) == PRIMARY) {
+				reference = optime.getTime();
+				break;
+			}
+			reference = Math.max(reference, optime.getTime());
+		}
+
+		Map<String, Long> lags = new HashMap<String, Long>();
+		for (Document member : members) {
+			Date optime = member.getDate("optimeDate");
+			int state = member.getInteger("state", 0);
+			Number health = (Number) member.get("health");
+			if (optime == null || (state != PRIMARY && state != SECONDARY)
+					|| (health != null && health.intValue() == 0))
+				continue;
+			lags.put(member.getString("name"), Math.max(0L, reference - optime.getTime()));
+		}
+		return lags;
+	}
+}
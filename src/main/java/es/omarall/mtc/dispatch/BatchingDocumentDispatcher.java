@@ -0,0 +1,81 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups fetched documents and hands them to a batch handler once the batch
+ * reaches its max size, once the first document in it has lingered for the
+ * max linger time, or once the cursor runs out of data.
+ * 
+ * The last completed id only moves after a batch is successfully handled.
+ */
+public class BatchingDocumentDispatcher<T> implements DocumentDispatcher<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BatchingDocumentDispatcher.class);
+
+	private final Consumer<List<T>> batchHandler;
+	private final DocumentAdapter<T> adapter;
+	private final int maxSize;
+	private final long maxLingerNanos;
+
+	private List<T> batch;
+	private long batchStartNanos;
+	private ObjectId lastCompletedId;
+
+	public BatchingDocumentDispatcher(Consumer<List<T>> batchHandler, DocumentAdapter<T> adapter, int maxSize,
+			long maxLingerMillis) {
+		this.batchHandler = batchHandler;
+		this.adapter = adapter;
+		this.maxSize = maxSize;
+		this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+		this.batch = new ArrayList<T>(maxSize);
+	}
+
+	@Override
+	public void dispatch(T doc) {
+
+		if (batch.isEmpty())
+			batchStartNanos = System.nanoTime();
+
+		batch.add(doc);
+
+		if (batch.size() >= maxSize || System.nanoTime() - batchStartNanos >= maxLingerNanos)
+			flush();
+	}
+
+	@Override
+	public void flush() {
+
+		if (batch.isEmpty())
+			return;
+
+		// The handler may keep a reference to the list it gets
+		List<T> docs = batch;
+		batch = new ArrayList<T>(maxSize);
+
+		try {
+			batchHandler.accept(docs);
+			lastCompletedId = adapter.getId(docs.get(docs.size() - 1));
+		} catch (Exception e) {
+			LOG.error("BatchDocumentHandler raised an exception. Batch of {} documents", docs.size(), e);
+			// Notify but keep going
+		}
+	}
+
+	@Override
+	public ObjectId getLastCompletedId() {
+		return lastCompletedId;
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+}
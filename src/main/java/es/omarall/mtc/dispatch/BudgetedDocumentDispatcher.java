@@ -0,0 +1,267 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles one document at a time, as {@link DirectDocumentDispatcher} does,
+ * but gives each document a time budget. The handler runs on a runner thread
+ * while the tailing thread waits for it. A document not handled within its
+ * budget is left to its runner, now a slow lane, and the next documents go to
+ * another runner, so a slow document does not hold the ones behind it.
+ *
+ * At most slowLanes documents are offloaded at once. With every slow lane
+ * busy, the tailing thread waits for one to finish.
+ *
+ * The last completed id never goes past an offloaded document still running.
+ * On close offloaded documents are waited for up to a timeout, those still
+ * running then being fetched again on start. Not thread safe: dispatch, flush
+ * and getLastCompletedId are called by the tailing thread.
+ */
+public class BudgetedDocumentDispatcher<T> implements DocumentDispatcher<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BudgetedDocumentDispatcher.class);
+
+	private final Consumer<T> documentHandler;
+	private final DocumentAdapter<T> adapter;
+	private final long budgetNanos;
+	private final int slowLanes;
+	private final long closeTimeoutNanos;
+	private volatile boolean closed;
+
+	private final BlockingQueue<Runner> idleRunners;
+	private final AtomicInteger runnerCount = new AtomicInteger();
+	private Runner runner;
+	private volatile Thread tailingThread;
+
+	/**
+	 * Offloaded documents, in dispatch order, with the id of the document
+	 * dispatched before each one.
+	 */
+	private final ArrayDeque<Offloaded> offloaded = new ArrayDeque<Offloaded>();
+	private ObjectId lastDispatchedId;
+
+	private final AtomicLong documentsOffloaded = new AtomicLong();
+
+	private static final class Offloaded {
+		private final ObjectId previousId;
+		private volatile boolean done;
+
+		private Offloaded(ObjectId previousId) {
+			this.previousId = previousId;
+		}
+	}
+
+	/**
+	 * Runner thread: handles the document handed over, then tells the tailing
+	 * thread, or, if it was offloaded meanwhile, goes back to the idle ones.
+	 */
+	private final class Runner implements Runnable {
+
+		private final Thread thread;
+		private volatile T doc;
+		private volatile boolean done = true;
+		private volatile Offloaded offloaded;
+		private volatile boolean closed;
+
+		private Runner() {
+			thread = new Thread(this, "mtc-budget-runner-" + runnerCount.getAndIncrement());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void handle(T doc) {
+			this.done = false;
+			this.doc = doc;
+			LockSupport.unpark(thread);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				T doc;
+				while ((doc = this.doc) == null) {
+					if (closed)
+						return;
+					LockSupport.park(this);
+				}
+
+				try {
+					documentHandler.accept(doc);
+				} catch (Exception e) {
+					LOG.error("DocumentHandler raised an exception", e);
+					// Notify but keep going
+				}
+
+				this.doc = null;
+				synchronized (this) {
+					done = true;
+					if (offloaded != null) {
+						// Idle before done, so close() finds it once done
+						Offloaded slow = offloaded;
+						offloaded = null;
+						idleRunners.offer(this);
+						slow.done = true;
+						if (BudgetedDocumentDispatcher.this.closed)
+							return;
+						continue;
+					}
+				}
+				LockSupport.unpark(tailingThread);
+			}
+		}
+
+		/**
+		 * @return false if the document was handled meanwhile.
+		 */
+		private synchronized boolean offload(Offloaded offloaded) {
+			if (done)
+				return false;
+			this.offloaded = offloaded;
+			return true;
+		}
+
+		private void close() {
+			closed = true;
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * @param budget
+	 *            milliseconds a document is waited for before being offloaded.
+	 * @param slowLanes
+	 *            max documents offloaded at once.
+	 * @param closeTimeout
+	 *            milliseconds offloaded documents are waited for on close.
+	 */
+	public BudgetedDocumentDispatcher(Consumer<T> documentHandler, DocumentAdapter<T> adapter, long budget,
+			int slowLanes, long closeTimeout) {
+		if (budget <= 0 || slowLanes <= 0 || closeTimeout <= 0)
+			throw new IllegalArgumentException(
+					"A positive budget, number of slow lanes and close timeout were expected");
+		this.documentHandler = documentHandler;
+		this.adapter = adapter;
+		this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budget);
+		this.slowLanes = slowLanes;
+		this.closeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(closeTimeout);
+		this.idleRunners = new ArrayBlockingQueue<Runner>(slowLanes + 1);
+		this.runner = new Runner();
+	}
+
+	@Override
+	public void dispatch(T doc) {
+
+		tailingThread = Thread.currentThread();
+		ObjectId id = adapter.getId(doc);
+		Runner current = runner;
+		current.handle(doc);
+
+		long deadline = System.nanoTime() + budgetNanos;
+		long remaining;
+		while (!current.done && (remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(this, remaining);
+
+		if (!current.done) {
+			Offloaded slow = new Offloaded(lastDispatchedId);
+			if (current.offload(slow)) {
+				documentsOffloaded.incrementAndGet();
+				LOG.warn("+ MONGOESB - Document {} not handled within {} ms. Offloaded to a slow lane", id,
+						TimeUnit.NANOSECONDS.toMillis(budgetNanos));
+				offloaded.addLast(slow);
+				runner = nextRunner();
+			}
+		}
+		lastDispatchedId = id;
+	}
+
+	/**
+	 * @return an idle runner, a new one if at most slowLanes are offloaded,
+	 *         the one just offloaded included, or the first one to finish its
+	 *         offloaded document.
+	 */
+	private Runner nextRunner() {
+
+		Runner next = idleRunners.poll();
+		if (next != null)
+			return next;
+		if (offloadedRunning() <= slowLanes)
+			return new Runner();
+
+		LOG.warn("+ MONGOESB - Every slow lane is busy. Waiting for one");
+		try {
+			return idleRunners.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for a slow lane", e);
+		}
+	}
+
+	private int offloadedRunning() {
+		int running = 0;
+		for (Offloaded slow : offloaded) {
+			if (!slow.done)
+				running++;
+		}
+		return running;
+	}
+
+	@Override
+	public void flush() {
+		// Nothing pending but offloaded documents, which are not waited for
+	}
+
+	@Override
+	public ObjectId getLastCompletedId() {
+		while (!offloaded.isEmpty() && offloaded.peekFirst().done)
+			offloaded.pollFirst();
+		return offloaded.isEmpty() ? lastDispatchedId : offloaded.peekFirst().previousId;
+	}
+
+	/**
+	 * @return number of documents that ran over their budget.
+	 */
+	public long getDocumentsOffloaded() {
+		return documentsOffloaded.get();
+	}
+
+	/**
+	 * Waits up to the close timeout for the offloaded documents to finish,
+	 * then stops the runners. Runners of offloaded documents still running
+	 * stop once done, the last completed id staying before their documents.
+	 */
+	@Override
+	public void close() {
+
+		long deadline = System.nanoTime() + closeTimeoutNanos;
+		while (true) {
+			getLastCompletedId();
+			if (offloaded.isEmpty())
+				break;
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				LOG.warn("+ MONGOESB - {} offloaded documents still running. Left to be fetched again",
+						offloadedRunning());
+				break;
+			}
+			LOG.info("+ MONGOESB - Waiting for {} offloaded documents", offloaded.size());
+			LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)));
+		}
+
+		closed = true;
+		runner.close();
+		Runner idle;
+		while ((idle = idleRunners.poll()) != null)
+			idle.close();
+	}
+}
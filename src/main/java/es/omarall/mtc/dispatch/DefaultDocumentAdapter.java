@@ -0,0 +1,28 @@
+package es.omarall.mtc.dispatch;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * {@link DocumentAdapter} for documents decoded to {@link Document}.
+ */
+public class DefaultDocumentAdapter implements DocumentAdapter<Document> {
+
+	public static final DefaultDocumentAdapter INSTANCE = new DefaultDocumentAdapter();
+
+	@Override
+	public ObjectId getId(Document doc) {
+		return doc.getObjectId("_id");
+	}
+
+	@Override
+	public Object getValue(Document doc, String field) {
+		Object value = doc;
+		for (String name : field.split("\\.")) {
+			if (!(value instanceof Document))
+				return null;
+			value = ((Document) value).get(name);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,49 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.function.Consumer;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls the document handler on the tailing thread, one document at a time.
+ */
+public class DirectDocumentDispatcher<T> implements DocumentDispatcher<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DirectDocumentDispatcher.class);
+
+	private final Consumer<T> documentHandler;
+	private final DocumentAdapter<T> adapter;
+	private ObjectId lastCompletedId;
+
+	public DirectDocumentDispatcher(Consumer<T> documentHandler, DocumentAdapter<T> adapter) {
+		this.documentHandler = documentHandler;
+		this.adapter = adapter;
+	}
+
+	@Override
+	public void dispatch(T doc) {
+		try {
+			documentHandler.accept(doc);
+			lastCompletedId = adapter.getId(doc);
+		} catch (Exception e) {
+			LOG.error("DocumentHandler raised an exception", e);
+			// Notifiy but keep going
+		}
+	}
+
+	@Override
+	public void flush() {
+		// Nothing pending
+	}
+
+	@Override
+	public ObjectId getLastCompletedId() {
+		return lastCompletedId;
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,24 @@
+package es.omarall.mtc.dispatch;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Reads what dispatchers need from the documents fetched, whatever their
+ * class.
+ * 
+ * @param <T>
+ *            class documents are decoded to.
+ */
+public interface DocumentAdapter<T> {
+
+	/**
+	 * @return the _id of the document.
+	 */
+	public ObjectId getId(T doc);
+
+	/**
+	 * @return the value of a field, or dotted path to a field, of the
+	 *         document. null if missing. Equal values are equal objects.
+	 */
+	public Object getValue(T doc, String field);
+}
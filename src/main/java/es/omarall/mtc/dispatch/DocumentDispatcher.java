@@ -0,0 +1,37 @@
+package es.omarall.mtc.dispatch;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Hands the documents fetched by a tailing task over to the handlers and keeps
+ * track of the last document whose processing is finished, which is the only
+ * one that can be safely persisted as tracking information.
+ * 
+ * @param <T>
+ *            class documents are decoded to.
+ */
+public interface DocumentDispatcher<T> {
+
+	/**
+	 * Hands a fetched document over to the handlers. Documents are dispatched
+	 * in natural order.
+	 */
+	public void dispatch(T doc);
+
+	/**
+	 * The cursor has no data available at the moment: any pending work should
+	 * be pushed to the handlers.
+	 */
+	public void flush();
+
+	/**
+	 * @return the id of the last document known to be processed, so every
+	 *         document before it is processed too. null if none.
+	 */
+	public ObjectId getLastCompletedId();
+
+	/**
+	 * Releases the resources held by this dispatcher. Pending work is flushed.
+	 */
+	public void close();
+}
@@ -0,0 +1,205 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+
+import es.omarall.mtc.wait.WaitStrategy;
+
+/**
+ * Bounded, preallocated ring of documents between a single publisher, the
+ * tailing thread, and one or more handler threads.
+ * 
+ * Every published document gets a sequence. Handlers claim sequences, handle
+ * the document and mark it complete. A slot is only reused once every
+ * sequence before it is complete too, so the id of the last released
+ * document is a safe tracking point no matter the order handlers finish in.
+ * 
+ * The publisher waits while the ring is full, which applies backpressure to
+ * the cursor.
+ * 
+ * Sequences can also be handed to handlers by other means than
+ * {@link #claim()}: {@link #get(long)} and {@link #complete(long, boolean)} work
+ * for any published sequence.
+ * 
+ * @param <T>
+ *            class documents are decoded to.
+ */
+public class DocumentRingBuffer<T> {
+
+	private final int capacity;
+	private final int mask;
+	private final Object[] documents;
+	private final DocumentAdapter<T> adapter;
+	private final boolean[] completed;
+	private final boolean[] failed;
+
+	private final WaitStrategy publisherWaitStrategy;
+	private final WaitStrategy handlerWaitStrategy;
+
+	/** Next sequence to be published. Written by the publisher only. */
+	private volatile long published;
+
+	/** Next sequence to be claimed by a handler. */
+	private final AtomicLong claimed = new AtomicLong();
+
+	/** Every sequence before this one is complete and its slot free. */
+	private volatile long released;
+
+	private volatile ObjectId lastCompletedId;
+	private volatile boolean closed;
+
+	/**
+	 * @param capacity
+	 *            number of slots. A power of two.
+	 */
+	public DocumentRingBuffer(int capacity, DocumentAdapter<T> adapter, WaitStrategy publisherWaitStrategy,
+			WaitStrategy handlerWaitStrategy) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Ring buffer capacity must be a power of two: " + capacity);
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.documents = new Object[capacity];
+		this.adapter = adapter;
+		this.completed = new boolean[capacity];
+		this.failed = new boolean[capacity];
+		this.publisherWaitStrategy = publisherWaitStrategy;
+		this.handlerWaitStrategy = handlerWaitStrategy;
+	}
+
+	/**
+	 * Publishes a document, waiting while the ring is full.
+	 * 
+	 * @return the sequence of the published document or -1 if the ring was
+	 *         closed while waiting.
+	 */
+	public long publish(T doc) {
+
+		long sequence = published;
+		int attempt = 0;
+		while (sequence - released >= capacity) {
+			if (closed)
+				return -1;
+			publisherWaitStrategy.idle(attempt++);
+		}
+
+		documents[(int) sequence & mask] = doc;
+		published = sequence + 1;
+		handlerWaitStrategy.signalAll();
+		return sequence;
+	}
+
+	/**
+	 * Claims the next published sequence, waiting while there is none.
+	 * 
+	 * @return the claimed sequence or -1 if the ring is closed and every
+	 *         published document was claimed.
+	 */
+	public long claim() {
+
+		int attempt = 0;
+		while (true) {
+			long sequence = claimed.get();
+			if (sequence < published) {
+				if (claimed.compareAndSet(sequence, sequence + 1))
+					return sequence;
+				attempt = 0;
+			} else if (closed) {
+				return -1;
+			} else {
+				handlerWaitStrategy.idle(attempt++);
+			}
+		}
+	}
+
+	/**
+	 * Claims the next published sequence, if any, without waiting. For
+	 * handlers waiting on other work too, with the handler wait strategy.
+	 * 
+	 * @return the claimed sequence or -1 if every published document was
+	 *         claimed.
+	 */
+	public long tryClaim() {
+
+		while (true) {
+			long sequence = claimed.get();
+			if (sequence >= published)
+				return -1;
+			if (claimed.compareAndSet(sequence, sequence + 1))
+				return sequence;
+		}
+	}
+
+	/**
+	 * @return the document published with a sequence not released yet.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(long sequence) {
+		return (T) documents[(int) sequence & mask];
+	}
+
+	/**
+	 * Marks a published sequence as complete and releases every slot the
+	 * completion makes contiguous.
+	 * 
+	 * @param success
+	 *            false if the document could not be handled. The last
+	 *            completed id does not move to a failed document.
+	 */
+	public synchronized void complete(long sequence, boolean success) {
+
+		int slot = (int) sequence & mask;
+		completed[slot] = true;
+		failed[slot] = !success;
+
+		long next = released;
+		ObjectId lastId = null;
+		while (next < published && completed[slot = (int) next & mask]) {
+			if (!failed[slot])
+				lastId = adapter.getId(get(next));
+			documents[slot] = null;
+			completed[slot] = false;
+			next++;
+		}
+
+		if (next != released) {
+			if (lastId != null)
+				lastCompletedId = lastId;
+			released = next;
+			publisherWaitStrategy.signalAll();
+		}
+	}
+
+	/**
+	 * @return id of the last document released, so every document before it
+	 *         is complete. null if none.
+	 */
+	public ObjectId getLastCompletedId() {
+		return lastCompletedId;
+	}
+
+	/**
+	 * @return number of published documents not released yet.
+	 */
+	public int size() {
+		return (int) (published - released);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * No more documents will be published. Handlers keep claiming till the
+	 * ring is empty.
+	 */
+	public void close() {
+		closed = true;
+		publisherWaitStrategy.signalAll();
+		handlerWaitStrategy.signalAll();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+}
@@ -0,0 +1,157 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.mtc.wait.WaitStrategyType;
+
+/**
+ * Spreads documents over N lanes by the hash of a partition key field. Each
+ * lane is a thread handling its documents in order, so documents sharing a key
+ * are handled in order while documents with different keys are handled in
+ * parallel. Documents missing the key go to the first lane.
+ * 
+ * Every dispatched document is published to a {@link DocumentRingBuffer} that
+ * bounds the documents in flight and whose last completed id is the low
+ * watermark every lane has completed.
+ */
+public class PartitionedDocumentDispatcher<T> implements DocumentDispatcher<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PartitionedDocumentDispatcher.class);
+
+	private static final long POLL_TIMEOUT_MILLIS = 10L;
+
+	private final Consumer<T> documentHandler;
+	private final DocumentAdapter<T> adapter;
+	private final String partitionKey;
+	private final DocumentRingBuffer<T> ringBuffer;
+	private final BlockingQueue<Long>[] laneQueues;
+	private final Thread[] laneThreads;
+	private volatile boolean closed;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public PartitionedDocumentDispatcher(Consumer<T> documentHandler, DocumentAdapter<T> adapter,
+			String partitionKey, int lanes, int ringBufferSize, WaitStrategyType waitStrategyType) {
+
+		this.documentHandler = documentHandler;
+		this.adapter = adapter;
+		this.partitionKey = partitionKey;
+		this.ringBuffer = new DocumentRingBuffer<T>(ringBufferSize, adapter, waitStrategyType.newWaitStrategy(),
+				waitStrategyType.newWaitStrategy());
+		this.laneQueues = new BlockingQueue[lanes];
+		this.laneThreads = new Thread[lanes];
+
+		for (int i = 0; i < lanes; i++) {
+			// The ring bounds the documents in flight, so a lane never holds
+			// more than ringBufferSize sequences
+			final BlockingQueue<Long> queue = new ArrayBlockingQueue<Long>(ringBufferSize);
+			laneQueues[i] = queue;
+			laneThreads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					handle(queue);
+				}
+			}, "mtc-lane-" + i);
+			laneThreads[i].setDaemon(true);
+			laneThreads[i].start();
+		}
+	}
+
+	/**
+	 * Lane thread loop: handle the sequences in the lane queue in order, until
+	 * closed and empty.
+	 */
+	private void handle(BlockingQueue<Long> queue) {
+
+		while (true) {
+			Long sequence;
+			try {
+				sequence = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			if (sequence == null) {
+				if (closed)
+					return;
+				continue;
+			}
+
+			boolean success = false;
+			try {
+				documentHandler.accept(ringBuffer.get(sequence));
+				success = true;
+			} catch (Exception e) {
+				LOG.error("DocumentHandler raised an exception", e);
+				// Notify but keep going
+			} finally {
+				ringBuffer.complete(sequence, success);
+			}
+		}
+	}
+
+	/**
+	 * @return lane for a document, from the hash of its partition key value.
+	 */
+	int laneOf(T doc) {
+		Object key = adapter.getValue(doc, partitionKey);
+		if (key == null)
+			return 0;
+		int h = key.hashCode();
+		// spread high bits, as HashMap does
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % laneQueues.length;
+	}
+
+	@Override
+	public void dispatch(T doc) {
+
+		long sequence = ringBuffer.publish(doc);
+		if (sequence < 0) {
+			LOG.warn("Ring buffer closed. Document not dispatched");
+			return;
+		}
+		// Never blocks: the ring bounds the documents in flight
+		laneQueues[laneOf(doc)].offer(sequence);
+	}
+
+	@Override
+	public void flush() {
+		// Lanes consume continuously
+	}
+
+	@Override
+	public ObjectId getLastCompletedId() {
+		return ringBuffer.getLastCompletedId();
+	}
+
+	/**
+	 * Waits for every lane to drain.
+	 */
+	@Override
+	public void close() {
+
+		closed = true;
+		ringBuffer.close();
+		for (Thread thread : laneThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				LOG.error("Thread was interrupted", e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public DocumentRingBuffer<T> getRingBuffer() {
+		return ringBuffer;
+	}
+}
@@ -0,0 +1,106 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.mtc.wait.WaitStrategyType;
+
+/**
+ * Decouples fetching from handling: the tailing thread publishes documents to a
+ * {@link DocumentRingBuffer} and keeps on fetching, while one or more handler
+ * threads consume from it. With more than one handler thread documents are
+ * handled concurrently, so their order is not kept.
+ */
+public class PipelinedDocumentDispatcher<T> implements DocumentDispatcher<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PipelinedDocumentDispatcher.class);
+
+	private final Consumer<T> documentHandler;
+	private final DocumentRingBuffer<T> ringBuffer;
+	private final List<Thread> handlerThreads;
+
+	public PipelinedDocumentDispatcher(Consumer<T> documentHandler, DocumentAdapter<T> adapter, int ringBufferSize,
+			int handlerThreads, WaitStrategyType waitStrategyType) {
+
+		this.documentHandler = documentHandler;
+		this.ringBuffer = new DocumentRingBuffer<T>(ringBufferSize, adapter, waitStrategyType.newWaitStrategy(),
+				waitStrategyType.newWaitStrategy());
+		this.handlerThreads = new ArrayList<Thread>(handlerThreads);
+
+		for (int i = 0; i < handlerThreads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					handle();
+				}
+			}, "mtc-handler-" + i);
+			thread.setDaemon(true);
+			this.handlerThreads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Handler thread loop: claim, handle, complete. Until the ring is closed
+	 * and empty.
+	 */
+	private void handle() {
+
+		long sequence;
+		while ((sequence = ringBuffer.claim()) >= 0) {
+			boolean success = false;
+			try {
+				documentHandler.accept(ringBuffer.get(sequence));
+				success = true;
+			} catch (Exception e) {
+				LOG.error("DocumentHandler raised an exception", e);
+				// Notify but keep going
+			} finally {
+				ringBuffer.complete(sequence, success);
+			}
+		}
+	}
+
+	@Override
+	public void dispatch(T doc) {
+		if (ringBuffer.publish(doc) < 0)
+			LOG.warn("Ring buffer closed. Document not dispatched");
+	}
+
+	@Override
+	public void flush() {
+		// Handler threads consume continuously
+	}
+
+	@Override
+	public ObjectId getLastCompletedId() {
+		return ringBuffer.getLastCompletedId();
+	}
+
+	/**
+	 * Waits for the handler threads to drain the ring.
+	 */
+	@Override
+	public void close() {
+
+		ringBuffer.close();
+		for (Thread thread : handlerThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				LOG.error("Thread was interrupted", e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public DocumentRingBuffer<T> getRingBuffer() {
+		return ringBuffer;
+	}
+}
@@ -0,0 +1,37 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+
+import es.omarall.mtc.bson.BsonFieldExtractor;
+
+/**
+ * {@link DocumentAdapter} for not decoded documents. Fields are read from the
+ * bytes with {@link BsonFieldExtractor}s compiled once per field.
+ */
+public class RawDocumentAdapter implements DocumentAdapter<RawBsonDocument> {
+
+	public static final RawDocumentAdapter INSTANCE = new RawDocumentAdapter();
+
+	private static final BsonFieldExtractor ID = BsonFieldExtractor.compile("_id");
+
+	private final ConcurrentMap<String, BsonFieldExtractor> extractors = new ConcurrentHashMap<String, BsonFieldExtractor>();
+
+	@Override
+	public ObjectId getId(RawBsonDocument doc) {
+		return ID.extractObjectId(doc);
+	}
+
+	@Override
+	public Object getValue(RawBsonDocument doc, String field) {
+		BsonFieldExtractor extractor = extractors.get(field);
+		if (extractor == null) {
+			extractor = BsonFieldExtractor.compile(field);
+			extractors.putIfAbsent(field, extractor);
+		}
+		return extractor.extract(doc);
+	}
+}
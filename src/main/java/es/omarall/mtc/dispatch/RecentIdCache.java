@@ -0,0 +1,259 @@
+package es.omarall.mtc.dispatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.mtc.exceptions.MTCException;
+
+/**
+ * Bounded set of the ids of the last handled documents, to drop documents
+ * redelivered after a restart before they reach the handler.
+ *
+ * Ids are packed into a long and an int, the 12 ObjectId bytes, kept in a ring
+ * of capacity entries: once full, adding an id evicts the oldest one. An open
+ * addressing table of ring positions finds them. Nothing is allocated once
+ * built.
+ *
+ * Optionally the ring is a memory mapped file, so the ids survive the process
+ * and are loaded back when the cache is built again on the same file.
+ */
+public class RecentIdCache implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RecentIdCache.class);
+
+	/*
+	 * FILE LAYOUT. Header: magic | capacity | ids added. Entry: high | low.
+	 */
+	private static final int MAGIC = 0x4D544344; // MTCD
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 12;
+	private static final int EMPTY = -1;
+
+	private final int capacity;
+	private final long[] highs;
+	private final int[] lows;
+
+	/**
+	 * Ids added to the ring, and the first one still in it.
+	 */
+	private long added;
+	private long first;
+
+	/**
+	 * Ring positions, EMPTY if free.
+	 */
+	private final int[] table;
+	private final int mask;
+
+	private final RandomAccessFile randomAccessFile;
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * Cache kept in memory only.
+	 */
+	public RecentIdCache(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * @param file
+	 *            where the ring is kept, null to keep it in memory only. If it
+	 *            exists, the ids in it are loaded. One file per consumer.
+	 * @throws MTCException
+	 *             if the file can not be opened or was built with another
+	 *             capacity.
+	 */
+	public RecentIdCache(int capacity, File file) {
+
+		if (capacity <= 0)
+			throw new IllegalArgumentException("A positive capacity was expected");
+
+		this.capacity = capacity;
+		this.highs = new long[capacity];
+		this.lows = new int[capacity];
+		this.table = new int[Integer.highestOneBit(capacity) << 2];
+		this.mask = table.length - 1;
+		Arrays.fill(table, EMPTY);
+
+		if (file == null) {
+			randomAccessFile = null;
+			buffer = null;
+			return;
+		}
+
+		try {
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+		} catch (IOException e) {
+			throw new MTCException("Recent id cache file could not be opened: " + file, e);
+		}
+
+		if (buffer.getInt(0) == 0) {
+			buffer.putInt(4, capacity);
+			buffer.putInt(0, MAGIC);
+		} else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != capacity) {
+			close();
+			throw new MTCException("Recent id cache file " + file + " was not built with capacity " + capacity);
+		} else {
+			load();
+			LOG.info("+ MONGOESB - {} recent ids loaded from {}", size(), file);
+		}
+	}
+
+	private void load() {
+
+		long stored = buffer.getLong(8);
+		added = first = Math.max(0L, stored - capacity);
+		for (long i = added; i < stored; i++) {
+			int position = (int) (i % capacity);
+			int offset = HEADER_SIZE + position * ENTRY_SIZE;
+			put(buffer.getLong(offset), buffer.getInt(offset + 8));
+		}
+	}
+
+	/**
+	 * @return true if the id is one of the last capacity ids added.
+	 */
+	public synchronized boolean contains(ObjectId id) {
+		return find(high(id), low(id)) != EMPTY;
+	}
+
+	/**
+	 * Adds the id, evicting the oldest one if full.
+	 *
+	 * @return false if it was already in.
+	 */
+	public synchronized boolean add(ObjectId id) {
+
+		long high = high(id);
+		int low = low(id);
+		if (find(high, low) != EMPTY)
+			return false;
+
+		int position = put(high, low);
+		if (buffer != null) {
+			// Entry first: a torn entry is not counted as added
+			int offset = HEADER_SIZE + position * ENTRY_SIZE;
+			buffer.putLong(offset, high);
+			buffer.putInt(offset + 8, low);
+			buffer.putLong(8, added);
+		}
+		return true;
+	}
+
+	private int put(long high, int low) {
+
+		int position = (int) (added % capacity);
+		if (added - first == capacity) {
+			remove(position);
+			first++;
+		}
+		added++;
+
+		highs[position] = high;
+		lows[position] = low;
+		int slot = hash(high, low);
+		while (table[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		table[slot] = position;
+		return position;
+	}
+
+	/**
+	 * @return the table slot of the id, EMPTY if not in.
+	 */
+	private int find(long high, int low) {
+
+		int slot = hash(high, low);
+		int position;
+		while ((position = table[slot]) != EMPTY) {
+			if (highs[position] == high && lows[position] == low)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * Removes the id at a ring position, shifting back the entries of the
+	 * probe sequence so no tombstones are needed.
+	 */
+	private void remove(int position) {
+
+		int slot = find(highs[position], lows[position]);
+		if (slot == EMPTY)
+			return;
+
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			int nextPosition = table[next];
+			if (nextPosition == EMPTY)
+				break;
+			int home = hash(highs[nextPosition], lows[nextPosition]);
+			// Move it back if its home is not between the hole and it
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				table[slot] = nextPosition;
+				slot = next;
+			}
+		}
+		table[slot] = EMPTY;
+	}
+
+	private int hash(long high, int low) {
+		long h = high * 0x9E3779B97F4A7C15L ^ low * 0xC2B2AE3D27D4EB4FL;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Timestamp, machine identifier and the high process identifier byte.
+	 */
+	private static long high(ObjectId id) {
+		return ((long) id.getTimestamp() << 32) | ((id.getMachineIdentifier() & 0xFFFFFFL) << 8)
+				| ((id.getProcessIdentifier() >> 8) & 0xFF);
+	}
+
+	/**
+	 * The low process identifier byte and the counter.
+	 */
+	private static int low(ObjectId id) {
+		return ((id.getProcessIdentifier() & 0xFF) << 24) | (id.getCounter() & 0xFFFFFF);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of ids in the cache.
+	 */
+	public synchronized int size() {
+		return (int) (added - first);
+	}
+
+	/**
+	 * Closes the file, if any. Ids written to it are kept by the operating
+	 * system even if the process dies.
+	 */
+	@Override
+	public synchronized void close() {
+		if (randomAccessFile != null) {
+			buffer.force();
+			try {
+				randomAccessFile.close();
+			} catch (IOException e) {
+				LOG.error("Recent id cache file could not be closed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package es.omarall.mtc.dispatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.mtc.bson.BsonFieldExtractor;
+import es.omarall.mtc.exceptions.MTCExecutionException;
+import es.omarall.mtc.wait.WaitStrategy;
+import es.omarall.mtc.wait.WaitStrategyType;
+
+/**
+ * Routes documents to handlers by the value of a discriminator field, read
+ * straight from the BSON bytes. Each route has its own threads and
+ * {@link DocumentRingBuffer}, so documents of a slow route do not wait behind,
+ * nor hold the slots of, documents of the others. A route with one thread
+ * handles its documents in order.
+ *
+ * Route values are strings, looked up in a table built once. Documents whose
+ * discriminator is missing, not a string or without a route go to the default
+ * route, or are skipped if there is none.
+ *
+ * Each ring bounds the documents in flight of its route, the tailing thread
+ * waiting while the ring of the route of a document is full. The last
+ * completed id is the minimum across the routes with documents in flight, or
+ * the last document dispatched if none has.
+ *
+ * Documents being retried are handled by the threads of their route too, see
+ * {@link #retry(RawBsonDocument)}, so a route never runs on more threads than
+ * it has.
+ */
+public class RoutedDocumentDispatcher implements DocumentDispatcher<RawBsonDocument> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RoutedDocumentDispatcher.class);
+
+	private static final long RETRY_POLL_MILLIS = 100L;
+
+	/**
+	 * A handler and the number of threads running it.
+	 */
+	public static final class Route {
+
+		private final Consumer<RawBsonDocument> handler;
+		private final int threads;
+
+		public Route(Consumer<RawBsonDocument> handler, int threads) {
+			if (handler == null || threads <= 0)
+				throw new IllegalArgumentException("A handler and a positive number of threads were expected");
+			this.handler = handler;
+			this.threads = threads;
+		}
+
+		public Consumer<RawBsonDocument> getHandler() {
+			return handler;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+	}
+
+	/**
+	 * The ring of a route, and the id of the document dispatched, to any
+	 * route, right before the first one still in the ring: every document of
+	 * the route up to it is complete. Retries are queued apart, the route
+	 * threads waiting on both with the handler wait strategy.
+	 */
+	private static final class RouteRing {
+
+		private final DocumentRingBuffer<RawBsonDocument> ringBuffer;
+		private final WaitStrategy handlerWaitStrategy;
+		private final Consumer<RawBsonDocument> handler;
+		private final Queue<FutureTask<Void>> retries = new ConcurrentLinkedQueue<FutureTask<Void>>();
+		private volatile ObjectId floorId;
+
+		private RouteRing(DocumentRingBuffer<RawBsonDocument> ringBuffer, WaitStrategy handlerWaitStrategy,
+				Consumer<RawBsonDocument> handler) {
+			this.ringBuffer = ringBuffer;
+			this.handlerWaitStrategy = handlerWaitStrategy;
+			this.handler = handler;
+		}
+
+		/**
+		 * @return id every document of the route up to is complete, null if
+		 *         none. The route holds back no document if its ring is empty.
+		 */
+		private ObjectId getLastCompletedId() {
+			ObjectId floorId = this.floorId;
+			ObjectId lastCompletedId = ringBuffer.getLastCompletedId();
+			if (floorId == null)
+				return lastCompletedId;
+			if (lastCompletedId == null || lastCompletedId.compareTo(floorId) < 0)
+				return floorId;
+			return lastCompletedId;
+		}
+	}
+
+	private final BsonFieldExtractor routeKey;
+
+	/**
+	 * Ring of each route, by discriminator value.
+	 */
+	private final Map<String, RouteRing> rings = new HashMap<String, RouteRing>();
+	private final RouteRing defaultRing;
+	private final List<RouteRing> allRings = new ArrayList<RouteRing>();
+	private final List<Thread> routeThreads = new ArrayList<Thread>();
+	private volatile boolean closed;
+
+	/**
+	 * Id of the last document dispatched, routed or not. Written by the
+	 * tailing thread only.
+	 */
+	private volatile ObjectId lastDispatchedId;
+
+	private final AtomicLong documentsUnrouted = new AtomicLong();
+
+	/**
+	 * @param routes
+	 *            route by discriminator value.
+	 * @param defaultRoute
+	 *            route for the documents matching none. null to skip them.
+	 * @param ringBufferSize
+	 *            slots of the ring of each route.
+	 */
+	public RoutedDocumentDispatcher(String routeKey, Map<String, Route> routes, Route defaultRoute,
+			int ringBufferSize, WaitStrategyType waitStrategyType) {
+
+		this.routeKey = BsonFieldExtractor.compile(routeKey);
+		for (Map.Entry<String, Route> entry : routes.entrySet())
+			rings.put(entry.getKey(), start(entry.getKey(), entry.getValue(), ringBufferSize, waitStrategyType));
+		this.defaultRing = defaultRoute == null ? null
+				: start("default", defaultRoute, ringBufferSize, waitStrategyType);
+	}
+
+	private RouteRing start(String name, Route route, int ringBufferSize, WaitStrategyType waitStrategyType) {
+
+		WaitStrategy handlerWaitStrategy = waitStrategyType.newWaitStrategy();
+		DocumentRingBuffer<RawBsonDocument> ringBuffer = new DocumentRingBuffer<RawBsonDocument>(ringBufferSize,
+				RawDocumentAdapter.INSTANCE, waitStrategyType.newWaitStrategy(), handlerWaitStrategy);
+		final RouteRing ring = new RouteRing(ringBuffer, handlerWaitStrategy, route.handler);
+		for (int i = 0; i < route.threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					handle(ring);
+				}
+			}, "mtc-route-" + name + "-" + i);
+			thread.setDaemon(true);
+			routeThreads.add(thread);
+			thread.start();
+		}
+		allRings.add(ring);
+		return ring;
+	}
+
+	/**
+	 * Route thread loop: run a retry, or claim, handle, complete. Until the
+	 * route ring is closed and empty.
+	 */
+	private void handle(RouteRing ring) {
+
+		DocumentRingBuffer<RawBsonDocument> ringBuffer = ring.ringBuffer;
+		int attempt = 0;
+		while (true) {
+
+			// Closed first: nothing is published once seen closed
+			boolean ringClosed = ringBuffer.isClosed();
+
+			FutureTask<Void> retry = ring.retries.poll();
+			if (retry != null) {
+				retry.run();
+				attempt = 0;
+				continue;
+			}
+
+			long sequence = ringBuffer.tryClaim();
+			if (sequence < 0) {
+				if (ringClosed)
+					return;
+				ring.handlerWaitStrategy.idle(attempt++);
+				continue;
+			}
+
+			attempt = 0;
+			boolean success = false;
+			try {
+				ring.handler.accept(ringBuffer.get(sequence));
+				success = true;
+			} catch (Exception e) {
+				LOG.error("DocumentHandler raised an exception", e);
+				// Notify but keep going
+			} finally {
+				ringBuffer.complete(sequence, success);
+			}
+		}
+	}
+
+	/**
+	 * @return ring of the route of the document, null if it matches none and
+	 *         there is no default route.
+	 */
+	private RouteRing route(RawBsonDocument doc) {
+		String value = routeKey.extractString(doc);
+		RouteRing ring = value == null ? null : rings.get(value);
+		return ring == null ? defaultRing : ring;
+	}
+
+	@Override
+	public void dispatch(RawBsonDocument doc) {
+
+		RouteRing ring = route(doc);
+		if (ring == null) {
+			documentsUnrouted.incrementAndGet();
+			LOG.debug("No route for document {}. Skipped", RawDocumentAdapter.INSTANCE.getId(doc));
+		} else {
+			// Every document of the route before this one is complete
+			if (ring.ringBuffer.size() == 0)
+				ring.floorId = lastDispatchedId;
+			if (ring.ringBuffer.publish(doc) < 0) {
+				LOG.warn("Ring buffer closed. Document not dispatched");
+				return;
+			}
+		}
+		lastDispatchedId = RawDocumentAdapter.INSTANCE.getId(doc);
+	}
+
+	/**
+	 * Handles a document being retried on a thread of its route, and waits
+	 * for it. Documents matching no route are skipped, as when dispatched.
+	 * Once the dispatcher is closed, and the route threads gone, a retry not
+	 * started is handled on the calling thread.
+	 * 
+	 * @throws RuntimeException
+	 *             thrown by the handler.
+	 */
+	public void retry(final RawBsonDocument doc) {
+
+		final RouteRing ring = route(doc);
+		if (ring == null)
+			return;
+
+		FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+				ring.handler.accept(doc);
+			}
+		}, null);
+		ring.retries.offer(task);
+		ring.handlerWaitStrategy.signalAll();
+
+		while (true) {
+			try {
+				task.get(RETRY_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				return;
+			} catch (TimeoutException e) {
+				// Route threads may be gone: a retry not started is run here
+				if (closed && task.cancel(false)) {
+					ring.handler.accept(doc);
+					return;
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new MTCExecutionException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				task.cancel(false);
+				throw new MTCExecutionException("Interrupted waiting for a retry", e);
+			}
+		}
+	}
+
+	@Override
+	public void flush() {
+		// Routes consume continuously
+	}
+
+	/**
+	 * The last document dispatched is read before the rings: documents
+	 * dispatched meanwhile are after it.
+	 */
+	@Override
+	public ObjectId getLastCompletedId() {
+
+		ObjectId lastCompletedId = lastDispatchedId;
+		for (RouteRing ring : allRings) {
+			if (ring.ringBuffer.size() == 0)
+				continue;
+			ObjectId routeCompletedId = ring.getLastCompletedId();
+			if (routeCompletedId == null)
+				return null;
+			if (lastCompletedId == null || routeCompletedId.compareTo(lastCompletedId) < 0)
+				lastCompletedId = routeCompletedId;
+		}
+		return lastCompletedId;
+	}
+
+	/**
+	 * @return number of documents skipped for matching no route.
+	 */
+	public long getDocumentsUnrouted() {
+		return documentsUnrouted.get();
+	}
+
+	/**
+	 * @return ring of the route, null if there is no such route.
+	 */
+	public DocumentRingBuffer<RawBsonDocument> getRingBuffer(String route) {
+		RouteRing ring = rings.get(route);
+		return ring == null ? null : ring.ringBuffer;
+	}
+
+	/**
+	 * @return ring of the default route, null if there is none.
+	 */
+	public DocumentRingBuffer<RawBsonDocument> getDefaultRingBuffer() {
+		return defaultRing == null ? null : defaultRing.ringBuffer;
+	}
+
+	/**
+	 * Waits for every route to drain.
+	 */
+	@Override
+	public void close() {
+
+		closed = true;
+		for (RouteRing ring : allRings)
+			ring.ringBuffer.close();
+		for (Thread thread : routeThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				LOG.error("Thread was interrupted", e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
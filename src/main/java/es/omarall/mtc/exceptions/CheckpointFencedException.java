@@ -0,0 +1,29 @@
+package es.omarall.mtc.exceptions;
+
+/**
+ * Signs a checkpoint write was refused because the lease it was made under
+ * was taken by another member since, so the writer is not to consume any
+ * more.
+ */
+public class CheckpointFencedException extends MTCExecutionException {
+
+	public CheckpointFencedException() {
+	}
+
+	public CheckpointFencedException(String message, Throwable cause,
+			boolean enableSuppression, boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+	public CheckpointFencedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public CheckpointFencedException(String message) {
+		super(message);
+	}
+
+	public CheckpointFencedException(Throwable cause) {
+		super(cause);
+	}
+}
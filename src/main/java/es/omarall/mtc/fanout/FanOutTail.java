@@ -0,0 +1,207 @@
+package es.omarall.mtc.fanout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.PersistentTrackingManager;
+import es.omarall.mtc.RawDocumentHandler;
+import es.omarall.mtc.Service;
+import es.omarall.mtc.ServiceStatus;
+import es.omarall.mtc.TailingTask;
+import es.omarall.mtc.exceptions.DocumentHandlerRequiredException;
+import es.omarall.mtc.exceptions.MTCExecutionException;
+
+/**
+ * One tail of a collection shared by many subscribers in the JVM: a single
+ * cursor, documents read once, as immutable {@link RawBsonDocument}s, and the
+ * same instance handed to every subscriber.
+ *
+ * Each subscriber has a bounded queue, drained by a thread of its own, an
+ * {@link OverflowPolicy} for when it is full, and, if the configuration has
+ * persistent tracking, a checkpoint under its own consumer id. The consumer id
+ * of the configuration is not used. The tail starts after the oldest
+ * checkpoint, each subscriber skipping the documents up to its own.
+ *
+ * Only subscribers with the BLOCK policy can hold the tail, and the others,
+ * back. With the drop policies a slow subscriber loses documents instead.
+ */
+public class FanOutTail implements Service {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FanOutTail.class);
+
+	private final MTCConfiguration configuration;
+	private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+	private final List<Thread> subscriberThreads = new ArrayList<Thread>();
+
+	private TailingTask task;
+	private Thread thread;
+	private volatile ServiceStatus status = ServiceStatus.STOPPED;
+
+	public FanOutTail(MTCConfiguration configuration) {
+		configuration.isValid();
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Adds a subscriber. To be called before the tail is started.
+	 *
+	 * @param consumerId
+	 *            the subscriber checkpoint is kept under. Unique per
+	 *            subscriber.
+	 * @param queueCapacity
+	 *            documents queued for the subscriber at most.
+	 */
+	public synchronized Subscriber subscribe(String consumerId, RawDocumentHandler handler, int queueCapacity,
+			OverflowPolicy overflowPolicy) {
+
+		if (status.equals(ServiceStatus.STARTED))
+			throw new MTCExecutionException("Subscribers are to be added before the fan out tail is started");
+		if (consumerId == null || consumerId.isEmpty() || handler == null || queueCapacity <= 0
+				|| overflowPolicy == null)
+			throw new IllegalArgumentException(
+					"A consumer id, a handler, a positive queue capacity and an overflow policy expected");
+		for (Subscriber subscriber : subscribers) {
+			if (subscriber.getConsumerId().equals(consumerId))
+				throw new IllegalArgumentException("Subscriber " + consumerId + " already added");
+		}
+
+		Subscriber subscriber = new Subscriber(consumerId, handler, queueCapacity, overflowPolicy);
+		subscribers.add(subscriber);
+		return subscriber;
+	}
+
+	/**
+	 * Loads the subscriber checkpoints, starts their threads, then the tail
+	 * after the oldest checkpoint.
+	 */
+	@Override
+	public synchronized void start() {
+
+		if (status.equals(ServiceStatus.STARTED))
+			return;
+		if (subscribers.isEmpty())
+			throw new DocumentHandlerRequiredException("At least a subscriber is REQUIRED in order to consume documents");
+
+		MTCConfiguration tailConfiguration = configuration.copy();
+		tailConfiguration.setPersistentTrackingConfiguration(null);
+		TailingTask task = new TailingTask(tailConfiguration);
+		task.setRawDocumentHandler(new RawDocumentHandler() {
+			@Override
+			public void handleDocument(RawBsonDocument doc) {
+				publish(doc);
+			}
+		});
+
+		ObjectId resumeId = null;
+		boolean fromOldest = false;
+		for (Subscriber subscriber : subscribers) {
+			ObjectId lastTrackedId = subscriber.start(subscriberTracker(subscriber.getConsumerId()));
+			if (lastTrackedId == null)
+				fromOldest = true;
+			else if (resumeId == null || lastTrackedId.compareTo(resumeId) < 0)
+				resumeId = lastTrackedId;
+
+			Thread subscriberThread = new Thread(subscriber, "mtc-subscriber-" + subscriber.getConsumerId());
+			subscriberThread.setDaemon(true);
+			subscriberThreads.add(subscriberThread);
+			subscriberThread.start();
+		}
+
+		task.start();
+		this.task = task;
+		if (!fromOldest)
+			task.resumeAfter(resumeId);
+
+		thread = new Thread(task, "mtc-fanout-" + configuration.getCollection());
+		thread.setDaemon(true);
+		status = ServiceStatus.STARTED;
+		thread.start();
+		LOG.info("+ MONGOESB - Fan out tail of {} started with {} subscribers", configuration.getCollection(),
+				subscribers.size());
+	}
+
+	private void publish(RawBsonDocument document) {
+		try {
+			for (Subscriber subscriber : subscribers)
+				subscriber.publish(document);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MTCExecutionException("Fan out tail interrupted waiting for a subscriber");
+		}
+	}
+
+	/**
+	 * Stops the tail, subscribers draining meanwhile so BLOCK ones do not hold
+	 * it, then the subscribers, forcing their final checkpoint writes. Returns
+	 * within the stopTimeout of the configuration. Documents still queued are
+	 * not handled, and are fetched again on start.
+	 */
+	@Override
+	public synchronized void stop() {
+
+		if (!status.equals(ServiceStatus.STARTED))
+			return;
+		status = ServiceStatus.STOPPED;
+
+		long deadline = System.currentTimeMillis() + configuration.getStopTimeout();
+		task.stop(configuration.getStopTimeout(), TimeUnit.MILLISECONDS);
+
+		for (Subscriber subscriber : subscribers)
+			subscriber.stop();
+		for (Thread subscriberThread : subscriberThreads)
+			join(subscriberThread, deadline);
+		for (Subscriber subscriber : subscribers)
+			subscriber.close();
+		subscriberThreads.clear();
+	}
+
+	private void join(Thread thread, long deadline) {
+		try {
+			thread.join(Math.max(1L, deadline - System.currentTimeMillis()));
+		} catch (InterruptedException e) {
+			LOG.error("Thread was interrupted", e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return tracker of the subscriber checkpoint, null if the configuration
+	 *         has no persistent tracking.
+	 */
+	private PersistentTrackingManager subscriberTracker(String consumerId) {
+
+		if (!configuration.isPersistentTrackingEnable())
+			return null;
+		MTCConfiguration subscriberConfiguration = configuration.copy();
+		MTCPersistentTrackingConfiguration trackingConfiguration = configuration.getPersistentTrackingConfiguration()
+				.copy();
+		trackingConfiguration.setConsumerId(consumerId);
+		subscriberConfiguration.setPersistentTrackingConfiguration(trackingConfiguration);
+		return new PersistentTrackingManager(subscriberConfiguration);
+	}
+
+	/**
+	 * @return the shared tail, with its metrics. null until started.
+	 */
+	public TailingTask getTask() {
+		return task;
+	}
+
+	public synchronized List<Subscriber> getSubscribers() {
+		return Collections.unmodifiableList(new ArrayList<Subscriber>(subscribers));
+	}
+
+	@Override
+	public ServiceStatus getStatus() {
+		return status;
+	}
+}
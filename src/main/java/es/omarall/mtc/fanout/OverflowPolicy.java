@@ -0,0 +1,26 @@
+package es.omarall.mtc.fanout;
+
+/**
+ * What the shared tail does with a document for a subscriber whose queue is
+ * full.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Waits for room: no document is lost, but the tail, and so every other
+	 * subscriber, waits behind the slowest one.
+	 */
+	BLOCK,
+
+	/**
+	 * Evicts the oldest queued document to make room. The subscriber keeps
+	 * up with the tail, losing what it could not handle in time.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Drops the document. The subscriber handles what was queued, losing what
+	 * arrived meanwhile.
+	 */
+	DROP_NEWEST;
+}
@@ -0,0 +1,196 @@
+package es.omarall.mtc.fanout;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.mtc.PersistentTrackingManager;
+import es.omarall.mtc.RawDocumentHandler;
+
+/**
+ * A subscriber of a {@link FanOutTail}: a bounded queue of the documents
+ * published by the shared tail, drained by a thread of its own running the
+ * handler, and its own checkpoint, kept under its consumer id.
+ *
+ * Documents up to the checkpoint loaded on start are skipped: the shared tail
+ * starts after the oldest checkpoint of its subscribers.
+ */
+public class Subscriber implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Subscriber.class);
+
+	private static final long POLL_MILLIS = 100L;
+
+	private final String consumerId;
+	private final RawDocumentHandler handler;
+	private final OverflowPolicy overflowPolicy;
+	private final BlockingQueue<RawBsonDocument> queue;
+
+	/**
+	 * Checkpoint of this subscriber, if tracking is enabled.
+	 */
+	private PersistentTrackingManager tracker;
+	private ObjectId skipUntilId;
+
+	private volatile boolean running;
+
+	private final AtomicLong documentsPublished = new AtomicLong();
+	private final AtomicLong documentsDropped = new AtomicLong();
+	private final AtomicLong documentsHandled = new AtomicLong();
+	private final AtomicLong handlerErrors = new AtomicLong();
+
+	Subscriber(String consumerId, RawDocumentHandler handler, int queueCapacity, OverflowPolicy overflowPolicy) {
+		this.consumerId = consumerId;
+		this.handler = handler;
+		this.overflowPolicy = overflowPolicy;
+		this.queue = new ArrayBlockingQueue<RawBsonDocument>(queueCapacity);
+	}
+
+	/**
+	 * Loads the checkpoint, if tracking is enabled.
+	 *
+	 * @return id of the last document handled, null if none.
+	 */
+	ObjectId start(PersistentTrackingManager tracker) {
+		this.tracker = tracker;
+		if (tracker != null) {
+			skipUntilId = tracker.fetchLastTrackedEventId();
+			tracker.start();
+		}
+		running = true;
+		return skipUntilId;
+	}
+
+	/**
+	 * Queues a document, on the shared tail thread, as the overflow policy
+	 * says if the queue is full. Blocked, gives up within POLL_MILLIS once the
+	 * subscriber is stopped: the document is not checkpointed, so it is
+	 * fetched again on start.
+	 */
+	void publish(RawBsonDocument document) throws InterruptedException {
+
+		if (skipUntilId != null) {
+			if (document.getObjectId("_id").getValue().compareTo(skipUntilId) <= 0)
+				return;
+			skipUntilId = null;
+		}
+
+		documentsPublished.incrementAndGet();
+		switch (overflowPolicy) {
+		case BLOCK:
+			while (!queue.offer(document, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (!running)
+					return;
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(document)) {
+				if (queue.poll() != null)
+					documentsDropped.incrementAndGet();
+			}
+			break;
+		case DROP_NEWEST:
+			if (!queue.offer(document))
+				documentsDropped.incrementAndGet();
+			break;
+		}
+	}
+
+	@Override
+	public void run() {
+
+		try {
+			while (running) {
+				RawBsonDocument document = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (document != null)
+					handle(document);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		LOG.info("+ MONGOESB - Subscriber {} stopped", consumerId);
+	}
+
+	private void handle(RawBsonDocument document) {
+
+		try {
+			handler.handleDocument(document);
+			documentsHandled.incrementAndGet();
+		} catch (Exception e) {
+			handlerErrors.incrementAndGet();
+			LOG.error("+ MONGOESB - Subscriber {} failed to handle a document. Skipped", consumerId, e);
+		}
+
+		if (tracker != null) {
+			try {
+				tracker.trackEventId(document.getObjectId("_id").getValue());
+			} catch (Exception e) {
+				LOG.error("+ MONGOESB - Subscriber {} tracking state could not be persisted", consumerId, e);
+			}
+		}
+	}
+
+	/**
+	 * Stops handling documents. The thread returns within POLL_MILLIS, or
+	 * once the document being handled is done.
+	 */
+	void stop() {
+		running = false;
+	}
+
+	/**
+	 * Forces a final checkpoint write. To be called once the thread is done.
+	 */
+	void close() {
+		if (tracker != null) {
+			try {
+				tracker.close();
+			} catch (Exception e) {
+				LOG.error("+ MONGOESB - Subscriber {} tracking state could not be persisted on stop", consumerId, e);
+			}
+		}
+	}
+
+	public String getConsumerId() {
+		return consumerId;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @return documents queued now.
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return documents published to this subscriber, dropped ones included.
+	 */
+	public long getDocumentsPublished() {
+		return documentsPublished.get();
+	}
+
+	/**
+	 * @return documents dropped by the overflow policy.
+	 */
+	public long getDocumentsDropped() {
+		return documentsDropped.get();
+	}
+
+	public long getDocumentsHandled() {
+		return documentsHandled.get();
+	}
+
+	public long getHandlerErrors() {
+		return handlerErrors.get();
+	}
+}
@@ -0,0 +1,472 @@
+package es.omarall.mtc.group;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.model.Filters;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCConsumerGroupConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.configuration.MTCRetryConfiguration;
+import es.omarall.mtc.BatchDocumentHandler;
+import es.omarall.mtc.DocumentHandler;
+import es.omarall.mtc.RawDocumentHandler;
+import es.omarall.mtc.Service;
+import es.omarall.mtc.ServiceStatus;
+import es.omarall.mtc.TailingTask;
+import es.omarall.mtc.exceptions.DocumentHandlerRequiredException;
+import es.omarall.mtc.exceptions.InvalidMTCConfiguration;
+
+/**
+ * A member of a consumer group. Members sharing the consumer id of their
+ * persistent tracking configuration, the group id, split the collection into
+ * partitions: a document belongs to partition partitionField % partitions.
+ *
+ * Each partition owned is tailed by its own {@link TailingTask} and thread,
+ * with the partition predicate added to the configured filter, so the server
+ * only returns the documents of the partition. Each partition has its own
+ * checkpoint, under consumer id groupId.N, so it resumes wherever it is owned
+ * next. Checkpoints are to be kept in a store shared by the members.
+ *
+ * Ownership is held as renewable leases, see {@link LeaseManager}. Every
+ * renewInterval milliseconds a member renews its leases and its heartbeat,
+ * then rebalances: owning more than its share of partitions, partitions over
+ * the number of members alive rounded up, it stops tailing and releases the
+ * excess; owning less, it takes free or expired leases. A partition whose
+ * lease is lost, or about to expire for not being renewed, is stopped.
+ * Partitions are stopped together, waited for until the first lease, of those
+ * stopped or still owned, is about to expire: leaseDuration minus
+ * renewInterval milliseconds after it was last renewed.
+ *
+ * With the default checkpoint store, checkpoints are written under the
+ * partition lease, see {@link FencedCheckpointStore}: a member still tailing a
+ * partition whose lease was taken by another one can not move its checkpoint.
+ *
+ * Handlers are shared by every partition, so they are to be thread safe.
+ */
+public class ConsumerGroup implements Service {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConsumerGroup.class);
+
+	private final MTCConfiguration configuration;
+	private final MTCConsumerGroupConfiguration groupConfiguration;
+	private final String groupId;
+	private final LeaseManager leases;
+
+	private DocumentHandler documentHandler;
+	private BatchDocumentHandler batchDocumentHandler;
+	private RawDocumentHandler rawDocumentHandler;
+
+	/**
+	 * Partitions owned, tailed by their task.
+	 */
+	private final Map<Integer, Partition> owned = new ConcurrentHashMap<Integer, Partition>();
+	private volatile ScheduledExecutorService coordinator;
+	private volatile ServiceStatus status = ServiceStatus.STOPPED;
+
+	/*
+	 * COUNTERS
+	 */
+	private final AtomicLong partitionsAcquired = new AtomicLong();
+	private final AtomicLong partitionsReleased = new AtomicLong();
+	private final AtomicLong leasesLost = new AtomicLong();
+
+	private static final class Partition {
+
+		private final int partition;
+		private final long epoch;
+		private final TailingTask task;
+		private final Thread thread;
+		private volatile long renewedAt;
+
+		private Partition(int partition, long epoch, TailingTask task, Thread thread, long renewedAt) {
+			this.partition = partition;
+			this.epoch = epoch;
+			this.task = task;
+			this.thread = thread;
+			this.renewedAt = renewedAt;
+		}
+	}
+
+	public ConsumerGroup(MTCConfiguration configuration, MTCConsumerGroupConfiguration groupConfiguration) {
+
+		configuration.isValid();
+		groupConfiguration.isValid();
+		if (!configuration.isPersistentTrackingEnable())
+			throw new InvalidMTCConfiguration(
+					"Invalid MTCConfiguration. Consumer groups need persistent tracking: the consumer id is the group id");
+
+		this.configuration = configuration;
+		this.groupConfiguration = groupConfiguration;
+		MTCPersistentTrackingConfiguration trackingConfiguration = configuration.getPersistentTrackingConfiguration();
+		this.groupId = trackingConfiguration.getConsumerId();
+		this.leases = new LeaseManager(configuration.getMongoDatabase(),
+				trackingConfiguration.getCheckpointWriteConcern(), groupId, groupConfiguration.getMemberId(),
+				groupConfiguration.getLeaseDuration());
+	}
+
+	/**
+	 * Joins the group. Partitions are taken by a coordinator thread, from
+	 * now on and every renewInterval milliseconds.
+	 */
+	@Override
+	public synchronized void start() {
+
+		if (status.equals(ServiceStatus.STARTED))
+			return;
+		if (documentHandler == null && batchDocumentHandler == null && rawDocumentHandler == null)
+			throw new DocumentHandlerRequiredException(
+					"A documentHandler, batchDocumentHandler or rawDocumentHandler is REQUIRED in order to consume documents");
+
+		coordinator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mtc-group-" + groupId);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		status = ServiceStatus.STARTED;
+		coordinator.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				coordinate();
+			}
+		}, 0L, groupConfiguration.getRenewInterval(), TimeUnit.MILLISECONDS);
+		LOG.info("+ MONGOESB - Member {} joined consumer group {}", groupConfiguration.getMemberId(), groupId);
+	}
+
+	/**
+	 * Leaves the group: every partition owned is stopped, its checkpoint
+	 * persisted, and its lease released, so other members take it right away.
+	 */
+	@Override
+	public synchronized void stop() {
+
+		if (!status.equals(ServiceStatus.STARTED))
+			return;
+		status = ServiceStatus.STOPPED;
+
+		coordinator.shutdown();
+		try {
+			coordinator.awaitTermination(groupConfiguration.getLeaseDuration(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			LOG.error("Thread was interrupted", e);
+			Thread.currentThread().interrupt();
+		}
+
+		release(new ArrayList<Partition>(owned.values()));
+		try {
+			leases.leave();
+		} catch (Exception e) {
+			LOG.error("+ MONGOESB - Member {} could not leave consumer group {}", groupConfiguration.getMemberId(),
+					groupId, e);
+		}
+		LOG.info("+ MONGOESB - Member {} left consumer group {}", groupConfiguration.getMemberId(), groupId);
+	}
+
+	/**
+	 * Coordinator loop: heartbeat, renew, rebalance.
+	 */
+	private void coordinate() {
+
+		if (!status.equals(ServiceStatus.STARTED))
+			return;
+
+		long now = System.currentTimeMillis();
+		try {
+			leases.heartbeat();
+			renew(now);
+			rebalance(now);
+		} catch (Exception e) {
+			LOG.error("+ MONGOESB - Consumer group {} leases could not be renewed", groupId, e);
+			// Leases may be taken by others once expired: stop tailing before
+			long deadline = groupConfiguration.getLeaseDuration() - groupConfiguration.getRenewInterval();
+			List<Partition> expired = new ArrayList<Partition>();
+			for (Partition partition : new ArrayList<Partition>(owned.values())) {
+				if (now - partition.renewedAt >= deadline) {
+					LOG.warn("+ MONGOESB - Lease of partition {} expired. Stopping it", partition.partition);
+					leasesLost.incrementAndGet();
+					owned.remove(partition.partition);
+					expired.add(partition);
+				}
+			}
+			stopTasks(expired);
+		}
+	}
+
+	/**
+	 * Every lease is renewed before stopping the partitions whose lease was
+	 * lost, as stopping waits for their tasks.
+	 */
+	private void renew(long now) {
+
+		List<Partition> lost = new ArrayList<Partition>();
+		for (Partition partition : new ArrayList<Partition>(owned.values())) {
+			if (leases.renew(partition.partition))
+				partition.renewedAt = now;
+			else
+				lost.add(partition);
+		}
+
+		for (Partition partition : lost) {
+			LOG.warn("+ MONGOESB - Lease of partition {} lost. Stopping it", partition.partition);
+			leasesLost.incrementAndGet();
+			owned.remove(partition.partition);
+		}
+		stopTasks(lost);
+
+		for (Partition partition : new ArrayList<Partition>(owned.values())) {
+			if (!partition.thread.isAlive()) {
+				LOG.error("+ MONGOESB - Partition {} stopped tailing. Restarting it", partition.partition);
+				owned.remove(partition.partition);
+				startPartition(partition.partition, partition.epoch, now);
+			}
+		}
+	}
+
+	private void rebalance(long now) {
+
+		int partitions = groupConfiguration.getPartitions();
+		long members = Math.max(1L, leases.countMembers());
+		int share = (int) ((partitions + members - 1) / members);
+
+		if (owned.size() > share) {
+			List<Integer> ownedPartitions = new ArrayList<Integer>(getOwnedPartitions());
+			Collections.reverse(ownedPartitions);
+			List<Partition> excess = new ArrayList<Partition>();
+			for (int i = 0; i < ownedPartitions.size() - share; i++)
+				excess.add(owned.get(ownedPartitions.get(i)));
+			release(excess);
+			return;
+		}
+
+		for (int p = 0; p < partitions && owned.size() < share; p++) {
+			if (owned.containsKey(p))
+				continue;
+			long epoch = leases.acquire(p);
+			if (epoch > 0)
+				startPartition(p, epoch, now);
+		}
+	}
+
+	/**
+	 * @param epoch
+	 *            of the partition lease, the checkpoint is written under.
+	 */
+	private void startPartition(int p, long epoch, long now) {
+
+		TailingTask task;
+		try {
+			task = new TailingTask(partitionConfiguration(p, epoch));
+			task.setDocumentHandler(documentHandler);
+			task.setBatchDocumentHandler(batchDocumentHandler);
+			task.setRawDocumentHandler(rawDocumentHandler);
+			task.start();
+		} catch (Exception e) {
+			LOG.error("+ MONGOESB - Partition {} of consumer group {} could not be started", p, groupId, e);
+			leases.release(p);
+			return;
+		}
+
+		Thread thread = new Thread(task, "mtc-group-" + groupId + "-" + p);
+		thread.setDaemon(true);
+		owned.put(p, new Partition(p, epoch, task, thread, now));
+		thread.start();
+		partitionsAcquired.incrementAndGet();
+		LOG.info("+ MONGOESB - Partition {} of consumer group {} taken by {}", p, groupId,
+				groupConfiguration.getMemberId());
+	}
+
+	/**
+	 * Stops tailing the partitions, persisting their checkpoints, then
+	 * releases the leases of those stopped in time.
+	 */
+	private void release(List<Partition> partitions) {
+
+		for (Partition partition : partitions)
+			owned.remove(partition.partition);
+		for (Partition partition : stopTasks(partitions)) {
+			try {
+				leases.release(partition.partition);
+				partitionsReleased.incrementAndGet();
+				LOG.info("+ MONGOESB - Partition {} of consumer group {} released by {}", partition.partition, groupId,
+						groupConfiguration.getMemberId());
+			} catch (Exception e) {
+				LOG.error("+ MONGOESB - Lease of partition {} could not be released. It will expire",
+						partition.partition, e);
+			}
+		}
+	}
+
+	/**
+	 * Every task is told to stop first, so they drain together, then each one
+	 * is waited for until a single deadline: leaseDuration minus renewInterval
+	 * milliseconds after the oldest renewal of the leases stopped or still
+	 * owned. Leases stopped are not waited for once they may be taken by
+	 * another member, and the coordinator is back to renew the other leases
+	 * before they are about to expire.
+	 *
+	 * @return partitions stopped in time. The leases of the others are left
+	 *         to expire.
+	 */
+	private List<Partition> stopTasks(List<Partition> partitions) {
+
+		if (partitions.isEmpty())
+			return partitions;
+		for (Partition partition : partitions)
+			partition.task.stop();
+
+		long renewedAt = Long.MAX_VALUE;
+		for (Partition partition : partitions)
+			renewedAt = Math.min(renewedAt, partition.renewedAt);
+		for (Partition partition : owned.values())
+			renewedAt = Math.min(renewedAt, partition.renewedAt);
+		long deadline = renewedAt + groupConfiguration.getLeaseDuration() - groupConfiguration.getRenewInterval();
+		List<Partition> stopped = new ArrayList<Partition>();
+		for (Partition partition : partitions) {
+			long timeout = Math.max(0L, deadline - System.currentTimeMillis());
+			if (partition.task.stop(timeout, TimeUnit.MILLISECONDS).isStopped())
+				stopped.add(partition);
+			else
+				LOG.warn("+ MONGOESB - Partition {} did not stop in time. Its lease is left to expire",
+						partition.partition);
+		}
+		return stopped;
+	}
+
+	/**
+	 * As {@link #partitionConfiguration(int)}, checkpoints written under the
+	 * partition lease if the default checkpoint store is used. The checkpoint
+	 * is claimed: writes under older leases are refused from now on.
+	 */
+	private MTCConfiguration partitionConfiguration(int p, long epoch) {
+
+		MTCConfiguration partitionConfiguration = partitionConfiguration(p);
+		MTCPersistentTrackingConfiguration trackingConfiguration = partitionConfiguration
+				.getPersistentTrackingConfiguration();
+		if (trackingConfiguration.getCheckpointStore() == null) {
+			FencedCheckpointStore checkpointStore = new FencedCheckpointStore(configuration.getMongoDatabase(),
+					trackingConfiguration.getCheckpointWriteConcern(), groupConfiguration.getMemberId(), epoch);
+			checkpointStore.claim(trackingConfiguration.getConsumerId());
+			trackingConfiguration.setCheckpointStore(checkpointStore);
+		}
+		return partitionConfiguration;
+	}
+
+	/**
+	 * The group configuration with the partition predicate added to the
+	 * filter, and the partition consumer id. Local files, if any, get the
+	 * partition as suffix.
+	 */
+	MTCConfiguration partitionConfiguration(int p) {
+
+		MTCConfiguration partitionConfiguration = configuration.copy();
+		Bson partitionFilter = Filters.mod(groupConfiguration.getPartitionField(),
+				groupConfiguration.getPartitions(), p);
+		partitionConfiguration.setFilter(configuration.getFilter() == null ? partitionFilter
+				: Filters.and(configuration.getFilter(), partitionFilter));
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = configuration.getPersistentTrackingConfiguration()
+				.copy();
+		trackingConfiguration.setConsumerId(groupId + "." + p);
+		partitionConfiguration.setPersistentTrackingConfiguration(trackingConfiguration);
+
+		if (configuration.getDuplicateSuppressionFile() != null)
+			partitionConfiguration
+					.setDuplicateSuppressionFile(new File(configuration.getDuplicateSuppressionFile().getPath() + "." + p));
+		if (configuration.getRetryConfiguration() != null) {
+			MTCRetryConfiguration retryConfiguration = configuration.getRetryConfiguration().copy();
+			retryConfiguration.setSpillFile(new File(retryConfiguration.getSpillFile().getPath() + "." + p));
+			partitionConfiguration.setRetryConfiguration(retryConfiguration);
+		}
+		return partitionConfiguration;
+	}
+
+	/**
+	 * Hash of a key, not negative and the same on every JVM for strings and
+	 * boxed primitives, for producers to stamp as partition field.
+	 */
+	public static int hash(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return h & Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return partitions owned, in order.
+	 */
+	public SortedSet<Integer> getOwnedPartitions() {
+		return new TreeSet<Integer>(owned.keySet());
+	}
+
+	/**
+	 * @return task tailing a partition owned, null if not owned.
+	 */
+	public TailingTask getTask(int partition) {
+		Partition owner = owned.get(partition);
+		return owner == null ? null : owner.task;
+	}
+
+	public long getPartitionsAcquired() {
+		return partitionsAcquired.get();
+	}
+
+	public long getPartitionsReleased() {
+		return partitionsReleased.get();
+	}
+
+	/**
+	 * @return number of leases lost or expired while owned.
+	 */
+	public long getLeasesLost() {
+		return leasesLost.get();
+	}
+
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public MTCConsumerGroupConfiguration getGroupConfiguration() {
+		return groupConfiguration;
+	}
+
+	@Override
+	public ServiceStatus getStatus() {
+		return status;
+	}
+
+	public void setDocumentHandler(DocumentHandler documentHandler) {
+		this.documentHandler = documentHandler;
+	}
+
+	/**
+	 * A batch document handler takes precedence over a document handler.
+	 */
+	public void setBatchDocumentHandler(BatchDocumentHandler batchDocumentHandler) {
+		this.batchDocumentHandler = batchDocumentHandler;
+	}
+
+	/**
+	 * A raw document handler takes precedence over any other handler.
+	 */
+	public void setRawDocumentHandler(RawDocumentHandler rawDocumentHandler) {
+		this.rawDocumentHandler = rawDocumentHandler;
+	}
+}
@@ -0,0 +1,127 @@
+package es.omarall.mtc.group;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.checkpoint.CheckpointStore;
+import es.omarall.mtc.checkpoint.MongoCheckpointStore;
+import es.omarall.mtc.exceptions.CheckpointFencedException;
+
+/**
+ * Keeps checkpoints as a {@link MongoCheckpointStore}, writes made under a
+ * lease, see {@link LeaseManager}: each checkpoint document is stamped with
+ * the owner and epoch of the lease, {_id | consumer-task-id | last-tracked-id
+ * | lease-owner | lease-epoch}, and a write only matches if the document
+ * epoch is not newer.
+ *
+ * Otherwise the upsert hits the unique index on consumer-task-id and a
+ * {@link CheckpointFencedException} is thrown: a member that lost its lease,
+ * and has not stopped yet, can not move the checkpoint of the new owner back.
+ */
+public class FencedCheckpointStore implements CheckpointStore {
+
+	private static final String CONSUMER_ID = MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD;
+	private static final String OWNER = MTCPersistentTrackingConfiguration.LEASE_OWNER_FIELD;
+	private static final String EPOCH = MTCPersistentTrackingConfiguration.LEASE_EPOCH_FIELD;
+
+	private final MongoCollection<Document> trackerCollection;
+	private final String owner;
+	private final long epoch;
+
+	/**
+	 * @param writeConcern
+	 *            for the tracker collection writes. If null, the database one
+	 *            is used.
+	 * @param owner
+	 *            member the lease is owned by.
+	 * @param epoch
+	 *            of the lease, as acquired.
+	 */
+	public FencedCheckpointStore(MongoDatabase database, WriteConcern writeConcern, String owner, long epoch) {
+
+		MongoCollection<Document> trackerCollection = database
+				.getCollection(MTCPersistentTrackingConfiguration.TRACKER_COLLECTION_NAME);
+		if (writeConcern != null)
+			trackerCollection = trackerCollection.withWriteConcern(writeConcern);
+		this.trackerCollection = trackerCollection;
+		this.owner = owner;
+		this.epoch = epoch;
+
+		trackerCollection.createIndex(new Document(CONSUMER_ID, 1), new IndexOptions().unique(true));
+	}
+
+	/**
+	 * Stamps the checkpoint with the lease, fencing writes under older ones
+	 * from now on. To be called before the checkpoint is loaded.
+	 *
+	 * @throws CheckpointFencedException
+	 *             if the checkpoint was claimed under a newer lease.
+	 */
+	public void claim(String consumerId) {
+		write(consumerId, stamp());
+	}
+
+	@Override
+	public ObjectId load(String consumerId) {
+
+		Document lastRecordByConsumer = trackerCollection.find(Filters.eq(CONSUMER_ID, consumerId)).first();
+		if (lastRecordByConsumer == null)
+			return null;
+		return lastRecordByConsumer.getObjectId(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD);
+	}
+
+	/**
+	 * @throws CheckpointFencedException
+	 *             if the checkpoint was claimed under a newer lease.
+	 */
+	@Override
+	public void save(String consumerId, ObjectId id) {
+		write(consumerId,
+				Updates.combine(stamp(), Updates.set(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD, id)));
+	}
+
+	private Bson stamp() {
+		return Updates.combine(Updates.set(OWNER, owner), Updates.set(EPOCH, epoch));
+	}
+
+	private void write(String consumerId, Bson update) {
+
+		Bson filter = Filters.and(Filters.eq(CONSUMER_ID, consumerId),
+				Filters.or(Filters.lte(EPOCH, epoch), Filters.exists(EPOCH, false)));
+		try {
+			trackerCollection.updateOne(filter, update, new UpdateOptions().upsert(true));
+		} catch (MongoWriteException e) {
+			if (ErrorCategory.fromErrorCode(e.getError().getCode()) == ErrorCategory.DUPLICATE_KEY)
+				throw new CheckpointFencedException(
+						"Checkpoint of " + consumerId + " claimed by a lease newer than epoch " + epoch + " of " + owner);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes are acknowledged as the write concern says: nothing to force.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+}
@@ -0,0 +1,396 @@
+package es.omarall.mtc.group;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.configuration.MTCStandbyConfiguration;
+import es.omarall.mtc.BatchDocumentHandler;
+import es.omarall.mtc.DocumentHandler;
+import es.omarall.mtc.RawDocumentHandler;
+import es.omarall.mtc.Service;
+import es.omarall.mtc.ServiceStatus;
+import es.omarall.mtc.TailingTask;
+import es.omarall.mtc.checkpoint.CheckpointStore;
+import es.omarall.mtc.checkpoint.MongoCheckpointStore;
+import es.omarall.mtc.exceptions.CheckpointFencedException;
+import es.omarall.mtc.exceptions.DocumentHandlerRequiredException;
+import es.omarall.mtc.exceptions.InvalidMTCConfiguration;
+
+/**
+ * One of a set of instances sharing the consumer id of their persistent
+ * tracking configuration, only one of them tailing at a time: the one owning
+ * the active lease, see {@link LeaseManager}.
+ *
+ * The others are hot standbys. Each keeps a {@link TailingTask} built, not
+ * started, so neither handlers nor retries run, and every warmInterval
+ * milliseconds rebuilds a tailable cursor after the latest checkpoint, see
+ * {@link TailingTask#warmUp()}. The dispatcher, the retry scheduler and the
+ * duplicate suppression cache are only built on taking over. Every
+ * renewInterval milliseconds a standby checks the active lease, and once
+ * expired takes it and runs its task on the warm cursor. Taking over is
+ * bounded by leaseDuration plus renewInterval milliseconds, and measured from
+ * the lease expiring into the task metrics.
+ *
+ * The active instance renews the lease every renewInterval milliseconds, and
+ * stops tailing if the lease is lost or about to expire for not being renewed,
+ * waiting for its task as long as the lease lasts. With the default checkpoint
+ * store, checkpoints are written under the active lease, see
+ * {@link FencedCheckpointStore}: an instance still draining once another one
+ * took over can not move the checkpoint back.
+ */
+public class HotStandbyConsumer implements Service {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HotStandbyConsumer.class);
+
+	private static final String ACTIVE_LEASE = "active";
+
+	private final MTCConfiguration configuration;
+	private final MTCStandbyConfiguration standbyConfiguration;
+	private final String consumerId;
+	private final LeaseManager leases;
+
+	private DocumentHandler documentHandler;
+	private BatchDocumentHandler batchDocumentHandler;
+	private RawDocumentHandler rawDocumentHandler;
+
+	/**
+	 * Task ready to take over while standby, tailing on thread while active,
+	 * and its checkpoint store if the default one is used. Only changed by the
+	 * coordinator thread, or on stop once it is done.
+	 */
+	private volatile TailingTask task;
+	private LeasedCheckpointStore checkpointStore;
+	private volatile Thread thread;
+	private volatile boolean active;
+	private long renewedAt;
+	private long warmedAt;
+
+	private volatile ScheduledExecutorService coordinator;
+	private volatile ServiceStatus status = ServiceStatus.STOPPED;
+
+	private final AtomicLong takeOvers = new AtomicLong();
+
+	/**
+	 * Checkpoint store of a task, the default one being used: checkpoints are
+	 * loaded from the tracker collection while standby, and written under the
+	 * active lease once taken.
+	 */
+	private static final class LeasedCheckpointStore implements CheckpointStore {
+
+		private final MongoCheckpointStore standbyStore;
+		private volatile FencedCheckpointStore activeStore;
+
+		private LeasedCheckpointStore(MongoCheckpointStore standbyStore) {
+			this.standbyStore = standbyStore;
+		}
+
+		@Override
+		public ObjectId load(String consumerId) {
+			FencedCheckpointStore activeStore = this.activeStore;
+			return activeStore == null ? standbyStore.load(consumerId) : activeStore.load(consumerId);
+		}
+
+		/**
+		 * @throws CheckpointFencedException
+		 *             if the lease was never taken, or was taken by another
+		 *             instance since.
+		 */
+		@Override
+		public void save(String consumerId, ObjectId id) {
+			FencedCheckpointStore activeStore = this.activeStore;
+			if (activeStore == null)
+				throw new CheckpointFencedException("Checkpoint of " + consumerId + " written by a standby");
+			activeStore.save(consumerId, id);
+		}
+
+		@Override
+		public void flush() {
+		}
+	}
+
+	public HotStandbyConsumer(MTCConfiguration configuration, MTCStandbyConfiguration standbyConfiguration) {
+
+		configuration.isValid();
+		standbyConfiguration.isValid();
+		if (!configuration.isPersistentTrackingEnable())
+			throw new InvalidMTCConfiguration(
+					"Invalid MTCConfiguration. Hot standby needs persistent tracking: instances share the consumer id");
+
+		this.configuration = configuration;
+		this.standbyConfiguration = standbyConfiguration;
+		MTCPersistentTrackingConfiguration trackingConfiguration = configuration.getPersistentTrackingConfiguration();
+		this.consumerId = trackingConfiguration.getConsumerId();
+		this.leases = new LeaseManager(configuration.getMongoDatabase(),
+				trackingConfiguration.getCheckpointWriteConcern(), consumerId, standbyConfiguration.getMemberId(),
+				standbyConfiguration.getLeaseDuration());
+	}
+
+	/**
+	 * Starts as standby, or as active right away if nobody holds the lease.
+	 */
+	@Override
+	public synchronized void start() {
+
+		if (status.equals(ServiceStatus.STARTED))
+			return;
+		if (documentHandler == null && batchDocumentHandler == null && rawDocumentHandler == null)
+			throw new DocumentHandlerRequiredException(
+					"A documentHandler, batchDocumentHandler or rawDocumentHandler is REQUIRED in order to consume documents");
+
+		coordinator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mtc-standby-" + consumerId);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		status = ServiceStatus.STARTED;
+		coordinator.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				coordinate();
+			}
+		}, 0L, standbyConfiguration.getRenewInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Active, stops tailing, persisting the checkpoint, and releases the
+	 * lease so a standby takes over right away. Standby, releases the task.
+	 */
+	@Override
+	public synchronized void stop() {
+
+		if (!status.equals(ServiceStatus.STARTED))
+			return;
+		status = ServiceStatus.STOPPED;
+
+		coordinator.shutdown();
+		try {
+			coordinator.awaitTermination(standbyConfiguration.getLeaseDuration(), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			LOG.error("Thread was interrupted", e);
+			Thread.currentThread().interrupt();
+		}
+
+		if (active) {
+			stepDown(true);
+		} else if (task != null) {
+			task.close();
+			task = null;
+		}
+	}
+
+	/**
+	 * Coordinator loop: renew while active, watch the lease and keep the
+	 * cursor warm while standby.
+	 */
+	private void coordinate() {
+
+		if (!status.equals(ServiceStatus.STARTED))
+			return;
+
+		long now = System.currentTimeMillis();
+		try {
+			if (active)
+				renew(now);
+			else
+				standBy(now);
+		} catch (Exception e) {
+			LOG.error("+ MONGOESB - Consumer {} lease could not be checked", consumerId, e);
+			// The lease may be taken by a standby once expired: stop before
+			if (active && now - renewedAt >= standbyConfiguration.getLeaseDuration()
+					- standbyConfiguration.getRenewInterval()) {
+				LOG.warn("+ MONGOESB - Consumer {} lease about to expire. Stepping down", consumerId);
+				stepDown(false);
+			}
+		}
+	}
+
+	private void renew(long now) {
+
+		if (!leases.renew(ACTIVE_LEASE)) {
+			LOG.warn("+ MONGOESB - Consumer {} lease lost. Stepping down", consumerId);
+			stepDown(false);
+			return;
+		}
+		renewedAt = now;
+		if (!thread.isAlive()) {
+			LOG.error("+ MONGOESB - Consumer {} stopped tailing. Stepping down", consumerId);
+			stepDown(true);
+		}
+	}
+
+	private void standBy(long now) {
+
+		if (task == null) {
+			TailingTask task = new TailingTask(taskConfiguration());
+			task.setDocumentHandler(documentHandler);
+			task.setBatchDocumentHandler(batchDocumentHandler);
+			task.setRawDocumentHandler(rawDocumentHandler);
+			this.task = task;
+			warmedAt = 0L;
+		}
+
+		long expiresAt = leases.expiresAt(ACTIVE_LEASE);
+		if (expiresAt < now) {
+			long epoch = leases.acquire(ACTIVE_LEASE);
+			if (epoch > 0) {
+				takeOver(expiresAt, epoch);
+				return;
+			}
+		}
+
+		if (now - warmedAt >= standbyConfiguration.getWarmInterval()) {
+			task.warmUp();
+			warmedAt = now;
+		}
+	}
+
+	/**
+	 * The configuration, with the default checkpoint store replaced by one
+	 * writing under the active lease, once taken.
+	 */
+	private MTCConfiguration taskConfiguration() {
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = configuration.getPersistentTrackingConfiguration();
+		if (trackingConfiguration.getCheckpointStore() != null) {
+			checkpointStore = null;
+			return configuration;
+		}
+
+		checkpointStore = new LeasedCheckpointStore(new MongoCheckpointStore(configuration.getMongoDatabase(),
+				trackingConfiguration.getCheckpointWriteConcern()));
+		MTCConfiguration taskConfiguration = configuration.copy();
+		trackingConfiguration = trackingConfiguration.copy();
+		trackingConfiguration.setCheckpointStore(checkpointStore);
+		taskConfiguration.setPersistentTrackingConfiguration(trackingConfiguration);
+		return taskConfiguration;
+	}
+
+	/**
+	 * Claims the checkpoint under the lease, so writes under older ones are
+	 * refused from now on, then starts and runs the warm task. Failover time
+	 * is measured if the lease was held before.
+	 *
+	 * @param epoch
+	 *            of the active lease, the checkpoint is written under.
+	 */
+	private void takeOver(long expiresAt, long epoch) {
+
+		renewedAt = System.currentTimeMillis();
+		if (checkpointStore != null) {
+			try {
+				FencedCheckpointStore activeStore = new FencedCheckpointStore(configuration.getMongoDatabase(),
+						configuration.getPersistentTrackingConfiguration().getCheckpointWriteConcern(),
+						standbyConfiguration.getMemberId(), epoch);
+				activeStore.claim(consumerId);
+				checkpointStore.activeStore = activeStore;
+			} catch (RuntimeException e) {
+				leases.release(ACTIVE_LEASE);
+				throw e;
+			}
+		}
+		task.start();
+		thread = new Thread(task, "mtc-active-" + consumerId);
+		thread.setDaemon(true);
+		thread.start();
+		active = true;
+
+		if (expiresAt > 0) {
+			long failoverMillis = System.currentTimeMillis() - expiresAt;
+			task.getMetrics().failover(failoverMillis);
+			takeOvers.incrementAndGet();
+			LOG.info("+ MONGOESB - Member {} took consumer {} over, {} ms after its lease expired",
+					standbyConfiguration.getMemberId(), consumerId, failoverMillis);
+		} else {
+			LOG.info("+ MONGOESB - Member {} is consumer {}", standbyConfiguration.getMemberId(), consumerId);
+		}
+	}
+
+	/**
+	 * Stops tailing, persisting the checkpoint, waiting for the task as long
+	 * as the lease lasts: a standby may take over from then on. The next
+	 * coordinator run builds a new task to stand by.
+	 *
+	 * @param release
+	 *            to release the lease once stopped, so a standby takes over
+	 *            right away.
+	 */
+	private void stepDown(boolean release) {
+
+		active = false;
+		long timeout = Math.max(0L,
+				renewedAt + standbyConfiguration.getLeaseDuration() - System.currentTimeMillis());
+		boolean stopped = task.stop(timeout, TimeUnit.MILLISECONDS).isStopped();
+
+		if (release && stopped) {
+			try {
+				leases.release(ACTIVE_LEASE);
+			} catch (Exception e) {
+				LOG.error("+ MONGOESB - Consumer {} lease could not be released. It will expire", consumerId, e);
+			}
+		}
+		task = null;
+		checkpointStore = null;
+		thread = null;
+	}
+
+	/**
+	 * @return true if this instance is tailing.
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return task ready to take over, or tailing if active. null until
+	 *         built.
+	 */
+	public TailingTask getTask() {
+		return task;
+	}
+
+	/**
+	 * @return number of times this instance took over from another one.
+	 */
+	public long getTakeOvers() {
+		return takeOvers.get();
+	}
+
+	public MTCStandbyConfiguration getStandbyConfiguration() {
+		return standbyConfiguration;
+	}
+
+	@Override
+	public ServiceStatus getStatus() {
+		return status;
+	}
+
+	public void setDocumentHandler(DocumentHandler documentHandler) {
+		this.documentHandler = documentHandler;
+	}
+
+	/**
+	 * A batch document handler takes precedence over a document handler.
+	 */
+	public void setBatchDocumentHandler(BatchDocumentHandler batchDocumentHandler) {
+		this.batchDocumentHandler = batchDocumentHandler;
+	}
+
+	/**
+	 * A raw document handler takes precedence over any other handler.
+	 */
+	public void setRawDocumentHandler(RawDocumentHandler rawDocumentHandler) {
+		this.rawDocumentHandler = rawDocumentHandler;
+	}
+}
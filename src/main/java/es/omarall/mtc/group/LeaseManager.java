@@ -0,0 +1,197 @@
+package es.omarall.mtc.group;
+
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoServerException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+
+/**
+ * Keeps the leases and member heartbeats of a consumer group in the tracker
+ * collection, next to the checkpoints:
+ * {_id | consumer-task-id | lease-owner | lease-expires | lease-epoch},
+ * consumer-task-id being groupId#leaseName, as groupId#partition-N, or
+ * groupId#member-memberId.
+ *
+ * A lease is taken with a conditional upsert: it matches if free, expired or
+ * already owned, and if held by another member the upsert hits the unique
+ * index on consumer-task-id and fails. Every time a lease is taken its epoch
+ * is incremented, for writes on behalf of an older owner to be fenced, see
+ * {@link FencedCheckpointStore}. Expiry times come from the member clocks, so
+ * lease durations are to be well above the clock skew.
+ */
+public class LeaseManager {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LeaseManager.class);
+
+	private static final String CONSUMER_ID = MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD;
+	private static final String OWNER = MTCPersistentTrackingConfiguration.LEASE_OWNER_FIELD;
+	private static final String EXPIRES = MTCPersistentTrackingConfiguration.LEASE_EXPIRES_FIELD;
+	private static final String EPOCH = MTCPersistentTrackingConfiguration.LEASE_EPOCH_FIELD;
+	private static final String PARTITION = "partition-";
+	private static final String MEMBER = "#member-";
+
+	private final MongoCollection<Document> trackerCollection;
+	private final String groupId;
+	private final String memberId;
+	private final long leaseDuration;
+
+	/**
+	 * @param writeConcern
+	 *            for the lease writes. If null, the database one is used. On
+	 *            replica sets, to be majority so a lease is not lost on
+	 *            failover.
+	 */
+	public LeaseManager(MongoDatabase database, WriteConcern writeConcern, String groupId, String memberId,
+			long leaseDuration) {
+
+		MongoCollection<Document> trackerCollection = database
+				.getCollection(MTCPersistentTrackingConfiguration.TRACKER_COLLECTION_NAME);
+		if (writeConcern != null)
+			trackerCollection = trackerCollection.withWriteConcern(writeConcern);
+		this.trackerCollection = trackerCollection;
+		this.groupId = groupId;
+		this.memberId = memberId;
+		this.leaseDuration = leaseDuration;
+
+		trackerCollection.createIndex(new Document(CONSUMER_ID, 1), new IndexOptions().unique(true));
+	}
+
+	/**
+	 * @return epoch of the partition lease if this member owns it now, for
+	 *         leaseDuration milliseconds. 0 if owned by another member.
+	 */
+	public long acquire(int partition) {
+		return acquire(PARTITION + partition);
+	}
+
+	/**
+	 * @return false if the lease is not owned by this member any more.
+	 */
+	public boolean renew(int partition) {
+		return renew(PARTITION + partition);
+	}
+
+	/**
+	 * Expires the lease, if owned, so another member can take it right away.
+	 */
+	public void release(int partition) {
+		release(PARTITION + partition);
+	}
+
+	/**
+	 * @return true if this member owns the named lease now, for leaseDuration
+	 *         milliseconds.
+	 */
+	public boolean tryAcquire(String lease) {
+		return acquire(lease) > 0;
+	}
+
+	/**
+	 * @return epoch of the named lease if this member owns it now, for
+	 *         leaseDuration milliseconds. 0 if owned by another member.
+	 */
+	public long acquire(String lease) {
+
+		long now = System.currentTimeMillis();
+		Bson filter = Filters.and(Filters.eq(CONSUMER_ID, leaseId(lease)),
+				Filters.or(Filters.eq(OWNER, memberId), Filters.lt(EXPIRES, now)));
+		Document acquired;
+		try {
+			acquired = trackerCollection.findOneAndUpdate(filter, Updates.combine(lease(now), Updates.inc(EPOCH, 1L)),
+					new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+							.projection(Projections.include(EPOCH)));
+		} catch (MongoServerException e) {
+			if (ErrorCategory.fromErrorCode(e.getCode()) == ErrorCategory.DUPLICATE_KEY)
+				return 0L;
+			throw e;
+		}
+		long epoch = ((Number) acquired.get(EPOCH)).longValue();
+		LOG.debug("Lease {} of group {} acquired by {}, epoch {}", lease, groupId, memberId, epoch);
+		return epoch;
+	}
+
+	public boolean renew(String lease) {
+		Bson filter = Filters.and(Filters.eq(CONSUMER_ID, leaseId(lease)), Filters.eq(OWNER, memberId));
+		return trackerCollection.updateOne(filter, lease(System.currentTimeMillis())).getMatchedCount() > 0;
+	}
+
+	/**
+	 * Expires the named lease now, if owned.
+	 */
+	public void release(String lease) {
+		Bson filter = Filters.and(Filters.eq(CONSUMER_ID, leaseId(lease)), Filters.eq(OWNER, memberId));
+		trackerCollection.updateOne(filter, Updates.set(EXPIRES, System.currentTimeMillis()));
+	}
+
+	/**
+	 * @return when the named lease expires, in member clock milliseconds. 0 if
+	 *         never taken.
+	 */
+	public long expiresAt(String lease) {
+		Document document = trackerCollection.find(Filters.eq(CONSUMER_ID, leaseId(lease)))
+				.projection(Projections.include(EXPIRES)).first();
+		if (document == null || !(document.get(EXPIRES) instanceof Number))
+			return 0L;
+		return ((Number) document.get(EXPIRES)).longValue();
+	}
+
+	/**
+	 * Tells the group this member is alive for leaseDuration milliseconds.
+	 */
+	public void heartbeat() {
+		trackerCollection.updateOne(Filters.eq(CONSUMER_ID, memberId()), lease(System.currentTimeMillis()),
+				new UpdateOptions().upsert(true));
+	}
+
+	/**
+	 * Tells the group this member left.
+	 */
+	public void leave() {
+		trackerCollection.deleteOne(Filters.eq(CONSUMER_ID, memberId()));
+	}
+
+	/**
+	 * @return number of members alive, this one included once it beat.
+	 */
+	public long countMembers() {
+		return trackerCollection.count(Filters.and(Filters.regex(CONSUMER_ID, "^" + Pattern.quote(groupId + MEMBER)),
+				Filters.gt(EXPIRES, System.currentTimeMillis())));
+	}
+
+	private Bson lease(long now) {
+		return Updates.combine(Updates.set(OWNER, memberId), Updates.set(EXPIRES, now + leaseDuration));
+	}
+
+	private String leaseId(String lease) {
+		return groupId + "#" + lease;
+	}
+
+	private String memberId() {
+		return groupId + MEMBER + memberId;
+	}
+
+	public String getGroupId() {
+		return groupId;
+	}
+
+	public String getMemberId() {
+		return memberId;
+	}
+}
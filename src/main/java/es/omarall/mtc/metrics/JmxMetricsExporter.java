@@ -0,0 +1,55 @@
+package es.omarall.mtc.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the metrics of each task as an MXBean named
+ * es.omarall.mtc:type=TailingMetrics,name=&lt;task name&gt;.
+ */
+public class JmxMetricsExporter implements MetricsExporter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(JmxMetricsExporter.class);
+
+	public static final String DOMAIN = "es.omarall.mtc";
+
+	private final MBeanServer mBeanServer;
+
+	public JmxMetricsExporter() {
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	public JmxMetricsExporter(MBeanServer mBeanServer) {
+		this.mBeanServer = mBeanServer;
+	}
+
+	@Override
+	public void register(String name, TailingMetrics metrics) {
+		try {
+			mBeanServer.registerMBean(metrics, objectName(name));
+		} catch (JMException e) {
+			LOG.warn("+ MONGOESB - Metrics of {} could not be registered in JMX", name, e);
+		}
+	}
+
+	@Override
+	public void unregister(String name, TailingMetrics metrics) {
+		try {
+			ObjectName objectName = objectName(name);
+			if (mBeanServer.isRegistered(objectName))
+				mBeanServer.unregisterMBean(objectName);
+		} catch (JMException e) {
+			LOG.warn("+ MONGOESB - Metrics of {} could not be unregistered from JMX", name, e);
+		}
+	}
+
+	public static ObjectName objectName(String name) throws JMException {
+		return new ObjectName(DOMAIN + ":type=TailingMetrics,name=" + ObjectName.quote(name));
+	}
+}
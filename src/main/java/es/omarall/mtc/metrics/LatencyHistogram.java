@@ -0,0 +1,96 @@
+package es.omarall.mtc.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the manner of
+ * HdrHistogram: values below 128 have their own bucket, and each power of two
+ * above is split in 64 buckets, so a bucket is never wider than 1/64 of its
+ * values. Values above an hour are counted as an hour.
+ * 
+ * Recording is lock free and allocates nothing. Counts are cumulative.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BUCKETS = SUB_BUCKETS << 1;
+
+	public static final long MAX_TRACKABLE_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_TRACKABLE_NANOS) + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+
+		long value = Math.max(0L, Math.min(nanos, MAX_TRACKABLE_NANOS));
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value))
+			;
+	}
+
+	static int indexOf(long value) {
+		if (value < LINEAR_BUCKETS)
+			return (int) value;
+		// value >> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the highest value counted in the bucket.
+	 */
+	static long highestValueOf(int index) {
+		if (index < LINEAR_BUCKETS)
+			return index;
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return mean of the values recorded, 0 if none.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            from 0 to 100.
+	 * @return the value below which the given percentile of the recorded
+	 *         values are, within the bucket precision. 0 if none.
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long target = Math.max(1L, (long) Math.ceil(percentile / 100 * n));
+		long cumulative = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			cumulative += counts.get(i);
+			if (cumulative >= target)
+				return Math.min(highestValueOf(i), max.get());
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,18 @@
+package es.omarall.mtc.metrics;
+
+/**
+ * Publishes the metrics of the tailing tasks registered in a
+ * {@link MetricsRegistry}: to JMX, to a monitoring system...
+ */
+public interface MetricsExporter {
+
+	/**
+	 * A task with the given metrics is running.
+	 */
+	public void register(String name, TailingMetrics metrics);
+
+	/**
+	 * The task is stopped.
+	 */
+	public void unregister(String name, TailingMetrics metrics);
+}
@@ -0,0 +1,52 @@
+package es.omarall.mtc.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the metrics of the running tailing tasks configured with this
+ * registry, by task name, and hands them to the exporters added.
+ */
+public class MetricsRegistry {
+
+	private final Map<String, TailingMetrics> metrics = new ConcurrentHashMap<String, TailingMetrics>();
+	private final List<MetricsExporter> exporters = new CopyOnWriteArrayList<MetricsExporter>();
+
+	/**
+	 * Adds an exporter, which gets the metrics already registered too.
+	 */
+	public synchronized void addExporter(MetricsExporter exporter) {
+		exporters.add(exporter);
+		for (Map.Entry<String, TailingMetrics> entry : metrics.entrySet())
+			exporter.register(entry.getKey(), entry.getValue());
+	}
+
+	public synchronized void register(String name, TailingMetrics tailingMetrics) {
+		TailingMetrics previous = metrics.put(name, tailingMetrics);
+		for (MetricsExporter exporter : exporters) {
+			if (previous != null)
+				exporter.unregister(name, previous);
+			exporter.register(name, tailingMetrics);
+		}
+	}
+
+	/**
+	 * Unregisters the metrics, if still registered under the name.
+	 */
+	public synchronized void unregister(String name, TailingMetrics tailingMetrics) {
+		if (metrics.remove(name, tailingMetrics)) {
+			for (MetricsExporter exporter : exporters)
+				exporter.unregister(name, tailingMetrics);
+		}
+	}
+
+	/**
+	 * @return metrics registered, by task name.
+	 */
+	public Map<String, TailingMetrics> getMetrics() {
+		return Collections.unmodifiableMap(metrics);
+	}
+}
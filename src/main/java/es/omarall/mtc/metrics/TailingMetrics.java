@@ -0,0 +1,397 @@
+package es.omarall.mtc.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+
+import es.omarall.mtc.PersistentTrackingManager;
+import es.omarall.mtc.dispatch.BudgetedDocumentDispatcher;
+import es.omarall.mtc.dispatch.RoutedDocumentDispatcher;
+import es.omarall.mtc.retry.RetryScheduler;
+
+/**
+ * Metrics of a tailing task. Recording is lock free and allocates nothing, so
+ * every task keeps them. They are only exported if the task is configured with
+ * a {@link MetricsRegistry}.
+ */
+public class TailingMetrics implements TailingMetricsMXBean {
+
+	private static final long RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final AtomicLong documentsHandled = new AtomicLong();
+	private final AtomicLong handlerErrors = new AtomicLong();
+	private final LatencyHistogram handlerLatency = new LatencyHistogram();
+	private final AtomicLong cursorsBuilt = new AtomicLong();
+	private final AtomicLong cursorsEmpty = new AtomicLong();
+	private final AtomicLong cursorsLost = new AtomicLong();
+	private final AtomicLong queryExceptionRecoveries = new AtomicLong();
+	private final AtomicLong duplicatesSuppressed = new AtomicLong();
+	private final AtomicLong resumeSeeks = new AtomicLong();
+	private final AtomicLong resumeSeekFallbacks = new AtomicLong();
+	private final AtomicLong overruns = new AtomicLong();
+	private final AtomicLong estimatedLostDocuments = new AtomicLong();
+	private final AtomicLong catchUps = new AtomicLong();
+	private final AtomicLong failovers = new AtomicLong();
+	private volatile long lastFailoverMillis;
+	private volatile long maxFailoverMillis;
+	private final AtomicLong laggingMembersLeft = new AtomicLong();
+	private volatile long replicationLagMillis = -1L;
+	private volatile ObjectId lastHandledId;
+
+	private volatile PersistentTrackingManager tracker;
+	private volatile MongoCollection<?> collection;
+	private volatile BudgetedDocumentDispatcher<?> budgetedDispatcher;
+	private volatile RoutedDocumentDispatcher routedDispatcher;
+	private volatile RetryScheduler retryScheduler;
+
+	/*
+	 * RATE: documents handled over the last interval of a second at least.
+	 */
+	private long rateCount;
+	private long rateNanos = System.nanoTime();
+	private double rate;
+
+	/**
+	 * A handler call completed.
+	 *
+	 * @param documents
+	 *            number of documents handled, more than one for batches.
+	 * @param lastId
+	 *            id of the last document handled.
+	 */
+	public void handled(int documents, long latencyNanos, ObjectId lastId) {
+		documentsHandled.addAndGet(documents);
+		handlerLatency.record(latencyNanos);
+		if (lastId != null)
+			lastHandledId = lastId;
+	}
+
+	public void handlerFailed() {
+		handlerErrors.incrementAndGet();
+	}
+
+	public void cursorBuilt() {
+		cursorsBuilt.incrementAndGet();
+	}
+
+	public void cursorEmpty() {
+		cursorsEmpty.incrementAndGet();
+	}
+
+	public void cursorLost() {
+		cursorsLost.incrementAndGet();
+	}
+
+	public void queryExceptionRecovered() {
+		queryExceptionRecoveries.incrementAndGet();
+	}
+
+	public void duplicateSuppressed() {
+		duplicatesSuppressed.incrementAndGet();
+	}
+
+	public void resumeSeek(boolean fallback) {
+		if (fallback)
+			resumeSeekFallbacks.incrementAndGet();
+		else
+			resumeSeeks.incrementAndGet();
+	}
+
+	public void overrun(long estimatedLostDocuments) {
+		overruns.incrementAndGet();
+		this.estimatedLostDocuments.addAndGet(estimatedLostDocuments);
+	}
+
+	public void catchUp() {
+		catchUps.incrementAndGet();
+	}
+
+	/**
+	 * @param millis
+	 *            from the lease of the consumer taken over expiring to tailing
+	 *            again.
+	 */
+	public void failover(long millis) {
+		failovers.incrementAndGet();
+		lastFailoverMillis = millis;
+		if (millis > maxFailoverMillis)
+			maxFailoverMillis = millis;
+	}
+
+	/**
+	 * A cursor was given up for tailing a member further behind than the max
+	 * replication lag.
+	 */
+	public void laggingMemberLeft() {
+		laggingMembersLeft.incrementAndGet();
+	}
+
+	/**
+	 * @param millis
+	 *            replication lag of the member tailed, last measured.
+	 */
+	public void replicationLag(long millis) {
+		replicationLagMillis = millis;
+	}
+
+	/**
+	 * Checkpoint metrics are read from the tracker, if any.
+	 */
+	public void setTracker(PersistentTrackingManager tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Offloaded documents are read from the dispatcher, if documents have a
+	 * time budget.
+	 */
+	public void setBudgetedDispatcher(BudgetedDocumentDispatcher<?> budgetedDispatcher) {
+		this.budgetedDispatcher = budgetedDispatcher;
+	}
+
+	/**
+	 * Documents matching no route are read from the dispatcher, if documents
+	 * are routed.
+	 */
+	public void setRoutedDispatcher(RoutedDocumentDispatcher routedDispatcher) {
+		this.routedDispatcher = routedDispatcher;
+	}
+
+	/**
+	 * Retry metrics are read from the retry scheduler, if any.
+	 */
+	public void setRetryScheduler(RetryScheduler retryScheduler) {
+		this.retryScheduler = retryScheduler;
+	}
+
+	/**
+	 * Lag in documents is counted on the tailed collection, if set.
+	 */
+	public void setCollection(MongoCollection<?> collection) {
+		this.collection = collection;
+	}
+
+	@Override
+	public long getDocumentsHandled() {
+		return documentsHandled.get();
+	}
+
+	@Override
+	public synchronized double getDocumentsHandledPerSecond() {
+		long now = System.nanoTime();
+		long elapsed = now - rateNanos;
+		if (elapsed >= RATE_INTERVAL_NANOS) {
+			long count = documentsHandled.get();
+			rate = (count - rateCount) * (double) RATE_INTERVAL_NANOS / elapsed;
+			rateCount = count;
+			rateNanos = now;
+		}
+		return rate;
+	}
+
+	@Override
+	public long getHandlerErrors() {
+		return handlerErrors.get();
+	}
+
+	public LatencyHistogram getHandlerLatency() {
+		return handlerLatency;
+	}
+
+	@Override
+	public double getHandlerLatencyMeanMicros() {
+		return handlerLatency.getMean() / 1000;
+	}
+
+	@Override
+	public double getHandlerLatencyP50Micros() {
+		return handlerLatency.getValueAtPercentile(50) / 1000d;
+	}
+
+	@Override
+	public double getHandlerLatencyP99Micros() {
+		return handlerLatency.getValueAtPercentile(99) / 1000d;
+	}
+
+	@Override
+	public double getHandlerLatencyP999Micros() {
+		return handlerLatency.getValueAtPercentile(99.9) / 1000d;
+	}
+
+	@Override
+	public double getHandlerLatencyMaxMicros() {
+		return handlerLatency.getMax() / 1000d;
+	}
+
+	@Override
+	public long getCursorsBuilt() {
+		return cursorsBuilt.get();
+	}
+
+	@Override
+	public long getCursorsEmpty() {
+		return cursorsEmpty.get();
+	}
+
+	@Override
+	public long getCursorsLost() {
+		return cursorsLost.get();
+	}
+
+	@Override
+	public long getQueryExceptionRecoveries() {
+		return queryExceptionRecoveries.get();
+	}
+
+	@Override
+	public int getRetryQueueDepth() {
+		RetryScheduler retryScheduler = this.retryScheduler;
+		return retryScheduler == null ? 0 : retryScheduler.getQueueDepth();
+	}
+
+	@Override
+	public int getRetryPending() {
+		RetryScheduler retryScheduler = this.retryScheduler;
+		return retryScheduler == null ? 0 : retryScheduler.getPendingCount();
+	}
+
+	@Override
+	public long getRetries() {
+		RetryScheduler retryScheduler = this.retryScheduler;
+		return retryScheduler == null ? 0 : retryScheduler.getRetries();
+	}
+
+	@Override
+	public long getRetriesSucceeded() {
+		RetryScheduler retryScheduler = this.retryScheduler;
+		return retryScheduler == null ? 0 : retryScheduler.getRetriesSucceeded();
+	}
+
+	@Override
+	public long getDeadLetters() {
+		RetryScheduler retryScheduler = this.retryScheduler;
+		return retryScheduler == null ? 0 : retryScheduler.getDeadLetters();
+	}
+
+	@Override
+	public long getDocumentsOffloaded() {
+		BudgetedDocumentDispatcher<?> budgetedDispatcher = this.budgetedDispatcher;
+		return budgetedDispatcher == null ? 0 : budgetedDispatcher.getDocumentsOffloaded();
+	}
+
+	@Override
+	public long getDocumentsUnrouted() {
+		RoutedDocumentDispatcher routedDispatcher = this.routedDispatcher;
+		return routedDispatcher == null ? 0 : routedDispatcher.getDocumentsUnrouted();
+	}
+
+	@Override
+	public long getDuplicatesSuppressed() {
+		return duplicatesSuppressed.get();
+	}
+
+	@Override
+	public long getResumeSeeks() {
+		return resumeSeeks.get();
+	}
+
+	@Override
+	public long getResumeSeekFallbacks() {
+		return resumeSeekFallbacks.get();
+	}
+
+	@Override
+	public long getOverruns() {
+		return overruns.get();
+	}
+
+	@Override
+	public long getEstimatedLostDocuments() {
+		return estimatedLostDocuments.get();
+	}
+
+	@Override
+	public long getCatchUps() {
+		return catchUps.get();
+	}
+
+	@Override
+	public long getFailovers() {
+		return failovers.get();
+	}
+
+	@Override
+	public long getLastFailoverMillis() {
+		return lastFailoverMillis;
+	}
+
+	@Override
+	public long getMaxFailoverMillis() {
+		return maxFailoverMillis;
+	}
+
+	@Override
+	public long getLaggingMembersLeft() {
+		return laggingMembersLeft.get();
+	}
+
+	@Override
+	public long getReplicationLagMillis() {
+		return replicationLagMillis;
+	}
+
+	@Override
+	public long getCheckpointWrites() {
+		PersistentTrackingManager tracker = this.tracker;
+		return tracker == null ? 0 : tracker.getCheckpointWrites();
+	}
+
+	@Override
+	public long getCheckpointWritesSaved() {
+		PersistentTrackingManager tracker = this.tracker;
+		return tracker == null ? 0 : tracker.getCheckpointWritesSaved();
+	}
+
+	@Override
+	public double getCheckpointLatencyMeanMicros() {
+		PersistentTrackingManager tracker = this.tracker;
+		if (tracker == null || tracker.getCheckpointWrites() == 0)
+			return 0;
+		return tracker.getTotalWriteLatencyNanos() / 1000d / tracker.getCheckpointWrites();
+	}
+
+	@Override
+	public double getCheckpointLatencyMaxMicros() {
+		PersistentTrackingManager tracker = this.tracker;
+		return tracker == null ? 0 : tracker.getMaxWriteLatencyNanos() / 1000d;
+	}
+
+	public ObjectId getLastHandled() {
+		return lastHandledId;
+	}
+
+	@Override
+	public String getLastHandledId() {
+		ObjectId id = lastHandledId;
+		return id == null ? null : id.toHexString();
+	}
+
+	@Override
+	public long getLagMillis() {
+		ObjectId id = lastHandledId;
+		return id == null ? -1 : Math.max(0L, System.currentTimeMillis() - id.getDate().getTime());
+	}
+
+	@Override
+	public long getLagDocuments() {
+		MongoCollection<?> collection = this.collection;
+		if (collection == null)
+			return -1;
+		ObjectId id = lastHandledId;
+		return id == null ? collection.count() : collection.count(Filters.gt("_id", id));
+	}
+}
@@ -0,0 +1,153 @@
+package es.omarall.mtc.metrics;
+
+/**
+ * Metrics of a tailing task, as exposed through JMX. Latencies are in
+ * microseconds, cumulative since the task was built.
+ */
+public interface TailingMetricsMXBean {
+
+	public long getDocumentsHandled();
+
+	/**
+	 * @return documents handled per second, over the last second at least.
+	 */
+	public double getDocumentsHandledPerSecond();
+
+	public long getHandlerErrors();
+
+	public double getHandlerLatencyMeanMicros();
+
+	public double getHandlerLatencyP50Micros();
+
+	public double getHandlerLatencyP99Micros();
+
+	public double getHandlerLatencyP999Micros();
+
+	public double getHandlerLatencyMaxMicros();
+
+	public long getCursorsBuilt();
+
+	public long getCursorsEmpty();
+
+	public long getCursorsLost();
+
+	/**
+	 * @return number of MongoQueryExceptions, such as a cursor not found,
+	 *         recovered from by building a new cursor.
+	 */
+	public long getQueryExceptionRecoveries();
+
+	/**
+	 * @return number of retries of failed documents scheduled and not run
+	 *         yet.
+	 */
+	public int getRetryQueueDepth();
+
+	/**
+	 * @return number of failed documents pending in the spill file.
+	 */
+	public int getRetryPending();
+
+	public long getRetries();
+
+	public long getRetriesSucceeded();
+
+	/**
+	 * @return number of failed documents given up after their last retry.
+	 */
+	public long getDeadLetters();
+
+	/**
+	 * @return number of documents not handled within the time budget, left
+	 *         running on a slow lane.
+	 */
+	public long getDocumentsOffloaded();
+
+	/**
+	 * @return number of documents skipped for matching no route.
+	 */
+	public long getDocumentsUnrouted();
+
+	/**
+	 * @return number of documents dropped as already handled.
+	 */
+	public long getDuplicatesSuppressed();
+
+	/**
+	 * @return number of cursors seeking to the resume document.
+	 */
+	public long getResumeSeeks();
+
+	/**
+	 * @return number of cursors scanning for the resume document, as it was
+	 *         gone or had no seek field.
+	 */
+	public long getResumeSeekFallbacks();
+
+	/**
+	 * @return number of times documents were overwritten before being
+	 *         fetched.
+	 */
+	public long getOverruns();
+
+	/**
+	 * @return documents estimated to be lost on overruns.
+	 */
+	public long getEstimatedLostDocuments();
+
+	/**
+	 * @return number of catch up passes, reading documents with a non tailable
+	 *         cursor.
+	 */
+	public long getCatchUps();
+
+	/**
+	 * @return number of times this consumer took over from a hot standby.
+	 */
+	public long getFailovers();
+
+	/**
+	 * @return milliseconds from the lease of the consumer taken over expiring
+	 *         to tailing again, on the last failover.
+	 */
+	public long getLastFailoverMillis();
+
+	public long getMaxFailoverMillis();
+
+	/**
+	 * @return number of cursors given up for tailing a member further behind
+	 *         than the max replication lag.
+	 */
+	public long getLaggingMembersLeft();
+
+	/**
+	 * @return replication lag of the member tailed, last measured. -1 if not
+	 *         measured.
+	 */
+	public long getReplicationLagMillis();
+
+	public long getCheckpointWrites();
+
+	public long getCheckpointWritesSaved();
+
+	public double getCheckpointLatencyMeanMicros();
+
+	public double getCheckpointLatencyMaxMicros();
+
+	/**
+	 * @return id of the last document handled, null if none.
+	 */
+	public String getLastHandledId();
+
+	/**
+	 * @return milliseconds since the last document handled was created, from
+	 *         its ObjectId timestamp, so with a second resolution. -1 if none.
+	 */
+	public long getLagMillis();
+
+	/**
+	 * @return number of documents in the collection after the last document
+	 *         handled. Counted on each call. -1 if unknown.
+	 */
+	public long getLagDocuments();
+}
@@ -0,0 +1,217 @@
+package es.omarall.mtc.retry;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.configuration.MTCRetryConfiguration;
+import es.omarall.mtc.dispatch.RawDocumentAdapter;
+
+/**
+ * Retries documents whose handling failed, on its own threads, so the tail
+ * keeps moving. A failed document is appended to the {@link SpillFile} on the
+ * failing thread, then retried after initialDelay milliseconds, doubling the
+ * delay on each failure up to maxDelay. After maxAttempts retries it is given
+ * up as a dead letter, kept in the spill file to be replayed.
+ *
+ * Documents pending when the scheduler was closed, or the process died, are
+ * retried once started again on the same spill file. Retried documents are
+ * handled out of order.
+ */
+public class RetryScheduler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RetryScheduler.class);
+
+	private final MTCRetryConfiguration configuration;
+	private final Consumer<RawBsonDocument> handler;
+	private volatile SpillFile spillFile;
+	private volatile ScheduledExecutorService executor;
+
+	/*
+	 * COUNTERS
+	 */
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong retriesSucceeded = new AtomicLong();
+	private final AtomicLong deadLetters = new AtomicLong();
+
+	/**
+	 * @param handler
+	 *            handles a document being retried, throwing if it fails again.
+	 */
+	public RetryScheduler(MTCRetryConfiguration configuration, Consumer<RawBsonDocument> handler) {
+		this.configuration = configuration;
+		this.handler = handler;
+	}
+
+	/**
+	 * Opens the spill file and schedules the documents pending in it.
+	 */
+	public synchronized void start() {
+
+		if (executor != null)
+			return;
+
+		spillFile = new SpillFile(configuration.getSpillFile());
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newScheduledThreadPool(configuration.getRetryThreads(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mtc-retry-" + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		for (RawBsonDocument doc : spillFile.getPending())
+			schedule(doc, 1);
+	}
+
+	/**
+	 * Spills a failed document and schedules its first retry. Does not wait
+	 * for the retry. Not started, or closed, the document is not spilled.
+	 */
+	public void failed(RawBsonDocument doc) {
+		if (executor == null) {
+			LOG.warn("+ MONGOESB - Retries not running. Failed document {} not spilled",
+					RawDocumentAdapter.INSTANCE.getId(doc));
+			return;
+		}
+		spillFile.failed(doc);
+		schedule(doc, 1);
+	}
+
+	private void schedule(final RawBsonDocument doc, final int attempt) {
+
+		long delay = configuration.getInitialDelay() << Math.min(attempt - 1, 30);
+		if (delay <= 0 || delay > configuration.getMaxDelay())
+			delay = configuration.getMaxDelay();
+
+		ScheduledExecutorService executor = this.executor;
+		if (executor == null)
+			return;
+		queueDepth.incrementAndGet();
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					queueDepth.decrementAndGet();
+					retry(doc, attempt);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Closing: kept pending in the spill file
+			queueDepth.decrementAndGet();
+		}
+	}
+
+	private void retry(RawBsonDocument doc, int attempt) {
+
+		ObjectId id = RawDocumentAdapter.INSTANCE.getId(doc);
+		retries.incrementAndGet();
+		try {
+			handler.accept(doc);
+		} catch (Exception e) {
+			if (executor == null) {
+				// Closing, maybe interrupted: kept pending, not an attempt
+				LOG.info("+ MONGOESB - Retry {} of document {} stopped on close. Kept pending", attempt, id);
+				return;
+			}
+			if (attempt >= configuration.getMaxAttempts()) {
+				LOG.error("+ MONGOESB - Document {} failed {} retries. Given up as a dead letter", id, attempt, e);
+				spillFile.dead(id);
+				deadLetters.incrementAndGet();
+			} else {
+				LOG.warn("+ MONGOESB - Retry {} of document {} failed", attempt, id, e);
+				schedule(doc, attempt + 1);
+			}
+			return;
+		}
+		spillFile.done(id);
+		retriesSucceeded.incrementAndGet();
+		LOG.debug("Document {} handled on retry {}", id, attempt);
+	}
+
+	/**
+	 * Schedules every dead letter for retries again, as if it just failed.
+	 *
+	 * @return number of dead letters replayed.
+	 */
+	public int replayDeadLetters() {
+		List<RawBsonDocument> replayed = spillFile.requeueDeadLetters();
+		for (RawBsonDocument doc : replayed)
+			schedule(doc, 1);
+		return replayed.size();
+	}
+
+	/**
+	 * Stops retrying. Retries running are interrupted and waited for up to
+	 * the timeout, and documents still pending are kept in the spill file.
+	 * 
+	 * @param timeout
+	 *            milliseconds retries running are waited for. Those still
+	 *            running then may complete after the spill file is closed,
+	 *            their documents being retried again on start.
+	 */
+	public synchronized void close(long timeout) {
+
+		ScheduledExecutorService executor = this.executor;
+		if (executor == null)
+			return;
+		this.executor = null;
+
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+				LOG.warn("+ MONGOESB - Retries still running after {} ms. Kept pending", timeout);
+		} catch (InterruptedException e) {
+			LOG.error("Thread was interrupted", e);
+			Thread.currentThread().interrupt();
+		}
+		queueDepth.set(0);
+		spillFile.close();
+	}
+
+	/**
+	 * @return number of retries scheduled and not run yet.
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	/**
+	 * @return number of documents pending in the spill file, scheduled or
+	 *         running.
+	 */
+	public int getPendingCount() {
+		SpillFile spillFile = this.spillFile;
+		return spillFile == null ? 0 : spillFile.getPendingCount();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getRetriesSucceeded() {
+		return retriesSucceeded.get();
+	}
+
+	public long getDeadLetters() {
+		return deadLetters.get();
+	}
+
+	public SpillFile getSpillFile() {
+		return spillFile;
+	}
+}
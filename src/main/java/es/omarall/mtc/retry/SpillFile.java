@@ -0,0 +1,366 @@
+package es.omarall.mtc.retry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import es.omarall.mtc.dispatch.RawDocumentAdapter;
+import es.omarall.mtc.exceptions.MTCException;
+
+/**
+ * Append only log of failed documents. A document is appended as FAILED when
+ * its handling fails, then DONE once a retry succeeds, or DEAD once given up.
+ * Opening the file reads it back: documents FAILED and not DONE are pending,
+ * documents DEAD are dead letters.
+ *
+ * Records are: payload length | type | payload checksum | payload, the
+ * document bytes for FAILED, the 12 id bytes otherwise. A record torn by a
+ * crash is dropped on open. Appends are not forced to disk: they survive the
+ * process dying, not the host.
+ *
+ * Opening and closing compact the file, keeping only pending documents and
+ * dead letters, and so does an append once the file is over compactionSize
+ * bytes, half of them or more taken by records no longer needed: a consumer
+ * running for long with few failures pending does not grow it without bound.
+ * The compacted file replaces the spill file with an atomic move.
+ *
+ * A spill file is open by one instance at a time, across processes: an
+ * exclusive lock on a sibling file, spill file name plus ".lock", is held
+ * while open.
+ */
+public class SpillFile implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SpillFile.class);
+
+	static final byte FAILED = 1;
+	static final byte DONE = 2;
+	static final byte DEAD = 3;
+
+	private static final int HEADER_SIZE = 9;
+	private static final int ID_RECORD_SIZE = HEADER_SIZE + 12;
+
+	public static final long DEFAULT_COMPACTION_SIZE = 1L << 20;
+
+	private final File file;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private FileChannel channel;
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	private final CRC32 crc = new CRC32();
+
+	private final Map<ObjectId, RawBsonDocument> pending = new LinkedHashMap<ObjectId, RawBsonDocument>();
+	private final Map<ObjectId, RawBsonDocument> deadLetters = new LinkedHashMap<ObjectId, RawBsonDocument>();
+
+	private final long compactionSize;
+
+	/**
+	 * Bytes a compaction would keep: the records of pending documents and
+	 * dead letters.
+	 */
+	private long liveSize;
+	private long compactions;
+
+	/**
+	 * Opens the spill file, creating it if it does not exist, and reads back
+	 * pending documents and dead letters.
+	 *
+	 * @throws MTCException
+	 *             if the file can not be read or written, or is open by
+	 *             another instance, in this process or another one.
+	 */
+	public SpillFile(File file) {
+		this(file, DEFAULT_COMPACTION_SIZE);
+	}
+
+	/**
+	 * @param compactionSize
+	 *            size in bytes past which appends compact the file, if half
+	 *            of it or more is no longer needed.
+	 */
+	SpillFile(File file, long compactionSize) {
+		this.file = file;
+		this.compactionSize = compactionSize;
+		FileChannel lockChannel = null;
+		FileLock lock = null;
+		try {
+			lockChannel = new RandomAccessFile(file.getPath() + ".lock", "rw").getChannel();
+			try {
+				lock = lockChannel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// Held by another instance in this process
+			}
+			if (lock == null)
+				throw new MTCException("Spill file is open by another consumer or tool: " + file);
+
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			read();
+			compact();
+		} catch (IOException e) {
+			closeQuietly(channel);
+			closeQuietly(lockChannel);
+			throw new MTCException("Spill file could not be opened: " + file, e);
+		} catch (RuntimeException e) {
+			closeQuietly(channel);
+			closeQuietly(lockChannel);
+			throw e;
+		}
+		this.lockChannel = lockChannel;
+		this.lock = lock;
+		LOG.info("+ MONGOESB - Spill file {} opened: {} pending documents, {} dead letters", file, pending.size(),
+				deadLetters.size());
+	}
+
+	private void read() throws IOException {
+
+		long position = 0;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (position + HEADER_SIZE <= size) {
+
+			header.clear();
+			channel.read(header, position);
+			header.flip();
+			int length = header.getInt();
+			byte type = header.get();
+			int checksum = header.getInt();
+			if (length < 0 || position + HEADER_SIZE + length > size)
+				break;
+
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			channel.read(payload, position + HEADER_SIZE);
+			if (checksum(payload.array(), length) != checksum)
+				break;
+
+			apply(type, payload.array());
+			position += HEADER_SIZE + length;
+		}
+
+		if (position < size)
+			LOG.warn("+ MONGOESB - Spill file {} has a torn record at {}. Dropped", file, position);
+	}
+
+	private void apply(byte type, byte[] payload) {
+
+		if (type == FAILED) {
+			RawBsonDocument doc = new RawBsonDocument(payload);
+			ObjectId id = RawDocumentAdapter.INSTANCE.getId(doc);
+			deadLetters.remove(id);
+			pending.put(id, doc);
+		} else if (type == DONE) {
+			pending.remove(new ObjectId(payload));
+		} else if (type == DEAD) {
+			ObjectId id = new ObjectId(payload);
+			RawBsonDocument doc = pending.remove(id);
+			if (doc != null)
+				deadLetters.put(id, doc);
+		}
+	}
+
+	/**
+	 * Rewrites the file with only pending documents and dead letters.
+	 */
+	private void compact() throws IOException {
+
+		File compacted = new File(file.getPath() + ".compact");
+		FileChannel previous = channel;
+		channel = new RandomAccessFile(compacted, "rw").getChannel();
+		channel.truncate(0);
+		for (RawBsonDocument doc : deadLetters.values()) {
+			write(FAILED, doc.getByteBuffer().asNIO());
+			write(DEAD, ByteBuffer.wrap(RawDocumentAdapter.INSTANCE.getId(doc).toByteArray()));
+		}
+		for (RawBsonDocument doc : pending.values())
+			write(FAILED, doc.getByteBuffer().asNIO());
+		channel.force(true);
+		previous.close();
+
+		channel.close();
+		Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		liveSize = channel.size();
+		channel.position(liveSize);
+	}
+
+	private static long recordSize(RawBsonDocument doc) {
+		return HEADER_SIZE + doc.getByteBuffer().remaining();
+	}
+
+	/**
+	 * Appends a failed document: pending until DONE or DEAD.
+	 */
+	public synchronized void failed(RawBsonDocument doc) {
+		ObjectId id = RawDocumentAdapter.INSTANCE.getId(doc);
+		append(FAILED, doc.getByteBuffer().asNIO());
+		RawBsonDocument deadLetter = deadLetters.remove(id);
+		if (deadLetter != null)
+			liveSize -= recordSize(deadLetter) + ID_RECORD_SIZE;
+		RawBsonDocument previous = pending.put(id, doc);
+		if (previous != null)
+			liveSize -= recordSize(previous);
+		liveSize += recordSize(doc);
+		compactIfWasted();
+	}
+
+	/**
+	 * Appends a pending document as retried successfully.
+	 */
+	public synchronized void done(ObjectId id) {
+		append(DONE, ByteBuffer.wrap(id.toByteArray()));
+		RawBsonDocument doc = pending.remove(id);
+		if (doc != null)
+			liveSize -= recordSize(doc);
+		compactIfWasted();
+	}
+
+	/**
+	 * Appends a pending document as given up.
+	 */
+	public synchronized void dead(ObjectId id) {
+		append(DEAD, ByteBuffer.wrap(id.toByteArray()));
+		RawBsonDocument doc = pending.remove(id);
+		if (doc != null) {
+			deadLetters.put(id, doc);
+			liveSize += ID_RECORD_SIZE;
+		}
+		compactIfWasted();
+	}
+
+	private void append(byte type, ByteBuffer payload) {
+		try {
+			write(type, payload);
+		} catch (IOException e) {
+			throw new MTCException("Spill file could not be written: " + file, e);
+		}
+	}
+
+	/**
+	 * Compacts the file once over compactionSize bytes, half of them or more
+	 * no longer needed.
+	 */
+	private void compactIfWasted() {
+		try {
+			long size = channel.position();
+			if (size < compactionSize || size - liveSize < size / 2)
+				return;
+			compact();
+			compactions++;
+			LOG.debug("Spill file {} compacted from {} to {} bytes", file, size, liveSize);
+		} catch (IOException e) {
+			throw new MTCException("Spill file could not be compacted: " + file, e);
+		}
+	}
+
+	private void write(byte type, ByteBuffer payload) throws IOException {
+
+		int length = payload.remaining();
+		byte[] bytes = new byte[length];
+		payload.duplicate().get(bytes);
+
+		header.clear();
+		header.putInt(length).put(type).putInt(checksum(bytes, length));
+		header.flip();
+		ByteBuffer body = ByteBuffer.wrap(bytes);
+		while (header.hasRemaining() || body.hasRemaining())
+			channel.write(new ByteBuffer[] { header, body });
+	}
+
+	private int checksum(byte[] bytes, int length) {
+		crc.reset();
+		crc.update(bytes, 0, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Appends every dead letter as failed again, so it is pending.
+	 *
+	 * @return the dead letters requeued.
+	 */
+	public synchronized List<RawBsonDocument> requeueDeadLetters() {
+		List<RawBsonDocument> requeued = getDeadLetters();
+		for (RawBsonDocument doc : requeued)
+			failed(doc);
+		return requeued;
+	}
+
+	/**
+	 * @return documents failed and neither retried successfully nor given up,
+	 *         in failure order.
+	 */
+	public synchronized List<RawBsonDocument> getPending() {
+		return new ArrayList<RawBsonDocument>(pending.values());
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return documents given up, in failure order.
+	 */
+	public synchronized List<RawBsonDocument> getDeadLetters() {
+		return new ArrayList<RawBsonDocument>(deadLetters.values());
+	}
+
+	public synchronized int getDeadLetterCount() {
+		return deadLetters.size();
+	}
+
+	/**
+	 * @return compactions on append, since opened.
+	 */
+	public synchronized long getCompactions() {
+		return compactions;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Compacts and closes the file, then releases the lock. Pending documents
+	 * are retried once opened again.
+	 */
+	@Override
+	public synchronized void close() {
+		try {
+			compact();
+			channel.close();
+		} catch (IOException e) {
+			LOG.error("Spill file could not be closed", e);
+		}
+		try {
+			lock.release();
+		} catch (IOException e) {
+			LOG.error("Spill file lock could not be released", e);
+		}
+		closeQuietly(lockChannel);
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.debug("Channel could not be closed", e);
+		}
+	}
+}
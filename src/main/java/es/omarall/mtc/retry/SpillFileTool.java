@@ -0,0 +1,64 @@
+package es.omarall.mtc.retry;
+
+import java.io.File;
+
+import org.bson.RawBsonDocument;
+
+import es.omarall.mtc.exceptions.MTCException;
+
+/**
+ * Command line tool for spill files. Refuses to run while a consumer has the
+ * file open, see {@link SpillFile}:
+ * 
+ * <pre>
+ * java -cp ... es.omarall.mtc.retry.SpillFileTool &lt;spill file&gt; list|dump|requeue
+ * </pre>
+ * 
+ * list prints the number of pending documents and dead letters. dump prints
+ * them as JSON lines. requeue makes dead letters pending again, so they are
+ * retried once the consumer starts.
+ */
+public class SpillFileTool {
+
+	public static void main(String[] args) {
+
+		if (args.length != 2) {
+			System.err.println("Usage: SpillFileTool <spill file> list|dump|requeue");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		if (!file.exists()) {
+			System.err.println("No spill file " + file);
+			System.exit(1);
+		}
+
+		SpillFile spillFile;
+		try {
+			spillFile = new SpillFile(file);
+		} catch (MTCException e) {
+			System.err.println(e.getMessage() + ". Stop the consumer first");
+			System.exit(1);
+			return;
+		}
+		try {
+			String command = args[1];
+			if (command.equals("list")) {
+				System.out.println("pending: " + spillFile.getPendingCount() + ", dead letters: "
+						+ spillFile.getDeadLetterCount());
+			} else if (command.equals("dump")) {
+				for (RawBsonDocument doc : spillFile.getPending())
+					System.out.println("{ \"status\" : \"pending\", \"document\" : " + doc.toJson() + " }");
+				for (RawBsonDocument doc : spillFile.getDeadLetters())
+					System.out.println("{ \"status\" : \"dead\", \"document\" : " + doc.toJson() + " }");
+			} else if (command.equals("requeue")) {
+				System.out.println("requeued: " + spillFile.requeueDeadLetters().size());
+			} else {
+				System.err.println("Unknown command " + command);
+				System.exit(1);
+			}
+		} finally {
+			spillFile.close();
+		}
+	}
+}
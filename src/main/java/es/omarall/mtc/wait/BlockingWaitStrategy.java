@@ -0,0 +1,46 @@
+package es.omarall.mtc.wait;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocks the thread on a condition until signaled. Waits are bounded, so a
+ * missed signal only costs a timeout. Lowest CPU usage, highest latency.
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+
+	private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition condition = lock.newCondition();
+	private volatile int waiters;
+
+	@Override
+	public void idle(int attempt) {
+		lock.lock();
+		try {
+			waiters++;
+			condition.awaitNanos(MAX_WAIT_NANOS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			waiters--;
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		// Cheap check: no lock taken when nobody waits
+		if (waiters == 0)
+			return;
+		lock.lock();
+		try {
+			condition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
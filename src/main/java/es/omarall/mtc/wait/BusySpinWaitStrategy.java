@@ -0,0 +1,15 @@
+package es.omarall.mtc.wait;
+
+/**
+ * Keeps the thread spinning. Lowest latency, burns a core while waiting.
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+	@Override
+	public void idle(int attempt) {
+	}
+
+	@Override
+	public void signalAll() {
+	}
+}
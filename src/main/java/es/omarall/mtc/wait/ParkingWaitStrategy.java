@@ -0,0 +1,46 @@
+package es.omarall.mtc.wait;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks the thread, doubling the park time on each attempt from a min up to a
+ * max park time.
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+
+	public static final long DEFAULT_MIN_PARK_NANOS = 1000L;
+	public static final long DEFAULT_MAX_PARK_NANOS = 1000000L;
+
+	private final long minParkNanos;
+	private final long maxParkNanos;
+
+	public ParkingWaitStrategy() {
+		this(DEFAULT_MIN_PARK_NANOS, DEFAULT_MAX_PARK_NANOS);
+	}
+
+	public ParkingWaitStrategy(long minParkNanos, long maxParkNanos) {
+		if (minParkNanos <= 0 || maxParkNanos < minParkNanos)
+			throw new IllegalArgumentException("0 < minParkNanos <= maxParkNanos expected");
+		this.minParkNanos = minParkNanos;
+		this.maxParkNanos = maxParkNanos;
+	}
+
+	@Override
+	public void idle(int attempt) {
+		LockSupport.parkNanos(parkNanos(attempt));
+	}
+
+	/**
+	 * @return nanos to park on the given attempt.
+	 */
+	public long parkNanos(int attempt) {
+		// Avoid overflows: beyond 62 shifts we are at max for sure
+		if (attempt >= 62 || (minParkNanos << attempt) >>> attempt != minParkNanos)
+			return maxParkNanos;
+		return Math.min(minParkNanos << attempt, maxParkNanos);
+	}
+
+	@Override
+	public void signalAll() {
+	}
+}
@@ -0,0 +1,26 @@
+package es.omarall.mtc.wait;
+
+/**
+ * Decides how a thread waits while the condition it is waiting for is not met:
+ * a slot to be free, a document to be available...
+ * 
+ * Callers check the condition and call {@link #idle(int)} while it is not met,
+ * so strategies never block forever.
+ */
+public interface WaitStrategy {
+
+	/**
+	 * Waits a bit.
+	 * 
+	 * @param attempt
+	 *            number of consecutive times the condition was checked
+	 *            without success, starting at 0.
+	 */
+	public void idle(int attempt);
+
+	/**
+	 * Wakes up threads waiting with this strategy, if any. Called each time
+	 * the condition might have changed.
+	 */
+	public void signalAll();
+}
@@ -0,0 +1,22 @@
+package es.omarall.mtc.wait;
+
+/**
+ * Available {@link WaitStrategy} implementations, to be chosen by
+ * configuration.
+ */
+public enum WaitStrategyType {
+	BLOCKING, PARKING, YIELDING, BUSY_SPIN;
+
+	public WaitStrategy newWaitStrategy() {
+		switch (this) {
+		case PARKING:
+			return new ParkingWaitStrategy();
+		case YIELDING:
+			return new YieldingWaitStrategy();
+		case BUSY_SPIN:
+			return new BusySpinWaitStrategy();
+		default:
+			return new BlockingWaitStrategy();
+		}
+	}
+}
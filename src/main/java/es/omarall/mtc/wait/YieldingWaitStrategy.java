@@ -0,0 +1,19 @@
+package es.omarall.mtc.wait;
+
+/**
+ * Spins for a while and then yields the CPU to other threads.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+	private static final int SPIN_TRIES = 100;
+
+	@Override
+	public void idle(int attempt) {
+		if (attempt >= SPIN_TRIES)
+			Thread.yield();
+	}
+
+	@Override
+	public void signalAll() {
+	}
+}
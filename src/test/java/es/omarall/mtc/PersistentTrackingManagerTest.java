@@ -0,0 +1,145 @@
+package es.omarall.mtc;
+
+import static es.omarall.mtc.TestSupport.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.TestSupport.Condition;
+import es.omarall.mtc.checkpoint.InMemoryCheckpointStore;
+
+public class PersistentTrackingManagerTest {
+
+	private static final String CONSUMER_ID = "consumer";
+
+	/**
+	 * Counts the writes, failing the next ones if asked to.
+	 */
+	private static class CountingCheckpointStore extends InMemoryCheckpointStore {
+
+		private final AtomicInteger saves = new AtomicInteger();
+		private volatile int failures;
+
+		@Override
+		public void save(String consumerId, ObjectId id) {
+			if (failures > 0) {
+				failures--;
+				throw new IllegalStateException("Store unavailable");
+			}
+			saves.incrementAndGet();
+			super.save(consumerId, id);
+		}
+	}
+
+	private final CountingCheckpointStore store = new CountingCheckpointStore();
+
+	private PersistentTrackingManager manager(boolean writeBehind, int checkpointMaxDocuments,
+			long checkpointInterval) {
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+		trackingConfiguration.setConsumerId(CONSUMER_ID);
+		trackingConfiguration.setCheckpointStore(store);
+		trackingConfiguration.setWriteBehind(writeBehind);
+		trackingConfiguration.setCheckpointMaxDocuments(checkpointMaxDocuments);
+		trackingConfiguration.setCheckpointInterval(checkpointInterval);
+
+		MTCConfiguration configuration = new MTCConfiguration();
+		configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+		return new PersistentTrackingManager(configuration);
+	}
+
+	private void awaitCheckpoint(final ObjectId id) throws InterruptedException {
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return id.equals(store.load(CONSUMER_ID));
+			}
+		});
+		assertEquals(id, store.load(CONSUMER_ID));
+	}
+
+	@Test
+	public void everyIdIsWrittenWithoutWriteBehind() {
+
+		PersistentTrackingManager manager = manager(false, 3, 60000L);
+		manager.start();
+		ObjectId id = new ObjectId();
+		manager.trackEventId(new ObjectId());
+		manager.trackEventId(id);
+
+		assertEquals(2, store.saves.get());
+		assertEquals(id, manager.fetchLastTrackedEventId());
+		manager.close();
+	}
+
+	@Test
+	public void idsAreCoalescedUpToCheckpointMaxDocuments() throws InterruptedException {
+
+		PersistentTrackingManager manager = manager(true, 3, 60000L);
+		manager.start();
+		manager.trackEventId(new ObjectId());
+		manager.trackEventId(new ObjectId());
+		assertNull(store.load(CONSUMER_ID));
+
+		ObjectId id = new ObjectId();
+		manager.trackEventId(id);
+		awaitCheckpoint(id);
+		assertEquals(1, store.saves.get());
+		assertEquals(2, manager.getCheckpointWritesSaved());
+		manager.close();
+	}
+
+	@Test
+	public void pendingIdIsWrittenEveryCheckpointInterval() throws InterruptedException {
+
+		PersistentTrackingManager manager = manager(true, 1000, 20L);
+		manager.start();
+		ObjectId id = new ObjectId();
+		manager.trackEventId(id);
+		awaitCheckpoint(id);
+		manager.close();
+	}
+
+	@Test
+	public void closeForcesTheFinalWrite() {
+
+		PersistentTrackingManager manager = manager(true, 1000, 60000L);
+		manager.start();
+		ObjectId id = new ObjectId();
+		manager.trackEventId(new ObjectId());
+		manager.trackEventId(id);
+		assertNull(store.load(CONSUMER_ID));
+
+		manager.close();
+		assertEquals(id, store.load(CONSUMER_ID));
+		assertEquals(1, store.saves.get());
+	}
+
+	@Test
+	public void failedWriteKeepsTheIdPending() {
+
+		PersistentTrackingManager manager = manager(true, 1000, 60000L);
+		manager.start();
+		ObjectId id = new ObjectId();
+		manager.trackEventId(id);
+
+		store.failures = 1;
+		try {
+			manager.flush();
+			fail("Store failure expected");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		assertNull(store.load(CONSUMER_ID));
+
+		manager.close();
+		assertEquals(id, store.load(CONSUMER_ID));
+	}
+}
@@ -0,0 +1,460 @@
+package es.omarall.mtc;
+
+import static es.omarall.mtc.TestSupport.await;
+import static es.omarall.mtc.TestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.TestSupport.Condition;
+import es.omarall.mtc.checkpoint.InMemoryCheckpointStore;
+import es.omarall.mtc.wait.ParkingWaitStrategy;
+import es.omarall.mtc.wait.WaitStrategy;
+
+/**
+ * Queries and overrun estimates are tested offline. Tailing runs against the
+ * mongod at localhost:27017, or the host:port in the mtc.test.mongo system
+ * property, on a database of its own, and is skipped if there is none.
+ */
+public class TailingTaskTest {
+
+	private static final String COLLECTION = "events";
+	private static final String CONSUMER_ID = "consumer";
+
+	private MongoClient mongoClient;
+	private MongoDatabase database;
+
+	private final List<ObjectId> handled = new CopyOnWriteArrayList<ObjectId>();
+
+	@After
+	public void dropDatabase() {
+		if (mongoClient == null)
+			return;
+		database.drop();
+		mongoClient.close();
+	}
+
+	/**
+	 * Creates the capped collection, of up to maxDocuments if positive, on a
+	 * database of its own. Skips the test if there is no mongod.
+	 */
+	private MTCConfiguration configuration(long maxDocuments) {
+
+		mongoClient = TestSupport.mongoClient();
+		Assume.assumeNotNull(mongoClient);
+		database = mongoClient.getDatabase("mtc-test-" + new ObjectId());
+		CreateCollectionOptions options = new CreateCollectionOptions().capped(true).sizeInBytes(1 << 20);
+		if (maxDocuments > 0)
+			options.maxDocuments(maxDocuments);
+		database.createCollection(COLLECTION, options);
+
+		MTCConfiguration configuration = new MTCConfiguration();
+		configuration.setMongoClient(mongoClient);
+		configuration.setDatabase(database.getName());
+		configuration.setCollection(COLLECTION);
+		return configuration;
+	}
+
+	private TailingTask task(MTCConfiguration configuration) {
+		TailingTask task = new TailingTask(configuration);
+		task.setDocumentHandler(new DocumentHandler() {
+			@Override
+			public void handleDocument(Document doc) {
+				handled.add(id(doc));
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Enables tracking, with a checkpoint at the resume id.
+	 */
+	private void resumeAfter(MTCConfiguration configuration, ObjectId resumeId) {
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+		trackingConfiguration.setConsumerId(CONSUMER_ID);
+		configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+		database.getCollection(MTCPersistentTrackingConfiguration.TRACKER_COLLECTION_NAME)
+				.insertOne(new Document(MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD, CONSUMER_ID)
+						.append(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD, resumeId));
+	}
+
+	/**
+	 * Starts the task and runs it on a thread of its own.
+	 */
+	private static Thread run(TailingTask task) {
+		task.start();
+		Thread thread = new Thread(task, "mtc-tailing-test");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private ObjectId insert(Document doc) {
+		database.getCollection(COLLECTION).insertOne(doc);
+		return id(doc);
+	}
+
+	private ObjectId insert() {
+		return insert(TestSupport.document());
+	}
+
+	private void awaitHandled(final int count) throws InterruptedException {
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return handled.size() >= count;
+			}
+		});
+		assertEquals(count, handled.size());
+	}
+
+	private static ObjectId idAt(long seconds) {
+		return new ObjectId(new Date(TimeUnit.SECONDS.toMillis(seconds)));
+	}
+
+	private static BsonDocument render(Bson bson) {
+		return bson.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+	}
+
+	@Test
+	public void idleStrategyIsCalledWithConsecutiveAttemptsFromTheFirst() throws InterruptedException {
+
+		final List<Integer> attempts = new CopyOnWriteArrayList<Integer>();
+		MTCConfiguration configuration = configuration(0L);
+		configuration.setCursorIdleStrategy(new WaitStrategy() {
+			@Override
+			public void idle(int attempt) {
+				attempts.add(attempt);
+			}
+
+			@Override
+			public void signalAll() {
+			}
+		});
+		TailingTask task = task(configuration);
+		Thread thread = run(task);
+
+		// The collection is empty: every cursor comes back with no data
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return attempts.size() >= 3;
+			}
+		});
+		assertEquals(Arrays.asList(0, 1, 2), attempts.subList(0, 3));
+
+		ObjectId id = insert();
+		awaitHandled(1);
+		assertEquals(id, handled.get(0));
+		task.stop();
+		thread.join(5000L);
+		assertFalse(thread.isAlive());
+	}
+
+	@Test
+	public void stopWakesTheTaskIdleBeforeTheNextCursor() throws InterruptedException {
+
+		MTCConfiguration configuration = configuration(0L);
+		long parkNanos = TimeUnit.SECONDS.toNanos(30L);
+		configuration.setCursorIdleStrategy(new ParkingWaitStrategy(parkNanos, parkNanos));
+		final TailingTask task = task(configuration);
+		Thread thread = run(task);
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return task.getCursorsEmpty() >= 1;
+			}
+		});
+
+		task.stop();
+		thread.join(5000L);
+		assertFalse(thread.isAlive());
+	}
+
+	@Test
+	public void lostDocumentsAreEstimatedFromTheInsertRate() {
+
+		// 40 documents over 20 seconds, the 10 seconds after the resume
+		// document lost
+		assertEquals(20L, TailingTask.estimateLostDocuments(idAt(100L), idAt(110L), idAt(130L), 40L));
+	}
+
+	@Test
+	public void lostDocumentsAreNotEstimatedWithinTheSameSecond() {
+
+		assertEquals(0L, TailingTask.estimateLostDocuments(idAt(100L), idAt(110L), idAt(110L), 40L));
+		assertEquals(0L, TailingTask.estimateLostDocuments(idAt(110L), idAt(110L), idAt(130L), 40L));
+	}
+
+	@Test
+	public void overrunIsReportedOnceWithTheOldestDocumentLeft() throws InterruptedException {
+
+		MTCConfiguration configuration = configuration(3L);
+		configuration.setOverrunDetection(true);
+		ObjectId resumeId = insert();
+		resumeAfter(configuration, resumeId);
+		ObjectId[] ids = new ObjectId[5];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = insert();
+
+		final List<ObjectId[]> overruns = new CopyOnWriteArrayList<ObjectId[]>();
+		TailingTask task = task(configuration);
+		task.setOverrunListener(new OverrunListener() {
+			@Override
+			public void onOverrun(ObjectId from, ObjectId oldestId, long estimatedLostDocuments) {
+				overruns.add(new ObjectId[] { from, oldestId });
+			}
+		});
+		Thread thread = run(task);
+
+		awaitHandled(3);
+		assertEquals(Arrays.asList(ids[2], ids[3], ids[4]), handled);
+		assertEquals(1, overruns.size());
+		assertEquals(resumeId, overruns.get(0)[0]);
+		assertEquals(ids[2], overruns.get(0)[1]);
+		assertEquals(1L, task.getMetrics().getOverruns());
+		task.stop();
+		thread.join(5000L);
+	}
+
+	@Test
+	public void documentsBehindTheThresholdAreCaughtUpInOrder() throws InterruptedException {
+
+		MTCConfiguration configuration = configuration(0L);
+		configuration.setCatchUpThreshold(3L);
+		configuration.setCatchUpBatchSize(2);
+		ObjectId[] ids = new ObjectId[5];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = insert();
+
+		TailingTask task = task(configuration);
+		Thread thread = run(task);
+		awaitHandled(5);
+		assertEquals(Arrays.asList(ids), handled);
+		assertEquals(1L, task.getMetrics().getCatchUps());
+
+		ObjectId id = insert();
+		awaitHandled(6);
+		assertEquals(id, handled.get(5));
+		assertEquals(1L, task.getMetrics().getCatchUps());
+		task.stop();
+		thread.join(5000L);
+	}
+
+	@Test
+	public void noDocumentsBehindTheThresholdAreNotCaughtUp() throws InterruptedException {
+
+		MTCConfiguration configuration = configuration(0L);
+		configuration.setCatchUpThreshold(3L);
+		insert();
+		insert();
+
+		TailingTask task = task(configuration);
+		Thread thread = run(task);
+		awaitHandled(2);
+		assertEquals(0L, task.getMetrics().getCatchUps());
+		task.stop();
+		thread.join(5000L);
+	}
+
+	@Test
+	public void queryWithoutResumeIdIsTheFilter() {
+
+		Bson filter = Filters.eq("type", "order");
+		assertEquals(new BsonDocument(), render(TailingTask.buildQuery(null, null)));
+		assertEquals(render(filter), render(TailingTask.buildQuery(filter, null)));
+	}
+
+	@Test
+	public void queryStartsAfterTheResumeId() {
+
+		ObjectId resumeId = new ObjectId();
+		BsonDocument after = new BsonDocument("$gt", new BsonObjectId(resumeId));
+		assertEquals(new BsonDocument("_id", after), render(TailingTask.buildQuery(null, resumeId)));
+		assertEquals(render(Filters.and(Filters.gt("_id", resumeId), Filters.eq("type", "order"))),
+				render(TailingTask.buildQuery(Filters.eq("type", "order"), resumeId)));
+	}
+
+	@Test
+	public void seekQueryStartsAtTheSeekValue() {
+
+		ObjectId resumeId = new ObjectId();
+		BsonTimestamp seekValue = new BsonTimestamp(100, 1);
+		BsonDocument query = render(TailingTask.buildQuery(Filters.eq("type", "order"), resumeId, seekValue));
+
+		assertEquals(new BsonDocument("$gte", seekValue), query.get(MTCConfiguration.RESUME_SEEK_FIELD));
+		assertEquals(new BsonDocument("$gt", new BsonObjectId(resumeId)), query.get("_id"));
+		assertEquals(render(Filters.eq("type", "order")).get("type"), query.get("type"));
+	}
+
+	@Test
+	public void resumeDocumentIsSoughtByItsSeekField() throws InterruptedException {
+
+		MTCConfiguration configuration = configuration(0L);
+		configuration.setResumeSeek(true);
+		ObjectId resumeId = null;
+		ObjectId[] ids = new ObjectId[2];
+		for (int i = 0; i < 3; i++) {
+			Document doc = TestSupport.document().append(MTCConfiguration.RESUME_SEEK_FIELD, new BsonTimestamp(100, i));
+			if (i == 0)
+				resumeId = insert(doc);
+			else
+				ids[i - 1] = insert(doc);
+		}
+
+		resumeAfter(configuration, resumeId);
+		TailingTask task = task(configuration);
+		Thread thread = run(task);
+
+		awaitHandled(2);
+		assertEquals(Arrays.asList(ids), handled);
+		assertTrue(task.getMetrics().getResumeSeeks() >= 1L);
+		assertEquals(0L, task.getMetrics().getResumeSeekFallbacks());
+		task.stop();
+		thread.join(5000L);
+	}
+
+	@Test
+	public void resumeDocumentWithoutSeekFieldIsScannedFor() throws InterruptedException {
+
+		MTCConfiguration configuration = configuration(0L);
+		configuration.setResumeSeek(true);
+		ObjectId resumeId = insert();
+		resumeAfter(configuration, resumeId);
+		ObjectId id = insert();
+
+		TailingTask task = task(configuration);
+		Thread thread = run(task);
+
+		awaitHandled(1);
+		assertEquals(id, handled.get(0));
+		assertEquals(0L, task.getMetrics().getResumeSeeks());
+		assertTrue(task.getMetrics().getResumeSeekFallbacks() >= 1L);
+		task.stop();
+		thread.join(5000L);
+	}
+
+	@Test
+	public void stopReportsTheFinalCheckpoint() throws InterruptedException {
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+		trackingConfiguration.setConsumerId(CONSUMER_ID);
+		trackingConfiguration.setCheckpointStore(new InMemoryCheckpointStore());
+		MTCConfiguration configuration = configuration(0L);
+		configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+		insert();
+		ObjectId last = insert();
+
+		TailingTask task = task(configuration);
+		Thread thread = run(task);
+		awaitHandled(2);
+
+		StopReport report = task.stop(5L, TimeUnit.SECONDS);
+		assertTrue(report.isStopped());
+		assertEquals(0L, report.getDocumentsDrained());
+		assertEquals(last, report.getLastCheckpointId());
+		assertEquals(last, trackingConfiguration.getCheckpointStore().load(CONSUMER_ID));
+		thread.join(5000L);
+		assertFalse(thread.isAlive());
+	}
+
+	@Test
+	public void stopDrainsTheDocumentInFlight() throws InterruptedException {
+
+		final CountDownLatch handling = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		TailingTask task = new TailingTask(configuration(0L));
+		task.setDocumentHandler(new DocumentHandler() {
+			@Override
+			public void handleDocument(Document doc) {
+				handling.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				handled.add(id(doc));
+			}
+		});
+		ObjectId id = insert();
+		Thread thread = run(task);
+		assertTrue(handling.await(5L, TimeUnit.SECONDS));
+
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				release.countDown();
+			}
+		};
+		releaser.start();
+		StopReport report = task.stop(5L, TimeUnit.SECONDS);
+		assertTrue(report.isStopped());
+		assertEquals(1L, report.getDocumentsDrained());
+		assertEquals(Arrays.asList(id), handled);
+		thread.join(5000L);
+	}
+
+	@Test
+	public void stopReturnsByTheDeadlineWithADocumentStillInFlight() throws InterruptedException {
+
+		final CountDownLatch handling = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		TailingTask task = new TailingTask(configuration(0L));
+		task.setDocumentHandler(new DocumentHandler() {
+			@Override
+			public void handleDocument(Document doc) {
+				handling.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		insert();
+		Thread thread = run(task);
+		assertTrue(handling.await(5L, TimeUnit.SECONDS));
+
+		StopReport report = task.stop(50L, TimeUnit.MILLISECONDS);
+		assertFalse(report.isStopped());
+		assertEquals(0L, report.getDocumentsDrained());
+		assertNull(report.getLastCheckpointId());
+		assertTrue(report.getElapsedMillis() >= 50L);
+		assertTrue(report.getElapsedMillis() < 5000L);
+
+		release.countDown();
+		thread.join(5000L);
+		assertFalse(thread.isAlive());
+	}
+}
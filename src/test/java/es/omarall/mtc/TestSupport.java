@@ -0,0 +1,89 @@
+package es.omarall.mtc;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+
+/**
+ * Shared by the tests: documents with a new id, as decoded or as raw BSON,
+ * waiting for other threads, and the mongod to run against, if any.
+ */
+public final class TestSupport {
+
+	/**
+	 * Milliseconds a condition met by other threads is waited for.
+	 */
+	public static final long TIMEOUT = 5000L;
+
+	private static final long POLL_MILLIS = 5L;
+
+	/**
+	 * A condition met by other threads.
+	 */
+	public interface Condition {
+
+		boolean isMet();
+	}
+
+	private TestSupport() {
+	}
+
+	/**
+	 * @return a document with a new ObjectId as _id.
+	 */
+	public static Document document() {
+		return new Document("_id", new ObjectId());
+	}
+
+	/**
+	 * @return a raw document with a new ObjectId as _id.
+	 */
+	public static RawBsonDocument rawDocument() {
+		return raw(document());
+	}
+
+	public static RawBsonDocument raw(Document doc) {
+		return new RawBsonDocument(doc, new DocumentCodec());
+	}
+
+	public static ObjectId id(Document doc) {
+		return doc.getObjectId("_id");
+	}
+
+	public static ObjectId id(RawBsonDocument doc) {
+		return doc.getObjectId("_id").getValue();
+	}
+
+	/**
+	 * Polls the condition until met, for up to TIMEOUT milliseconds. Callers
+	 * assert the outcome.
+	 */
+	public static void await(Condition condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.isMet() && System.currentTimeMillis() < deadline)
+			Thread.sleep(POLL_MILLIS);
+	}
+
+	/**
+	 * @return a client of the mongod at localhost:27017, or the host:port in
+	 *         the mtc.test.mongo system property. null if there is none.
+	 */
+	public static MongoClient mongoClient() {
+		MongoClient mongoClient = new MongoClient(
+				new ServerAddress(System.getProperty("mtc.test.mongo", "localhost:27017")),
+				MongoClientOptions.builder().serverSelectionTimeout(1000).build());
+		try {
+			mongoClient.getDatabase("admin").runCommand(new Document("ping", 1));
+			return mongoClient;
+		} catch (MongoException e) {
+			mongoClient.close();
+			return null;
+		}
+	}
+}
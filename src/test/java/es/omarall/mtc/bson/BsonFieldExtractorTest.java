@@ -0,0 +1,102 @@
+package es.omarall.mtc.bson;
+
+import static es.omarall.mtc.TestSupport.raw;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class BsonFieldExtractorTest {
+
+	private final ObjectId id = new ObjectId();
+	private final Date date = new Date();
+
+	/**
+	 * Values the extractor reads are placed after values of every kind it
+	 * has to skip.
+	 */
+	private RawBsonDocument document() {
+		Document doc = new Document("_id", id)
+				.append("double", 1.5d)
+				.append("array", Arrays.asList(1, "two", new Document("three", 3)))
+				.append("binary", new Binary(new byte[] { 1, 2, 3 }))
+				.append("regex", Pattern.compile("^a.*"))
+				.append("timestamp", new BsonTimestamp(1, 2))
+				.append("flag", true)
+				.append("nothing", null)
+				.append("ab", "prefix")
+				.append("a", "ünïcode")
+				.append("int", 7)
+				.append("long", 8L)
+				.append("date", date)
+				.append("account", new Document("owner", new Document("name", "alice")).append("id", 42L));
+		return raw(doc);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyPathIsRejected() {
+		BsonFieldExtractor.compile("");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptySegmentIsRejected() {
+		BsonFieldExtractor.compile("account..id");
+	}
+
+	@Test
+	public void readsTopLevelFields() {
+
+		RawBsonDocument doc = document();
+		assertEquals(id, BsonFieldExtractor.compile("_id").extractObjectId(doc));
+		assertEquals("ünïcode", BsonFieldExtractor.compile("a").extractString(doc));
+		assertEquals("prefix", BsonFieldExtractor.compile("ab").extractString(doc));
+		assertEquals(Long.valueOf(7), BsonFieldExtractor.compile("int").extractLong(doc));
+		assertEquals(Long.valueOf(8), BsonFieldExtractor.compile("long").extractLong(doc));
+		assertEquals(Long.valueOf(date.getTime()), BsonFieldExtractor.compile("date").extractDateTime(doc));
+		assertEquals(BsonType.NULL, BsonFieldExtractor.compile("nothing").getType(doc));
+	}
+
+	@Test
+	public void readsEmbeddedFields() {
+
+		RawBsonDocument doc = document();
+		assertEquals("alice", BsonFieldExtractor.compile("account.owner.name").extractString(doc));
+		assertEquals(new BsonInt64(42L), BsonFieldExtractor.compile("account.id").extract(doc));
+		assertEquals(new BsonString("alice"),
+				((RawBsonDocument) BsonFieldExtractor.compile("account.owner").extract(doc)).get("name"));
+	}
+
+	@Test
+	public void extractMatchesTheDriver() {
+
+		RawBsonDocument doc = document();
+		for (String field : doc.keySet())
+			assertEquals(field, doc.get(field), BsonFieldExtractor.compile(field).extract(doc));
+	}
+
+	@Test
+	public void missingOrMistypedFieldsAreNull() {
+
+		RawBsonDocument doc = document();
+		assertNull(BsonFieldExtractor.compile("missing").extract(doc));
+		assertNull(BsonFieldExtractor.compile("account.missing").extract(doc));
+		assertNull(BsonFieldExtractor.compile("a.b").extract(doc));
+		assertNull(BsonFieldExtractor.compile("missing").getType(doc));
+		assertNull(BsonFieldExtractor.compile("int").extractString(doc));
+		assertNull(BsonFieldExtractor.compile("a").extractLong(doc));
+		assertNull(BsonFieldExtractor.compile("a").extractObjectId(doc));
+		assertNull(BsonFieldExtractor.compile("long").extractDateTime(doc));
+	}
+}
@@ -0,0 +1,131 @@
+package es.omarall.mtc.checkpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.bson.types.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import es.omarall.mtc.exceptions.MTCException;
+
+public class JournalCheckpointStoreTest {
+
+	/*
+	 * Offsets of the records of the first slot: header, slot header, then the
+	 * records, written in turns by sequence number.
+	 */
+	private static final int EVEN_RECORD_OFFSET = 16 + 64;
+	private static final int ID_OFFSET = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File journal() throws IOException {
+		return new File(folder.getRoot(), "checkpoints.journal");
+	}
+
+	@Test
+	public void checkpointsSurviveReopening() throws IOException {
+
+		File file = journal();
+		ObjectId first = new ObjectId();
+		ObjectId second = new ObjectId();
+		JournalCheckpointStore store = new JournalCheckpointStore(file, 4, 0L);
+		assertNull(store.load("a"));
+		store.save("a", new ObjectId());
+		store.save("a", first);
+		store.save("b", second);
+		store.close();
+
+		store = new JournalCheckpointStore(file);
+		assertEquals(first, store.load("a"));
+		assertEquals(second, store.load("b"));
+		assertNull(store.load("c"));
+
+		// Sequences go on after reopening
+		ObjectId third = new ObjectId();
+		store.save("a", third);
+		store.close();
+		store = new JournalCheckpointStore(file);
+		assertEquals(third, store.load("a"));
+		store.close();
+	}
+
+	@Test
+	public void tornRecordFallsBackToThePreviousCheckpoint() throws IOException {
+
+		File file = journal();
+		ObjectId previous = new ObjectId();
+		JournalCheckpointStore store = new JournalCheckpointStore(file, 4, 0L);
+		store.save("a", previous);
+		store.save("a", new ObjectId());
+		store.close();
+
+		// Sequence 2 went to the even record: tear its id
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(EVEN_RECORD_OFFSET + ID_OFFSET);
+			int b = raf.read();
+			raf.seek(EVEN_RECORD_OFFSET + ID_OFFSET);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+
+		store = new JournalCheckpointStore(file);
+		assertEquals(previous, store.load("a"));
+
+		// The torn record is the next one overwritten
+		ObjectId next = new ObjectId();
+		store.save("a", next);
+		assertEquals(next, store.load("a"));
+		store.close();
+	}
+
+	@Test
+	public void backgroundForceKeepsCheckpoints() throws IOException {
+
+		File file = journal();
+		ObjectId id = new ObjectId();
+		JournalCheckpointStore store = new JournalCheckpointStore(file, 4, 10L);
+		store.save("a", id);
+		store.flush();
+		store.close();
+
+		store = new JournalCheckpointStore(file);
+		assertEquals(id, store.load("a"));
+		store.close();
+	}
+
+	@Test(expected = MTCException.class)
+	public void fileNotAJournalIsRejected() throws IOException {
+
+		File file = journal();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write("not a checkpoint journal, but a text file".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		new JournalCheckpointStore(file);
+	}
+
+	@Test(expected = MTCException.class)
+	public void noFreeSlotIsAnError() throws IOException {
+
+		JournalCheckpointStore store = new JournalCheckpointStore(journal(), 1, 0L);
+		try {
+			store.save("a", new ObjectId());
+			store.save("b", new ObjectId());
+		} finally {
+			store.close();
+		}
+	}
+}
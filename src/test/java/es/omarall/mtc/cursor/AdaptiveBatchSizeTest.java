@@ -0,0 +1,86 @@
+package es.omarall.mtc.cursor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveBatchSizeTest {
+
+	private static void fetch(AdaptiveBatchSize batchSize, int documents) {
+		for (int i = 0; i < documents; i++)
+			batchSize.onDocument();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void minMustNotBeAboveMax() {
+		new AdaptiveBatchSize(10, 5, 5);
+	}
+
+	@Test
+	public void initialBatchSizeIsClamped() {
+		assertEquals(10, new AdaptiveBatchSize(10, 100, 1).getBatchSize());
+		assertEquals(100, new AdaptiveBatchSize(10, 100, 1000).getBatchSize());
+	}
+
+	@Test
+	public void runOfTwiceTheBatchSizeDoublesIt() {
+
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 1000, 10);
+		fetch(batchSize, 19);
+		assertFalse(batchSize.isChanged());
+		batchSize.onDocument();
+		assertTrue(batchSize.isChanged());
+		assertEquals(20, batchSize.getBatchSize());
+
+		// The run starts over once grown
+		fetch(batchSize, 39);
+		assertFalse(batchSize.isChanged());
+		batchSize.onDocument();
+		assertEquals(40, batchSize.getBatchSize());
+	}
+
+	@Test
+	public void runBelowAQuarterOfTheBatchSizeHalvesIt() {
+
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 1000, 100);
+		fetch(batchSize, 25);
+		batchSize.onEmptyFetch();
+		assertFalse(batchSize.isChanged());
+
+		fetch(batchSize, 24);
+		batchSize.onEmptyFetch();
+		assertTrue(batchSize.isChanged());
+		assertEquals(50, batchSize.getBatchSize());
+	}
+
+	@Test
+	public void batchSizeIsKeptWithinMinAndMax() {
+
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 30, 20);
+		fetch(batchSize, 40);
+		assertEquals(30, batchSize.getBatchSize());
+		fetch(batchSize, 1000);
+		assertFalse(batchSize.isChanged());
+		assertEquals(30, batchSize.getBatchSize());
+
+		for (int i = 0; i < 10; i++)
+			batchSize.onEmptyFetch();
+		assertEquals(10, batchSize.getBatchSize());
+		batchSize.onEmptyFetch();
+		assertFalse(batchSize.isChanged());
+	}
+
+	@Test
+	public void changeIsReportedOnce() {
+
+		AdaptiveBatchSize batchSize = new AdaptiveBatchSize(10, 1000, 10);
+		fetch(batchSize, 20);
+		assertTrue(batchSize.isChanged());
+		assertTrue(batchSize.isChanged());
+		assertEquals(20, batchSize.getBatchSize());
+		assertFalse(batchSize.isChanged());
+		assertEquals(20, batchSize.getBatchSize());
+	}
+}
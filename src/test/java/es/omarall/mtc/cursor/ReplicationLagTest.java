@@ -0,0 +1,70 @@
+package es.omarall.mtc.cursor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.Test;
+
+public class ReplicationLagTest {
+
+	private static final long NOW = 1000000L;
+
+	private static Document member(String name, int state, long optime) {
+		return new Document("name", name).append("state", state).append("health", 1.0)
+				.append("optimeDate", new Date(optime));
+	}
+
+	private static Document status(Document... members) {
+		return new Document("members", Arrays.asList(members));
+	}
+
+	@Test
+	public void lagIsMeasuredBehindThePrimary() {
+
+		// The primary is behind the most recent secondary, as right after an
+		// election: the lag of members ahead of it is 0
+		Map<String, Long> lags = ReplicationLag.lags(status(member("a:27017", 2, NOW - 500L),
+				member("b:27017", 1, NOW - 100L), member("c:27017", 2, NOW)));
+
+		assertEquals(3, lags.size());
+		assertEquals(Long.valueOf(400L), lags.get("a:27017"));
+		assertEquals(Long.valueOf(0L), lags.get("b:27017"));
+		assertEquals(Long.valueOf(0L), lags.get("c:27017"));
+	}
+
+	@Test
+	public void lagIsMeasuredBehindTheMostRecentMemberWithoutAPrimary() {
+
+		Map<String, Long> lags = ReplicationLag.lags(
+				status(member("a:27017", 2, NOW - 500L), member("b:27017", 2, NOW), member("c:27017", 2, NOW - 200L)));
+
+		assertEquals(Long.valueOf(500L), lags.get("a:27017"));
+		assertEquals(Long.valueOf(0L), lags.get("b:27017"));
+		assertEquals(Long.valueOf(200L), lags.get("c:27017"));
+	}
+
+	@Test
+	public void onlyHealthyPrimaryAndSecondaryMembersAreMeasured() {
+
+		Document arbiter = new Document("name", "arbiter:27017").append("state", 7).append("health", 1.0);
+		Document recovering = member("recovering:27017", 3, NOW);
+		Document down = member("down:27017", 2, NOW).append("health", 0.0);
+		Document noOptime = new Document("name", "starting:27017").append("state", 2);
+
+		Map<String, Long> lags = ReplicationLag.lags(
+				status(member("primary:27017", 1, NOW), arbiter, recovering, down, noOptime));
+
+		assertEquals(1, lags.size());
+		assertEquals(Long.valueOf(0L), lags.get("primary:27017"));
+	}
+
+	@Test
+	public void noMembersNoLags() {
+		assertTrue(ReplicationLag.lags(new Document("ok", 0)).isEmpty());
+	}
+}
@@ -0,0 +1,109 @@
+package es.omarall.mtc.dispatch;
+
+import static es.omarall.mtc.TestSupport.document;
+import static es.omarall.mtc.TestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class BatchingDocumentDispatcherTest {
+
+	private final List<List<Document>> batches = new ArrayList<List<Document>>();
+
+	private final Consumer<List<Document>> batchHandler = new Consumer<List<Document>>() {
+		@Override
+		public void accept(List<Document> docs) {
+			batches.add(docs);
+		}
+	};
+
+	@Test
+	public void batchIsHandledOnceFull() {
+
+		BatchingDocumentDispatcher<Document> dispatcher = new BatchingDocumentDispatcher<Document>(batchHandler,
+				DefaultDocumentAdapter.INSTANCE, 3, 60000L);
+
+		dispatcher.dispatch(document());
+		dispatcher.dispatch(document());
+		assertEquals(0, batches.size());
+		assertNull(dispatcher.getLastCompletedId());
+
+		Document last = document();
+		dispatcher.dispatch(last);
+		assertEquals(1, batches.size());
+		assertEquals(3, batches.get(0).size());
+		assertEquals(id(last), dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void flushHandlesPartialBatch() {
+
+		BatchingDocumentDispatcher<Document> dispatcher = new BatchingDocumentDispatcher<Document>(batchHandler,
+				DefaultDocumentAdapter.INSTANCE, 10, 60000L);
+
+		Document doc = document();
+		dispatcher.dispatch(doc);
+		dispatcher.flush();
+		assertEquals(1, batches.size());
+		assertEquals(id(doc), dispatcher.getLastCompletedId());
+
+		// Nothing left to flush
+		dispatcher.flush();
+		assertEquals(1, batches.size());
+	}
+
+	@Test
+	public void lingeringBatchIsHandledOnNextDispatch() throws InterruptedException {
+
+		BatchingDocumentDispatcher<Document> dispatcher = new BatchingDocumentDispatcher<Document>(batchHandler,
+				DefaultDocumentAdapter.INSTANCE, 10, 20L);
+
+		dispatcher.dispatch(document());
+		Thread.sleep(40L);
+		dispatcher.dispatch(document());
+		assertEquals(1, batches.size());
+		assertEquals(2, batches.get(0).size());
+	}
+
+	@Test
+	public void failedBatchDoesNotMoveLastCompletedId() {
+
+		final List<Integer> sizes = new ArrayList<Integer>();
+		BatchingDocumentDispatcher<Document> dispatcher = new BatchingDocumentDispatcher<Document>(
+				new Consumer<List<Document>>() {
+					@Override
+					public void accept(List<Document> docs) {
+						sizes.add(docs.size());
+						if (sizes.size() == 2)
+							throw new IllegalStateException("Batch failed");
+					}
+				}, DefaultDocumentAdapter.INSTANCE, 2, 60000L);
+
+		dispatcher.dispatch(document());
+		dispatcher.dispatch(document());
+		ObjectId completed = dispatcher.getLastCompletedId();
+
+		dispatcher.dispatch(document());
+		dispatcher.dispatch(document());
+		assertEquals(2, sizes.size());
+		assertEquals(completed, dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void closeFlushes() {
+
+		BatchingDocumentDispatcher<Document> dispatcher = new BatchingDocumentDispatcher<Document>(batchHandler,
+				DefaultDocumentAdapter.INSTANCE, 10, 60000L);
+
+		dispatcher.dispatch(document());
+		dispatcher.close();
+		assertEquals(1, batches.size());
+	}
+}
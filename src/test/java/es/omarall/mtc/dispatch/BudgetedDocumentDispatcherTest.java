@@ -0,0 +1,161 @@
+package es.omarall.mtc.dispatch;
+
+import static es.omarall.mtc.TestSupport.await;
+import static es.omarall.mtc.TestSupport.document;
+import static es.omarall.mtc.TestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import es.omarall.mtc.TestSupport.Condition;
+
+public class BudgetedDocumentDispatcherTest {
+
+	/**
+	 * Handles documents right away, but the slow one, which waits for the
+	 * release latch.
+	 */
+	private static Consumer<Document> handler(final Document slow, final CountDownLatch release,
+			final AtomicInteger handled) {
+		return new Consumer<Document>() {
+			@Override
+			public void accept(Document doc) {
+				if (doc == slow) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				handled.incrementAndGet();
+			}
+		};
+	}
+
+	@Test
+	public void documentsWithinBudgetAreHandledInline() {
+
+		AtomicInteger handled = new AtomicInteger();
+		BudgetedDocumentDispatcher<Document> dispatcher = new BudgetedDocumentDispatcher<Document>(
+				handler(null, null, handled), DefaultDocumentAdapter.INSTANCE, 1000L, 1, 1000L);
+
+		Document last = null;
+		for (int i = 0; i < 10; i++) {
+			dispatcher.dispatch(last = document());
+			assertEquals(i + 1, handled.get());
+		}
+		assertEquals(0, dispatcher.getDocumentsOffloaded());
+		assertEquals(id(last), dispatcher.getLastCompletedId());
+		dispatcher.close();
+	}
+
+	@Test
+	public void slowDocumentIsOffloadedAndHoldsBackLastCompletedId() throws InterruptedException {
+
+		Document slow = document();
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger handled = new AtomicInteger();
+		final BudgetedDocumentDispatcher<Document> dispatcher = new BudgetedDocumentDispatcher<Document>(
+				handler(slow, release, handled), DefaultDocumentAdapter.INSTANCE, 20L, 1, 5000L);
+
+		Document before = document();
+		dispatcher.dispatch(before);
+		dispatcher.dispatch(slow);
+		assertEquals(1, dispatcher.getDocumentsOffloaded());
+
+		// The next documents do not wait for the slow one
+		Document last = null;
+		for (int i = 0; i < 5; i++)
+			dispatcher.dispatch(last = document());
+		assertEquals(6, handled.get());
+		assertEquals(id(before), dispatcher.getLastCompletedId());
+
+		release.countDown();
+		final ObjectId lastId = id(last);
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return lastId.equals(dispatcher.getLastCompletedId());
+			}
+		});
+		assertEquals(lastId, dispatcher.getLastCompletedId());
+		dispatcher.close();
+	}
+
+	@Test
+	public void tailingThreadWaitsWithEverySlowLaneBusy() throws InterruptedException {
+
+		final Document slow = document();
+		final Document slower = document();
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger handled = new AtomicInteger();
+		final BudgetedDocumentDispatcher<Document> dispatcher = new BudgetedDocumentDispatcher<Document>(
+				new Consumer<Document>() {
+					@Override
+					public void accept(Document doc) {
+						if (doc == slow || doc == slower) {
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						handled.incrementAndGet();
+					}
+				}, DefaultDocumentAdapter.INSTANCE, 10L, 1, 5000L);
+
+		dispatcher.dispatch(slow);
+		Thread tailing = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatcher.dispatch(slower);
+			}
+		});
+		tailing.start();
+		tailing.join(200L);
+		assertTrue(tailing.isAlive());
+
+		release.countDown();
+		tailing.join(5000L);
+		assertEquals(2, dispatcher.getDocumentsOffloaded());
+		dispatcher.close();
+		assertEquals(2, handled.get());
+	}
+
+	@Test
+	public void closeWaitsForOffloadedDocumentsUpToTheTimeout() {
+
+		Document slow = document();
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger handled = new AtomicInteger();
+		BudgetedDocumentDispatcher<Document> dispatcher = new BudgetedDocumentDispatcher<Document>(
+				handler(slow, release, handled), DefaultDocumentAdapter.INSTANCE, 10L, 1, 100L);
+
+		Document before = document();
+		dispatcher.dispatch(before);
+		dispatcher.dispatch(slow);
+		dispatcher.dispatch(document());
+
+		long start = System.currentTimeMillis();
+		dispatcher.close();
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("close took " + elapsed + " ms", elapsed >= 100L && elapsed < 2000L);
+
+		// Left to be fetched again
+		assertEquals(id(before), dispatcher.getLastCompletedId());
+		release.countDown();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void closeTimeoutMustBePositive() {
+		new BudgetedDocumentDispatcher<Document>(handler(null, null, new AtomicInteger()),
+				DefaultDocumentAdapter.INSTANCE, 10L, 1, 0L);
+	}
+}
@@ -0,0 +1,122 @@
+package es.omarall.mtc.dispatch;
+
+import static es.omarall.mtc.TestSupport.document;
+import static es.omarall.mtc.TestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import es.omarall.mtc.wait.WaitStrategyType;
+
+public class DocumentRingBufferTest {
+
+	private static DocumentRingBuffer<Document> ringBuffer(int capacity) {
+		return new DocumentRingBuffer<Document>(capacity, DefaultDocumentAdapter.INSTANCE,
+				WaitStrategyType.BLOCKING.newWaitStrategy(), WaitStrategyType.BLOCKING.newWaitStrategy());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void capacityMustBeAPowerOfTwo() {
+		ringBuffer(6);
+	}
+
+	@Test
+	public void lastCompletedIdIsTheLowWatermark() {
+
+		DocumentRingBuffer<Document> ringBuffer = ringBuffer(4);
+		Document[] docs = { document(), document(), document() };
+		for (Document doc : docs)
+			ringBuffer.publish(doc);
+		for (int i = 0; i < docs.length; i++)
+			assertEquals(i, ringBuffer.claim());
+
+		// Out of order completions do not move it past a pending document
+		ringBuffer.complete(2, true);
+		ringBuffer.complete(1, true);
+		assertNull(ringBuffer.getLastCompletedId());
+		assertEquals(3, ringBuffer.size());
+
+		ringBuffer.complete(0, true);
+		assertEquals(id(docs[2]), ringBuffer.getLastCompletedId());
+		assertEquals(0, ringBuffer.size());
+	}
+
+	@Test
+	public void lastCompletedIdSkipsFailedDocuments() {
+
+		DocumentRingBuffer<Document> ringBuffer = ringBuffer(4);
+		Document first = document();
+		ringBuffer.publish(first);
+		ringBuffer.publish(document());
+		ringBuffer.claim();
+		ringBuffer.claim();
+
+		ringBuffer.complete(0, true);
+		ringBuffer.complete(1, false);
+		assertEquals(id(first), ringBuffer.getLastCompletedId());
+		assertEquals(0, ringBuffer.size());
+	}
+
+	@Test
+	public void tryClaimDoesNotWait() {
+
+		DocumentRingBuffer<Document> ringBuffer = ringBuffer(2);
+		assertEquals(-1, ringBuffer.tryClaim());
+		ringBuffer.publish(document());
+		assertEquals(0, ringBuffer.tryClaim());
+		assertEquals(-1, ringBuffer.tryClaim());
+	}
+
+	@Test
+	public void publisherWaitsWhileFull() throws InterruptedException {
+
+		final DocumentRingBuffer<Document> ringBuffer = ringBuffer(2);
+		ringBuffer.publish(document());
+		ringBuffer.publish(document());
+
+		final AtomicLong sequence = new AtomicLong(Long.MIN_VALUE);
+		Thread publisher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sequence.set(ringBuffer.publish(document()));
+			}
+		});
+		publisher.start();
+		publisher.join(100L);
+		assertTrue(publisher.isAlive());
+
+		ringBuffer.complete(ringBuffer.claim(), true);
+		publisher.join(5000L);
+		assertEquals(2, sequence.get());
+	}
+
+	@Test
+	public void closeReleasesWaitingPublisherAndHandlers() throws InterruptedException {
+
+		final DocumentRingBuffer<Document> ringBuffer = ringBuffer(1);
+		ringBuffer.publish(document());
+
+		final AtomicLong sequence = new AtomicLong(Long.MIN_VALUE);
+		Thread publisher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sequence.set(ringBuffer.publish(document()));
+			}
+		});
+		publisher.start();
+		publisher.join(50L);
+
+		ringBuffer.close();
+		publisher.join(5000L);
+		assertEquals(-1, sequence.get());
+
+		// Published documents are still claimed once closed
+		assertEquals(0, ringBuffer.claim());
+		assertEquals(-1, ringBuffer.claim());
+	}
+}
@@ -0,0 +1,119 @@
+package es.omarall.mtc.dispatch;
+
+import static es.omarall.mtc.TestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import es.omarall.mtc.TestSupport;
+import es.omarall.mtc.wait.WaitStrategyType;
+
+public class PartitionedDocumentDispatcherTest {
+
+	private static Document document(Object key) {
+		Document doc = TestSupport.document();
+		if (key != null)
+			doc.append("account", new Document("id", key));
+		return doc;
+	}
+
+	private static final Consumer<Document> NO_OP = new Consumer<Document>() {
+		@Override
+		public void accept(Document doc) {
+		}
+	};
+
+	@Test
+	public void documentsSharingAKeyGoToTheSameLane() {
+
+		PartitionedDocumentDispatcher<Document> dispatcher = new PartitionedDocumentDispatcher<Document>(NO_OP,
+				DefaultDocumentAdapter.INSTANCE, "account.id", 4, 8, WaitStrategyType.BLOCKING);
+		try {
+			for (int key = 0; key < 32; key++)
+				assertEquals(dispatcher.laneOf(document(key)), dispatcher.laneOf(document(key)));
+			assertEquals(0, dispatcher.laneOf(document(null)));
+		} finally {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void documentsSharingAKeyAreHandledInOrder() {
+
+		final Map<Object, List<Integer>> handled = Collections.synchronizedMap(new HashMap<Object, List<Integer>>());
+		PartitionedDocumentDispatcher<Document> dispatcher = new PartitionedDocumentDispatcher<Document>(
+				new Consumer<Document>() {
+					@Override
+					public void accept(Document doc) {
+						Document account = (Document) doc.get("account");
+						List<Integer> sequences = handled.get(account.get("id"));
+						sequences.add(doc.getInteger("sequence"));
+					}
+				}, DefaultDocumentAdapter.INSTANCE, "account.id", 4, 16, WaitStrategyType.YIELDING);
+
+		for (int key = 0; key < 8; key++)
+			handled.put(key, new ArrayList<Integer>());
+		Document last = null;
+		for (int i = 0; i < 400; i++)
+			dispatcher.dispatch(last = document(i % 8).append("sequence", i));
+		dispatcher.close();
+
+		for (Map.Entry<Object, List<Integer>> entry : handled.entrySet()) {
+			List<Integer> sequences = entry.getValue();
+			assertEquals(50, sequences.size());
+			for (int i = 1; i < sequences.size(); i++)
+				assertTrue(sequences.get(i - 1) < sequences.get(i));
+		}
+		assertEquals(id(last), dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void slowLaneHoldsBackLastCompletedId() throws InterruptedException {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch handled = new CountDownLatch(1);
+		final Document slow = document("slow");
+		PartitionedDocumentDispatcher<Document> dispatcher = new PartitionedDocumentDispatcher<Document>(
+				new Consumer<Document>() {
+					@Override
+					public void accept(Document doc) {
+						if (doc == slow) {
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						} else {
+							handled.countDown();
+						}
+					}
+				}, DefaultDocumentAdapter.INSTANCE, "account.id", 2, 8, WaitStrategyType.BLOCKING);
+
+		// A key of the other lane
+		Document fast = null;
+		for (int key = 0; fast == null || dispatcher.laneOf(fast) == dispatcher.laneOf(slow); key++)
+			fast = document(key);
+
+		dispatcher.dispatch(slow);
+		dispatcher.dispatch(fast);
+		assertTrue(handled.await(5, TimeUnit.SECONDS));
+		Thread.sleep(20L);
+		assertNull(dispatcher.getLastCompletedId());
+
+		release.countDown();
+		dispatcher.close();
+		assertEquals(id(fast), dispatcher.getLastCompletedId());
+	}
+}
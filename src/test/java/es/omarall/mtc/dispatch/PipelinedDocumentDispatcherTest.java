@@ -0,0 +1,108 @@
+package es.omarall.mtc.dispatch;
+
+import static es.omarall.mtc.TestSupport.await;
+import static es.omarall.mtc.TestSupport.document;
+import static es.omarall.mtc.TestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import es.omarall.mtc.TestSupport.Condition;
+import es.omarall.mtc.wait.WaitStrategyType;
+
+public class PipelinedDocumentDispatcherTest {
+
+	@Test
+	public void slowDocumentHoldsBackLastCompletedId() throws InterruptedException {
+
+		final Document slow = document();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch handled = new CountDownLatch(3);
+		PipelinedDocumentDispatcher<Document> dispatcher = new PipelinedDocumentDispatcher<Document>(
+				new Consumer<Document>() {
+					@Override
+					public void accept(Document doc) {
+						if (doc == slow) {
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						handled.countDown();
+					}
+				}, DefaultDocumentAdapter.INSTANCE, 8, 2, WaitStrategyType.BLOCKING);
+
+		Document first = document();
+		Document last = document();
+		dispatcher.dispatch(first);
+		dispatcher.dispatch(slow);
+		dispatcher.dispatch(last);
+
+		// The documents around the slow one are handled by the other thread
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return handled.getCount() == 1;
+			}
+		});
+		assertEquals(1, handled.getCount());
+		assertEquals(id(first), dispatcher.getLastCompletedId());
+
+		release.countDown();
+		assertTrue(handled.await(5, TimeUnit.SECONDS));
+		dispatcher.close();
+		assertEquals(id(last), dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void closeDrainsTheRing() {
+
+		final AtomicInteger handled = new AtomicInteger();
+		PipelinedDocumentDispatcher<Document> dispatcher = new PipelinedDocumentDispatcher<Document>(
+				new Consumer<Document>() {
+					@Override
+					public void accept(Document doc) {
+						handled.incrementAndGet();
+					}
+				}, DefaultDocumentAdapter.INSTANCE, 4, 1, WaitStrategyType.YIELDING);
+
+		assertNull(dispatcher.getLastCompletedId());
+		Document last = null;
+		for (int i = 0; i < 100; i++)
+			dispatcher.dispatch(last = document());
+		dispatcher.close();
+
+		assertEquals(100, handled.get());
+		assertEquals(0, dispatcher.getRingBuffer().size());
+		assertEquals(id(last), dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void failedDocumentIsNotTheLastCompleted() {
+
+		final Document failing = document();
+		PipelinedDocumentDispatcher<Document> dispatcher = new PipelinedDocumentDispatcher<Document>(
+				new Consumer<Document>() {
+					@Override
+					public void accept(Document doc) {
+						if (doc == failing)
+							throw new IllegalStateException("Handler failed");
+					}
+				}, DefaultDocumentAdapter.INSTANCE, 4, 1, WaitStrategyType.BLOCKING);
+
+		Document first = document();
+		dispatcher.dispatch(first);
+		dispatcher.dispatch(failing);
+		dispatcher.close();
+		assertEquals(id(first), dispatcher.getLastCompletedId());
+	}
+}
@@ -0,0 +1,115 @@
+package es.omarall.mtc.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.types.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import es.omarall.mtc.exceptions.MTCException;
+
+public class RecentIdCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void addReportsDuplicates() {
+
+		RecentIdCache cache = new RecentIdCache(4);
+		ObjectId id = new ObjectId();
+		assertFalse(cache.contains(id));
+		assertTrue(cache.add(id));
+		assertFalse(cache.add(id));
+		assertTrue(cache.contains(id));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void oldestIdsAreEvicted() {
+
+		RecentIdCache cache = new RecentIdCache(3);
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		for (int i = 0; i < 5; i++) {
+			ObjectId id = new ObjectId();
+			ids.add(id);
+			cache.add(id);
+		}
+
+		assertEquals(3, cache.size());
+		assertFalse(cache.contains(ids.get(0)));
+		assertFalse(cache.contains(ids.get(1)));
+		for (int i = 2; i < 5; i++)
+			assertTrue(cache.contains(ids.get(i)));
+	}
+
+	/**
+	 * Evictions shift back the entries of the probe sequences they break:
+	 * with ids sharing timestamp, machine and process, and a table kept busy,
+	 * every id still in the ring must be found and every evicted one not.
+	 */
+	@Test
+	public void evictionKeepsProbeSequencesWhole() {
+
+		int capacity = 100;
+		RecentIdCache cache = new RecentIdCache(capacity);
+		Random random = new Random(7);
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		for (int i = 0; i < 20000; i++) {
+			ObjectId id = new ObjectId(1000, 1, (short) 1, random.nextInt(0xFFFFFF));
+			if (!cache.add(id))
+				continue;
+			ids.add(id);
+
+			if (i % 97 == 0) {
+				int evicted = Math.max(0, ids.size() - capacity);
+				for (int j = Math.max(0, evicted - capacity); j < ids.size(); j++)
+					assertEquals("id " + j + " of " + ids.size(), j >= evicted, cache.contains(ids.get(j)));
+			}
+		}
+		assertEquals(capacity, cache.size());
+	}
+
+	@Test
+	public void idsSurviveReopeningTheFile() throws IOException {
+
+		File file = new File(folder.getRoot(), "recent-ids");
+		RecentIdCache cache = new RecentIdCache(3, file);
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		for (int i = 0; i < 5; i++) {
+			ObjectId id = new ObjectId();
+			ids.add(id);
+			cache.add(id);
+		}
+		cache.close();
+
+		cache = new RecentIdCache(3, file);
+		assertEquals(3, cache.size());
+		assertFalse(cache.contains(ids.get(1)));
+		for (int i = 2; i < 5; i++)
+			assertFalse(cache.add(ids.get(i)));
+
+		// Evictions go on from the oldest loaded id
+		cache.add(new ObjectId());
+		assertFalse(cache.contains(ids.get(2)));
+		assertTrue(cache.contains(ids.get(3)));
+		cache.close();
+	}
+
+	@Test(expected = MTCException.class)
+	public void fileBuiltWithAnotherCapacityIsRejected() throws IOException {
+
+		File file = new File(folder.getRoot(), "recent-ids");
+		new RecentIdCache(3, file).close();
+		new RecentIdCache(4, file);
+	}
+}
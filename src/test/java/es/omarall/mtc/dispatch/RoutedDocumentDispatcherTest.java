@@ -0,0 +1,181 @@
+package es.omarall.mtc.dispatch;
+
+import static es.omarall.mtc.TestSupport.id;
+import static es.omarall.mtc.TestSupport.raw;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import es.omarall.mtc.dispatch.RoutedDocumentDispatcher.Route;
+import es.omarall.mtc.TestSupport;
+import es.omarall.mtc.wait.WaitStrategyType;
+
+public class RoutedDocumentDispatcherTest {
+
+	private static RawBsonDocument document(Object type) {
+		Document doc = TestSupport.document();
+		if (type != null)
+			doc.append("meta", new Document("type", type));
+		return raw(doc);
+	}
+
+	/**
+	 * Records the documents handled, and the threads they were handled on.
+	 */
+	private static class Recorder implements Consumer<RawBsonDocument> {
+
+		private final List<ObjectId> handled = Collections.synchronizedList(new ArrayList<ObjectId>());
+		private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void accept(RawBsonDocument doc) {
+			threads.add(Thread.currentThread().getName());
+			handled.add(id(doc));
+		}
+	}
+
+	private static Map<String, Route> routes(String value, Consumer<RawBsonDocument> handler) {
+		Map<String, Route> routes = new HashMap<String, Route>();
+		routes.put(value, new Route(handler, 1));
+		return routes;
+	}
+
+	private static Map<String, Route> routes(String value, Consumer<RawBsonDocument> handler, String otherValue,
+			Consumer<RawBsonDocument> otherHandler) {
+		Map<String, Route> routes = routes(value, handler);
+		routes.put(otherValue, new Route(otherHandler, 1));
+		return routes;
+	}
+
+	@Test
+	public void documentsGoToTheRouteOfTheirDiscriminator() {
+
+		Recorder orders = new Recorder();
+		Recorder payments = new Recorder();
+		Recorder others = new Recorder();
+		RoutedDocumentDispatcher dispatcher = new RoutedDocumentDispatcher("meta.type",
+				routes("order", orders, "payment", payments), new Route(others, 1), 8, WaitStrategyType.BLOCKING);
+
+		RawBsonDocument order = document("order");
+		RawBsonDocument payment = document("payment");
+		RawBsonDocument unknown = document("refund");
+		RawBsonDocument notAString = document(7);
+		RawBsonDocument missing = document(null);
+		for (RawBsonDocument doc : new RawBsonDocument[] { order, payment, unknown, notAString, missing })
+			dispatcher.dispatch(doc);
+		dispatcher.close();
+
+		assertEquals(Collections.singletonList(id(order)), orders.handled);
+		assertEquals(Collections.singletonList(id(payment)), payments.handled);
+		assertEquals(3, others.handled.size());
+		assertEquals(id(missing), dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void documentsWithoutARouteAreSkippedWithoutDefault() {
+
+		Recorder orders = new Recorder();
+		RoutedDocumentDispatcher dispatcher = new RoutedDocumentDispatcher("meta.type", routes("order", orders),
+				null, 8, WaitStrategyType.BLOCKING);
+
+		RawBsonDocument skipped = document("refund");
+		dispatcher.dispatch(document("order"));
+		dispatcher.dispatch(skipped);
+		dispatcher.close();
+
+		assertEquals(1, orders.handled.size());
+		assertEquals(1, dispatcher.getDocumentsUnrouted());
+		assertEquals(id(skipped), dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void slowRouteDoesNotHoldTheOthersButHoldsBackLastCompletedId() throws InterruptedException {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		Consumer<RawBsonDocument> slow = new Consumer<RawBsonDocument>() {
+			@Override
+			public void accept(RawBsonDocument doc) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		final CountDownLatch fastHandled = new CountDownLatch(20);
+		Consumer<RawBsonDocument> fast = new Consumer<RawBsonDocument>() {
+			@Override
+			public void accept(RawBsonDocument doc) {
+				fastHandled.countDown();
+			}
+		};
+		RoutedDocumentDispatcher dispatcher = new RoutedDocumentDispatcher("meta.type",
+				routes("slow", slow, "fast", fast), null, 4, WaitStrategyType.BLOCKING);
+
+		RawBsonDocument first = document("fast");
+		dispatcher.dispatch(first);
+		dispatcher.dispatch(document("slow"));
+		// More than the slots of a ring: the fast route never waits
+		RawBsonDocument last = null;
+		for (int i = 0; i < 19; i++)
+			dispatcher.dispatch(last = document("fast"));
+
+		assertTrue(fastHandled.await(5, TimeUnit.SECONDS));
+		Thread.sleep(20L);
+		assertEquals(id(first), dispatcher.getLastCompletedId());
+		assertEquals(0, dispatcher.getRingBuffer("fast").size());
+		assertEquals(1, dispatcher.getRingBuffer("slow").size());
+
+		release.countDown();
+		dispatcher.close();
+		assertEquals(id(last), dispatcher.getLastCompletedId());
+	}
+
+	@Test
+	public void retriesRunOnTheThreadsOfTheirRoute() {
+
+		Recorder orders = new Recorder();
+		RoutedDocumentDispatcher dispatcher = new RoutedDocumentDispatcher("meta.type", routes("order", orders),
+				null, 8, WaitStrategyType.BLOCKING);
+
+		RawBsonDocument retried = document("order");
+		dispatcher.retry(retried);
+		assertEquals(Collections.singletonList(id(retried)), orders.handled);
+		assertTrue(orders.threads.get(0).startsWith("mtc-route-order-"));
+
+		// Once closed, on the calling thread
+		dispatcher.close();
+		dispatcher.retry(retried);
+		assertEquals(Thread.currentThread().getName(), orders.threads.get(1));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void retryFailuresAreThrownToTheCaller() {
+
+		RoutedDocumentDispatcher dispatcher = new RoutedDocumentDispatcher("meta.type",
+				routes("order", new Consumer<RawBsonDocument>() {
+					@Override
+					public void accept(RawBsonDocument doc) {
+						throw new IllegalStateException("Handler failed");
+					}
+				}), null, 8, WaitStrategyType.BLOCKING);
+		try {
+			dispatcher.retry(document("order"));
+		} finally {
+			dispatcher.close();
+		}
+	}
+}
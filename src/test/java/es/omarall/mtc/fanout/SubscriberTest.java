@@ -0,0 +1,202 @@
+package es.omarall.mtc.fanout;
+
+import static es.omarall.mtc.TestSupport.await;
+import static es.omarall.mtc.TestSupport.id;
+import static es.omarall.mtc.TestSupport.rawDocument;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.mtc.PersistentTrackingManager;
+import es.omarall.mtc.TestSupport.Condition;
+import es.omarall.mtc.RawDocumentHandler;
+import es.omarall.mtc.checkpoint.InMemoryCheckpointStore;
+
+public class SubscriberTest {
+
+	private final List<ObjectId> handled = Collections.synchronizedList(new ArrayList<ObjectId>());
+
+	private final RawDocumentHandler handler = new RawDocumentHandler() {
+		@Override
+		public void handleDocument(RawBsonDocument doc) {
+			handled.add(id(doc));
+		}
+	};
+
+	private static List<ObjectId> ids(RawBsonDocument... docs) {
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		for (RawBsonDocument doc : docs)
+			ids.add(id(doc));
+		return ids;
+	}
+
+	/**
+	 * Starts the subscriber thread, draining its queue.
+	 */
+	private Thread drain(Subscriber subscriber) {
+		Thread thread = new Thread(subscriber, "mtc-subscriber-" + subscriber.getConsumerId());
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private void awaitHandled(final int count) throws InterruptedException {
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return handled.size() >= count;
+			}
+		});
+		assertEquals(count, handled.size());
+	}
+
+	private static void stop(Subscriber subscriber, Thread thread) throws InterruptedException {
+		subscriber.stop();
+		thread.join(5000L);
+		subscriber.close();
+	}
+
+	@Test
+	public void dropNewestKeepsWhatWasQueued() throws InterruptedException {
+
+		Subscriber subscriber = new Subscriber("s", handler, 2, OverflowPolicy.DROP_NEWEST);
+		subscriber.start(null);
+		RawBsonDocument first = rawDocument();
+		RawBsonDocument second = rawDocument();
+		for (RawBsonDocument doc : new RawBsonDocument[] { first, second, rawDocument(), rawDocument() })
+			subscriber.publish(doc);
+
+		assertEquals(4, subscriber.getDocumentsPublished());
+		assertEquals(2, subscriber.getDocumentsDropped());
+		assertEquals(2, subscriber.getQueueSize());
+
+		Thread thread = drain(subscriber);
+		awaitHandled(2);
+		stop(subscriber, thread);
+		assertEquals(ids(first, second), handled);
+	}
+
+	@Test
+	public void dropOldestKeepsUpWithTheTail() throws InterruptedException {
+
+		Subscriber subscriber = new Subscriber("s", handler, 2, OverflowPolicy.DROP_OLDEST);
+		subscriber.start(null);
+		RawBsonDocument third = rawDocument();
+		RawBsonDocument fourth = rawDocument();
+		for (RawBsonDocument doc : new RawBsonDocument[] { rawDocument(), rawDocument(), third, fourth })
+			subscriber.publish(doc);
+
+		assertEquals(2, subscriber.getDocumentsDropped());
+		assertEquals(2, subscriber.getQueueSize());
+
+		Thread thread = drain(subscriber);
+		awaitHandled(2);
+		stop(subscriber, thread);
+		assertEquals(ids(third, fourth), handled);
+	}
+
+	@Test
+	public void blockWaitsForRoomAndLosesNothing() throws InterruptedException {
+
+		final Subscriber subscriber = new Subscriber("s", handler, 1, OverflowPolicy.BLOCK);
+		subscriber.start(null);
+		final RawBsonDocument first = rawDocument();
+		final RawBsonDocument second = rawDocument();
+		subscriber.publish(first);
+
+		Thread tail = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					subscriber.publish(second);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		tail.start();
+		tail.join(100L);
+		assertTrue(tail.isAlive());
+
+		Thread thread = drain(subscriber);
+		tail.join(5000L);
+		assertFalse(tail.isAlive());
+		awaitHandled(2);
+		stop(subscriber, thread);
+
+		assertEquals(0, subscriber.getDocumentsDropped());
+		assertEquals(ids(first, second), handled);
+	}
+
+	@Test
+	public void blockedPublishGivesUpOnceStopped() throws InterruptedException {
+
+		final Subscriber subscriber = new Subscriber("s", handler, 1, OverflowPolicy.BLOCK);
+		subscriber.start(null);
+		subscriber.publish(rawDocument());
+
+		Thread tail = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					subscriber.publish(rawDocument());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		tail.start();
+		tail.join(100L);
+		assertTrue(tail.isAlive());
+
+		subscriber.stop();
+		tail.join(5000L);
+		assertFalse(tail.isAlive());
+		assertEquals(1, subscriber.getQueueSize());
+		subscriber.close();
+	}
+
+	@Test
+	public void documentsUpToTheCheckpointAreSkipped() throws InterruptedException {
+
+		RawBsonDocument checkpointed = rawDocument();
+		RawBsonDocument next = rawDocument();
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+		trackingConfiguration.setConsumerId("s");
+		trackingConfiguration.setCheckpointStore(new InMemoryCheckpointStore());
+		MTCConfiguration configuration = new MTCConfiguration();
+		configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+		PersistentTrackingManager tracker = new PersistentTrackingManager(configuration);
+		tracker.persistLastTrackedEventId(id(checkpointed));
+
+		Subscriber subscriber = new Subscriber("s", handler, 4, OverflowPolicy.BLOCK);
+		assertEquals(id(checkpointed), subscriber.start(tracker));
+		subscriber.publish(checkpointed);
+		subscriber.publish(next);
+		assertEquals(1, subscriber.getDocumentsPublished());
+
+		Thread thread = drain(subscriber);
+		awaitHandled(1);
+		stop(subscriber, thread);
+		assertEquals(Arrays.asList(id(next)), handled);
+		assertEquals(id(next), tracker.fetchLastTrackedEventId());
+	}
+
+	@Test
+	public void subscriberWithoutTrackingStartsFromTheOldest() {
+		assertNull(new Subscriber("s", handler, 1, OverflowPolicy.BLOCK).start(null));
+	}
+}
@@ -0,0 +1,92 @@
+package es.omarall.mtc.group;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import com.mongodb.client.MongoDatabase;
+
+import es.omarall.mtc.checkpoint.CheckpointStore;
+import es.omarall.mtc.checkpoint.MongoCheckpointStore;
+import es.omarall.mtc.exceptions.CheckpointFencedException;
+
+public class FencedCheckpointStoreTest {
+
+	private static final String CONSUMER_ID = "group.0";
+
+	private final MongoDatabase database = new InMemoryTrackerDatabase().database();
+
+	private CheckpointStore owner(String memberId, long epoch) {
+		FencedCheckpointStore store = new FencedCheckpointStore(database, null, memberId, epoch);
+		store.claim(CONSUMER_ID);
+		return store;
+	}
+
+	private static void assertFenced(CheckpointStore store) {
+		try {
+			store.save(CONSUMER_ID, new ObjectId());
+			fail("Write under an older lease expected to be fenced");
+		} catch (CheckpointFencedException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void claimUnderANewerEpochFencesWritesUnderOlderOnes() {
+
+		CheckpointStore previousOwner = owner("a", 1L);
+		assertNull(previousOwner.load(CONSUMER_ID));
+		ObjectId id = new ObjectId();
+		previousOwner.save(CONSUMER_ID, id);
+
+		CheckpointStore newOwner = owner("b", 2L);
+		assertEquals(id, newOwner.load(CONSUMER_ID));
+		assertFenced(previousOwner);
+		assertEquals(id, newOwner.load(CONSUMER_ID));
+
+		ObjectId next = new ObjectId();
+		newOwner.save(CONSUMER_ID, next);
+		assertEquals(next, previousOwner.load(CONSUMER_ID));
+	}
+
+	@Test
+	public void claimUnderAnOlderEpochIsRefused() {
+
+		owner("b", 2L);
+		try {
+			owner("a", 1L);
+			fail("Claim under an older lease expected to be fenced");
+		} catch (CheckpointFencedException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void ownerTakingItsLeaseAgainKeepsWriting() {
+
+		CheckpointStore store = owner("a", 1L);
+		store.save(CONSUMER_ID, new ObjectId());
+		CheckpointStore again = owner("a", 2L);
+		assertFenced(store);
+
+		ObjectId id = new ObjectId();
+		again.save(CONSUMER_ID, id);
+		assertEquals(id, again.load(CONSUMER_ID));
+	}
+
+	@Test
+	public void checkpointWrittenWithoutLeaseIsClaimed() {
+
+		ObjectId id = new ObjectId();
+		new MongoCheckpointStore(database, null).save(CONSUMER_ID, id);
+
+		CheckpointStore store = owner("a", 1L);
+		assertEquals(id, store.load(CONSUMER_ID));
+		ObjectId next = new ObjectId();
+		store.save(CONSUMER_ID, next);
+		assertEquals(next, store.load(CONSUMER_ID));
+	}
+}
@@ -0,0 +1,166 @@
+package es.omarall.mtc.group;
+
+import static es.omarall.mtc.TestSupport.await;
+import static es.omarall.mtc.TestSupport.id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
+
+import es.omarall.configuration.MTCConfiguration;
+import es.omarall.configuration.MTCPersistentTrackingConfiguration;
+import es.omarall.configuration.MTCStandbyConfiguration;
+import es.omarall.mtc.DocumentHandler;
+import es.omarall.mtc.TestSupport;
+import es.omarall.mtc.TestSupport.Condition;
+import es.omarall.mtc.exceptions.CheckpointFencedException;
+
+/**
+ * Runs against the mongod at localhost:27017, or the host:port in the
+ * mtc.test.mongo system property, on a database of its own. Skipped if there
+ * is none.
+ */
+public class HotStandbyConsumerTest {
+
+	private static final String COLLECTION = "events";
+	private static final String CONSUMER_ID = "consumer";
+	private static final long LEASE_DURATION = 400L;
+	private static final long RENEW_INTERVAL = 50L;
+
+	private MongoClient mongoClient;
+	private MongoDatabase database;
+
+	@Before
+	public void connect() {
+
+		mongoClient = TestSupport.mongoClient();
+		Assume.assumeNotNull(mongoClient);
+		database = mongoClient.getDatabase("mtc-test-" + new ObjectId());
+		database.createCollection(COLLECTION, new CreateCollectionOptions().capped(true).sizeInBytes(1 << 20));
+	}
+
+	@After
+	public void dropDatabase() {
+		if (mongoClient == null)
+			return;
+		database.drop();
+		mongoClient.close();
+	}
+
+	private HotStandbyConsumer member(String memberId, final List<ObjectId> handled) {
+
+		MTCPersistentTrackingConfiguration trackingConfiguration = new MTCPersistentTrackingConfiguration();
+		trackingConfiguration.setConsumerId(CONSUMER_ID);
+
+		MTCConfiguration configuration = new MTCConfiguration();
+		configuration.setMongoClient(mongoClient);
+		configuration.setDatabase(database.getName());
+		configuration.setCollection(COLLECTION);
+		configuration.setPersistentTrackingConfiguration(trackingConfiguration);
+
+		MTCStandbyConfiguration standbyConfiguration = new MTCStandbyConfiguration();
+		standbyConfiguration.setMemberId(memberId);
+		standbyConfiguration.setLeaseDuration(LEASE_DURATION);
+		standbyConfiguration.setRenewInterval(RENEW_INTERVAL);
+		standbyConfiguration.setWarmInterval(RENEW_INTERVAL);
+
+		HotStandbyConsumer consumer = new HotStandbyConsumer(configuration, standbyConfiguration);
+		consumer.setDocumentHandler(new DocumentHandler() {
+			@Override
+			public void handleDocument(Document doc) {
+				handled.add(id(doc));
+			}
+		});
+		return consumer;
+	}
+
+	private ObjectId insert() {
+		ObjectId id = new ObjectId();
+		database.getCollection(COLLECTION).insertOne(new Document("_id", id));
+		return id;
+	}
+
+	private Document checkpoint() {
+		return database.getCollection(MTCPersistentTrackingConfiguration.TRACKER_COLLECTION_NAME)
+				.find(Filters.eq(MTCPersistentTrackingConfiguration.CONSUMER_ID_FIELD, CONSUMER_ID)).first();
+	}
+
+	private static void awaitActive(final HotStandbyConsumer consumer) throws InterruptedException {
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return consumer.isActive();
+			}
+		});
+		assertTrue(consumer.isActive());
+	}
+
+	private static void awaitHandled(final List<ObjectId> handled, final ObjectId id) throws InterruptedException {
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return handled.contains(id);
+			}
+		});
+		assertTrue(handled.contains(id));
+	}
+
+	@Test
+	public void standbyTakesOverAndFencesTheCheckpointsOfThePreviousOwner() throws InterruptedException {
+
+		List<ObjectId> handledByA = new CopyOnWriteArrayList<ObjectId>();
+		List<ObjectId> handledByB = new CopyOnWriteArrayList<ObjectId>();
+		HotStandbyConsumer a = member("a", handledByA);
+		HotStandbyConsumer b = member("b", handledByB);
+
+		ObjectId first = insert();
+		a.start();
+		awaitActive(a);
+		b.start();
+		awaitHandled(handledByA, first);
+		Thread.sleep(LEASE_DURATION);
+		assertFalse(b.isActive());
+
+		Document claimedByA = checkpoint();
+		assertEquals("a", claimedByA.getString(MTCPersistentTrackingConfiguration.LEASE_OWNER_FIELD));
+		long epochOfA = claimedByA.getLong(MTCPersistentTrackingConfiguration.LEASE_EPOCH_FIELD);
+
+		// Stopped, a persists its checkpoint and releases the lease
+		a.stop();
+		awaitActive(b);
+		assertEquals(1, b.getTakeOvers());
+
+		Document claimedByB = checkpoint();
+		assertEquals("b", claimedByB.getString(MTCPersistentTrackingConfiguration.LEASE_OWNER_FIELD));
+		assertTrue(claimedByB.getLong(MTCPersistentTrackingConfiguration.LEASE_EPOCH_FIELD) > epochOfA);
+		assertEquals(first, claimedByB.getObjectId(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD));
+
+		try {
+			new FencedCheckpointStore(database, null, "a", epochOfA).save(CONSUMER_ID, new ObjectId());
+			fail("Write under the lease of a expected to be fenced");
+		} catch (CheckpointFencedException e) {
+			// Expected
+		}
+
+		ObjectId second = insert();
+		awaitHandled(handledByB, second);
+		b.stop();
+		assertFalse(handledByB.contains(first));
+		assertEquals(second, checkpoint().getObjectId(MTCPersistentTrackingConfiguration.LAST_TRACK_ID_FIELD));
+	}
+}
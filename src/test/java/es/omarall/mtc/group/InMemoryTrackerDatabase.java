@@ -0,0 +1,308 @@
+package es.omarall.mtc.group;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * A {@link MongoDatabase} whose collections are kept in memory, implementing
+ * just what leases and fenced checkpoints use, so they are tested without a
+ * server: find, updateOne and findOneAndUpdate, upserts included, and unique
+ * indexes. Filters are evaluated as rendered, with $and, $or, $eq, $lt, $lte,
+ * $gt, $gte and $exists on top level fields; updates with $set and $inc. An
+ * upsert hitting a unique index fails as the server does, with a duplicate
+ * key error.
+ */
+final class InMemoryTrackerDatabase {
+
+	private static final int DUPLICATE_KEY = 11000;
+
+	private final List<BsonDocument> documents = new ArrayList<BsonDocument>();
+	private final List<String> uniqueFields = new ArrayList<String>();
+
+	/**
+	 * @return a database sharing the documents of every other one returned.
+	 *         Every collection name is the same collection.
+	 */
+	MongoDatabase database() {
+		return proxy(MongoDatabase.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getCollection"))
+					return collection();
+				return unsupported(method);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private MongoCollection<Document> collection() {
+		return proxy(MongoCollection.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("withWriteConcern"))
+					return proxy;
+				if (name.equals("createIndex"))
+					return createIndex((Bson) args[0], args.length > 1 ? (IndexOptions) args[1] : null);
+				if (name.equals("find") && args != null && args.length == 1 && args[0] instanceof Bson)
+					return find(render((Bson) args[0]));
+				if (name.equals("updateOne"))
+					return updateOne(render((Bson) args[0]), render((Bson) args[1]),
+							args.length > 2 && ((UpdateOptions) args[2]).isUpsert());
+				if (name.equals("findOneAndUpdate")) {
+					FindOneAndUpdateOptions options = args.length > 2 ? (FindOneAndUpdateOptions) args[2]
+							: new FindOneAndUpdateOptions();
+					return findOneAndUpdate(render((Bson) args[0]), render((Bson) args[1]), options);
+				}
+				return unsupported(method);
+			}
+		});
+	}
+
+	private String createIndex(Bson keys, IndexOptions options) {
+		String field = render(keys).keySet().iterator().next();
+		synchronized (documents) {
+			if (options != null && options.isUnique() && !uniqueFields.contains(field))
+				uniqueFields.add(field);
+		}
+		return field + "_1";
+	}
+
+	@SuppressWarnings("unchecked")
+	private FindIterable<Document> find(final BsonDocument filter) {
+		return proxy(FindIterable.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("projection"))
+					return proxy;
+				if (method.getName().equals("first")) {
+					synchronized (documents) {
+						BsonDocument document = first(filter);
+						return document == null ? null : decode(document);
+					}
+				}
+				return unsupported(method);
+			}
+		});
+	}
+
+	private UpdateResult updateOne(BsonDocument filter, BsonDocument update, boolean upsert) {
+		synchronized (documents) {
+			BsonDocument document = first(filter);
+			if (document != null) {
+				apply(document, update);
+				return UpdateResult.acknowledged(1L, 1L, null);
+			}
+			if (!upsert)
+				return UpdateResult.acknowledged(0L, 0L, null);
+			try {
+				return UpdateResult.acknowledged(0L, 0L, upsert(filter, update).get("_id"));
+			} catch (IllegalStateException e) {
+				throw new MongoWriteException(new WriteError(DUPLICATE_KEY, e.getMessage(), new BsonDocument()),
+						new ServerAddress());
+			}
+		}
+	}
+
+	private Document findOneAndUpdate(BsonDocument filter, BsonDocument update, FindOneAndUpdateOptions options) {
+		synchronized (documents) {
+			BsonDocument document = first(filter);
+			BsonDocument before = document == null ? null : document.clone();
+			if (document != null) {
+				apply(document, update);
+			} else if (options.isUpsert()) {
+				try {
+					document = upsert(filter, update);
+				} catch (IllegalStateException e) {
+					throw new MongoCommandException(new BsonDocument("ok", new BsonDouble(0))
+							.append("code", new BsonInt32(DUPLICATE_KEY)).append("errmsg", new BsonString(e.getMessage())),
+							new ServerAddress());
+				}
+			}
+			BsonDocument returned = options.getReturnDocument() == ReturnDocument.AFTER ? document : before;
+			return returned == null ? null : decode(returned);
+		}
+	}
+
+	private BsonDocument first(BsonDocument filter) {
+		for (BsonDocument document : documents)
+			if (matches(document, filter))
+				return document;
+		return null;
+	}
+
+	/**
+	 * Inserts the equalities of the filter, updated.
+	 *
+	 * @throws IllegalStateException
+	 *             if a unique index is hit.
+	 */
+	private BsonDocument upsert(BsonDocument filter, BsonDocument update) {
+
+		BsonDocument document = new BsonDocument("_id", new BsonObjectId(new ObjectId()));
+		equalities(filter, document);
+		apply(document, update);
+		for (String field : uniqueFields) {
+			for (BsonDocument other : documents)
+				if (document.containsKey(field) && document.get(field).equals(other.get(field)))
+					throw new IllegalStateException("E11000 duplicate key error on " + field);
+		}
+		documents.add(document);
+		return document;
+	}
+
+	private static void equalities(BsonDocument filter, BsonDocument document) {
+		for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+			if (condition.getKey().equals("$and")) {
+				for (BsonValue and : condition.getValue().asArray())
+					equalities(and.asDocument(), document);
+			} else if (!condition.getKey().startsWith("$") && !isOperator(condition.getValue())) {
+				document.put(condition.getKey(), condition.getValue());
+			}
+		}
+	}
+
+	private static void apply(BsonDocument document, BsonDocument update) {
+		for (Map.Entry<String, BsonValue> operator : update.entrySet()) {
+			for (Map.Entry<String, BsonValue> field : operator.getValue().asDocument().entrySet()) {
+				if (operator.getKey().equals("$set")) {
+					document.put(field.getKey(), field.getValue());
+				} else if (operator.getKey().equals("$inc")) {
+					BsonValue value = document.get(field.getKey());
+					long current = value == null ? 0L : value.asNumber().longValue();
+					document.put(field.getKey(), new BsonInt64(current + field.getValue().asNumber().longValue()));
+				} else {
+					throw new UnsupportedOperationException(operator.getKey());
+				}
+			}
+		}
+	}
+
+	private static boolean matches(BsonDocument document, BsonDocument filter) {
+		for (Map.Entry<String, BsonValue> condition : filter.entrySet()) {
+			String key = condition.getKey();
+			if (key.equals("$and") || key.equals("$or")) {
+				boolean or = key.equals("$or");
+				boolean matched = !or;
+				for (BsonValue part : condition.getValue().asArray()) {
+					if (matches(document, part.asDocument()) == or) {
+						matched = or;
+						break;
+					}
+				}
+				if (!matched)
+					return false;
+			} else if (!matches(document.get(key), condition.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matches(BsonValue value, BsonValue condition) {
+		if (!isOperator(condition))
+			return equal(value, condition);
+		for (Map.Entry<String, BsonValue> operator : condition.asDocument().entrySet()) {
+			String name = operator.getKey();
+			BsonValue operand = operator.getValue();
+			boolean matched;
+			if (name.equals("$eq"))
+				matched = equal(value, operand);
+			else if (name.equals("$exists"))
+				matched = (value != null) == operand.asBoolean().getValue();
+			else if (name.equals("$lt"))
+				matched = comparable(value, operand) && compare(value, operand) < 0;
+			else if (name.equals("$lte"))
+				matched = comparable(value, operand) && compare(value, operand) <= 0;
+			else if (name.equals("$gt"))
+				matched = comparable(value, operand) && compare(value, operand) > 0;
+			else if (name.equals("$gte"))
+				matched = comparable(value, operand) && compare(value, operand) >= 0;
+			else
+				throw new UnsupportedOperationException(name);
+			if (!matched)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isOperator(BsonValue condition) {
+		return condition.isDocument() && !condition.asDocument().isEmpty()
+				&& condition.asDocument().keySet().iterator().next().startsWith("$");
+	}
+
+	private static boolean equal(BsonValue value, BsonValue operand) {
+		if (value == null)
+			return operand.isNull();
+		if (operand.isRegularExpression())
+			return value.isString()
+					&& Pattern.compile(operand.asRegularExpression().getPattern()).matcher(value.asString().getValue())
+							.find();
+		if (comparable(value, operand))
+			return compare(value, operand) == 0;
+		return value.equals(operand);
+	}
+
+	/**
+	 * Only numbers are compared: other values, missing ones included, match
+	 * no range operator.
+	 */
+	private static boolean comparable(BsonValue value, BsonValue operand) {
+		return value != null && value.isNumber() && operand.isNumber();
+	}
+
+	private static int compare(BsonValue value, BsonValue operand) {
+		return Double.compare(value.asNumber().doubleValue(), operand.asNumber().doubleValue());
+	}
+
+	private static BsonDocument render(Bson bson) {
+		return bson.toBsonDocument(Document.class, MongoClient.getDefaultCodecRegistry());
+	}
+
+	private static Document decode(BsonDocument document) {
+		return new DocumentCodec().decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+	}
+
+	private static Object unsupported(Method method) {
+		throw new UnsupportedOperationException(method.getName());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(InMemoryTrackerDatabase.class.getClassLoader(), new Class<?>[] { type },
+				handler);
+	}
+}
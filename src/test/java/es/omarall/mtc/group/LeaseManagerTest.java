@@ -0,0 +1,119 @@
+package es.omarall.mtc.group;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoDatabase;
+
+import es.omarall.mtc.TestSupport;
+import es.omarall.mtc.exceptions.CheckpointFencedException;
+
+/**
+ * Runs against the mongod at localhost:27017, or the host:port in the
+ * mtc.test.mongo system property, on a database of its own. If there is none,
+ * against an {@link InMemoryTrackerDatabase}.
+ */
+public class LeaseManagerTest {
+
+	private static final long LEASE_DURATION = 200L;
+
+	private MongoClient mongoClient;
+	private MongoDatabase database;
+
+	@Before
+	public void connect() {
+
+		mongoClient = TestSupport.mongoClient();
+		database = mongoClient == null ? new InMemoryTrackerDatabase().database()
+				: mongoClient.getDatabase("mtc-test-" + new ObjectId());
+	}
+
+	@After
+	public void dropDatabase() {
+		if (mongoClient == null)
+			return;
+		database.drop();
+		mongoClient.close();
+	}
+
+	private LeaseManager member(String memberId) {
+		return new LeaseManager(database, null, "group", memberId, LEASE_DURATION);
+	}
+
+	@Test
+	public void leaseIsOwnedByOneMemberAtATime() {
+
+		LeaseManager a = member("a");
+		LeaseManager b = member("b");
+		long epoch = a.acquire(0);
+		assertTrue(epoch > 0);
+		assertEquals(0, b.acquire(0));
+
+		// Renewed, and taken again by its owner, under a newer epoch
+		assertTrue(a.renew(0));
+		assertFalse(b.renew(0));
+		assertTrue(a.acquire(0) > epoch);
+	}
+
+	@Test
+	public void expiredLeaseIsTakenOverWithANewerEpoch() throws InterruptedException {
+
+		LeaseManager a = member("a");
+		LeaseManager b = member("b");
+		long epoch = a.acquire(0);
+
+		Thread.sleep(LEASE_DURATION * 2);
+		long takenOver = b.acquire(0);
+		assertTrue(takenOver > epoch);
+		assertFalse(a.renew(0));
+		assertEquals(0, a.acquire(0));
+	}
+
+	@Test
+	public void releasedLeaseIsTakenRightAway() throws InterruptedException {
+
+		LeaseManager a = member("a");
+		LeaseManager b = member("b");
+		a.acquire(0);
+		a.release(0);
+		// Expired from the next millisecond on
+		Thread.sleep(2L);
+		assertTrue(b.acquire(0) > 0);
+	}
+
+	@Test
+	public void checkpointWritesUnderAnOlderLeaseAreFenced() throws InterruptedException {
+
+		LeaseManager a = member("a");
+		LeaseManager b = member("b");
+		FencedCheckpointStore previousOwner = new FencedCheckpointStore(database, null, "a", a.acquire(0));
+		previousOwner.claim("group-0");
+		ObjectId id = new ObjectId();
+		previousOwner.save("group-0", id);
+
+		Thread.sleep(LEASE_DURATION * 2);
+		FencedCheckpointStore newOwner = new FencedCheckpointStore(database, null, "b", b.acquire(0));
+		newOwner.claim("group-0");
+		assertEquals(id, newOwner.load("group-0"));
+
+		try {
+			previousOwner.save("group-0", new ObjectId());
+			fail("Write under an older lease expected to be fenced");
+		} catch (CheckpointFencedException e) {
+			// Expected
+		}
+		assertEquals(id, newOwner.load("group-0"));
+
+		ObjectId next = new ObjectId();
+		newOwner.save("group-0", next);
+		assertEquals(next, newOwner.load("group-0"));
+	}
+}
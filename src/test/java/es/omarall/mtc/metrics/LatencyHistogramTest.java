@@ -0,0 +1,103 @@
+package es.omarall.mtc.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogramReadsZero() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0d, histogram.getMean(), 0d);
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void everyValueFallsInABucketNotWiderThanItsPrecision() {
+
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long value = i < 1000 ? i : (random.nextLong() & Long.MAX_VALUE) % LatencyHistogram.MAX_TRACKABLE_NANOS;
+			int index = LatencyHistogram.indexOf(value);
+			long highest = LatencyHistogram.highestValueOf(index);
+			assertTrue(value + " above its bucket", value <= highest);
+			assertTrue(value + " below its bucket", index == 0 || LatencyHistogram.highestValueOf(index - 1) < value);
+			assertTrue(value + " in a too wide bucket", highest - value <= value / 64);
+		}
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100; value++)
+			histogram.record(value);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(100, histogram.getMax());
+		assertEquals(50.5d, histogram.getMean(), 0d);
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		assertEquals(99, histogram.getValueAtPercentile(99));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void percentilesAreWithinBucketPrecision() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 10000; micros++)
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+
+		long p50 = TimeUnit.MICROSECONDS.toNanos(5000);
+		long p999 = TimeUnit.MICROSECONDS.toNanos(9990);
+		assertTrue(histogram.getValueAtPercentile(50) >= p50);
+		assertTrue(histogram.getValueAtPercentile(50) <= p50 + p50 / 64);
+		assertTrue(histogram.getValueAtPercentile(99.9) >= p999);
+		assertTrue(histogram.getValueAtPercentile(99.9) <= p999 + p999 / 64);
+		// Never above the max recorded
+		assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void valuesAreClampedToTheTrackableRange() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(TimeUnit.HOURS.toNanos(2));
+
+		assertEquals(2, histogram.getCount());
+		assertEquals(LatencyHistogram.MAX_TRACKABLE_NANOS, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(LatencyHistogram.MAX_TRACKABLE_NANOS, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void concurrentRecordingLosesNoCount() throws InterruptedException {
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++)
+						histogram.record(i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(40000, histogram.getCount());
+		assertEquals(9999, histogram.getMax());
+	}
+}
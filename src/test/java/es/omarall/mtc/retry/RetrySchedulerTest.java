@@ -0,0 +1,73 @@
+package es.omarall.mtc.retry;
+
+import static es.omarall.mtc.TestSupport.await;
+import static es.omarall.mtc.TestSupport.rawDocument;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.bson.RawBsonDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import es.omarall.configuration.MTCRetryConfiguration;
+import es.omarall.mtc.TestSupport.Condition;
+
+public class RetrySchedulerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<RawBsonDocument> retried = new CopyOnWriteArrayList<RawBsonDocument>();
+
+	private RetryScheduler scheduler() {
+		MTCRetryConfiguration configuration = new MTCRetryConfiguration();
+		configuration.setSpillFile(new File(folder.getRoot(), "retries.spill"));
+		configuration.setInitialDelay(1L);
+		return new RetryScheduler(configuration, new Consumer<RawBsonDocument>() {
+			@Override
+			public void accept(RawBsonDocument doc) {
+				retried.add(doc);
+			}
+		});
+	}
+
+	@Test
+	public void failedDocumentIsRetried() throws InterruptedException {
+
+		final RetryScheduler scheduler = scheduler();
+		scheduler.start();
+		RawBsonDocument doc = rawDocument();
+		scheduler.failed(doc);
+
+		await(new Condition() {
+			@Override
+			public boolean isMet() {
+				return scheduler.getRetriesSucceeded() >= 1;
+			}
+		});
+		assertEquals(1, scheduler.getRetriesSucceeded());
+		assertEquals(0, scheduler.getPendingCount());
+		assertEquals(doc, retried.get(0));
+		scheduler.close(1000L);
+	}
+
+	@Test
+	public void documentFailedOnceClosedIsNotSpilled() {
+
+		RetryScheduler scheduler = scheduler();
+		scheduler.failed(rawDocument());
+		scheduler.start();
+		scheduler.close(1000L);
+		scheduler.failed(rawDocument());
+
+		assertEquals(0, scheduler.getRetries());
+		SpillFile spillFile = new SpillFile(new File(folder.getRoot(), "retries.spill"));
+		assertEquals(0, spillFile.getPendingCount());
+		spillFile.close();
+	}
+}
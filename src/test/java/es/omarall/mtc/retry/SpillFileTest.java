@@ -0,0 +1,172 @@
+package es.omarall.mtc.retry;
+
+import static es.omarall.mtc.TestSupport.id;
+import static es.omarall.mtc.TestSupport.raw;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import es.omarall.mtc.TestSupport;
+import es.omarall.mtc.exceptions.MTCException;
+
+public class SpillFileTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file() {
+		return new File(folder.getRoot(), "retries.spill");
+	}
+
+	private static RawBsonDocument document() {
+		return raw(TestSupport.document().append("payload", "some payload"));
+	}
+
+	@Test
+	public void pendingDocumentsAndDeadLettersSurviveReopening() {
+
+		RawBsonDocument pending = document();
+		RawBsonDocument done = document();
+		RawBsonDocument dead = document();
+
+		SpillFile spillFile = new SpillFile(file());
+		spillFile.failed(done);
+		spillFile.failed(pending);
+		spillFile.failed(dead);
+		spillFile.done(id(done));
+		spillFile.dead(id(dead));
+		assertEquals(1, spillFile.getPendingCount());
+		assertEquals(1, spillFile.getDeadLetterCount());
+		spillFile.close();
+
+		spillFile = new SpillFile(file());
+		assertEquals(1, spillFile.getPendingCount());
+		assertEquals(id(pending), id(spillFile.getPending().get(0)));
+		assertEquals(1, spillFile.getDeadLetterCount());
+		assertEquals(id(dead), id(spillFile.getDeadLetters().get(0)));
+		spillFile.close();
+	}
+
+	@Test
+	public void compactionKeepsOnlyPendingDocumentsAndDeadLetters() {
+
+		RawBsonDocument pending = document();
+		SpillFile spillFile = new SpillFile(file());
+		spillFile.failed(pending);
+		for (int i = 0; i < 100; i++) {
+			RawBsonDocument doc = document();
+			spillFile.failed(doc);
+			spillFile.done(id(doc));
+		}
+		long appended = file().length();
+		spillFile.close();
+
+		// A FAILED record: header and document bytes
+		long compacted = file().length();
+		assertEquals(9 + pending.getByteBuffer().remaining(), compacted);
+		assertTrue(compacted < appended);
+		assertFalse(new File(file().getPath() + ".compact").exists());
+
+		spillFile = new SpillFile(file());
+		assertEquals(id(pending), id(spillFile.getPending().get(0)));
+		spillFile.close();
+	}
+
+	@Test
+	public void appendsCompactOnceMostOfTheFileIsNoLongerNeeded() {
+
+		RawBsonDocument pending = document();
+		long pendingSize = 9 + pending.getByteBuffer().remaining();
+		SpillFile spillFile = new SpillFile(file(), 10 * pendingSize);
+		spillFile.failed(pending);
+		for (int i = 0; i < 100; i++) {
+			RawBsonDocument doc = document();
+			spillFile.failed(doc);
+			spillFile.done(id(doc));
+			assertTrue(file().length() < 20 * pendingSize);
+		}
+		assertTrue(spillFile.getCompactions() > 0);
+		spillFile.close();
+
+		spillFile = new SpillFile(file());
+		assertEquals(1, spillFile.getPendingCount());
+		assertEquals(id(pending), id(spillFile.getPending().get(0)));
+		spillFile.close();
+	}
+
+	@Test
+	public void fileOfPendingDocumentsIsNotCompactedOnAppend() {
+
+		RawBsonDocument first = document();
+		SpillFile spillFile = new SpillFile(file(), 2 * (9 + first.getByteBuffer().remaining()));
+		spillFile.failed(first);
+		for (int i = 0; i < 10; i++)
+			spillFile.failed(document());
+		assertEquals(0, spillFile.getCompactions());
+		assertEquals(11, spillFile.getPendingCount());
+		spillFile.close();
+	}
+
+	@Test
+	public void tornRecordIsDropped() throws IOException {
+
+		RawBsonDocument pending = document();
+		SpillFile spillFile = new SpillFile(file());
+		spillFile.failed(pending);
+		spillFile.close();
+
+		// A record cut short by a crash
+		FileOutputStream out = new FileOutputStream(file(), true);
+		try {
+			out.write(new byte[] { 0, 0, 0, 64, 1, 0, 0 });
+		} finally {
+			out.close();
+		}
+
+		spillFile = new SpillFile(file());
+		assertEquals(1, spillFile.getPendingCount());
+		spillFile.close();
+		assertEquals(9 + pending.getByteBuffer().remaining(), file().length());
+	}
+
+	@Test
+	public void deadLettersAreRequeued() {
+
+		RawBsonDocument dead = document();
+		SpillFile spillFile = new SpillFile(file());
+		spillFile.failed(dead);
+		spillFile.dead(id(dead));
+
+		assertEquals(1, spillFile.requeueDeadLetters().size());
+		assertEquals(0, spillFile.getDeadLetterCount());
+		assertEquals(id(dead), id(spillFile.getPending().get(0)));
+		spillFile.close();
+	}
+
+	@Test
+	public void fileIsOpenByOneInstanceAtATime() {
+
+		SpillFile spillFile = new SpillFile(file());
+		try {
+			new SpillFile(file());
+			fail("Spill file opened twice");
+		} catch (MTCException e) {
+			// Expected
+		}
+		spillFile.close();
+
+		// Released on close
+		new SpillFile(file()).close();
+	}
+}